@@ -30,6 +30,7 @@ import repast.simphony.engine.schedule.ISchedule;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class FJAbmSimulator extends AbstractSimulator {
     
     private ISchedule scheduler;                // main scheduler for agent and other actions
@@ -13,7 +13,7 @@
 package info.financialecology.finance.abm.model;
 
 import java.lang.reflect.Type;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -92,30 +92,28 @@ public class FJEqnModel {
     Uniform distExitThreshTech;     // distribution of trader-specific exit threshold
 
     /**
-     *  Declaring the two agent types: value investors and trend followers
+     *  The two agent types, value investors and trend followers, are stored as structures of
+     *  arrays: one primitive array per agent attribute, indexed by the agent number. The order
+     *  loops in step() then run over contiguous arrays rather than over agent objects.
      */
-    class ValueInvestor {
-        ValueInvestor () {}
-        public double position;
-        public double order;
-        public double valueOffset;
-        public double entryThresh;
-        public double exitThresh;
-        public double capFac;
-    }
     
-    class TrendFollower {
-        TrendFollower () {}
-        public double position;
-        public double order;
-        public int    delay;
-        public double entryThresh;
-        public double exitThresh;
-        public double capFac;
-    }
+    // Value investors
+    private double [] positionValue;        // number of assets owned
+    private double [] valueOffset;          // trader-specific offset to the log reference value
+    private double [] entryThreshValue;     // threshold in terms of value-price difference at which to enter the trade
+    private double [] exitThreshValue;      // threshold in terms of value-price difference at which to exit the trade
+    private double [] capFacValue;          // factor to up- or down-scale the new position
     
-    ArrayList<ValueInvestor>   valueInvestors = new ArrayList<ValueInvestor>();      // array of fundamental traders 
-    ArrayList<TrendFollower>   trendFollowers = new ArrayList<TrendFollower>();      // array of technical traders
+    // Trend followers
+    private double [] positionTrend;        // number of assets owned
+    private int [] delayTrend;              // time horizon of the price trend
+    private double [] entryThreshTrend;     // threshold in terms of price trend at which to enter the trade
+    private double [] exitThreshTrend;      // threshold in terms of price trend at which to exit the trade
+    private double [] capFacTrend;          // factor to up- or down-scale the new position
+    
+    // Market
+    private double [] logPrices;            // log prices up to the current tick, a copy of tsLogPrices for fast access
+    private double [] priceTrend;           // price trend at the current tick, indexed by the delay
     
     
     /**
@@ -155,38 +153,46 @@ public class FJEqnModel {
         distEntryThreshTech = RandomHelper.createUniform(params.TMinTrend, params.TMaxTrend);
         distExitThreshTech  = RandomHelper.createUniform(params.tauMinTrend, params.tauMaxTrend);        
 
-        // Generate fundamental trader population
-        for (int j = 0; j < params.numValueInvestors; j++) {
-            ValueInvestor valueInvestor = new ValueInvestor();
-            valueInvestor.position = 0.0;
-            valueInvestor.order = 0.0;
-            valueInvestor.valueOffset = distOffsetValue.nextDouble();
-            valueInvestor.entryThresh = distEntryThreshFund.nextDouble();
-            valueInvestor.exitThresh = distExitThreshFund.nextDouble();
+        int nValue = params.numValueInvestors;
+        int nTrend = params.numTrendFollowers;
+        
+        positionValue       = new double[nValue];
+        valueOffset         = new double[nValue];
+        entryThreshValue    = new double[nValue];
+        exitThreshValue     = new double[nValue];
+        capFacValue         = new double[nValue];
+        
+        positionTrend       = new double[nTrend];
+        delayTrend          = new int[nTrend];
+        entryThreshTrend    = new double[nTrend];
+        exitThreshTrend     = new double[nTrend];
+        capFacTrend         = new double[nTrend];
+
+        logPrices           = new double[Math.max(params.nTicks, params.delayMax) + 1];
+        priceTrend          = new double[params.delayMax + 1];
+        
+        // Generate fundamental trader population (draws in the same order as for agent objects, to keep the random sequence)
+        for (int j = 0; j < nValue; j++) {
+            valueOffset[j] = distOffsetValue.nextDouble();
+            entryThreshValue[j] = distEntryThreshFund.nextDouble();
+            exitThreshValue[j] = distExitThreshFund.nextDouble();
 
             if (params.constCapFac)
-                valueInvestor.capFac = 4 * params.aValueInv;
+                capFacValue[j] = 4 * params.aValueInv;
             else
-                valueInvestor.capFac = 1.6 * params.aValueInv * (valueInvestor.entryThresh - valueInvestor.exitThresh);
-            
-            valueInvestors.add(valueInvestor);
+                capFacValue[j] = 1.6 * params.aValueInv * (entryThreshValue[j] - exitThreshValue[j]);
         }
         
         // Generate technical trader population
-        for (int j = 0; j < params.numTrendFollowers; j++) {
-            TrendFollower trendFollower = new TrendFollower();
-            trendFollower.position = 0.0;
-            trendFollower.order = 0.0;
-            trendFollower.delay = distDelayTech.nextInt();
-            trendFollower.entryThresh = distEntryThreshTech.nextDouble();
-            trendFollower.exitThresh = distExitThreshTech.nextDouble();
+        for (int j = 0; j < nTrend; j++) {
+            delayTrend[j] = distDelayTech.nextInt();
+            entryThreshTrend[j] = distEntryThreshTech.nextDouble();
+            exitThreshTrend[j] = distExitThreshTech.nextDouble();
 
             if (params.constCapFac)
-                trendFollower.capFac = 4 * params.aTrend;
+                capFacTrend[j] = 4 * params.aTrend;
             else
-                trendFollower.capFac = 1.6 * params.aValueInv * (trendFollower.entryThresh - trendFollower.exitThresh);  // BUG: should use techTrader.entryThrash and techTraderexitThresh
-            
-            trendFollowers.add(trendFollower);
+                capFacTrend[j] = 1.6 * params.aValueInv * (entryThreshTrend[j] - exitThreshTrend[j]);  // BUG: should use techTrader.entryThrash and techTraderexitThresh
         }
     }
         
@@ -200,99 +206,97 @@ public class FJEqnModel {
 
         if (t <= params.delayMax) {     // warm-up phase
             if (t == 0) {
-                tsLogPrices.add(0, Math.log(params.price_0));
+                logPrice = Math.log(params.price_0);
+                tsLogPrices.add(0, logPrice);
                 tsLogRefValues.add(0, Math.log(params.price_0));
 
-                // Initialise fundamental traders
-                for (int j = 0; j < params.numValueInvestors; j++) {
-                    ValueInvestor valueInvestor = valueInvestors.get(j);
-                    valueInvestor.position = 0.0;
-                    valueInvestor.order = 0.0;
-                }
-                
-                // Initialise technical traders
-                for (int j = 0; j < params.numTrendFollowers; j++) {
-                    TrendFollower trendFollower = trendFollowers.get(j);
-                    trendFollower.position = 0.0;
-                    trendFollower.order = 0.0;
-                }
+                // Initialise fundamental and technical traders
+                Arrays.fill(positionValue, 0.0);
+                Arrays.fill(positionTrend, 0.0);
             } else {
                 noise = distLogPriceNoise.nextDouble();
                 tsPriceNoise.add(t, noise);
-                logPrice = tsLogPrices.getValue(t - 1) + noise; 
+                logPrice = logPrices[t - 1] + noise; 
                 tsLogPrices.add(t, logPrice);
 
                 logRefValue = tsLogRefValues.getValue(t - 1) + distRefValue.nextDouble();
                 tsLogRefValues.add(t, logRefValue);
             }
             
+            storeLogPrice(t, logPrice);
+            
             tsOrderValueInv.add(t, 0.0);
             tsOrderTrend.add(t, 0.0);
             tsVolume.add(t, 0.0);
         } else {
-            /**
-             * Initialising positions and orders before each simulation run. The other
-             * parameters, in particular the ones related to thresholds, delay window
-             * etc. are kept constant over the experiment.
-             */
-           
-            double totalOrderFund = 0.0;
-            double totalOrderTech = 0.0;
-            double totalVolume = 0.0;
+            double logPrice_tm1 = logPrices[t - 1];
             
             logRefValue = tsLogRefValues.getValue(t - 1) + distRefValue.nextDouble();   // update reference value for this time step 
             tsLogRefValues.add(t, logRefValue);
             
+            double totalOrderFund = 0.0;
+            double totalOrderTech = 0.0;
+            double totalVolume = 0.0;
+            
             // Orders from fundamental traders
-            for (int k = 0; k < params.numValueInvestors; k++) {
-                ValueInvestor fund = (ValueInvestor) valueInvestors.get(k);
-                double logValueFund = logRefValue + fund.valueOffset;  // value of asset at time t for trader k
-                double diff = logValueFund - tsLogPrices.getValue(t - 1);
-                double oldPosition = fund.position;
+            for (int k = 0; k < positionValue.length; k++) {
+                double logValueFund = logRefValue + valueOffset[k];  // value of asset at time t for trader k
+                double diff = logValueFund - logPrice_tm1;
+                double absDiff = Math.abs(diff);
+                double oldPosition = positionValue[k];
+                double newPosition = absDiff > entryThreshValue[k] ? capFacValue[k] * diff : (absDiff < exitThreshValue[k] ? 0.0 : oldPosition);
                 
-                if (Math.abs(diff) > fund.entryThresh) {
-                    fund.position = fund.capFac * diff;
-                } 
-                else if (Math.abs(diff) < fund.exitThresh) {
-                    fund.position = 0.0;
-                }
+                double order = newPosition - oldPosition;
                 
-                fund.order = fund.position - oldPosition;
-                totalOrderFund += fund.order;
-                totalVolume += Math.abs(fund.order);
+                positionValue[k] = newPosition;
+                totalOrderFund += order;
+                totalVolume += Math.abs(order);
             }
             
+            // Price trends only depend on the delay, so they are computed once per delay rather than once per trader
+            for (int d = params.delayMin; d <= params.delayMax; d++)
+                priceTrend[d] = logPrice_tm1 - logPrices[t - d];  // Slight difference in index to Matlab model
+            
             // Orders from technical traders
-            for (int k = 0; k < params.numTrendFollowers; k++) {
-                TrendFollower tech = (TrendFollower) trendFollowers.get(k);
-                double priceDiff = tsLogPrices.getValue(t - 1) - tsLogPrices.getValue(t - tech.delay);  // Slight difference in index to Matlab model
-                double oldPosition = tech.position;
+            for (int k = 0; k < positionTrend.length; k++) {
+                double priceDiff = priceTrend[delayTrend[k]];
+                double absDiff = Math.abs(priceDiff);
+                double oldPosition = positionTrend[k];
+                double newPosition = absDiff > entryThreshTrend[k] ? capFacTrend[k] * priceDiff : (absDiff < exitThreshTrend[k] ? 0.0 : oldPosition);
                 
-                if (Math.abs(priceDiff) > tech.entryThresh) {
-                    tech.position = tech.capFac * priceDiff;
-                }
-                else if (Math.abs(priceDiff) < tech.exitThresh) {
-                    tech.position = 0.0;
-                }
+                double order = newPosition - oldPosition;
                 
-                tech.order = tech.position - oldPosition;
-                totalOrderTech += tech.order;
-                totalVolume += Math.abs(tech.order);
+                positionTrend[k] = newPosition;
+                totalOrderTech += order;
+                totalVolume += Math.abs(order);
             }
             
             // Price dynamics
             noise = distLogPriceNoise.nextDouble();
-            double logPrice_t = tsLogPrices.getValue(t - 1) + (1 / params.liquidity) * (totalOrderFund + totalOrderTech) + noise;
+            double logPrice_t = logPrice_tm1 + (1 / params.liquidity) * (totalOrderFund + totalOrderTech) + noise;
             
 //            logger.trace("Total orders: {}", totalOrderFund + totalOrderTech);
 //            logger.trace("Log price: {}", logPrice_t);
 //            logger.trace("Price: {}", Math.exp(logPrice_t));
 
+            storeLogPrice(t, logPrice_t);
+            
             tsLogPrices.add(t, logPrice_t);
             tsPriceNoise.add(t, noise);
             tsOrderValueInv.add(t, totalOrderFund);
             tsOrderTrend.add(t, totalOrderTech);
             tsVolume.add(t, totalVolume);
         }
-    }    
+    }
+    
+    /**
+     * Keep a copy of the log price at tick {@code t}, growing the buffer if the run is longer
+     * than expected
+     */
+    private void storeLogPrice(int t, double logPrice) {
+        if (t >= logPrices.length)
+            logPrices = Arrays.copyOf(logPrices, Math.max(2 * logPrices.length, t + 1));
+        
+        logPrices[t] = logPrice;
+    }
 }
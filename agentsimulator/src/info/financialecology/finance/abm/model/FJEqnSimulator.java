@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class FJEqnSimulator extends AbstractSimulator {
     private FJEqnParams params;
     private FJEqnModel model = null;
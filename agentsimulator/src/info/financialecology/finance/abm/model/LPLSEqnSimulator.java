@@ -34,6 +34,7 @@ import cern.jet.random.Uniform;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class LPLSEqnSimulator extends AbstractSimulator {
     private LPLSEqnParams params;
     private LPLSEqnModel model = null;
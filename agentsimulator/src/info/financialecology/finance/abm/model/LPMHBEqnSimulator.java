@@ -31,6 +31,7 @@ import cern.colt.list.DoubleArrayList;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class LPMHBEqnSimulator extends AbstractSimulator {
     private LPMHBEqnParams params;
     
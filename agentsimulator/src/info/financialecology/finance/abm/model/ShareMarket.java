@@ -18,12 +18,17 @@ import info.financialecology.finance.abm.model.agent.FJMarketMaker;
 import info.financialecology.finance.abm.model.agent.FJTechnicalTrader;
 import info.financialecology.finance.abm.model.agent.ShareMarketMaker;
 import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.util.FactorCovariance;
+import info.financialecology.finance.abm.model.util.IndicatorCache;
+import info.financialecology.finance.abm.model.util.SpreadTable;
 import info.financialecology.finance.utilities.Assertion;
 import info.financialecology.finance.utilities.Assertion.Level;
 import info.financialecology.finance.utilities.WorldClock;
 import info.financialecology.finance.utilities.datagen.DataGenerator;
+import info.financialecology.finance.utilities.datastruct.CrossPrefixSums;
 import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -43,14 +48,15 @@ import repast.simphony.engine.schedule.ScheduledMethod;
  * @author Gilbert Peffer
  *
  */
-public class ShareMarket {
+@SuppressWarnings("serial")
+public class ShareMarket implements Serializable {
     private static final Logger logger = (Logger)LoggerFactory.getLogger(ShareMarket.class.getSimpleName());
     
     private ShareMarketMaker marketMaker;       // the market maker for this market (sets the prices based on orders)
     private String marketId;                    // an identifier for the market
     private HashMap<String, Trader> traders;    // traders in the market
 
-    public class Share {
+    public class Share implements Serializable {
         public DoubleTimeSeries prices;
         public DoubleTimeSeries logReturns;
         public DoubleTimeSeries fundValues;
@@ -62,16 +68,32 @@ public class ShareMarket {
             logReturns = new DoubleTimeSeries();
             fundValues = new DoubleTimeSeries();
             liquidity = 0;
+            
+            prices.enablePrefixSums();      // windowed means and volatilities in constant time
+            logReturns.enablePrefixSums();
         }
     }
     
     private HashMap<String, Share> shares;    // prices and liquidity of the shares traded in the market
-    private HashMap<String, DoubleTimeSeries> spreads;    // spreads between Asset_1 and the rest of assets traded in the market
+    private HashMap<String, DoubleTimeSeries> spreads;    // spreads requested so far, by spreadId secId_1 + "_" + secId_2
+    private SpreadTable spreadTable;        // spreads between any two shares, maintained once requested
     private HashMap<String, DataGenerator> fundValueGen;       // data generators for the generic fundamental value process for the different assets
+    private IndicatorCache indicators;      // technical indicators of prices and spreads, shared by the strategies
+    private HashMap<String, CrossPrefixSums> logReturnCrossSums;   // sums of the products of the log-returns of two shares, see getLogReturnCovariance()
     
     private double confLevelVar;   // confidence level of the VaR model, as set by regulators
     private double confLevelEs;    // confidence level of the ES model, as set by regulators
     
+    public enum CovarianceModel {      // Specifies the covariance of the log-returns used by the VaR and ES models of the traders
+        FULL,       // the sample covariance of all pairs of shares, maintained by each trader
+        FACTOR;     // a factor model shared by the traders, see FactorCovariance
+    }
+    
+    private CovarianceModel covarianceModel = CovarianceModel.FULL;
+    private int numFactors;                         // number of statistical factors, if the factor loadings are not given
+    private HashMap<String, double []> factorLoadings = null;  // loadings of the shares on the factors, by secId, or null for statistical factors
+    private HashMap<Integer, FactorCovariance> factorCovariances = new HashMap<Integer, FactorCovariance>();    // factor models, by window
+    
     
     /**
      * @param id an identifier for this market
@@ -86,6 +108,9 @@ public class ShareMarket {
         shares = new HashMap<String, Share>();
         spreads = new HashMap<String, DoubleTimeSeries>();
         fundValueGen = new HashMap<String, DataGenerator>();
+        indicators = new IndicatorCache();
+        spreadTable = new SpreadTable(indicators);
+        logReturnCrossSums = new HashMap<String, CrossPrefixSums>();
         
         setAllInitValues(0);
         
@@ -95,6 +120,20 @@ public class ShareMarket {
         logger.trace("CREATED: " + this.toString());
     }
     
+    /**
+     * @return the technical indicators of the prices and spreads of this market, shared by the strategies
+     */
+    public IndicatorCache getIndicators() {
+        return indicators;
+    }
+    
+    /**
+     * @return the spreads between the shares of this market, updated by the market maker
+     */
+    public SpreadTable getSpreadTable() {
+        return spreadTable;
+    }
+    
     /**
      * @return the liquidity for share secId
      */
@@ -136,14 +175,50 @@ public class ShareMarket {
     }
 
     /**
-     * @return the spread secId_1 - secId_2
+     * @return the spread secId_1 - secId_2, maintained from now on if it was not before (see {@link SpreadTable})
      */
     public DoubleTimeSeries getSpreads(String secId_1, String secId_2) {
         
         Assertion.assertStrict(isShareTraded(secId_1), Level.ERR, "Share with secId '" + secId_1 + "' does not exist");
         Assertion.assertStrict(isShareTraded(secId_2), Level.ERR, "Share with secId '" + secId_2 + "' does not exist");
+        
+        String spreadId = secId_1 + "_" + secId_2;
+        DoubleTimeSeries spread = spreads.get(spreadId);
+        
+        if (spread == null) {
+            spread = spreadTable.getSpread(secId_1, secId_2);
+            spreads.put(spreadId, spread);
+        }
 
-        return spreads.get(secId_1 + "_" + secId_2);
+        return spread;
+    }
+    
+    /**
+     * @return the prefix sums of the products of the log-returns of shares secId_1 and secId_2, 
+     * created when first requested
+     */
+    public CrossPrefixSums getLogReturnCrossSums(String secId_1, String secId_2) {
+        
+        String key = secId_1 + "_" + secId_2;
+        CrossPrefixSums crossSums = logReturnCrossSums.get(key);
+        
+        if (crossSums == null) {
+            crossSums = new CrossPrefixSums(getLogReturns(secId_1), getLogReturns(secId_2));
+            logReturnCrossSums.put(key, crossSums);
+        }
+        
+        return crossSums;
+    }
+    
+    /**
+     * @return the sample covariance of the log-returns of shares secId_1 and secId_2 over the last 
+     * {@code window} ticks, computed in constant time from prefix sums
+     */
+    public double getLogReturnCovariance(String secId_1, String secId_2, int window) {
+        
+        CrossPrefixSums crossSums = getLogReturnCrossSums(secId_1, secId_2);
+        
+        return crossSums.covariance(crossSums.size() - 1, window);
     }
     
     /**
@@ -229,6 +304,83 @@ public class ShareMarket {
         
         confLevelEs = confLevel;
     }
+    
+    /**
+     * @return the covariance model used by the VaR and ES models of the traders
+     */
+    public CovarianceModel getCovarianceModel() {
+        
+        return covarianceModel;
+    }
+    
+    /**
+     * Use a factor model with {@code numFactors} statistical factors, the principal components of 
+     * the log-returns, for the VaR and ES models of the traders. Their cost grows with N k rather 
+     * than N^2 for N shares. Set before the traders are created, so that they do not allocate the 
+     * full covariance matrix.
+     * 
+     * @param numFactors the number of factors
+     */
+    public void setFactorCovariance(int numFactors) {
+        
+        Assertion.assertStrict(numFactors > 0, Level.ERR, "The number of factors needs to be '> 0'");
+        
+        covarianceModel = CovarianceModel.FACTOR;
+        this.numFactors = numFactors;
+        this.factorLoadings = null;
+        factorCovariances.clear();
+    }
+    
+    /**
+     * Use a factor model with given loadings, e.g. on industries or style factors, for the VaR 
+     * and ES models of the traders, see {@link #setFactorCovariance(int)}
+     * 
+     * @param factorLoadings the loadings of each share on the factors, by secId
+     */
+    public void setFactorCovariance(Map<String, double []> factorLoadings) {
+        
+        covarianceModel = CovarianceModel.FACTOR;
+        this.factorLoadings = new HashMap<String, double []>(factorLoadings);
+        factorCovariances.clear();
+    }
+    
+    /**
+     * Use the sample covariance of all pairs of shares for the VaR and ES models of the traders. 
+     * This is the default.
+     */
+    public void setFullCovariance() {
+        
+        covarianceModel = CovarianceModel.FULL;
+        factorCovariances.clear();
+    }
+    
+    /**
+     * @return the factor model of the covariance of the log-returns over the last {@code window} 
+     * ticks, created when first requested and shared by all traders with this window
+     */
+    public FactorCovariance getFactorCovariance(int window) {
+        
+        Assertion.assertStrict(covarianceModel == CovarianceModel.FACTOR, Level.ERR, "The market does not use a factor covariance model");
+        
+        FactorCovariance factorCovariance = factorCovariances.get(window);
+        
+        if (factorCovariance == null) {
+            ArrayList<String> secIds = marketMaker.getSecIds();
+            HashMap<String, DoubleTimeSeries> logReturns = new HashMap<String, DoubleTimeSeries>();
+            
+            for (String secId : secIds)
+                logReturns.put(secId, getLogReturns(secId));
+            
+            if (factorLoadings == null)
+                factorCovariance = new FactorCovariance(secIds, logReturns, window, numFactors);
+            else
+                factorCovariance = new FactorCovariance(secIds, logReturns, window, factorLoadings);
+            
+            factorCovariances.put(window, factorCovariance);
+        }
+        
+        return factorCovariance;
+    }
 
     
     /**
@@ -299,11 +451,9 @@ public class ShareMarket {
         Assertion.assertStrict(!isShareTraded(secId), Level.ERR, "Share with secId '" + secId + "' already exists in the market");
         
         Share share = new Share();
-        share.prices = new DoubleTimeSeries();
-        share.logReturns = new DoubleTimeSeries();
         
         shares.put(secId, share);
-        
+        spreadTable.addShare(secId, share.prices);
     }
     
     /**
@@ -317,15 +467,24 @@ public class ShareMarket {
     }
     
     /**
-     * Add a new spread to the market and create a corresponding price time series
+     * Add a new spread to the market. The spreadId is secId_1 + "_" + secId_2, and both shares need 
+     * to be in the market. Spreads are also added when first requested with {@link #getSpreads(String, String)}.
      */
     public void addSpread(String spreadId) {
         
         Assertion.assertStrict(!isSpreadTraded(spreadId), Level.ERR, "Spread with spreadId '" + spreadId + "' already exists in the market");
         
-        DoubleTimeSeries spread = new DoubleTimeSeries();
+        for (String secId_1 : shares.keySet()) {
+            String secId_2 = spreadId.substring(Math.min(secId_1.length() + 1, spreadId.length()));
+            
+            if (spreadId.equals(secId_1 + "_" + secId_2) && isShareTraded(secId_2)) {
+                getSpreads(secId_1, secId_2);
+                return;
+            }
+        }
         
-        spreads.put(spreadId, spread);
+        Assertion.assertStrict(false, Level.ERR, "Spread with spreadId '" + spreadId + "' is not of the form secId_1 + \"_\" + secId_2 " +
+                "for two shares in the market");
     }
     
     /**
@@ -338,6 +497,24 @@ public class ShareMarket {
         }
     }
     
+    /**
+     * Keep only the most recent values of the prices, log-returns, fundamental values and spreads. 
+     * See {@link DoubleTimeSeries#setHistoryLimit(int)}.
+     * 
+     * @param limit the number of values to keep; needs to cover the longest window over which 
+     * traders and strategies look back 
+     */
+    public void setHistoryLimit(int limit) {
+        
+        for (Share share : shares.values()) {
+            share.prices.setHistoryLimit(limit);
+            share.logReturns.setHistoryLimit(limit);
+            share.fundValues.setHistoryLimit(limit);
+        }
+        
+        spreadTable.setHistoryLimit(limit);
+    }
+    
     /**
      * Get all shares traded in the market
      */
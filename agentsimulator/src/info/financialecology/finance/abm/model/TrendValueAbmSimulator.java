@@ -130,6 +130,7 @@ import repast.simphony.engine.schedule.ISchedule;
  * @author Gilbert Peffer, Barbara Llacay
  *
  */
+@SuppressWarnings("serial")
 public class TrendValueAbmSimulator extends AbstractSimulator {
     
     private ISchedule scheduler;                    // main scheduler to run actions (=methods) at particular points in time
@@ -321,7 +322,7 @@ public class TrendValueAbmSimulator extends AbstractSimulator {
             
             if (!hasStrategy) { // if the trader does not have a strategy for share secId, then assign it
             	TrendMABCStrategy strategy = new TrendMABCStrategy(secId, maShortTicks, maLongTicks, bcTicks, capFactor, market.getPrices(secId), 
-            			volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend);
+            			volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend, market.getIndicators());
                 trader.addStrategy(strategy);                
             }
         }
@@ -362,7 +363,7 @@ public class TrendValueAbmSimulator extends AbstractSimulator {
         // TODO The validation code that we have in 'addValueStrategyForAllValueInvestors' is missing here 
                 
         TrendMABCStrategy newStrategy = new TrendMABCStrategy(secId, maShortTicks, maLongTicks, bcTicks, capFactor, market.getPrices(secId), 
-        		volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend);
+        		volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend, market.getIndicators());
         
         trader.addStrategy(newStrategy);
     }
@@ -131,6 +131,7 @@ import repast.simphony.engine.schedule.ISchedule;
  * @author Gilbert Peffer, Barbara Llacay
  *
  */
+@SuppressWarnings("serial")
 public class TrendValueESAbmSimulator extends AbstractSimulator {
     
     private ISchedule scheduler;                    // main scheduler to run actions (=methods) at particular points in time
@@ -320,7 +321,7 @@ public class TrendValueESAbmSimulator extends AbstractSimulator {
             
             if (!hasStrategy) { // if the trader does not have a strategy for share secId, then assign it
             	TrendMABCStrategy strategy = new TrendMABCStrategy(secId, maShortTicks, maLongTicks, bcTicks, capFactor, market.getPrices(secId), 
-            			volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend);
+            			volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend, market.getIndicators());
                 trader.addStrategy(strategy);                
             }
         }
@@ -361,7 +362,7 @@ public class TrendValueESAbmSimulator extends AbstractSimulator {
         // TODO The validation code that we have in 'addValueStrategyForAllValueInvestors' is missing here 
                 
         TrendMABCStrategy newStrategy = new TrendMABCStrategy(secId, maShortTicks, maLongTicks, bcTicks, capFactor, market.getPrices(secId), 
-        		volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend);
+        		volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend, market.getIndicators());
         
         trader.addStrategy(newStrategy);
     }
@@ -131,6 +131,7 @@ import repast.simphony.engine.schedule.ISchedule;
  * @author Gilbert Peffer, Barbara Llacay
  *
  */
+@SuppressWarnings("serial")
 public class TrendValueLSAbmSimulator extends AbstractSimulator {
     
     private ISchedule scheduler;                    // main scheduler to run actions (=methods) at particular points in time
@@ -340,7 +341,7 @@ public class TrendValueLSAbmSimulator extends AbstractSimulator {
             
             if (!hasStrategy) { // if the trader does not have a strategy for share secId, then assign it
             	TrendMABCStrategy strategy = new TrendMABCStrategy(secId, maShortTicks, maLongTicks, bcTicks, capFactor, market.getPrices(secId), 
-            			volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend);
+            			volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend, market.getIndicators());
                 trader.addStrategy(strategy);                
             }
         }
@@ -381,7 +382,7 @@ public class TrendValueLSAbmSimulator extends AbstractSimulator {
         // TODO The validation code that we have in 'addValueStrategyForAllValueInvestors' is missing here 
                 
         TrendMABCStrategy newStrategy = new TrendMABCStrategy(secId, maShortTicks, maLongTicks, bcTicks, capFactor, market.getPrices(secId), 
-        		volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend);
+        		volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend, market.getIndicators());
         
         trader.addStrategy(newStrategy);
     }
@@ -523,7 +524,7 @@ public class TrendValueLSAbmSimulator extends AbstractSimulator {
         
         LSMABCStrategy newStrategy = new LSMABCStrategy(secId_1, market.getPrices(secId_1), secId_2, market.getPrices(secId_2),
         		market.getSpreads(secId_1, secId_2), maSpreadShortTicks, maSpreadLongTicks, volWindow, entryDivergenceSigmas, exitConvergenceSigmas, 
-        		exitStopLossSigmas, capFactor, multiplier, positionUpdate);        
+        		exitStopLossSigmas, capFactor, multiplier, positionUpdate, market.getIndicators());        
         trader.addStrategy(newStrategy);                
     }
     
@@ -15,11 +15,22 @@
  */
 package info.financialecology.finance.abm.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 import info.financialecology.finance.abm.model.agent.ShareMarketMaker;
 import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.agent.Trader.UseEs;
 import info.financialecology.finance.abm.model.agent.Trader.UseVar;
+import info.financialecology.finance.abm.model.risk.RiskModel;
+import info.financialecology.finance.abm.model.strategy.FsmStrategy;
+import info.financialecology.finance.abm.model.strategy.StrategyMachine;
 import info.financialecology.finance.abm.model.strategy.TradingStrategy;
 import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy;
 import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.MultiplierTrend;
@@ -35,10 +46,17 @@ import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.ShortS
 import info.financialecology.finance.abm.model.strategy.LSMABCStrategy;
 import info.financialecology.finance.abm.model.strategy.LSMABCStrategy.PositionUpdateLS;
 import info.financialecology.finance.abm.model.strategy.LSMABCStrategy.MultiplierLS;
+import info.financialecology.finance.abm.model.util.PortfolioRiskBatch;
+import info.financialecology.finance.abm.model.util.RunSummary;
+import info.financialecology.finance.abm.model.util.TraderCohorts;
+import info.financialecology.finance.abm.model.util.TraderPopulation;
+import info.financialecology.finance.abm.model.util.TraderPopulation.Group;
+import info.financialecology.finance.abm.model.util.VarSettings;
 import info.financialecology.finance.abm.model.util.TradingPortfolio;
 import info.financialecology.finance.utilities.Assertion;
 import info.financialecology.finance.utilities.WorldClock;
 import info.financialecology.finance.utilities.abm.AbstractSimulator;
+import info.financialecology.finance.utilities.abm.TimingWheel;
 import info.financialecology.finance.utilities.datagen.DataGenerator;
 import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
 import info.financialecology.finance.utilities.datastruct.DoubleTimeSeriesList;
@@ -48,6 +66,8 @@ import info.financialecology.finance.utilities.statistics.StatsTimeSeries;
 import org.slf4j.LoggerFactory;
 import ch.qos.logback.classic.Logger;
 
+import cern.colt.list.IntArrayList;
+
 import repast.simphony.engine.schedule.DefaultScheduleFactory;
 import repast.simphony.engine.schedule.ISchedule;
 
@@ -133,9 +153,12 @@ import repast.simphony.engine.schedule.ISchedule;
  * @author Gilbert Peffer, Barbara Llacay
  *
  */
+@SuppressWarnings("serial")
 public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
     
-    private ISchedule scheduler;                    // main scheduler to run actions (=methods) at particular points in time
+    private transient ISchedule scheduler;          // main scheduler to run actions (=methods) at particular points in time; recreated when the simulator is deserialised
+    private ArrayList<Object> scheduledAgents = new ArrayList<Object>();   // the agents whose actions are scheduled, in the order they were scheduled
+    private transient int scheduleStartTick = 0;    // the tick of the world clock at which the scheduler started
     private ShareMarket market;                     // stock market where trend followers trade with value investors 
     
     private int nextTrendIndex = 0;                 // the next numeric index for the trend follower labels
@@ -144,6 +167,37 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
     private String prefixTrendFollower = "Trend";   // label prefix for formatting output
     private String prefixValueInvestor = "Value";   // label prefix for formatting output
     private String prefixLSInvestor = "LS";         // label prefix for formatting output
+    private TraderPopulation population = new TraderPopulation();  // the traders of each group, by id and by label
+    private IdentityHashMap<StrategyMachine, HashMap<String, FsmStrategy.Engine>> fsmEngines = 
+            new IdentityHashMap<StrategyMachine, HashMap<String, FsmStrategy.Engine>>();   // the engines of each strategy machine, by share
+    
+    private RunMode runMode = RunMode.FULL_HISTORY; // whether the full history of the run is kept
+    private int maxStrategyWindow = 0;              // longest window over which a strategy looks back in the market's time series
+    private int summaryStartTick = 1;               // first tick whose log-returns are included in the run summary
+    private double maxFailureFraction = 1;          // stop the run once this fraction of traders has failed (if stopOnFailures)
+    private boolean stopOnFailures = false;
+    private double maxAbsLogReturn = Double.POSITIVE_INFINITY;  // stop the run once a log-return exceeds this value (if stopOnInstability)
+    private boolean stopOnInstability = false;
+    private RunSummary runSummary = null;           // summary targets of the last run
+    private boolean cohortMode = false;             // simulate one representative per cohort of equivalent traders, see setCohortMode()
+    private EnumMap<Group, TraderCohorts> cohorts = null;  // the cohorts of each group, once the run has started in cohort mode
+    private boolean batchMode = false;              // evaluate the trend and value strategies on each share together, see setBatchMode()
+    private boolean batchesBuilt = false;
+    private boolean riskBatchMode = false;          // compute the VaR and ES of the traders with the same window together, see setRiskBatchMode()
+    private boolean riskBatchesBuilt = false;
+    private EnumMap<Group, RiskModel> riskModels = new EnumMap<Group, RiskModel>(Group.class);  // the risk model of each group, if not the default one
+    private EnumMap<Group, Integer> wakeUpIntervals = new EnumMap<Group, Integer>(Group.class);  // the wake-up interval of each group, if not 1
+    private boolean eventMode = false;              // act only at the wake-up times of the traders, see setEventMode()
+    private TimingWheel wakeUps = null;             // the next wake-up of each trader, by its index in scheduledAgents, once the run has started in event mode
+    private transient IntArrayList wokenAgents;     // the traders that wake up at the current tick
+    
+    private static final int TRADER_HISTORY_LIMIT = 2;     // traders only look back one tick in their own time series, plus the ticks they were idle in event mode
+    
+    public enum RunMode {       // Specifies how much of the history of a run is kept
+        FULL_HISTORY,           // the full time series of the market and the traders are kept, e.g. for plots and output files
+        SUMMARY_ONLY;           // only the values needed by the strategies and risk models are kept, in ring buffers; 
+                                // the results are available from the run summary
+    }
     
     private static final Logger logger = (Logger)LoggerFactory.getLogger(TrendValueLSVarAbmSimulator.class.getSimpleName());
     
@@ -163,7 +217,7 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
         DefaultScheduleFactory factory = new DefaultScheduleFactory();  // TODO move this to to a new class AbstractABMSimulator
         scheduler = factory.createSchedule();
         
-        scheduler.schedule(marketMaker);
+        schedule(marketMaker);
     }
     
     
@@ -255,10 +309,12 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
         Trader trader;
         
         for (int i = 0; i < numTrend; i++) {
-            trader = new Trader(prefixTrendFollower + "_" + nextTrendIndex++);
+            trader = new Trader(prefixTrendFollower + "_" + nextTrendIndex++, getRiskModel(Group.TREND));
             market.addTrader(trader);
+            population.add(Group.TREND, trader);
             trader.setInitCovariances(0.0);
-            scheduler.schedule(trader); // schedules the actions() method of the trader
+            trader.setWakeUpInterval(getWakeUpInterval(Group.TREND));
+            schedule(trader);   // schedules the actions() method of the trader
         }
     }
     
@@ -271,10 +327,12 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
         Trader trader;
         
         for (int i = 0; i < numValue; i++) {
-            trader = new Trader(prefixValueInvestor + "_" + nextValueIndex++);
+            trader = new Trader(prefixValueInvestor + "_" + nextValueIndex++, getRiskModel(Group.VALUE));
             market.addTrader(trader);
+            population.add(Group.VALUE, trader);
             trader.setInitCovariances(0.0);
-            scheduler.schedule(trader); // schedules the actions() method of the trader
+            trader.setWakeUpInterval(getWakeUpInterval(Group.VALUE));
+            schedule(trader);   // schedules the actions() method of the trader
         }
     }
     
@@ -287,10 +345,12 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
         Trader trader;
         
         for (int i = 0; i < numLS; i++) {
-            trader = new Trader(prefixLSInvestor + "_" + nextLSIndex++);
+            trader = new Trader(prefixLSInvestor + "_" + nextLSIndex++, getRiskModel(Group.LS));
             market.addTrader(trader);
+            population.add(Group.LS, trader);
             trader.setInitCovariances(0.0);
-            scheduler.schedule(trader); // schedules the actions() method of the trader
+            trader.setWakeUpInterval(getWakeUpInterval(Group.LS));
+            schedule(trader);   // schedules the actions() method of the trader
         }
     }
     
@@ -341,8 +401,9 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
             }
             
             if (!hasStrategy) { // if the trader does not have a strategy for share secId, then assign it
+            	registerStrategyWindows(maShortTicks, maLongTicks, bcTicks, volWindow);
             	TrendMABCStrategy strategy = new TrendMABCStrategy(secId, maShortTicks, maLongTicks, bcTicks, capFactor, market.getPrices(secId), 
-            			volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend);
+            			volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend, market.getIndicators());
                 trader.addStrategy(strategy);                
             }
         }
@@ -382,8 +443,26 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
         
         // TODO The validation code that we have in 'addValueStrategyForAllValueInvestors' is missing here 
                 
+        addTrendStrategy(trader, secId, maShortTicks, maLongTicks, bcTicks, capFactor, volWindow, multiplier, positionUpdate, 
+                orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend);
+    }
+    
+    private void addTrendStrategy(Trader trader,
+                                  String secId,
+                                  int maShortTicks, 
+                                  int maLongTicks, 
+                                  int bcTicks, 
+                                  double capFactor, 
+                                  int volWindow,
+                                  MultiplierTrend multiplier,
+                                  PositionUpdateTrend positionUpdate,
+                                  OrderOrPositionStrategyTrend orderOrPositionStrategy,
+                                  VariabilityCapFactorTrend variabilityCapFactor,
+                                  ShortSellingTrend shortSellingTrend) {
+        registerStrategyWindows(maShortTicks, maLongTicks, bcTicks, volWindow);
+        
         TrendMABCStrategy newStrategy = new TrendMABCStrategy(secId, maShortTicks, maLongTicks, bcTicks, capFactor, market.getPrices(secId), 
-        		volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend);
+        		volWindow, multiplier, positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingTrend, market.getIndicators());
         
         trader.addStrategy(newStrategy);
     }
@@ -436,6 +515,7 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
             }
             
             if (!hasStrategy) { // if the trader does not have a strategy for share secId, then assign it
+                registerStrategyWindows(bcTicks);
                 ValueMABCStrategy strategy = new ValueMABCStrategy(secId, entryThreshold, exitThreshold, valueOffset, bcTicks, capFactor, 
                 		market.getPrices(secId), market.getFundValues(secId), 
                 		positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingValue);
@@ -477,6 +557,23 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
         
         // TODO The validation code that we have in 'addValueStrategyForAllValueInvestors' is missing here 
 
+        addValueStrategy(trader, secId, entryThreshold, exitThreshold, valueOffset, bcTicks, capFactor, positionUpdate, 
+                orderOrPositionStrategy, variabilityCapFactor, shortSellingValue);
+    }
+    
+    private void addValueStrategy(Trader trader,
+                                  String secId,
+                                  double entryThreshold, 
+                                  double exitThreshold, 
+                                  double valueOffset, 
+                                  int bcTicks,
+                                  double capFactor,
+                                  PositionUpdateValue positionUpdate,
+                                  OrderOrPositionStrategyValue orderOrPositionStrategy,
+                                  VariabilityCapFactorValue variabilityCapFactor,
+                                  ShortSellingValue shortSellingValue) {
+        registerStrategyWindows(bcTicks);
+        
         ValueMABCStrategy newStrategy = new ValueMABCStrategy(secId, entryThreshold, exitThreshold, valueOffset, bcTicks, capFactor, 
         		market.getPrices(secId), market.getFundValues(secId),  
         		positionUpdate, orderOrPositionStrategy, variabilityCapFactor, shortSellingValue);        
@@ -522,65 +619,334 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
         
         // TODO The validation code that we have in 'addValueStrategyForAllValueInvestors' is missing here 
         
+        addLSStrategy(trader, secId_1, secId_2, maSpreadShortTicks, maSpreadLongTicks, volWindow, entryDivergenceSigmas, 
+                exitConvergenceSigmas, exitStopLossSigmas, capFactor, multiplier, positionUpdate);
+    }
+    
+    private void addLSStrategy(Trader trader,
+                               String secId_1,
+                               String secId_2,
+                               int maSpreadShortTicks,
+                               int maSpreadLongTicks,
+                               int volWindow,
+                               double entryDivergenceSigmas,
+                               double exitConvergenceSigmas,
+                               double exitStopLossSigmas,
+                               double capFactor,
+                               MultiplierLS multiplier,
+                               PositionUpdateLS positionUpdate) {
+        registerStrategyWindows(maSpreadShortTicks, maSpreadLongTicks, volWindow);
+        
         LSMABCStrategy newStrategy = new LSMABCStrategy(secId_1, market.getPrices(secId_1), secId_2, market.getPrices(secId_2),
         		market.getSpreads(secId_1, secId_2), maSpreadShortTicks, maSpreadLongTicks, volWindow, entryDivergenceSigmas, exitConvergenceSigmas, 
-        		exitStopLossSigmas, capFactor, multiplier, positionUpdate);        
+        		exitStopLossSigmas, capFactor, multiplier, positionUpdate, market.getIndicators());        
         trader.addStrategy(newStrategy);                
     }
     
     
+    /**
+     * Set up all traders of a group with a strategy defined as a state machine, see {@link FsmStrategy}. 
+     * The strategies of a machine on a share are evaluated together, however many traders use them. 
+     * Traders that already have a strategy on the share keep it.
+     * 
+     * @param group the group of traders
+     * @param secId the security identifier
+     * @param machine the definition of the strategy, see {@link StrategyMachine}
+     * @param capFactor the capital multiplier for the trading strategy
+     */
+    public void addFsmStrategyForAllTraders(Group group, String secId, StrategyMachine machine, double capFactor) {
+        logger.trace("Calling: addFsmStrategyForAllTraders(...)");
+        
+        Assertion.assertStrict(market.isShareTraded(secId), Level.ERR, "There is no share with ID '" + secId + "' traded in the market");
+        Assertion.assertStrict(!population.getTraders(group).isEmpty(), Level.ERR, "Cannot assign the strategy machine " +
+                "because there are no traders of the group " + group + " in the market '" + market.getId() + "'");
+        
+        for (Trader trader : population.getTraders(group))
+            if (!trader.getStrategies().containsKey(secId))
+                addFsmStrategy(trader, secId, machine, capFactor);
+    }
     
     /**
-     * Get all trend followers operating in the market
+     * Set up the trader '{@code traderId}' with a strategy defined as a state machine, see {@link FsmStrategy}
      * 
-     * @return a {@code HashMap} with all trend followers
+     * @param secId the security identifier
+     * @param traderId the identifier of the agent
+     * @param machine the definition of the strategy, see {@link StrategyMachine}
+     * @param capFactor the capital multiplier for the trading strategy
      */
-    public HashMap<String, Trader> getTrendFollowers() {
-        HashMap<String, Trader> traders = market.getTraders();
-        HashMap<String, Trader> trendFollowers = new HashMap<String, Trader>();
+    public void addFsmStrategyForOneTrader(String secId, String traderId, StrategyMachine machine, double capFactor) {
+        logger.trace("Calling: addFsmStrategyForOneTrader(...) - For trader with ID={}", traderId);
+        
+        Assertion.assertStrict(market.isShareTraded(secId), Level.ERR, "There is no share with ID '" + secId + "' traded in the market");
+        
+        addFsmStrategy(market.getTrader(traderId), secId, machine, capFactor);
+    }
+    
+    private void addFsmStrategy(Trader trader, String secId, StrategyMachine machine, double capFactor) {
+        registerStrategyWindows(machine.getMaxWindow());
         
-        for (String key : traders.keySet()) {
-            if (key.startsWith(prefixTrendFollower))
-                trendFollowers.put(key, traders.get(key));
+        HashMap<String, FsmStrategy.Engine> engines = fsmEngines.get(machine);
+        
+        if (engines == null) {
+            engines = new HashMap<String, FsmStrategy.Engine>();
+            fsmEngines.put(machine, engines);
+        }
+        
+        FsmStrategy.Engine engine = engines.get(secId);
+        
+        if (engine == null) {
+            engine = new FsmStrategy.Engine(machine, secId, market.getPrices(secId), market.getFundValues(secId), market.getIndicators());
+            engines.put(secId, engine);
         }
         
-        return trendFollowers;
+        trader.addStrategy(new FsmStrategy(engine, capFactor));
     }
     
     
     /**
-     * Get all value investors operating in the market
+     * Set up all trend followers in a single pass over the population, in the order of their ids. For each
+     * trend follower: decide whether it may short-sell, add a trend strategy for each security in {@code secIds}
+     * with parameters drawn from the generators of the security, and draw its VaR parameters. The values are 
+     * drawn in the same order as when calling {@link #addTrendStrategyForOneTrendFollower} for each security 
+     * and then setting the VaR parameters of the trader, trader by trader.
      * 
-     * @return a {@code HashMap} with all value investors
+     * @param secIds the security identifiers
+     * @param maShortTicks generators for the short MA range, by security (rounded to ticks)
+     * @param maLongTicks generators for the long MA range, by security (rounded to ticks)
+     * @param bcTicks generators for the exit channel window, by security (rounded to ticks)
+     * @param capFactor the capital multiplier for the trading strategy
+     * @param volWindow the size of the window over which the volatility is computed
+     * @param multiplier a multiplier for entry positions, depending on the approach chosen (see {@link TrendMABCStrategy.MultiplierTrend})
+     * @param unif01ShortSelling U[0,1] generator; the trader may short-sell unless the draw is greater than {@code probShortSelling}
+     * @param probShortSelling the probability that a trader may short-sell
+     * @param varSettings the VaR parameters of the trend followers
      */
-    public HashMap<String, Trader> getValueInvestors() {
-        HashMap<String, Trader> traders = market.getTraders();
-        HashMap<String, Trader> valueInvestors = new HashMap<String, Trader>();
+    public void setUpTrendFollowers(List<String> secIds,
+                                    HashMap<String, ? extends DataGenerator> maShortTicks,
+                                    HashMap<String, ? extends DataGenerator> maLongTicks,
+                                    HashMap<String, ? extends DataGenerator> bcTicks,
+                                    double capFactor,
+                                    int volWindow,
+                                    MultiplierTrend multiplier,
+                                    PositionUpdateTrend positionUpdate,
+                                    OrderOrPositionStrategyTrend orderOrPositionStrategy,
+                                    VariabilityCapFactorTrend variabilityCapFactor,
+                                    DataGenerator unif01ShortSelling,
+                                    double probShortSelling,
+                                    VarSettings varSettings) {
+        logger.trace("Calling: setUpTrendFollowers(...)");
+        
+        int numSecs = secIds.size();
+        String [] ids = secIds.toArray(new String[numSecs]);
+        DataGenerator [] maShort = new DataGenerator[numSecs];
+        DataGenerator [] maLong = new DataGenerator[numSecs];
+        DataGenerator [] bc = new DataGenerator[numSecs];
+        
+        for (int k = 0; k < numSecs; k++) {
+            Assertion.assertStrict(market.isShareTraded(ids[k]), Level.ERR, "There is no share with ID '"
+                    + ids[k] + "' traded in the market '" + market.getId() + "'");
+            
+            maShort[k] = maShortTicks.get(ids[k]);
+            maLong[k] = maLongTicks.get(ids[k]);
+            bc[k] = bcTicks.get(ids[k]);
+        }
         
-        for (String key : traders.keySet()) {
-            if (key.startsWith(prefixValueInvestor))
-                valueInvestors.put(key, traders.get(key));
+        for (int i = 0; i < population.size(Group.TREND); i++) {
+            Trader trader = population.get(Group.TREND, i);
+            ShortSellingTrend shortSelling = (unif01ShortSelling.nextDouble() > probShortSelling) ? 
+                    ShortSellingTrend.NOT_ALLOWED : ShortSellingTrend.ALLOWED;
+            
+            for (int k = 0; k < numSecs; k++)
+                addTrendStrategy(trader, ids[k], (int) Math.round(maShort[k].nextDouble()), (int) Math.round(maLong[k].nextDouble()), 
+                        (int) Math.round(bc[k].nextDouble()), capFactor, volWindow, multiplier, positionUpdate, orderOrPositionStrategy, 
+                        variabilityCapFactor, shortSelling);
+            
+            varSettings.applyTo(trader);
+        }
+    }
+    
+    
+    /**
+     * Set up all value investors in a single pass over the population, in the order of their ids. For each
+     * value investor: decide whether it may short-sell, add a value strategy for each security in {@code secIds}
+     * with parameters drawn from the generators of the security, and draw its VaR parameters. The values are 
+     * drawn in the same order as when calling {@link #addValueStrategyForOneValueInvestor} for each security 
+     * and then setting the VaR parameters of the trader, trader by trader.
+     * 
+     * @param secIds the security identifiers
+     * @param entryThreshold generators for the entry threshold, by security
+     * @param exitThreshold generators for the exit threshold, by security
+     * @param valueOffset generators for the offset of the perceived fundamental value, by security
+     * @param bcTicks generators for the exit channel window, by security (rounded to ticks)
+     * @param capFactor the capital multiplier for the trading strategy
+     * @param unif01ShortSelling U[0,1] generator; the trader may short-sell unless the draw is greater than {@code probShortSelling}
+     * @param probShortSelling the probability that a trader may short-sell
+     * @param varSettings the VaR parameters of the value investors
+     */
+    public void setUpValueInvestors(List<String> secIds,
+                                    HashMap<String, ? extends DataGenerator> entryThreshold,
+                                    HashMap<String, ? extends DataGenerator> exitThreshold,
+                                    HashMap<String, ? extends DataGenerator> valueOffset,
+                                    HashMap<String, ? extends DataGenerator> bcTicks,
+                                    double capFactor,
+                                    PositionUpdateValue positionUpdate,
+                                    OrderOrPositionStrategyValue orderOrPositionStrategy,
+                                    VariabilityCapFactorValue variabilityCapFactor,
+                                    DataGenerator unif01ShortSelling,
+                                    double probShortSelling,
+                                    VarSettings varSettings) {
+        logger.trace("Calling: setUpValueInvestors(...)");
+        
+        int numSecs = secIds.size();
+        String [] ids = secIds.toArray(new String[numSecs]);
+        DataGenerator [] entry = new DataGenerator[numSecs];
+        DataGenerator [] exit = new DataGenerator[numSecs];
+        DataGenerator [] offset = new DataGenerator[numSecs];
+        DataGenerator [] bc = new DataGenerator[numSecs];
+        
+        for (int k = 0; k < numSecs; k++) {
+            Assertion.assertStrict(market.isShareTraded(ids[k]), Level.ERR, "There is no share with ID '" + ids[k] + "' traded in the market");
+            
+            entry[k] = entryThreshold.get(ids[k]);
+            exit[k] = exitThreshold.get(ids[k]);
+            offset[k] = valueOffset.get(ids[k]);
+            bc[k] = bcTicks.get(ids[k]);
         }
         
-        return valueInvestors;
+        for (int i = 0; i < population.size(Group.VALUE); i++) {
+            Trader trader = population.get(Group.VALUE, i);
+            ShortSellingValue shortSelling = (unif01ShortSelling.nextDouble() > probShortSelling) ? 
+                    ShortSellingValue.NOT_ALLOWED : ShortSellingValue.ALLOWED;
+            
+            for (int k = 0; k < numSecs; k++)
+                addValueStrategy(trader, ids[k], entry[k].nextDouble(), exit[k].nextDouble(), offset[k].nextDouble(), 
+                        (int) Math.round(bc[k].nextDouble()), capFactor, positionUpdate, orderOrPositionStrategy, 
+                        variabilityCapFactor, shortSelling);
+            
+            varSettings.applyTo(trader);
+        }
+    }
+    
+    
+    /**
+     * Set up all LS investors in a single pass over the population, in the order of their ids. Each LS
+     * investor gets an LS strategy on the spread between the first security in {@code secIds} and each of
+     * the other securities, with parameters drawn from the generators of the other security, and then draws
+     * its VaR parameters. The values are drawn in the same order as when calling 
+     * {@link #addLSStrategyForOneLSInvestor} for each spread and then setting the VaR parameters of the 
+     * trader, trader by trader.
+     * 
+     * @param secIds the security identifiers; the spreads are P_0 - P_j, for j > 0
+     * @param maSpreadShortTicks generators for the short MA range of the spread, by second security (rounded to ticks)
+     * @param maSpreadLongTicks generators for the long MA range of the spread, by second security (rounded to ticks)
+     * @param volWindow the size of the window over which the volatility is computed
+     * @param entryDivergenceSigmas generators for the entry threshold, by second security
+     * @param exitConvergenceSigmas generators for the exit threshold, by second security
+     * @param exitStopLossSigmas generators for the stop loss threshold, by second security
+     * @param capFactor the capital multiplier for the trading strategy
+     * @param multiplier a multiplier for entry positions, depending on the approach chosen (see {@link LSMABCStrategy.MultiplierLS})
+     * @param varSettings the VaR parameters of the LS investors
+     */
+    public void setUpLSInvestors(List<String> secIds,
+                                 HashMap<String, ? extends DataGenerator> maSpreadShortTicks,
+                                 HashMap<String, ? extends DataGenerator> maSpreadLongTicks,
+                                 int volWindow,
+                                 HashMap<String, ? extends DataGenerator> entryDivergenceSigmas,
+                                 HashMap<String, ? extends DataGenerator> exitConvergenceSigmas,
+                                 HashMap<String, ? extends DataGenerator> exitStopLossSigmas,
+                                 double capFactor,
+                                 MultiplierLS multiplier,
+                                 PositionUpdateLS positionUpdate,
+                                 VarSettings varSettings) {
+        logger.trace("Calling: setUpLSInvestors(...)");
+        
+        int numSecs = secIds.size();
+        String [] ids = secIds.toArray(new String[numSecs]);
+        DataGenerator [] maShort = new DataGenerator[numSecs];
+        DataGenerator [] maLong = new DataGenerator[numSecs];
+        DataGenerator [] entry = new DataGenerator[numSecs];
+        DataGenerator [] exit = new DataGenerator[numSecs];
+        DataGenerator [] stopLoss = new DataGenerator[numSecs];
+        
+        for (int k = 0; k < numSecs; k++) {
+            Assertion.assertStrict(market.isShareTraded(ids[k]), Level.ERR, "There is no share with ID '" + ids[k] + "' traded in the market");
+            
+            maShort[k] = maSpreadShortTicks.get(ids[k]);
+            maLong[k] = maSpreadLongTicks.get(ids[k]);
+            entry[k] = entryDivergenceSigmas.get(ids[k]);
+            exit[k] = exitConvergenceSigmas.get(ids[k]);
+            stopLoss[k] = exitStopLossSigmas.get(ids[k]);
+        }
+        
+        for (int i = 0; i < population.size(Group.LS); i++) {
+            Trader trader = population.get(Group.LS, i);
+            
+            for (int k = 1; k < numSecs; k++)
+                addLSStrategy(trader, ids[0], ids[k], (int) Math.round(maShort[k].nextDouble()), (int) Math.round(maLong[k].nextDouble()), 
+                        volWindow, entry[k].nextDouble(), exit[k].nextDouble(), stopLoss[k].nextDouble(), capFactor, multiplier, positionUpdate);
+            
+            varSettings.applyTo(trader);
+        }
+    }
+    
+    
+    
+    /**
+     * Keep track of the longest window over which strategies look back in the market's time series, 
+     * to size the ring buffers in {@link RunMode#SUMMARY_ONLY} mode
+     */
+    private void registerStrategyWindows(int... windows) {
+        for (int window : windows)
+            maxStrategyWindow = Math.max(maxStrategyWindow, window);
+    }
+    
+    
+    /**
+     * Get all trend followers operating in the market
+     * 
+     * @return a {@code HashMap} with all trend followers. The map is maintained as traders are created, do not modify it.
+     */
+    public HashMap<String, Trader> getTrendFollowers() {
+        expandCohorts(Group.TREND);
+        
+        return population.getTraderMap(Group.TREND);
+    }
+    
+    
+    /**
+     * Get all value investors operating in the market
+     * 
+     * @return a {@code HashMap} with all value investors. The map is maintained as traders are created, do not modify it.
+     */
+    public HashMap<String, Trader> getValueInvestors() {
+        expandCohorts(Group.VALUE);
+        
+        return population.getTraderMap(Group.VALUE);
     }
     
     
     /**
      * Get all LS investors operating in the market
      * 
-     * @return a {@code HashMap} with all LS investors
+     * @return a {@code HashMap} with all LS investors. The map is maintained as traders are created, do not modify it.
      */
     public HashMap<String, Trader> getLSInvestors() {
-        HashMap<String, Trader> traders = market.getTraders();
-        HashMap<String, Trader> LSInvestors = new HashMap<String, Trader>();
+        expandCohorts(Group.LS);
         
-        for (String key : traders.keySet()) {
-            if (key.startsWith(prefixLSInvestor))
-                LSInvestors.put(key, traders.get(key));
-        }
+        return population.getTraderMap(Group.LS);
+    }
+    
+    
+    /**
+     * Get the traders of each group, by id. The id of a trader is the numeric index of its label.
+     * 
+     * @return the population of traders
+     */
+    public TraderPopulation getPopulation() {
+        for (Group group : Group.values())
+            expandCohorts(group);
         
-        return LSInvestors;
+        return population;
     }
     
     
@@ -635,6 +1001,45 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
     }
     
     
+    /**
+     * Schedule the actions of an agent, and record it so that the schedule can be recreated when 
+     * the simulator is deserialised. In event mode, a trader created after the start of the run 
+     * wakes up at the next tick.
+     */
+    private void schedule(Object agent) {
+        scheduler.schedule(agent);
+        scheduledAgents.add(agent);
+        
+        if ((wakeUps != null) && (agent instanceof Trader))
+            wakeUps.schedule(scheduledAgents.size() - 1, wakeUps.getTick());
+    }
+    
+    
+    /**
+     * The scheduler is not serialisable. The tick of the world clock is written along with the 
+     * simulator, see {@link #readObject(ObjectInputStream)}.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(WorldClock.currentTick());
+    }
+    
+    
+    /**
+     * Recreate the scheduler, with the agents scheduled in the same order as in the original 
+     * simulator. The new scheduler starts counting at the tick at which the simulator was 
+     * serialised; the world clock is not changed, see {@link info.financialecology.finance.utilities.abm.SimulationSnapshot}.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        scheduleStartTick = in.readInt();
+        scheduler = new DefaultScheduleFactory().createSchedule();
+        
+        for (Object agent : scheduledAgents)
+            scheduler.schedule(agent);
+    }
+    
+    
     /**
      * Get the scheduler for this simulator
      * 
@@ -652,31 +1057,490 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
      */
     public long currentTick() {
         long currentTick = super.currentTick();
+        
+        if (eventMode) return currentTick;     // the scheduler is not used
+        
         long scheduleTickCount = (long) scheduler.getTickCount();
         
         // TODO This test is a bit more difficult. The schedule tick count is -1 the first time the current tick is called below. 
         // TODO It seems the tick count is set to 0 before the first scheduled event executes. So any schedule-executed code should test for this, but other code shouldn't 
-        Assertion.assertStrict(currentTick == scheduleTickCount, Level.ERR, "Scheduler has gaps because tick count is out of sync");
+        Assertion.assertStrict(currentTick == scheduleStartTick + scheduleTickCount, Level.ERR, "Scheduler has gaps because tick count is out of sync");
         
         return currentTick;
     }
     
     
+    /**
+     * Set how much of the history of the run is kept. In {@link RunMode#SUMMARY_ONLY} mode, the time 
+     * series of the market are limited to the longest window used by the strategies and traders, and 
+     * those of the traders to the last two ticks, so that the memory of a run does not grow with the 
+     * number of ticks. Methods that need the full history, such as {@link #getTrendVolume(String)}, 
+     * cannot be used in this mode; use {@link #getRunSummary()} instead. 
+     * 
+     * @param runMode the run mode; needs to be set before calling {@link #run()}
+     */
+    public void setRunMode(RunMode runMode) {
+        this.runMode = runMode;
+    }
+    
+    
+    /**
+     * Simulate the traders in cohorts: traders whose positions are proportional at every tick (see 
+     * {@link TraderCohorts}) are simulated by one representative that trades for the whole cohort. 
+     * This applies to traders without VaR and ES whose trend strategies have a constant capFactor, and 
+     * reduces the cost of a run with a large population of such traders to the number of distinct 
+     * parameter sets. The results are the same as without cohorts, up to the rounding of the sum of 
+     * the orders.
+     * <p>
+     * The results of the traders that are not simulated are filled in from their representatives 
+     * when the traders are requested after the run, e.g. by {@link #getTrendFollowers()}; the run 
+     * summary does not need them.
+     * 
+     * @param cohortMode true to simulate in cohorts; needs to be set before calling {@link #run()}
+     */
+    public void setCohortMode(boolean cohortMode) {
+        this.cohortMode = cohortMode;
+    }
+    
+    
+    /**
+     * Evaluate the strategies in batches: the trend strategies and the value strategies on each share 
+     * compute their positions together, in one loop over arrays of their parameters and state, instead 
+     * of one strategy object at a time (see {@link TrendMABCStrategy.Batch} and {@link ValueMABCStrategy.Batch}). 
+     * The traders still place their orders, and apply VaR and ES, one by one. The results are the same 
+     * as without batches. LS strategies are not batched; they are evaluated by each trader.
+     * <p>
+     * In cohort mode, only the representatives of the cohorts are batched.
+     * 
+     * @param batchMode true to evaluate the strategies in batches; needs to be set before calling {@link #run()}
+     */
+    public void setBatchMode(boolean batchMode) {
+        this.batchMode = batchMode;
+    }
+    
+    
+    /**
+     * Compute the VaR and ES of the traders in batches: the portfolio variances of all traders with the 
+     * same volatility window are computed together, as a product of the matrix of their portfolio weights 
+     * with the covariance matrix, instead of one trader at a time (see {@link PortfolioRiskBatch}). The 
+     * VaR and ES agree with those computed by each trader up to rounding, which can decide whether a 
+     * trader close to its limit hits it, so the results are not always the same as without batches.
+     * <p>
+     * In cohort mode, only the representatives of the cohorts are batched.
+     * 
+     * @param riskBatchMode true to compute the VaR and ES in batches; needs to be set before calling {@link #run()}
+     */
+    public void setRiskBatchMode(boolean riskBatchMode) {
+        this.riskBatchMode = riskBatchMode;
+    }
+    
+    
+    /**
+     * Set the risk model of a group of traders, e.g. {@link info.financialecology.finance.abm.model.risk.NoRiskModel} 
+     * for a group that does not use VaR or ES, so that its traders keep no covariances and no risk series. 
+     * Set it before creating the traders of the group, which then never allocate the risk state that 
+     * the model does not need; the traders already created take the model too.
+     * 
+     * @param group the group of traders
+     * @param riskModel the risk model of the group, see {@link RiskModel}; needs to be set before calling {@link #run()}
+     */
+    public void setRiskModel(Group group, RiskModel riskModel) {
+        riskModels.put(group, riskModel);
+        
+        for (Trader trader : population.getTraders(group))
+            trader.setRiskModel(riskModel);
+    }
+    
+    /**
+     * @return the risk model of the group, {@link Trader#DEFAULT_RISK_MODEL} unless set otherwise
+     */
+    public RiskModel getRiskModel(Group group) {
+        RiskModel riskModel = riskModels.get(group);
+        
+        return (riskModel == null) ? Trader.DEFAULT_RISK_MODEL : riskModel;
+    }
+    
+    
+    /**
+     * Run the traders as discrete events: each trader acts only at its wake-up times, every 
+     * {@link Trader#getWakeUpInterval()} ticks, which are kept in a {@link TimingWheel}, and the 
+     * market maker clears the market at every tick. A group of slow traders, e.g. value funds that 
+     * trade once a day among trend followers that trade at every intraday tick, then costs nothing 
+     * in the ticks in between; a trader holds its positions over the ticks it is idle and fills them 
+     * in when it wakes up (see {@link Trader#prepareOrders()}). With all wake-up intervals at 1, the 
+     * results are the same as with the scheduler.
+     * <p>
+     * Event mode cannot be combined with the batch modes, which evaluate the traders of a batch at 
+     * every tick.
+     * 
+     * @param eventMode true to run the traders as discrete events; needs to be set before calling {@link #run()}
+     */
+    public void setEventMode(boolean eventMode) {
+        this.eventMode = eventMode;
+    }
+    
+    
+    /**
+     * Set the number of ticks between the actions of the traders of a group, see {@link #setEventMode(boolean)}. 
+     * The traders already created take the interval too.
+     * 
+     * @param group the group of traders
+     * @param wakeUpInterval the number of ticks, >= 1; needs to be set before calling {@link #run()}
+     */
+    public void setWakeUpInterval(Group group, int wakeUpInterval) {
+        wakeUpIntervals.put(group, wakeUpInterval);
+        
+        for (Trader trader : population.getTraders(group))
+            trader.setWakeUpInterval(wakeUpInterval);
+    }
+    
+    /**
+     * @return the wake-up interval of the group, 1 unless set otherwise
+     */
+    public int getWakeUpInterval(Group group) {
+        Integer wakeUpInterval = wakeUpIntervals.get(group);
+        
+        return (wakeUpInterval == null) ? 1 : wakeUpInterval;
+    }
+    
+    
+    /**
+     * Stop the run early once the given fraction of all traders has failed
+     * 
+     * @param maxFailureFraction the fraction of failed traders, in (0,1]
+     */
+    public void setStopOnFailures(double maxFailureFraction) {
+        Assertion.assertStrict((maxFailureFraction > 0) && (maxFailureFraction <= 1), Level.ERR, 
+                "The fraction of failed traders needs to be in (0,1]");
+        
+        this.maxFailureFraction = maxFailureFraction;
+        this.stopOnFailures = true;
+    }
+    
+    
+    /**
+     * Stop the run early once the market becomes unstable, that is, once the price of a share is not
+     * positive or the absolute value of a log-return exceeds {@code maxAbsLogReturn}
+     * 
+     * @param maxAbsLogReturn the largest admissible absolute log-return
+     */
+    public void setStopOnInstability(double maxAbsLogReturn) {
+        Assertion.assertStrict(maxAbsLogReturn > 0, Level.ERR, "The largest admissible log-return needs to be '> 0'");
+        
+        this.maxAbsLogReturn = maxAbsLogReturn;
+        this.stopOnInstability = true;
+    }
+    
+    
+    /**
+     * Set the first tick whose log-returns are included in the run summary, e.g. to exclude the 
+     * warm-up period of the strategies
+     * 
+     * @param summaryStartTick the first tick, at least 1
+     */
+    public void setSummaryStartTick(int summaryStartTick) {
+        Assertion.assertStrict(summaryStartTick >= 1, Level.ERR, "The first tick of the summary needs to be '>= 1'");
+        
+        this.summaryStartTick = summaryStartTick;
+    }
+    
+    
+    /**
+     * Get the summary targets of the last run: volatility and kurtosis of log-returns, final prices, 
+     * and failures and wealth of the traders. These are accumulated online in both run modes.
+     * 
+     * @return the summary of the last run, or {@code null} if the simulation has not been run
+     */
+    public RunSummary getRunSummary() {
+        return runSummary;
+    }
+    
+    
     /**
      * Run the simulation. Internally, this executes the methods registered with the scheduler.
      */
     public void run() {
         logger.trace("Calling: run()");
         
-        Assertion.assertStrict((!getTrendFollowers().isEmpty() || !getValueInvestors().isEmpty() || !getLSInvestors().isEmpty()), 
-        		Level.ERR, "There are no trend followers, value investors and LS investors in the market '" + market.getId() + "'");
+        Trader [] trendFollowers = population.toArray(Group.TREND);
+        Trader [] valueInvestors = population.toArray(Group.VALUE);
+        Trader [] lsInvestors = population.toArray(Group.LS);
+        int numTraders = trendFollowers.length + valueInvestors.length + lsInvestors.length;
+        
+        Assertion.assertStrict(numTraders > 0, Level.ERR, "There are no trend followers, value investors and LS investors in the market '" + market.getId() + "'");
+        
+        ArrayList<String> secIds = market.getMarketMaker().getSecIds();
+        
+        if (runMode == RunMode.SUMMARY_ONLY)
+            limitHistories();
+        
+        if (cohortMode && (cohorts == null))
+            compressCohorts();
+        
+        if (batchMode && !batchesBuilt)
+            buildStrategyBatches();
+        
+        if (riskBatchMode && !riskBatchesBuilt)
+            buildRiskBatches();
+        
+        if (eventMode && (wakeUps == null))
+            buildWakeUps();
+        
+        if ((runSummary == null) || (super.currentTick() == 0))    // a run continued from a snapshot keeps its summary
+            runSummary = new RunSummary(secIds);
         
         // TODO test for first tick and if true, use super.currentTick() to avoid testing (see comments in currentTick()). Otherwise use the currentTick() method of this class.
                
         while (super.currentTick() < nTicks) {  // call currentTick of super to skip test that ensures the current tick and the scheduler tick count are in sync
-            scheduler.execute();
+            if (eventMode)
+                executeEvents();
+            else
+                scheduler.execute();
+            
+            int tick = (int) super.currentTick();
+            boolean isUnstable = false;
+            
+            for (String secId : secIds) {
+                double logReturn = market.getLogReturns(secId).get(tick);
+                
+                if (tick >= summaryStartTick)
+                    runSummary.addLogReturn(secId, logReturn);
+                
+                if (stopOnInstability && (!(market.getPrices(secId).get(tick) > 0) || !(Math.abs(logReturn) <= maxAbsLogReturn)))
+                    isUnstable = true;
+            }
+            
             incrementTick();
+            
+            if (isUnstable) {
+                runSummary.setStopReason(RunSummary.StopReason.INSTABILITY);
+                break;
+            }
+            
+            if (stopOnFailures && (countFailures(Group.TREND, trendFollowers) + countFailures(Group.VALUE, valueInvestors) + 
+                    countFailures(Group.LS, lsInvestors) >= maxFailureFraction * numTraders)) {
+                runSummary.setStopReason(RunSummary.StopReason.FAILURES);
+                break;
+            }
         }
+        
+        if (runSummary.getStopReason() != RunSummary.StopReason.COMPLETED)
+            logger.debug("Run stopped at tick {}: {}", super.currentTick() - 1, runSummary.getStopReason());
+        
+        int lastTick = (int) super.currentTick() - 1;
+        
+        if (eventMode)
+            for (Object agent : scheduledAgents)
+                if (agent instanceof Trader)
+                    ((Trader) agent).catchUp(lastTick);     // fill in the positions of the traders that were idle at the last ticks
+        
+        runSummary.setNumTicks(lastTick + 1);
+        
+        for (String secId : secIds)
+            runSummary.setFinalPrice(secId, market.getPrices(secId).get(lastTick));
+        
+        summariseGroup(Group.TREND, trendFollowers);
+        summariseGroup(Group.VALUE, valueInvestors);
+        summariseGroup(Group.LS, lsInvestors);
+    }
+    
+    
+    /**
+     * Limit the time series of the market to the longest window used by the strategies and traders, 
+     * and those of the traders to the last ticks they need. A trader that wakes up every n ticks 
+     * catches up on the ticks it was idle (e.g. the wealth of a variable capFactor), so it needs the 
+     * last n ticks of its own time series and of the market.
+     */
+    private void limitHistories() {
+        int maxWindow = maxStrategyWindow;
+        
+        for (Trader trader : market.getTraders().values()) {
+            int wakeUpInterval = eventMode ? trader.getWakeUpInterval() : 1;
+            
+            maxWindow = Math.max(maxWindow, Math.max(trader.getVolWindow(), wakeUpInterval));
+            trader.setHistoryLimit(TRADER_HISTORY_LIMIT + wakeUpInterval - 1);
+        }
+        
+        market.setHistoryLimit(maxWindow + 2);     // incremental moving averages and covariances drop the value at t - window - 1 
+    }
+    
+    
+    /**
+     * Partition each group into cohorts and log how many traders are simulated
+     */
+    private void compressCohorts() {
+        cohorts = new EnumMap<Group, TraderCohorts>(Group.class);
+        
+        for (Group group : Group.values()) {
+            TraderCohorts groupCohorts = TraderCohorts.compress(population.getTraders(group));
+            
+            cohorts.put(group, groupCohorts);
+            logger.debug("{}: {} traders simulated in {} cohorts", new Object[] {group, groupCohorts.getNumTraders(), groupCohorts.getNumCohorts()});
+        }
+    }
+    
+    
+    /**
+     * Add the trend and value strategies of the simulated traders to the batches of their shares
+     */
+    private void buildStrategyBatches() {
+        HashMap<String, TrendMABCStrategy.Batch> trendBatches = new HashMap<String, TrendMABCStrategy.Batch>();
+        HashMap<String, ValueMABCStrategy.Batch> valueBatches = new HashMap<String, ValueMABCStrategy.Batch>();
+        
+        for (Group group : Group.values()) {
+            for (Trader trader : population.getTraders(group)) {
+                if (trader.isCohortMember()) continue;     // its representative trades for it
+                
+                for (TradingStrategy strategy : trader.getStrategies().values()) {
+                    String secId = strategy.getUniqueId();
+                    
+                    if (strategy instanceof TrendMABCStrategy) {
+                        TrendMABCStrategy.Batch batch = trendBatches.get(secId);
+                        
+                        if (batch == null) {
+                            batch = new TrendMABCStrategy.Batch(market.getPrices(secId));
+                            trendBatches.put(secId, batch);
+                        }
+                        
+                        batch.add((TrendMABCStrategy) strategy, trader.getPortfolio());
+                    }
+                    else if (strategy instanceof ValueMABCStrategy) {
+                        ValueMABCStrategy.Batch batch = valueBatches.get(secId);
+                        
+                        if (batch == null) {
+                            batch = new ValueMABCStrategy.Batch(market.getPrices(secId), market.getFundValues(secId));
+                            valueBatches.put(secId, batch);
+                        }
+                        
+                        batch.add((ValueMABCStrategy) strategy, trader.getPortfolio());
+                    }
+                }
+            }
+        }
+        
+        for (String secId : trendBatches.keySet())
+            logger.debug("Trend strategies on {}: {} in a batch", secId, trendBatches.get(secId).size());
+        
+        for (String secId : valueBatches.keySet())
+            logger.debug("Value strategies on {}: {} in a batch", secId, valueBatches.get(secId).size());
+        
+        batchesBuilt = true;
+    }
+    
+    
+    /**
+     * Schedule the first wake-up of the simulated traders at the current tick
+     */
+    private void buildWakeUps() {
+        Assertion.assertStrict(!batchMode && !riskBatchMode, Level.ERR, "Event mode cannot be combined with the batch modes");
+        
+        wakeUps = new TimingWheel((int) super.currentTick());
+        
+        for (int i = 0; i < scheduledAgents.size(); i++) {
+            Object agent = scheduledAgents.get(i);
+            
+            if ((agent instanceof Trader) && !((Trader) agent).isCohortMember())     // its representative trades for it
+                wakeUps.schedule(i, wakeUps.getTick());
+        }
+    }
+    
+    
+    /**
+     * Clear the market and let the traders that wake up at the current tick act, in the order in 
+     * which they were scheduled, as the scheduler does; then schedule their next wake-ups
+     */
+    private void executeEvents() {
+        ShareMarketMaker marketMaker = market.getMarketMaker();
+        
+        marketMaker.clearMarket();
+        marketMaker.updateFundValue();
+        
+        if (wokenAgents == null)
+            wokenAgents = new IntArrayList();
+        
+        int tick = wakeUps.advance(wokenAgents);
+        
+        Assertion.assertStrict(tick == super.currentTick(), Level.ERR, "The wake-ups of the traders are out of sync with the world clock");
+        
+        wokenAgents.sort();
+        
+        for (int i = 0; i < wokenAgents.size(); i++) {
+            int index = wokenAgents.getQuick(i);
+            Trader trader = (Trader) scheduledAgents.get(index);
+            
+            trader.actions();
+            wakeUps.schedule(index, tick + trader.getWakeUpInterval());
+        }
+    }
+    
+    
+    /**
+     * Add the simulated traders that use VaR or ES to the risk batches of their volatility windows
+     */
+    private void buildRiskBatches() {
+        HashMap<String, PortfolioRiskBatch> riskBatches = new HashMap<String, PortfolioRiskBatch>();   // by window and whether the traders use both VaR and ES
+        
+        for (Group group : Group.values()) {
+            for (Trader trader : population.getTraders(group)) {
+                if (trader.isCohortMember()) continue;     // its representative trades for it
+                
+                if ((trader.getUseVar() != UseVar.TRUE) && (trader.getUseEs() != UseEs.TRUE)) continue;
+                if (!trader.getRiskModel().isActive()) continue;
+                
+                String key = trader.getVolWindow() + (PortfolioRiskBatch.usesVarAndEs(trader) ? "_VaR_ES" : "");
+                PortfolioRiskBatch batch = riskBatches.get(key);
+                
+                if (batch == null) {
+                    batch = new PortfolioRiskBatch(market, trader.getVolWindow());
+                    riskBatches.put(key, batch);
+                }
+                
+                batch.add(trader);
+            }
+        }
+        
+        for (String key : riskBatches.keySet())
+            logger.debug("Traders with volatility window {}: {} in a risk batch", key, riskBatches.get(key).size());
+        
+        riskBatchesBuilt = true;
+    }
+    
+    
+    /**
+     * Fill in the results of the traders of the group that were simulated by their cohort's representative
+     */
+    private void expandCohorts(Group group) {
+        if (cohorts != null)
+            cohorts.get(group).expand();
+    }
+    
+    
+    private int countFailures(Group group, Trader [] traders) {
+        return (cohorts == null) ? countFailures(traders) : cohorts.get(group).countFailures();
+    }
+    
+    
+    private static int countFailures(Trader [] traders) {
+        int failures = 0;
+        
+        for (Trader trader : traders)
+            if (trader.getFailureTick() >= 0) failures++;
+        
+        return failures;
+    }
+    
+    
+    private void summariseGroup(Group group, Trader [] traders) {
+        double wealth = 0;
+        
+        if (cohorts == null) {
+            for (Trader trader : traders)
+                wealth += trader.getAccumulatedWealth();
+        }
+        else
+            wealth = cohorts.get(group).getTotalAccumulatedWealth();
+        
+        runSummary.setGroup(group, traders.length, countFailures(group, traders), traders.length == 0 ? 0 : wealth / traders.length);
     }
 
     
@@ -2370,44 +3234,45 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
                 "At tick " + lastTick + "normPeriod (=" + normPeriod + ") overlaps with " +
                 		"the warm-up period (=" + Math.max(maLongTicks,  volWindow) + ").");
         
-        for (int k = 0; k < normPeriod; k++) {
-        	
-        	/*
-        	 * Collect the prices in the long-term, short-term and volatility windows for subsequent calculations
-        	 */
-        	DoubleTimeSeries tsPriceShort_current_tick = new DoubleTimeSeries();
-        	DoubleTimeSeries tsPriceLong_current_tick = new DoubleTimeSeries();
-        	DoubleTimeSeries tsPriceShort_previous_tick = new DoubleTimeSeries();
-        	DoubleTimeSeries tsPriceLong_previous_tick = new DoubleTimeSeries();
-        	DoubleTimeSeries tsPriceVolWindow = new DoubleTimeSeries();
-        	
-        	for (int t = 0; t < maShortTicks; t++) {
-        		tsPriceShort_current_tick.add(tsPrice.get(lastTick - t - k));
-        		tsPriceShort_previous_tick.add(tsPrice.get(lastTick - t-1 - k));
-        	}
-        	
-        	for (int t = 0; t < maLongTicks; t++) {
-        		tsPriceLong_current_tick.add(tsPrice.get(lastTick - t - k));
-        		tsPriceLong_previous_tick.add(tsPrice.get(lastTick - t-1 - k));
-        	}
-        	
-        	for (int t = 0; t < volWindow; t++) {
-        		tsPriceVolWindow.add(tsPrice.get(lastTick - t - k));
-        	}
+        /*
+         * The indicator is computed by sliding over the 'normPeriod' ticks, from the oldest to the most
+         * recent one, so that each step costs O(1):
+         *  - the change of a moving average between consecutive ticks only depends on the price entering
+         *    and the price leaving the window: MA(t) - MA(t-1) = (p(t) - p(t-window)) / window
+         *  - the volatility window keeps running sums of the prices and squared prices (shifted by a 
+         *    reference price to avoid cancellation), from which the sample standard deviation follows
+         */
+        double refPrice = tsPrice.get(lastTick - normPeriod + 1);
+        double volSum = 0;
+        double volSumSquares = 0;
+        
+        for (int t = lastTick - normPeriod - volWindow + 2; t <= lastTick - normPeriod + 1; t++) {
+            double x = tsPrice.get(t) - refPrice;
+            volSum += x;
+            volSumSquares += x * x;
+        }
+        
+        for (int k = normPeriod - 1; k >= 0; k--) {
+            
+            int tick = lastTick - k;
+            
+            if (k < normPeriod - 1) {   // slide the volatility window forward by one tick
+                double xIn = tsPrice.get(tick) - refPrice;
+                double xOut = tsPrice.get(tick - volWindow) - refPrice;
+                volSum += xIn - xOut;
+                volSumSquares += xIn * xIn - xOut * xOut;
+            }
         	
         	/*
         	 * Calculate the mean of the TREND entry indicator over the window 'normPeriod'
         	 */
-        	double maShort_current_tick = tsPriceShort_current_tick.mean();
-        	double maShort_previous_tick = tsPriceShort_previous_tick.mean();
-        	double maLong_current_tick = tsPriceLong_current_tick.mean();
-        	double maLong_previous_tick = tsPriceLong_previous_tick.mean();
+            double price_current_tick = tsPrice.get(tick);
         	
-        	double slopeShort = Math.atan(maShort_current_tick - maShort_previous_tick);
-        	double slopeLong = Math.atan(maLong_current_tick - maLong_previous_tick);
+        	double slopeShort = Math.atan((price_current_tick - tsPrice.get(tick - maShortTicks)) / maShortTicks);
+        	double slopeLong = Math.atan((price_current_tick - tsPrice.get(tick - maLongTicks)) / maLongTicks);
         	double deltaSlope = slopeShort - slopeLong;
         	
-        	double stdDev = tsPriceVolWindow.stdev();
+        	double stdDev = windowStdev(volSum, volSumSquares, volWindow);
         	
         	if (multiplier == MultiplierTrend.CONSTANT) {
         		magnitudeTrendIndicator = magnitudeTrendIndicator + 1;
@@ -2491,46 +3356,80 @@ public class TrendValueLSVarAbmSimulator extends AbstractSimulator {
     	
     	DoubleTimeSeries tsPrice_1 = market.getPrices("IBM");
     	DoubleTimeSeries tsPrice_2 = market.getPrices(secId);
-    	DoubleTimeSeries tsSpread = StatsTimeSeries.substraction(tsPrice_1, tsPrice_2);
 
         int lastTick = tsPrice_1.getLastTick();
 
     	Assertion.assertOrKill(normPeriod <= lastTick + 1, "normPeriod (=" + normPeriod + ") has to be smaller " +
      			"or equal to the number of ticks in the simulation");
+    	Assertion.assertOrKill(normPeriod + Math.max(histWindow,  volWindow) <= lastTick + 2, 
+    	        "At tick " + lastTick + "normPeriod (=" + normPeriod + ") overlaps with " +
+    	        "the warm-up period (=" + Math.max(histWindow,  volWindow) + ").");
     	    	
         double magnitudeLSIndicator = 0;
         
-        DoubleTimeSeries tsSpreadHistWindow = new DoubleTimeSeries();
-        DoubleTimeSeries tsSpreadVolWindow = new DoubleTimeSeries();
+        /*
+         * Slide the history and volatility windows over the spread, from the oldest to the most recent tick
+         * in 'normPeriod', keeping running sums (shifted by a reference spread to avoid cancellation)
+         */
+        double refSpread = tsPrice_1.get(lastTick - normPeriod + 1) - tsPrice_2.get(lastTick - normPeriod + 1);
+        double histSum = 0;
+        double volSum = 0;
+        double volSumSquares = 0;
+        
+        for (int t = lastTick - normPeriod - histWindow + 2; t <= lastTick - normPeriod + 1; t++)
+            histSum += tsPrice_1.get(t) - tsPrice_2.get(t) - refSpread;
+
+        for (int t = lastTick - normPeriod - volWindow + 2; t <= lastTick - normPeriod + 1; t++) {
+            double x = tsPrice_1.get(t) - tsPrice_2.get(t) - refSpread;
+            volSum += x;
+            volSumSquares += x * x;
+        }
                 
-        for (int k = 0; k < normPeriod; k++) {
+        for (int k = normPeriod - 1; k >= 0; k--) {
         	
-        	for (int t = 0; t < histWindow; t++) {
-        		tsSpreadHistWindow.add(tsSpread.get(lastTick - t - k));
-        	}
-
-        	for (int t = 0; t < volWindow; t++) {
-        		tsSpreadVolWindow.add(tsSpread.get(lastTick - t - k));
-        	}
+            int tick = lastTick - k;
+            double spread = tsPrice_1.get(tick) - tsPrice_2.get(tick) - refSpread;
+            
+            if (k < normPeriod - 1) {   // slide the windows forward by one tick
+                histSum += spread - (tsPrice_1.get(tick - histWindow) - tsPrice_2.get(tick - histWindow) - refSpread);
+                
+                double xOut = tsPrice_1.get(tick - volWindow) - tsPrice_2.get(tick - volWindow) - refSpread;
+                volSum += spread - xOut;
+                volSumSquares += spread * spread - xOut * xOut;
+            }
 
         	/*
         	 * Calculate the mean of the LS entry indicator over the window 'normPeriod'
         	 */
         	
-        	double histMean = tsSpreadHistWindow.mean();
-        	double stdDev = tsSpreadVolWindow.stdev();
+        	double divergence = Math.abs(spread - histSum / histWindow);    // the reference spread cancels out
+        	double stdDev = windowStdev(volSum, volSumSquares, volWindow);
         	
         	if (multiplier == MultiplierLS.DIVERGENCE) {
-        		magnitudeLSIndicator = magnitudeLSIndicator + Math.abs(tsSpread.get(lastTick-k) - histMean);
+        		magnitudeLSIndicator = magnitudeLSIndicator + divergence;
             }
             else if (multiplier == MultiplierLS.DIVERGENCE_STDDEV) {
-            	magnitudeLSIndicator = magnitudeLSIndicator + Math.abs(tsSpread.get(lastTick-k) - histMean) / stdDev;
+            	magnitudeLSIndicator = magnitudeLSIndicator + divergence / stdDev;
             }
         }
                 
         return magnitudeLSIndicator / normPeriod;
     }
     
+    
+    /**
+     * Sample standard deviation of a window of {@code n} values from the running sum and sum of
+     * squares of the values. Returns 0 for a window with a single value, the same as 
+     * {@link DoubleTimeSeries#stdev()}.
+     */
+    private static double windowStdev(double sum, double sumSquares, int n) {
+        if (n == 1) return 0;
+        
+        double variance = (sumSquares - sum * sum / n) / (n - 1);
+        
+        return Math.sqrt(Math.max(variance, 0));    // guard against round-off for constant windows
+    }
+    
 
     /**
      * Calculates how many fundamental investors fail at each time step.
@@ -3,12 +3,15 @@
  */
 package info.financialecology.finance.abm.model.agent;
 
+import java.io.Serializable;
+
 
 /**
  * @author Gilbert
  *
  */
-public class Agent {
+@SuppressWarnings("serial")
+public class Agent implements Serializable {
 
     private int nId;    // TODO not sure this is needed at this level of abstraction; should be overwritten by inheriting classes
     
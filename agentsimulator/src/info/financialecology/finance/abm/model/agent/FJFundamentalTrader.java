@@ -19,6 +19,7 @@ import repast.simphony.engine.schedule.ScheduledMethod;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class FJFundamentalTrader extends Agent {
 
     private static int numInst = -1;	
@@ -25,6 +25,7 @@ import repast.simphony.engine.schedule.ScheduledMethod;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class FJMarketMaker extends Agent {
 
     private static int numInst = -1;
@@ -17,6 +17,7 @@ import repast.simphony.engine.schedule.ScheduledMethod;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class FJTechnicalTrader extends Agent {
 
     private static int numInst = -1;
@@ -16,12 +16,16 @@
 package info.financialecology.finance.abm.model.agent;
 
 import info.financialecology.finance.abm.model.ShareMarket;
+import info.financialecology.finance.abm.model.util.LimitOrderBook;
 import info.financialecology.finance.utilities.Assertion;
 import info.financialecology.finance.utilities.Assertion.Level;
 import info.financialecology.finance.utilities.datagen.DataGenerator;
+import info.financialecology.finance.utilities.datagen.DataGeneratorBuffer;
 import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+import info.financialecology.finance.utilities.output.TraceRecorder;
 import info.financialecology.finance.utilities.statistics.StatsTimeSeries;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -36,6 +40,7 @@ import repast.simphony.engine.schedule.ScheduledMethod;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class ShareMarketMaker extends Agent {
 
     private static int numInst = 0;
@@ -45,9 +50,23 @@ public class ShareMarketMaker extends Agent {
 	private ArrayList<String> secIds;  // provide prices for all securities in this list
 	private HashMap<String, ArrayList<OrderBookEntry>> orderBook; // order book for the securities traded by the market maker
 	
-	private HashMap<String, DataGenerator> exoPriceGen;    // data generators for the exogenous price processes of the different assets
+	private HashMap<String, DataGeneratorBuffer> exoPriceGen;      // increments of the exogenous price processes of the different assets, drawn in blocks
+	private HashMap<String, DataGeneratorBuffer> fundValueGen;     // values of the fundamental value processes of the different assets, drawn in blocks
 	
-	   private class OrderBookEntry {
+	private Clearing clearing = Clearing.LINEAR_IMPACT;            // how the orders of the traders set the prices
+	private double bookTickSize;                                   // tick size, half spread and depth (levels per side) of the quotes in the order books
+	private double bookHalfSpread;
+	private int bookDepth;
+	private HashMap<String, LimitOrderBook> limitOrderBooks = new HashMap<String, LimitOrderBook>();   // by secId, if the market is cleared with order books
+	private HashMap<String, long []> quotes = new HashMap<String, long []>();   // handles of the market maker's own limit orders in each book
+	private double unfilledVolume = 0;                             // total quantity of the traders' orders that found no counterpart in the books
+	
+	public enum Clearing {      // Specifies how the market is cleared
+	    LINEAR_IMPACT,          // the price moves by the net orders over the liquidity of the share
+	    ORDER_BOOK;             // the orders trade in a limit order book against the quotes of the market maker, see setOrderBookClearing()
+	}
+	
+	   private class OrderBookEntry implements Serializable {
 	        private Trader trader;
 	        private double order;
 	                
@@ -75,7 +94,8 @@ public class ShareMarketMaker extends Agent {
 	        }
 	   }
 	
-    Logger logger = (Logger)LoggerFactory.getLogger(ShareMarketMaker.class.getSimpleName());
+    private static final Logger logger = (Logger)LoggerFactory.getLogger(ShareMarketMaker.class.getSimpleName());
+    private static final int TRACE_PRICE = TraceRecorder.registerEventType("PRICE", "price", "totalOrders", "exoPriceChange");
     
     
     /**
@@ -86,7 +106,8 @@ public class ShareMarketMaker extends Agent {
         
         this.market = null;
         this.secIds = new ArrayList<String>();
-        this.exoPriceGen = new HashMap<String, DataGenerator>();
+        this.exoPriceGen = new HashMap<String, DataGeneratorBuffer>();
+        this.fundValueGen = new HashMap<String, DataGeneratorBuffer>();
         
         setAllInitPrices(0);
         setAllInitSpreads(0);
@@ -208,7 +229,7 @@ public class ShareMarketMaker extends Agent {
      * Set the exogenous price generator for a given asset
      */
     public void setExogenousPriceGenerator(String assetId, DataGenerator generator) {
-        this.exoPriceGen.put(assetId, generator);
+        this.exoPriceGen.put(assetId, new DataGeneratorBuffer(generator, true));
     }
     
     /**
@@ -231,6 +252,65 @@ public class ShareMarketMaker extends Agent {
         orderBook.get(secId).add(entry);
     }
     
+    /**
+     * Clear the market in limit order books, one per share, instead of moving the price by the net 
+     * orders. At each tick the market maker quotes {@code depth} price levels on each side of the 
+     * previous price (plus the exogenous price change), starting at {@code halfSpread} from it. The 
+     * orders of the traders then trade against the book as market orders, one after another in the 
+     * order they were placed, so a sell-off walks down the bids within the tick; the new price is the 
+     * mid-point of the best bid and ask, or the last trade if a side was exhausted.
+     * <p>
+     * Each level holds liquidity * tickSize / 2 shares, so that while the orders stay within the 
+     * quotes, the mid-price moves by the net orders over the liquidity, up to the tick size, as with 
+     * linear impact. Orders beyond the quoted depth find no counterpart: the price gaps to the last 
+     * trade and the rest of the order is not filled (see {@link #getUnfilledVolume()}), which models 
+     * the withdrawal of liquidity in a thin market. The traders assume their orders are filled. 
+     * 
+     * @param tickSize the price increment of the books
+     * @param halfSpread the distance between the previous price and the best quotes, >= 0
+     * @param depth the number of price levels quoted on each side
+     */
+    public void setOrderBookClearing(double tickSize, double halfSpread, int depth) {
+        Assertion.assertStrict(tickSize > 0 && halfSpread >= 0 && depth > 0, Level.ERR, "The order books need a tick size '> 0', " +
+        		"a half spread '>= 0' and a depth '> 0'");
+        
+        this.clearing = Clearing.ORDER_BOOK;
+        this.bookTickSize = tickSize;
+        this.bookHalfSpread = halfSpread;
+        this.bookDepth = depth;
+        
+        limitOrderBooks.clear();
+        quotes.clear();
+    }
+    
+    /**
+     * Move the price by the net orders over the liquidity of the share (the default)
+     */
+    public void setLinearImpactClearing() {
+        this.clearing = Clearing.LINEAR_IMPACT;
+        
+        limitOrderBooks.clear();
+        quotes.clear();
+    }
+    
+    public Clearing getClearing() {
+        return clearing;
+    }
+    
+    /**
+     * @return the limit order book of the share, or null if the market is not cleared with order books or the book has not been used yet
+     */
+    public LimitOrderBook getLimitOrderBook(String secId) {
+        return limitOrderBooks.get(secId);
+    }
+    
+    /**
+     * @return the total quantity of the orders of the traders that found no counterpart in the order books
+     */
+    public double getUnfilledVolume() {
+        return unfilledVolume;
+    }
+    
     /**
      *  Clear the market based on the orders from the traders
      */
@@ -238,8 +318,7 @@ public class ShareMarketMaker extends Agent {
 	public void clearMarket() {
 		
 		int currentTick = (int) market.currentTick();
-		
-		logger.trace("t = {} | {}", currentTick, this.toString());
+		TraceRecorder tracer = TraceRecorder.current();
 
 		for (String secId : secIds) {     // loop over all shares and determine their prices
 			
@@ -266,27 +345,77 @@ public class ShareMarketMaker extends Agent {
     		else {
                 if (exoPriceGen != null)
                     // TODO there has to be one generator for each share / secId
-                    exoPriceChange = exoPriceGen.get(secId).nextDoubleIncrement();
+                    exoPriceChange = exoPriceGen.get(secId).next();
+                
+                if (clearing == Clearing.ORDER_BOOK)
+                    prices.add(currentTick, clearInOrderBook(secId, prices.get(currentTick - 1) + exoPriceChange, entries));
+                else
+                    prices.add(currentTick, prices.get(currentTick - 1) + totalOrders / market.getLiquidity(secId) + exoPriceChange);
                 
-                prices.add(currentTick, prices.get(currentTick - 1) + totalOrders / market.getLiquidity(secId) + exoPriceChange);
                 logReturns.add(currentTick, Math.log(prices.get(currentTick)) - Math.log(prices.get(currentTick-1)) );
             }
+    		
+    		if (tracer != null)
+    		    tracer.record(currentTick, TRACE_PRICE, TraceRecorder.NONE, tracer.asset(secId), prices.get(currentTick), totalOrders, exoPriceChange);
 		}
 		
-		// Update the spreads using the new prices
-		int numAssets = secIds.size();
-		for (int i = 1; i < numAssets; i++) {
-			DoubleTimeSeries spreads = market.getSpreads(secIds.get(0), secIds.get(i));
-			double price_1 = market.getPrices(secIds.get(0)).get(currentTick);
-			double price_2 = market.getPrices(secIds.get(i)).get(currentTick);
-			spreads.add(currentTick, price_1 - price_2);
-		}
+		// Update the spreads in use with the new prices
+		market.getSpreadTable().update(currentTick);
 				
 		// Remove all order book entries
 		orderBook.clear();
 	}
 	
 	
+    /**
+     * Replace the market maker's quotes around the reference price, and let the orders trade 
+     * against the book, see {@link #setOrderBookClearing(double, double, int)}
+     * 
+     * @return the new price
+     */
+    private double clearInOrderBook(String secId, double referencePrice, ArrayList<OrderBookEntry> entries) {
+        LimitOrderBook book = limitOrderBooks.get(secId);
+        long [] handles = quotes.get(secId);
+        
+        if (book == null) {
+            book = new LimitOrderBook(bookTickSize, referencePrice);
+            handles = new long[2 * bookDepth];
+            limitOrderBooks.put(secId, book);
+            quotes.put(secId, handles);
+        }
+        else {
+            for (long handle : handles)
+                book.cancel(handle);
+        }
+        
+        double levelVolume = 0.5 * market.getLiquidity(secId) * bookTickSize;
+        long bestBid = (long) Math.floor((referencePrice - bookHalfSpread) / bookTickSize);    // in ticks
+        long bestAsk = (long) Math.ceil((referencePrice + bookHalfSpread) / bookTickSize);
+        
+        if (bestAsk == bestBid) bestAsk++;      // the quotes must not cross
+        
+        for (int i = 0; i < bookDepth; i++) {
+            handles[2 * i] = book.addLimitOrder(true, (bestBid - i) * bookTickSize, levelVolume);
+            handles[2 * i + 1] = book.addLimitOrder(false, (bestAsk + i) * bookTickSize, levelVolume);
+        }
+        
+        if (entries != null) {
+            for (OrderBookEntry entry : entries) {
+                double filled = book.marketOrder(entry.getOrder());
+                
+                unfilledVolume += Math.abs(entry.getOrder() - filled);
+            }
+        }
+        
+        if (book.hasBids() && book.hasAsks())
+            return book.getMidPrice();
+        
+        logger.debug("t = {}: the orders in '{}' have exhausted one side of the order book", market.currentTick(), secId);
+        
+        return book.getLastPrice();
+    }
+    
+    
     /**
      *  Update the generic fundamental value process at each time step
      *  
@@ -303,9 +432,16 @@ public class ShareMarketMaker extends Agent {
 		for (String secId : secIds) {     // loop over all shares
 
 		    DoubleTimeSeries fundValues = market.getFundValues(secId);
+		    DataGenerator generator = market.getFundValueGenerator(secId);
+		    DataGeneratorBuffer buffer = fundValueGen.get(secId);
+		    
+		    if ((buffer == null) || (buffer.getGenerator() != generator)) {     // the generator has been set or replaced since the last tick
+		        buffer = new DataGeneratorBuffer(generator, false);
+		        fundValueGen.put(secId, buffer);
+		    }
 		
     		// Calculate new fund value for share secId
-		    fundValues.add(currentTick, market.getFundValueGenerator(secId).nextDouble());
+		    fundValues.add(currentTick, buffer.next());
 		}
 	}
 		
@@ -4,16 +4,25 @@
 package info.financialecology.finance.abm.model.agent;
 
 import info.financialecology.finance.abm.model.ShareMarket;
+import info.financialecology.finance.abm.model.ShareMarket.CovarianceModel;
+import info.financialecology.finance.abm.model.risk.CompositeRiskModel;
+import info.financialecology.finance.abm.model.risk.FrtbEsModel;
+import info.financialecology.finance.abm.model.risk.ParametricVarModel;
+import info.financialecology.finance.abm.model.risk.RiskModel;
 import info.financialecology.finance.abm.model.strategy.TradingStrategy;
 import info.financialecology.finance.abm.model.strategy.TradingStrategy.Order;
+import info.financialecology.finance.abm.model.util.FactorCovariance;
+import info.financialecology.finance.abm.model.util.PortfolioRiskBatch;
 import info.financialecology.finance.abm.model.util.TradingPortfolio;
 import info.financialecology.finance.utilities.Assertion;
 import info.financialecology.finance.utilities.Assertion.Level;
 import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+import info.financialecology.finance.utilities.output.TraceRecorder;
 import info.financialecology.finance.utilities.statistics.StatsTimeSeries;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -27,9 +36,16 @@ import repast.simphony.engine.schedule.ScheduledMethod;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class Trader extends Agent {
 
     private static final Logger logger = (Logger)LoggerFactory.getLogger(Trader.class.getSimpleName());
+    
+    // Tracing of the decisions, see TraceRecorder
+    private static final int TRACE_WEALTH = TraceRecorder.registerEventType("WEALTH", "deltaWealth", "portfolioValue", "failed");
+    private static final int TRACE_VAR = TraceRecorder.registerEventType("VAR_LIMIT", "postTradeVar", "stressedVar", "varLimit");
+    private static final int TRACE_ES = TraceRecorder.registerEventType("ES_LIMIT", "postTradeEs", "stressedEs", "esLimit");
+    private static final int TRACE_REDUCTION = TraceRecorder.registerEventType("REDUCTION", "order", "desiredOrder", "position");
 
     private String label;       // the label (or name) of the trader
     
@@ -48,7 +64,27 @@ public class Trader extends Agent {
 	private State state;                    // specifies if the agent has failed (wealth < 0) 
 	private int failureTick;				// time step where the agent has failed (-1 if the agent does not fail)
 	
+	private double orderWeight = 1;         // multiplies the orders sent to the market maker; the total scale of the cohort the trader represents, see TraderCohorts
+	private boolean isCohortMember = false; // true if the trader is simulated by the representative of its cohort and does not trade itself
+	
 	private int volWindow;                          // volatility window used to calculate VaR and ES
+	
+	private PortfolioRiskBatch riskBatch = null;    // computes the VaR and ES of the trader together with those of the other traders with the same window, or null
+	private int riskBatchIndex;
+	private int preparedTick = -1;                  // tick of the last call to prepareOrders()
+	private ArrayList<Order> pendingOrders;         // the orders of the strategies at that tick, see prepareOrders()
+	private int reducedTick = -1;                   // tick at which the positions were last reduced to meet a risk limit
+	private int wakeUpInterval = 1;                 // number of ticks between the actions of the trader, in the event-driven mode of the simulator
+	
+	private RiskModel riskModel;                    // the risk measures and limits of the trader; with an inactive model the trader keeps no risk state
+	
+	/**
+	 * The risk model of the traders unless set otherwise: parametric VaR, plus stressed VaR as in 
+	 * Basel 2.5, then ES with stressed ES as in the FRTB, each for the traders that use it
+	 */
+	public static final RiskModel DEFAULT_RISK_MODEL = new CompositeRiskModel(new ParametricVarModel(), new FrtbEsModel());
+	
+	private static final int WINDOW_VOLATILITY_INDEX_MA = 200;    // window of the historical mean of the volatility index (used to update the VaR limit)
 
 	private DoubleTimeSeries tsVar_preTrade;        // time series of VaR (before any trade is done) - used for plots
 	private DoubleTimeSeries tsVar_postTrade;       // time series of VaR (after the trade is done) - used for plots
@@ -70,6 +106,8 @@ public class Trader extends Agent {
     
     private HashMap<String, HashMap<String, Double>> maxCovariances;    // covariances of log-returns at the time step when the average covariance was the highest 
     																	// since the start of the simulation (used in the calculation of stressed VaR and ES)
+    private FactorCovariance.Estimate factorCovariance = null;          // current covariances, if the market uses a factor model; null until the window is full
+    private FactorCovariance.Estimate maxFactorCovariance = null;       // covariances when the total variance was the highest, if the market uses a factor model
     
 	private DoubleTimeSeries tsVolatilityIndex;       // average of volatility over all assets (used to update the VaR limit)
 	private double volatilityIndex_MA_t = 0;          // historical mean of volatility index over a window
@@ -116,6 +154,15 @@ public class Trader extends Agent {
     }
 
 	public Trader(String label) {
+		this(label, DEFAULT_RISK_MODEL);
+	}
+	
+	/**
+	 * @param label the label of the trader
+	 * @param riskModel the risk model of the trader; if it is not active, the trader allocates no 
+	 * risk state (see {@link RiskModel})
+	 */
+	public Trader(String label, RiskModel riskModel) {
 		super();
 //		setID();
 		
@@ -130,28 +177,32 @@ public class Trader extends Agent {
 		
 		this.label = label;
 		
-		this.tsVar_preTrade = new DoubleTimeSeries();
-		this.tsVar_postTrade = new DoubleTimeSeries();
-		this.tsStressedVar_postTrade = new DoubleTimeSeries();
-		this.portfolioVarReductions = new TradingPortfolio();
-		this.tsVarSelloff =  new HashMap<String, DoubleTimeSeries>();
-
-		this.tsEs_preTrade = new DoubleTimeSeries();
-		this.tsEs_postTrade = new DoubleTimeSeries();
-		this.tsStressedEs_postTrade = new DoubleTimeSeries();
-		this.portfolioEsReductions = new TradingPortfolio();
-		this.tsEsSelloff =  new HashMap<String, DoubleTimeSeries>();
-
-		this.maMeanReturns_previous_tick = new HashMap<String, Double>();
-		this.maCovarianceReturns_previous_tick = new HashMap<String, HashMap<String, Double>>();
-		this.maMeanReturns_current_tick = new HashMap<String, Double>();
-		this.maCovarianceReturns_current_tick = new HashMap<String, HashMap<String, Double>>();
-		this.firstMACalculation = new HashMap<String, Boolean>();
+		this.riskModel = riskModel;
 		
-		this.maxCovariances = new HashMap<String, HashMap<String, Double>>();
+		if (riskModel.isActive()) {
+			this.tsVar_preTrade = new DoubleTimeSeries();
+			this.tsVar_postTrade = new DoubleTimeSeries();
+			this.tsStressedVar_postTrade = new DoubleTimeSeries();
+			this.portfolioVarReductions = new TradingPortfolio();
+			this.tsVarSelloff =  new HashMap<String, DoubleTimeSeries>();
+
+			this.tsEs_preTrade = new DoubleTimeSeries();
+			this.tsEs_postTrade = new DoubleTimeSeries();
+			this.tsStressedEs_postTrade = new DoubleTimeSeries();
+			this.portfolioEsReductions = new TradingPortfolio();
+			this.tsEsSelloff =  new HashMap<String, DoubleTimeSeries>();
+
+			this.maMeanReturns_previous_tick = new HashMap<String, Double>();
+			this.maCovarianceReturns_previous_tick = new HashMap<String, HashMap<String, Double>>();
+			this.maMeanReturns_current_tick = new HashMap<String, Double>();
+			this.maCovarianceReturns_current_tick = new HashMap<String, HashMap<String, Double>>();
+			this.firstMACalculation = new HashMap<String, Boolean>();
 		
-		this.tsVolatilityIndex = new DoubleTimeSeries();
-		this.tsVarLimit = new DoubleTimeSeries();
+			this.maxCovariances = new HashMap<String, HashMap<String, Double>>();
+		
+			this.tsVolatilityIndex = new DoubleTimeSeries();
+			this.tsVarLimit = new DoubleTimeSeries();
+		}
 		
 		this.portfolio.setTraderId(label);
 		
@@ -182,6 +233,8 @@ public class Trader extends Agent {
         for (String secId_1 : secIds) {
             portfolio.newSecurity(secId_1);
             
+            if (!riskModel.isActive()) continue;     // no risk state
+            
         	portfolioVarReductions.newSecurity(secId_1);
         	tsVarSelloff.put(secId_1, new DoubleTimeSeries());
         	portfolioEsReductions.newSecurity(secId_1);
@@ -201,13 +254,144 @@ public class Trader extends Agent {
         this.volWindow = volWindow;
     }
     
+    /**
+     * Get the volatility window
+     */
+    public int getVolWindow() {
+        return volWindow;
+    }
+    
+    /**
+     * Compute the VaR and ES of this trader in a batch, see {@link PortfolioRiskBatch#add(Trader)}. 
+     * The covariances are then those of the first trader of the batch, which has the same window; 
+     * the other traders no longer keep their own.
+     * 
+     * @param riskBatch the batch
+     * @param index the index of the trader in the batch
+     */
+    public void setRiskBatch(PortfolioRiskBatch riskBatch, int index) {
+        this.riskBatch = riskBatch;
+        this.riskBatchIndex = index;
+        
+        if (index > 0) {
+            maCovarianceReturns_current_tick.clear();
+            maCovarianceReturns_previous_tick.clear();
+            maxCovariances.clear();
+        }
+    }
+    
+    /**
+     * @return the batch that computes the VaR and ES of this trader, or null
+     */
+    public PortfolioRiskBatch getRiskBatch() {
+        return riskBatch;
+    }
+    
+    /**
+     * @return the tick at which {@link #prepareOrders()} was last called, -1 before the first call
+     */
+    public int getPreparedTick() {
+        return preparedTick;
+    }
+    
+    /**
+     * Set the number of ticks between the actions of the trader, when the simulator schedules the 
+     * traders by their wake-up times (e.g. a value fund that trades once a day, among trend followers 
+     * that trade at every intraday tick). In the ticks in between, the trader holds its positions; 
+     * see {@link #prepareOrders()}.
+     * 
+     * @param wakeUpInterval the number of ticks, >= 1
+     */
+    public void setWakeUpInterval(int wakeUpInterval) {
+        Assertion.assertStrict(wakeUpInterval >= 1, Level.ERR, "The wake-up interval of trader '" + label + "' needs to be '>= 1'");
+        
+        this.wakeUpInterval = wakeUpInterval;
+    }
+    
+    public int getWakeUpInterval() {
+        return wakeUpInterval;
+    }
+    
+    /**
+     * Set the risk model of the trader, see {@link RiskModel}. An inactive model releases the risk 
+     * state of the trader, which then cannot take an active model again.
+     * 
+     * @param riskModel the risk model; needs to be set before the trader first trades
+     */
+    public void setRiskModel(RiskModel riskModel) {
+        Assertion.assertStrict(preparedTick < 0, Level.ERR, "The risk model of trader '" + label + "' needs to be set before it trades");
+        Assertion.assertStrict(!riskModel.isActive() || this.riskModel.isActive(), Level.ERR, "Trader '" + label + 
+                "' was created without risk state and cannot take an active risk model");
+        
+        this.riskModel = riskModel;
+        
+        if (riskModel.isActive()) return;
+        
+        tsVar_preTrade = null;
+        tsVar_postTrade = null;
+        tsStressedVar_postTrade = null;
+        portfolioVarReductions = null;
+        tsVarSelloff = null;
+        tsEs_preTrade = null;
+        tsEs_postTrade = null;
+        tsStressedEs_postTrade = null;
+        portfolioEsReductions = null;
+        tsEsSelloff = null;
+        maMeanReturns_previous_tick = null;
+        maCovarianceReturns_previous_tick = null;
+        maMeanReturns_current_tick = null;
+        maCovarianceReturns_current_tick = null;
+        firstMACalculation = null;
+        maxCovariances = null;
+        tsVolatilityIndex = null;
+        tsVarLimit = null;
+    }
+    
+    public RiskModel getRiskModel() {
+        return riskModel;
+    }
+    
+    /**
+     * Keep only the most recent values of the time series of this trader: positions, VaR and ES, 
+     * sell-offs and the VaR limit. The volatility index keeps at least the values needed for its 
+     * historical mean. See {@link DoubleTimeSeries#setHistoryLimit(int)}.
+     * 
+     * @param limit the number of values to keep; the trader itself only looks back one tick, so a 
+     * limit of 2 is sufficient unless the series are read by other objects
+     */
+    public void setHistoryLimit(int limit) {
+        portfolio.setHistoryLimit(limit);
+        
+        if (!riskModel.isActive()) return;
+        
+        portfolioVarReductions.setHistoryLimit(limit);
+        portfolioEsReductions.setHistoryLimit(limit);
+        
+        tsVar_preTrade.setHistoryLimit(limit);
+        tsVar_postTrade.setHistoryLimit(limit);
+        tsStressedVar_postTrade.setHistoryLimit(limit);
+        tsEs_preTrade.setHistoryLimit(limit);
+        tsEs_postTrade.setHistoryLimit(limit);
+        tsStressedEs_postTrade.setHistoryLimit(limit);
+        tsVarLimit.setHistoryLimit(limit);
+        tsVolatilityIndex.setHistoryLimit(Math.max(limit, WINDOW_VOLATILITY_INDEX_MA + 1));
+        
+        for (DoubleTimeSeries ts : tsVarSelloff.values())
+            ts.setHistoryLimit(limit);
+        
+        for (DoubleTimeSeries ts : tsEsSelloff.values())
+            ts.setHistoryLimit(limit);
+    }
+    
     /**
      * Set the VaR limit
      */
     public void setVarLimit(double varLimit) {    	
 
         this.varLimit = varLimit;
-        this.tsVarLimit.add(0, varLimit);
+        
+        if (riskModel.isActive())
+            this.tsVarLimit.add(0, varLimit);
     }
     
     /**
@@ -277,6 +461,14 @@ public class Trader extends Agent {
      * Get the time series of variable VaR limit
      */
     public DoubleTimeSeries getTsVarLimit() { 
+        if (!riskModel.isActive()) {
+            DoubleTimeSeries tsConstantLimit = new DoubleTimeSeries();
+            
+            tsConstantLimit.add(0, varLimit);
+            
+            return tsConstantLimit;
+        }
+        
     	return tsVarLimit;
     }
     
@@ -285,56 +477,56 @@ public class Trader extends Agent {
      * Get the time series of VaR (calculated before any trade is done)
      */
     public DoubleTimeSeries getTsVarPreTrade() { 
-    	return tsVar_preTrade;
+    	return riskModel.isActive() ? tsVar_preTrade : zeros();
     }
 
     /**
      * Get the time series of ES (calculated before any trade is done)
      */
     public DoubleTimeSeries getTsEsPreTrade() { 
-    	return tsEs_preTrade;
+    	return riskModel.isActive() ? tsEs_preTrade : zeros();
     }
 
     /**
      * Get the time series of VaR (calculated after the trade is done)
      */
     public DoubleTimeSeries getTsVarPostTrade() { 
-    	return tsVar_postTrade;
+    	return riskModel.isActive() ? tsVar_postTrade : zeros();
     }
     
     /**
      * Get the time series of ES (calculated after the trade is done)
      */
     public DoubleTimeSeries getTsEsPostTrade() { 
-    	return tsEs_postTrade;
+    	return riskModel.isActive() ? tsEs_postTrade : zeros();
     }
 
     /**
      * Get the time series of stressed VaR (calculated after the trade is done)
      */
     public DoubleTimeSeries getTsStressedVarPostTrade() { 
-    	return tsStressedVar_postTrade;
+    	return riskModel.isActive() ? tsStressedVar_postTrade : zeros();
     }
     
     /**
      * Get the time series of stressed ES (calculated after the trade is done)
      */
     public DoubleTimeSeries getTsStressedEsPostTrade() { 
-    	return tsStressedEs_postTrade;
+    	return riskModel.isActive() ? tsStressedEs_postTrade : zeros();
     }
     
     /**
      * Get the time series of sell-off orders due to VaR
      */
     public HashMap<String, DoubleTimeSeries> getTsVarSelloff() { 
-    	return tsVarSelloff;
+    	return riskModel.isActive() ? tsVarSelloff : zeroSelloffs();
     }
         
     /**
      * Get the time series of sell-off orders due to ES
      */
     public HashMap<String, DoubleTimeSeries> getTsEsSelloff() { 
-    	return tsEsSelloff;
+    	return riskModel.isActive() ? tsEsSelloff : zeroSelloffs();
     }
     
     /**
@@ -346,27 +538,36 @@ public class Trader extends Agent {
 
     @ScheduledMethod(start = 0, interval = 1, shuffle = false)
     public void actions() {
+        if (isCohortMember) return;     // the representative of the cohort trades for this trader
+        
         placeOrders();
     }
     
-	public void placeOrders() {
+	/**
+	 * Call the risk model before trading (e.g. to update the covariances and compute the pre-trade 
+	 * VaR and ES), and let the strategies set the positions of the current tick. If the trader has 
+	 * been idle since its last action (see {@link #setWakeUpInterval(int)}), it first holds its 
+	 * positions over the ticks it missed. Called by {@link #placeOrders()}, or ahead of it by the 
+	 * risk batch of the trader (see {@link PortfolioRiskBatch}), which needs the positions of all 
+	 * its traders. The trader's orders do not depend on those of the other traders in the same 
+	 * tick, so the order of the calls does not matter.
+	 */
+	public void prepareOrders() {
 		
 		int currentTick = (int) market.currentTick();
 		ArrayList<String> secIds = market.getMarketMaker().getSecIds();
 		
-		if (useVar == UseVar.TRUE) {
-			this.updateCovariances();     // Update the covariances with current prices to calculate the VaR
-			this.updateMaxCovariances();  // Update the maximum covariances to calculate the stressed VaR
-			tsVar_preTrade.add(currentTick, portfolio.preTradeValueAtRisk(market, market.getConfLevelVar()));  // Value at risk with current price, before any trade is done (-> using positions at t-1, prices at t)
-		}
+		if ((preparedTick >= 0) && (currentTick > preparedTick + 1))
+			holdPositions(preparedTick + 1, currentTick);
+		
+		if (riskModel.isActive())
+			riskModel.beforeTrading(this);    // e.g. update the covariances and compute the pre-trade VaR and ES
 		
-		if (useEs == UseEs.TRUE) {
-			this.updateCovariances();     // Update the covariances with current prices to calculate the ES
-			this.updateMaxCovariances();  // Update the maximum covariances to calculate the stressed ES
-			tsEs_preTrade.add(currentTick, portfolio.preTradeShortfallParametricNormal(market, market.getConfLevelEs()));  // ES with current price, before any trade is done (-> using positions at t-1, prices at t)
-		}
-
 		ArrayList<Order> completeOrders = new ArrayList<Order>();  // Store the orders in all the assets
+		TraceRecorder tracer = TraceRecorder.current();
+		
+		if (tracer != null)
+			tracer.setCurrentAgent(tracer.agent(label));   // the strategies record their decisions for the trader
 
 		// Calculate the desired positions (using the trading strategy)		
 		for (TradingStrategy strategy : strategies.values()) {
@@ -378,132 +579,121 @@ public class Trader extends Agent {
 			}
 		}
 
+		if (riskModel.isActive())
+			addRiskDefaults(currentTick, secIds);
+		
+		pendingOrders = completeOrders;
+		preparedTick = currentTick;
+	}
+	
+	/**
+	 * Set a default (zero) value for the reductions, sell-offs and post-trade risk measures, which 
+	 * are replaced if the risk model reduces the positions
+	 */
+	private void addRiskDefaults(int tick, ArrayList<String> secIds) {
 		for (String secId : secIds) {   // Set a default (zero) value for the portfolio reductions, to avoid exceptions if no VaR-reduction is done 
-    		portfolioVarReductions.getTsPosition(secId).add(currentTick, 0.0);
-    		tsVarSelloff.get(secId).add(currentTick, 0.0);
-    		tsVar_postTrade.add(currentTick, 0.0);
-    		tsStressedVar_postTrade.add(currentTick, 0.0);
-
-    		portfolioEsReductions.getTsPosition(secId).add(currentTick, 0.0);
-    		tsEsSelloff.get(secId).add(currentTick, 0.0);
-    		tsEs_postTrade.add(currentTick, 0.0);
-    		tsStressedEs_postTrade.add(currentTick, 0.0);
+    		portfolioVarReductions.getTsPosition(secId).add(tick, 0.0);
+    		tsVarSelloff.get(secId).add(tick, 0.0);
+    		tsVar_postTrade.add(tick, 0.0);
+    		tsStressedVar_postTrade.add(tick, 0.0);
+
+    		portfolioEsReductions.getTsPosition(secId).add(tick, 0.0);
+    		tsEsSelloff.get(secId).add(tick, 0.0);
+    		tsEs_postTrade.add(tick, 0.0);
+    		tsStressedEs_postTrade.add(tick, 0.0);
 		}
-
-		
-		if (useVar == UseVar.TRUE) {
-			// Update the VaR limit
-
-			int windowVolatilityIndexMA = 200;
-			this.updateVarLimit(windowVolatilityIndexMA);
-
-			// Calculate the total VaR (= normal VaR + stressed VaR)
-
-			double postTradeVar = portfolio.valueAtRisk(market, market.getConfLevelVar());  // Value at risk of current portfolio (-> using positions at t, prices at t)
-			
-			double stressedVar = 0;			
-			if (useStressedVar == UseStressedVar.TRUE)
-				stressedVar = portfolio.stressedValueAtRisk(market, market.getConfLevelVar());  // Stressed VaR of current portfolio
-			
-			double totalVar = postTradeVar + stressedVar;
-			tsVar_postTrade.add(currentTick, postTradeVar);
-			tsStressedVar_postTrade.add(currentTick, stressedVar);
-			
-			// Check if VaR level [using the just-calculated positions] is below the limit
+	}
+	
+	/**
+	 * Hold the positions over the ticks at which the trader was idle, with the P&L they made. The 
+	 * reductions, sell-offs and risk measures are zero in these ticks, and the volatility index and 
+	 * VaR limit keep their last values; the covariances are computed afresh at the next update.
+	 * 
+	 * @param fromTick the first idle tick, >= 1
+	 * @param toTick the tick at which the trader acts again
+	 */
+	private void holdPositions(int fromTick, int toTick) {
+		ArrayList<String> secIds = market.getMarketMaker().getSecIds();
+		HashSet<String> ownSecIds = getSecIds();
 		
-			if (totalVar > tsVarLimit.get(currentTick)) {
-				ArrayList<Order> varReductionOrders = varRebalance(totalVar, tsVarLimit.get(currentTick));
-				for (Order order : varReductionOrders) {
+		for (int tick = fromTick; tick < toTick; tick++) {
+			for (String secId : ownSecIds) {
+				DoubleTimeSeries tsPos = portfolio.getTsPosition(secId);
 				
-					// Calculate if the agent is forced to sell off due to VaR (used for plots)
-					String shareId = order.getSecId();
-					double var_reduction_order = order.getOrder();
-					double desired_order;
-				
-					if (currentTick > 0)   // 'recover' the order desired according to the trading strategy 				
-						desired_order = this.getPortfolio().getTsPosition(shareId).get(currentTick) - this.getPortfolio().getTsPosition(shareId).get(currentTick - 1);
-					else
-						desired_order = this.getPortfolio().getTsPosition(shareId).get(currentTick);
-
-					if (Math.abs(var_reduction_order) > Math.abs(desired_order)) {  // The agent would like to buy (sell) and is forced to sell (buy) due to VaR
-					    tsVarSelloff.get(shareId).add(currentTick, var_reduction_order + desired_order);
-			    	}
-				
-					// Add the reduction orders to the complete array of orders
-					completeOrders.add(order);					
-					portfolio.addToPositions(order);   // Update positions in the trader's portfolio				
-					portfolioVarReductions.addToPositions(order);
-				}
+				tsPos.add(tick, tsPos.get(tick - 1));
 			}
-		}
-		
-		if (useEs == UseEs.TRUE) {
-
-			// Calculate the total ES (= normal ES + stressed ES)
-
-			double postTradeEs = portfolio.expectedShortfallParametricNormal(market, market.getConfLevelEs());
 			
-//			if (currentTick == 3000) {
-//				System.out.println("agent " + this.label + "ES = " + portfolio.expectedShortfallParametricNormal(market, market.getConfLevelEs()) + " / stressed ES = " + portfolio.stressedExpectedShortfall(market, market.getConfLevelEs()) + "\n");
-//			}
-						
-			double stressedEs = 0;
-			if (useStressedEs == UseStressedEs.TRUE)
-				stressedEs = portfolio.stressedExpectedShortfall(market, market.getConfLevelEs());  // Stressed ES of current portfolio
+			accumulateWealth(tick, secIds);
 			
-			//double totalEs = postTradeEs + stressedEs;  // This implementation copies Basel II.5 with stressed VaR
-			double totalEs = stressedEs;
-			if (postTradeEs != 0)
-				totalEs = postTradeEs * Math.max(1, stressedEs/postTradeEs);  // This implementation follows the FRTB
+			if (!riskModel.isActive()) continue;
 			
-			tsEs_postTrade.add(currentTick, postTradeEs);
-			tsStressedEs_postTrade.add(currentTick, stressedEs);
+			addRiskDefaults(tick, secIds);
 			
-			// Check if ES level [using the just-calculated positions] is below the limit
-		
-			if (totalEs > esLimit) {
-				ArrayList<Order> esReductionOrders = esRebalance(totalEs, esLimit);
-				for (Order order : esReductionOrders) {
-				
-					// Calculate if the agent is forced to sell off due to ES (used for plots)
-					String shareId = order.getSecId();
-					double es_reduction_order = order.getOrder();
-					double desired_order;
-				
-					if (currentTick > 0)   // 'recover' the order desired according to the trading strategy 				
-						desired_order = this.getPortfolio().getTsPosition(shareId).get(currentTick) - this.getPortfolio().getTsPosition(shareId).get(currentTick - 1);
-					else
-						desired_order = this.getPortfolio().getTsPosition(shareId).get(currentTick);
-
-					if (Math.abs(es_reduction_order) > Math.abs(desired_order)) {  // The agent would like to buy (sell) and is forced to sell (buy) due to ES
-					    tsEsSelloff.get(shareId).add(currentTick, es_reduction_order + desired_order);
-			    	}
-				
-					// Add the reduction orders to the complete array of orders
-					completeOrders.add(order);					
-					portfolio.addToPositions(order);   // Update positions in the trader's portfolio				
-					portfolioEsReductions.addToPositions(order);
-				}
+			if (tsVar_preTrade.size() == tick) tsVar_preTrade.add(tick, 0.0);
+			if (tsEs_preTrade.size() == tick) tsEs_preTrade.add(tick, 0.0);
+			if (tsVarLimit.size() == tick) tsVarLimit.add(tick, tsVarLimit.get(tick - 1));
+			
+			if (tsVolatilityIndex.size() == tick) {
+				tsVolatilityIndex.add(tick, tsVolatilityIndex.get(tick - 1));
+				updateVolatilityIndexMA(tick, WINDOW_VOLATILITY_INDEX_MA);
 			}
 		}
 		
+		if (riskModel.isActive() && (firstMACalculation != null))
+			for (String secId : firstMACalculation.keySet())
+				firstMACalculation.put(secId, true);    // the incremental update needs the covariances of the previous tick
+	}
+	
+	/**
+	 * Hold the positions up to the tick, if the trader has been idle since its last action, so that 
+	 * its time series are complete at the end of a run in which it does not act at the last ticks
+	 * 
+	 * @param tick the last tick of the run
+	 */
+	public void catchUp(int tick) {
+		if ((preparedTick < 0) || (tick <= preparedTick)) return;
+		
+		holdPositions(preparedTick + 1, tick + 1);
+		preparedTick = tick;
+	}
+	
+	/**
+	 * Add the P&L of the tick to the accumulated wealth
+	 */
+	private void accumulateWealth(int tick, ArrayList<String> secIds) {
+		deltaWealth_t = deltaWealth_t_1;
+		
+		for (String secId : secIds) {
+    		deltaWealth_t = deltaWealth_t + this.portfolio.getTsPosition(secId).get(tick - 1) * (market.getPrices(secId).get(tick) - market.getPrices(secId).get(tick - 1));
+    	}
+		deltaWealth_t_1 = deltaWealth_t;
+	}
+	
+	public void placeOrders() {
+		
+		int currentTick = (int) market.currentTick();
+		ArrayList<String> secIds = market.getMarketMaker().getSecIds();
+		
+		if (riskBatch != null)
+			riskBatch.evaluate(currentTick);    // prepares the orders of all its traders, the first one first
+		else
+			prepareOrders();
+		
+		ArrayList<Order> completeOrders = pendingOrders;
+		
+		if (riskModel.isActive())
+			riskModel.afterTrading(this, completeOrders);    // may reduce the positions to meet the risk limits
 		
 		// Send all orders to the market maker
 		for (Order order : completeOrders) {
 			if (Math.abs(order.getOrder()) > Double.MIN_VALUE) {    // only add an order if it is different from zero, to avoid clogging the market maker's order book with empty orders
-				marketMaker.placeOrder(this, order.getSecId(), order.getOrder());
+				marketMaker.placeOrder(this, order.getSecId(), orderWeight * order.getOrder());
 			} 
 		}
 		
 		// Calculate the accumulated P&L
-		if (currentTick >= 1) {
-			deltaWealth_t = deltaWealth_t_1;
-			
-			for (String secId : secIds) {
-	    		deltaWealth_t = deltaWealth_t + this.portfolio.getTsPosition(secId).get(currentTick - 1) * (market.getPrices(secId).get(currentTick) - market.getPrices(secId).get(currentTick - 1));
-	    	}
-			deltaWealth_t_1 = deltaWealth_t;
-		}
+		if (currentTick >= 1)
+			accumulateWealth(currentTick, secIds);
 		
 		// Check if the agent has failed in the current tick
 		// TODO: I leave a prudential warming period of 400 ticks, but this should be extracted
@@ -520,7 +710,10 @@ public class Trader extends Agent {
 			this.failureTick = currentTick;
 		}
 	    		
-		logger.trace("t = {} | {}", market.currentTick(), this.toString());   // TODO information not meaningful
+		TraceRecorder tracer = TraceRecorder.current();
+		
+		if (tracer != null)
+			tracer.record(currentTick, TRACE_WEALTH, tracer.agent(label), TraceRecorder.NONE, deltaWealth_t, portfolioValue, (state == State.DEAD) ? 1 : 0);
 		
 		//-------------
 		
@@ -536,6 +729,203 @@ public class Trader extends Agent {
 	}
 
 	
+	/**
+	 * Update the covariances and compute the pre-trade VaR, with the positions at t-1 and the prices 
+	 * at t. Called by {@link ParametricVarModel} before the strategies trade.
+	 */
+	public void updatePreTradeVar() {
+		int currentTick = (int) market.currentTick();
+		
+		if (ownsCovariances()) {
+			this.updateCovariances();     // Update the covariances with current prices to calculate the VaR
+			this.updateMaxCovariances();  // Update the maximum covariances to calculate the stressed VaR
+		}
+		
+		if (riskBatch == null)            // otherwise taken from the batch in applyVarLimit()
+			tsVar_preTrade.add(currentTick, portfolio.preTradeValueAtRisk(market, market.getConfLevelVar()));  // Value at risk with current price, before any trade is done (-> using positions at t-1, prices at t)
+		else if ((riskBatchIndex == 0) && PortfolioRiskBatch.usesVarAndEs(this))
+			riskBatch.evaluatePreTradeVar(currentTick);    // before the covariances are updated again for the ES
+	}
+	
+	/**
+	 * Update the covariances and compute the pre-trade ES, with the positions at t-1 and the prices 
+	 * at t. Called by {@link FrtbEsModel} before the strategies trade.
+	 */
+	public void updatePreTradeEs() {
+		int currentTick = (int) market.currentTick();
+		
+		if (ownsCovariances()) {
+			this.updateCovariances();     // Update the covariances with current prices to calculate the ES
+			this.updateMaxCovariances();  // Update the maximum covariances to calculate the stressed ES
+		}
+		
+		if (riskBatch == null)            // otherwise taken from the batch in applyEsLimit()
+			tsEs_preTrade.add(currentTick, portfolio.preTradeShortfallParametricNormal(market, market.getConfLevelEs()));  // ES with current price, before any trade is done (-> using positions at t-1, prices at t)
+	}
+	
+	/**
+	 * @return false if the trader uses the covariances of the first trader of its risk batch
+	 */
+	private boolean ownsCovariances() {
+		return (riskBatch == null) || (riskBatchIndex == 0);
+	}
+	
+	/**
+	 * Update the VaR limit, compute the VaR (plus the stressed VaR, as in Basel 2.5) of the positions 
+	 * at t, and reduce the positions if the VaR exceeds the limit. Called by {@link ParametricVarModel} 
+	 * after the strategies trade.
+	 * 
+	 * @param orders the orders of the trader at t, to which the reduction orders are added
+	 */
+	public void applyVarLimit(ArrayList<Order> orders) {
+		int currentTick = (int) market.currentTick();
+		
+		if (riskBatch != null)    // the batch was evaluated when the orders were prepared
+			tsVar_preTrade.add(currentTick, portfolio.valueAtRisk(riskBatch.getPreTradeValue(riskBatchIndex, currentTick), 
+					riskBatch.getPreTradeVarVariance(riskBatchIndex, currentTick), market.getConfLevelVar()));
+		
+		// Update the VaR limit
+
+		this.updateVarLimit(WINDOW_VOLATILITY_INDEX_MA);
+
+		// Calculate the total VaR (= normal VaR + stressed VaR)
+
+		double postTradeVar;
+		double stressedVar = 0;
+		
+		if (riskBatch == null) {
+			postTradeVar = portfolio.valueAtRisk(market, market.getConfLevelVar());  // Value at risk of current portfolio (-> using positions at t, prices at t)
+			
+			if (useStressedVar == UseStressedVar.TRUE)
+				stressedVar = portfolio.stressedValueAtRisk(market, market.getConfLevelVar());  // Stressed VaR of current portfolio
+		}
+		else {
+			double portfolioValue = riskBatch.getPostTradeValue(riskBatchIndex, currentTick);
+			
+			postTradeVar = portfolio.valueAtRisk(portfolioValue, riskBatch.getPostTradeVariance(riskBatchIndex, currentTick), market.getConfLevelVar());
+			
+			if (useStressedVar == UseStressedVar.TRUE)
+				stressedVar = portfolio.valueAtRisk(portfolioValue, riskBatch.getStressedVariance(riskBatchIndex, currentTick), market.getConfLevelVar());
+		}
+		
+		double totalVar = postTradeVar + stressedVar;
+		tsVar_postTrade.add(currentTick, postTradeVar);
+		tsStressedVar_postTrade.add(currentTick, stressedVar);
+		
+		TraceRecorder tracer = TraceRecorder.current();
+		
+		if (tracer != null)
+			tracer.record(currentTick, TRACE_VAR, tracer.agent(label), TraceRecorder.NONE, postTradeVar, stressedVar, tsVarLimit.get(currentTick));
+		
+		// Check if VaR level [using the just-calculated positions] is below the limit
+	
+		if (totalVar > tsVarLimit.get(currentTick))
+			reducePositions(varRebalance(totalVar, tsVarLimit.get(currentTick)), orders, portfolioVarReductions, tsVarSelloff);
+	}
+	
+	/**
+	 * Compute the ES of the positions at t (times max(1, stressed ES / ES) for stressed ES, as in the 
+	 * FRTB), and reduce the positions if the ES exceeds the limit. Called by {@link FrtbEsModel} after 
+	 * the strategies trade.
+	 * 
+	 * @param orders the orders of the trader at t, to which the reduction orders are added
+	 */
+	public void applyEsLimit(ArrayList<Order> orders) {
+		int currentTick = (int) market.currentTick();
+		
+		if (riskBatch != null)
+			tsEs_preTrade.add(currentTick, portfolio.expectedShortfallParametricNormal(riskBatch.getPreTradeValue(riskBatchIndex, currentTick), 
+					riskBatch.getPreTradeVariance(riskBatchIndex, currentTick), market.getConfLevelEs()));
+		
+		// Calculate the total ES (= normal ES + stressed ES)
+
+		double postTradeEs;
+		double stressedEs = 0;
+		
+		if ((riskBatch == null) || (reducedTick == currentTick)) {    // the batch has the positions before the reduction
+			postTradeEs = portfolio.expectedShortfallParametricNormal(market, market.getConfLevelEs());
+			
+			if (useStressedEs == UseStressedEs.TRUE)
+				stressedEs = portfolio.stressedExpectedShortfall(market, market.getConfLevelEs());  // Stressed ES of current portfolio
+		}
+		else {
+			double portfolioValue = riskBatch.getPostTradeValue(riskBatchIndex, currentTick);
+			
+			postTradeEs = portfolio.expectedShortfallParametricNormal(portfolioValue, riskBatch.getPostTradeVariance(riskBatchIndex, currentTick), market.getConfLevelEs());
+			
+			if (useStressedEs == UseStressedEs.TRUE)
+				stressedEs = portfolio.expectedShortfallParametricNormal(portfolioValue, riskBatch.getStressedVariance(riskBatchIndex, currentTick), market.getConfLevelEs());
+		}
+		
+		//double totalEs = postTradeEs + stressedEs;  // This implementation copies Basel II.5 with stressed VaR
+		double totalEs = stressedEs;
+		if (postTradeEs != 0)
+			totalEs = postTradeEs * Math.max(1, stressedEs/postTradeEs);  // This implementation follows the FRTB
+		
+		tsEs_postTrade.add(currentTick, postTradeEs);
+		tsStressedEs_postTrade.add(currentTick, stressedEs);
+		
+		TraceRecorder tracer = TraceRecorder.current();
+		
+		if (tracer != null)
+			tracer.record(currentTick, TRACE_ES, tracer.agent(label), TraceRecorder.NONE, postTradeEs, stressedEs, esLimit);
+		
+		// Check if ES level [using the just-calculated positions] is below the limit
+	
+		if (totalEs > esLimit)
+			reducePositions(esRebalance(totalEs, esLimit), orders, portfolioEsReductions, tsEsSelloff);
+	}
+	
+	/**
+	 * Reduce the positions with the orders of a risk model, which are sent to the market maker 
+	 * together with those of the strategies. For models other than the built-in VaR and ES, which 
+	 * also record their reductions and the sell-offs they force.
+	 * 
+	 * @param reductionOrders the orders that reduce the positions at t
+	 * @param orders the orders of the trader at t
+	 */
+	public void reducePositions(ArrayList<Order> reductionOrders, ArrayList<Order> orders) {
+		for (Order order : reductionOrders) {
+			orders.add(order);
+			portfolio.addToPositions(order);
+		}
+		
+		reducedTick = (int) market.currentTick();
+	}
+	
+	private void reducePositions(ArrayList<Order> reductionOrders, ArrayList<Order> orders, TradingPortfolio reductions, HashMap<String, DoubleTimeSeries> selloffs) {
+		int currentTick = (int) market.currentTick();
+		TraceRecorder tracer = TraceRecorder.current();
+		
+		for (Order order : reductionOrders) {
+		
+			// Calculate if the agent is forced to sell off due to the limit (used for plots)
+			String shareId = order.getSecId();
+			double reduction_order = order.getOrder();
+			double desired_order;
+		
+			if (currentTick > 0)   // 'recover' the order desired according to the trading strategy 				
+				desired_order = this.getPortfolio().getTsPosition(shareId).get(currentTick) - this.getPortfolio().getTsPosition(shareId).get(currentTick - 1);
+			else
+				desired_order = this.getPortfolio().getTsPosition(shareId).get(currentTick);
+
+			if (Math.abs(reduction_order) > Math.abs(desired_order)) {  // The agent would like to buy (sell) and is forced to sell (buy) due to the limit
+			    selloffs.get(shareId).add(currentTick, reduction_order + desired_order);
+	    	}
+		
+			// Add the reduction orders to the complete array of orders
+			orders.add(order);					
+			portfolio.addToPositions(order);   // Update positions in the trader's portfolio				
+			reductions.addToPositions(order);
+			
+			if (tracer != null)
+				tracer.record(currentTick, TRACE_REDUCTION, tracer.agent(label), tracer.asset(shareId), reduction_order, desired_order, 
+						portfolio.getTsPosition(shareId).get(currentTick));
+		}
+		
+		reducedTick = currentTick;
+	}
+	
 	/*
 	 * Update the current covariances of the log-returns of all assets. 
 	 */
@@ -544,6 +934,13 @@ public class Trader extends Agent {
 		ArrayList<String> secIds = market.getMarketMaker().getSecIds();
 		int currentTick = (int) market.currentTick(); 
 		
+		if (market.getCovarianceModel() == CovarianceModel.FACTOR) {     // the factor model is estimated once per tick for all traders
+			if (currentTick >= this.volWindow)
+				factorCovariance = market.getFactorCovariance(this.volWindow).update();
+			
+			return;
+		}
+		
 		if (currentTick >= this.volWindow) {
 			for (String secId_1 : secIds) {
 				
@@ -551,8 +948,7 @@ public class Trader extends Agent {
 					this.maMeanReturns_current_tick.put(secId_1, StatsTimeSeries.fullMA(market.getLogReturns(secId_1), this.volWindow));
 					
 					for (String secId_2 : secIds) {
-						this.maCovarianceReturns_current_tick.get(secId_1).put(secId_2, StatsTimeSeries.covariance(market.getLogReturns(secId_1), 
-								market.getLogReturns(secId_2), this.volWindow));
+						this.maCovarianceReturns_current_tick.get(secId_1).put(secId_2, market.getLogReturnCovariance(secId_1, secId_2, this.volWindow));
 					}
 					this.firstMACalculation.put(secId_1, false);
 				}
@@ -592,6 +988,16 @@ public class Trader extends Agent {
 		double avgMaxCovariance = 0; 
 		double avgCurrentCovariance = 0;
 		
+		if (market.getCovarianceModel() == CovarianceModel.FACTOR) {     // the estimates are immutable, so keeping the current one is enough
+			avgMaxCovariance = (maxFactorCovariance == null) ? 0 : maxFactorCovariance.getTotalVariance();
+			avgCurrentCovariance = (factorCovariance == null) ? 0 : factorCovariance.getTotalVariance();
+			
+			if (avgCurrentCovariance > avgMaxCovariance)
+				maxFactorCovariance = factorCovariance;
+			
+			return;
+		}
+		
 		for (String secId : secIds) {  // Average of variances over all assets in the market
 			avgMaxCovariance += maxCovariances.get(secId).get(secId);
 			avgCurrentCovariance += maCovarianceReturns_current_tick.get(secId).get(secId);
@@ -621,19 +1027,11 @@ public class Trader extends Agent {
 				
 		// Update the volatility index and its historical mean as an indicator of market instability
 		for (String secId : secIds) {
-			volatilityIndex_t += Math.sqrt(maCovarianceReturns_current_tick.get(secId).get(secId));
+			volatilityIndex_t += Math.sqrt(getCurrentCovariance(secId, secId));
 		}
 		volatilityIndex_t = volatilityIndex_t / secIds.size();
 		tsVolatilityIndex.add(currentTick, volatilityIndex_t);
-
-		if (currentTick == windowVolatilityIndexMA) {
-			volatilityIndex_MA_t = StatsTimeSeries.fullMA(tsVolatilityIndex, windowVolatilityIndexMA);
-			volatilityIndex_MA_t_1 = volatilityIndex_MA_t;
-		}
-		else if (currentTick > windowVolatilityIndexMA) {
-			volatilityIndex_MA_t = StatsTimeSeries.incrementalMA(tsVolatilityIndex, windowVolatilityIndexMA, volatilityIndex_MA_t_1);
-			volatilityIndex_MA_t_1 = volatilityIndex_MA_t;
-		}
+		updateVolatilityIndexMA(currentTick, windowVolatilityIndexMA);
 
 		// Update the VaR limit
 		if (variabilityVarLimit != VariabilityVarLimit.CONSTANT && currentTick > windowVolatilityIndexMA) {
@@ -647,6 +1045,21 @@ public class Trader extends Agent {
 		else  // VaR limit is constant, or currentTick <= window
 			tsVarLimit.add(currentTick, varLimit); 
 	}
+	
+	/*
+	 * Update the historical mean of the volatility index with its value at the tick
+	 */
+	
+	private void updateVolatilityIndexMA(int tick, int windowVolatilityIndexMA) {
+		if (tick == windowVolatilityIndexMA) {
+			volatilityIndex_MA_t = StatsTimeSeries.fullMA(tsVolatilityIndex, windowVolatilityIndexMA);
+			volatilityIndex_MA_t_1 = volatilityIndex_MA_t;
+		}
+		else if (tick > windowVolatilityIndexMA) {
+			volatilityIndex_MA_t = StatsTimeSeries.incrementalMA(tsVolatilityIndex, windowVolatilityIndexMA, volatilityIndex_MA_t_1);
+			volatilityIndex_MA_t_1 = volatilityIndex_MA_t;
+		}
+	}
 
 	
 	/*
@@ -712,21 +1125,89 @@ public class Trader extends Agent {
 	    return useEs;
 	}
 	
+	public UseStressedVar getUseStressedVar() {
+	    return useStressedVar;
+	}
+	
+	public UseStressedEs getUseStressedEs() {
+	    return useStressedEs;
+	}
+	
 	public TradingPortfolio getPortfolio() {
 	    return portfolio;
 	}
 		
 	public TradingPortfolio getPortfolioVarReductions() {
-	    return portfolioVarReductions;
+	    return riskModel.isActive() ? portfolioVarReductions : zeroReductions();
 	}
 	
 	public TradingPortfolio getPortfolioEsReductions() {
-	    return portfolioEsReductions;
+	    return riskModel.isActive() ? portfolioEsReductions : zeroReductions();
+	}
+	
+	/**
+	 * @return the market in which the trader operates
+	 */
+	public ShareMarket getMarket() {
+	    return market;
+	}
+	
+	/**
+	 * @return the securities of the trader's strategies
+	 */
+	public HashSet<String> getSecIds() {
+	    HashSet<String> secIds = new HashSet<String>();
+	    
+	    for (TradingStrategy strategy : strategies.values())
+	        secIds.addAll(strategy.getSecIds());
+	    
+	    return secIds;
+	}
+	
+	/*
+	 * Zero series in place of the risk series of a trader without risk state, one value per tick 
+	 * traded so far. Created when asked for, i.e. when the results are collected, not during the run.
+	 */
+	
+	private DoubleTimeSeries zeros() {
+	    int numTicks = 0;
+	    
+	    for (String secId : getSecIds())
+	        numTicks = Math.max(numTicks, portfolio.getTsPosition(secId).size());
+	    
+	    DoubleTimeSeries tsZeros = new DoubleTimeSeries();
+	    
+	    tsZeros.fillWithConstants(numTicks, 0.0);
+	    
+	    return tsZeros;
+	}
+	
+	private HashMap<String, DoubleTimeSeries> zeroSelloffs() {
+	    HashMap<String, DoubleTimeSeries> selloffs = new HashMap<String, DoubleTimeSeries>();
+	    
+	    for (String secId : getSecIds())
+	        selloffs.put(secId, zeros());
+	    
+	    return selloffs;
+	}
+	
+	private TradingPortfolio zeroReductions() {
+	    TradingPortfolio reductions = new TradingPortfolio();
+	    
+	    for (String secId : getSecIds()) {
+	        reductions.newSecurity(secId);
+	        reductions.getTsPosition(secId).fillWithConstants(zeros().size(), 0.0);
+	    }
+	    
+	    return reductions;
 	}
 	
 	public void setInitCovariances(double initValue) {
 		Set<String> secIds = market.getTradedShares().keySet();
 		
+		if (!riskModel.isActive()) return;       // no risk state
+		if (market.getCovarianceModel() == CovarianceModel.FACTOR) return;     // the covariances are '0' until the factor model is estimated
+		
 		for (String secId_1 : secIds) {
 			maCovarianceReturns_current_tick.put(secId_1, new HashMap<String, Double>());
 			maCovarianceReturns_previous_tick.put(secId_1, new HashMap<String, Double>());
@@ -741,16 +1222,118 @@ public class Trader extends Agent {
 	}
 	
 	public double getCurrentCovariance(String secId_1, String secId_2) {
+	    if (!riskModel.isActive()) return 0;      // no covariances
+	    
+	    if ((riskBatch != null) && (riskBatchIndex > 0))
+	        return riskBatch.getTrader(0).getCurrentCovariance(secId_1, secId_2);
+	    
+	    if (market.getCovarianceModel() == CovarianceModel.FACTOR)
+	        return (factorCovariance == null) ? 0 : factorCovariance.getCovariance(secId_1, secId_2);
+	    
 	    return maCovarianceReturns_current_tick.get(secId_1).get(secId_2);
 	}
 	
 	public double getMaxCovariance(String secId_1, String secId_2) {
+	    if (!riskModel.isActive()) return 0;      // no covariances
+	    
+	    if ((riskBatch != null) && (riskBatchIndex > 0))
+	        return riskBatch.getTrader(0).getMaxCovariance(secId_1, secId_2);
+	    
+	    if (market.getCovarianceModel() == CovarianceModel.FACTOR)
+	        return (maxFactorCovariance == null) ? 0 : maxFactorCovariance.getCovariance(secId_1, secId_2);
+	    
 	    return maxCovariances.get(secId_1).get(secId_2);
 	}
 	
+	/**
+	 * @param stressed true for the covariances when the total variance was the highest, false for the current ones
+	 * @return the estimate of the factor model of the market, or null if there is none yet
+	 */
+	public FactorCovariance.Estimate getFactorCovariance(boolean stressed) {
+	    if ((riskBatch != null) && (riskBatchIndex > 0))
+	        return riskBatch.getTrader(0).getFactorCovariance(stressed);
+	    
+	    return stressed ? maxFactorCovariance : factorCovariance;
+	}
+	
 	public int getFailureTick() {
 	    return failureTick;
 	}
+	
+	/**
+	 * @return the profit and loss accumulated since the start of the simulation, as used to 
+	 * decide whether the trader has failed
+	 */
+	public double getAccumulatedWealth() {
+	    return deltaWealth_t;
+	}
+	
+	/**
+	 * Set the weight of the orders that the trader sends to the market maker, so that the trader 
+	 * can trade for a cohort of traders whose positions are proportional to its own
+	 */
+	public void setOrderWeight(double orderWeight) {
+	    this.orderWeight = orderWeight;
+	}
+	
+	public double getOrderWeight() {
+	    return orderWeight;
+	}
+	
+	/**
+	 * @param isCohortMember true if the representative of the trader's cohort trades for the trader, 
+	 * which then skips its own actions
+	 */
+	public void setCohortMember(boolean isCohortMember) {
+	    this.isCohortMember = isCohortMember;
+	}
+	
+	public boolean isCohortMember() {
+	    return isCohortMember;
+	}
+	
+	/**
+	 * Take over the results of the representative of the trader's cohort: the positions, VaR and ES 
+	 * reductions, sell-offs and risk measures scaled by {@code scale}, the accumulated wealth, and 
+	 * the failure. Values the representative no longer keeps (see {@link #setHistoryLimit(int)}) are 
+	 * set to zero.
+	 * 
+	 * @param representative the trader that traded for this trader
+	 * @param scale the ratio of the positions of this trader to those of the representative
+	 */
+	public void expandFrom(Trader representative, double scale) {
+	    for (String secId : getSecIds()) {
+	        copyScaled(representative.portfolio.getTsPosition(secId), portfolio.getTsPosition(secId), scale);
+	        
+	        if (!riskModel.isActive()) continue;
+	        
+	        copyScaled(representative.portfolioVarReductions.getTsPosition(secId), portfolioVarReductions.getTsPosition(secId), scale);
+	        copyScaled(representative.portfolioEsReductions.getTsPosition(secId), portfolioEsReductions.getTsPosition(secId), scale);
+	        copyScaled(representative.tsVarSelloff.get(secId), tsVarSelloff.get(secId), scale);
+	        copyScaled(representative.tsEsSelloff.get(secId), tsEsSelloff.get(secId), scale);
+	    }
+	    
+	    if (riskModel.isActive()) {
+	        copyScaled(representative.tsVar_preTrade, tsVar_preTrade, scale);
+	        copyScaled(representative.tsVar_postTrade, tsVar_postTrade, scale);
+	        copyScaled(representative.tsStressedVar_postTrade, tsStressedVar_postTrade, scale);
+	        copyScaled(representative.tsEs_preTrade, tsEs_preTrade, scale);
+	        copyScaled(representative.tsEs_postTrade, tsEs_postTrade, scale);
+	        copyScaled(representative.tsStressedEs_postTrade, tsStressedEs_postTrade, scale);
+	    }
+	    
+	    deltaWealth_t = scale * representative.deltaWealth_t;
+	    deltaWealth_t_1 = scale * representative.deltaWealth_t_1;
+	    state = representative.state;
+	    failureTick = representative.failureTick;
+	}
+	
+	private static void copyScaled(DoubleTimeSeries from, DoubleTimeSeries to, double scale) {
+	    int first = from.getFirstRetainedIndex();
+	    
+	    for (int i = to.size(); i < from.size(); i++)
+	        to.add(i, i < first ? 0.0 : scale * from.get(i));
+	}
 
     public String toString() {
         return label;
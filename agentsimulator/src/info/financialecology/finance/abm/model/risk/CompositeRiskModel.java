@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.risk;
+
+import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.strategy.TradingStrategy.Order;
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+
+import java.util.ArrayList;
+
+/**
+ * Several risk models applied in turn: each model sees the positions as reduced by the models
+ * before it. Active if any of its models is; the inactive ones are skipped.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class CompositeRiskModel implements RiskModel {
+
+    private final RiskModel [] models;
+    private final boolean isActive;
+
+    public CompositeRiskModel(RiskModel... models) {
+        Assertion.assertStrict(models.length > 0, Level.ERR, "A composite risk model needs at least one model");
+
+        boolean isActive = false;
+
+        for (RiskModel model : models)
+            isActive |= model.isActive();
+
+        this.models = models.clone();
+        this.isActive = isActive;
+    }
+
+    public boolean isActive() {
+        return isActive;
+    }
+
+    public void beforeTrading(Trader trader) {
+        for (RiskModel model : models)
+            if (model.isActive()) model.beforeTrading(trader);
+    }
+
+    public void afterTrading(Trader trader, ArrayList<Order> orders) {
+        for (RiskModel model : models)
+            if (model.isActive()) model.afterTrading(trader, orders);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.risk;
+
+import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.strategy.TradingStrategy.Order;
+
+import java.util.ArrayList;
+
+/**
+ * No risk measures and no limits. The traders with this model keep no risk state, which saves
+ * the memory and time of the covariances and risk series in runs that do not look at them.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class NoRiskModel implements RiskModel {
+
+    public boolean isActive() {
+        return false;
+    }
+
+    public void beforeTrading(Trader trader) {
+    }
+
+    public void afterTrading(Trader trader, ArrayList<Order> orders) {
+    }
+}
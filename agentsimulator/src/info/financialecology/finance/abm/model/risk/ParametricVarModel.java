@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.risk;
+
+import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.agent.Trader.UseVar;
+import info.financialecology.finance.abm.model.strategy.TradingStrategy.Order;
+
+import java.util.ArrayList;
+
+/**
+ * Parametric (normal) VaR from the covariances of the log-returns over the trader's volatility
+ * window, with a variable or constant limit. Traders that use stressed VaR add the VaR with the
+ * covariances of the most volatile window so far, as in Basel 2.5. Applies to the traders that use
+ * VaR (see {@link Trader#setUseVar(UseVar)}); see {@link Trader#applyVarLimit(ArrayList)}.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class ParametricVarModel implements RiskModel {
+
+    public boolean isActive() {
+        return true;
+    }
+
+    public void beforeTrading(Trader trader) {
+        if (trader.getUseVar() == UseVar.TRUE)
+            trader.updatePreTradeVar();
+    }
+
+    public void afterTrading(Trader trader, ArrayList<Order> orders) {
+        if (trader.getUseVar() == UseVar.TRUE)
+            trader.applyVarLimit(orders);
+    }
+}
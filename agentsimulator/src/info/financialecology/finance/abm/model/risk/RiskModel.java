@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.risk;
+
+import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.strategy.TradingStrategy.Order;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * The risk measures of a trader and the limits they impose on its positions. The trader calls its
+ * model once per tick before the strategies trade, with the positions at t-1 and the prices at t
+ * (e.g. to update the covariances and record the pre-trade VaR), and once after, with the positions
+ * at t, when the model can reduce the positions to meet its limit (see
+ * {@link Trader#reducePositions(ArrayList, ArrayList)}).
+ * <p>
+ * A model is shared by the traders of a group (see
+ * {@link info.financialecology.finance.abm.model.TrendValueLSVarAbmSimulator#setRiskModel}), so
+ * the values of the measures are kept by the traders, not the model. A trader whose model is not
+ * active ({@link NoRiskModel}) does not call it, and keeps no risk state at all: no covariances and
+ * no series of risk measures, reductions or sell-offs. Its getters for these series return zeros.
+ * <p>
+ * The built-in models are {@link ParametricVarModel} and {@link FrtbEsModel}, which the traders use
+ * by default (see {@link Trader#DEFAULT_RISK_MODEL}). Other measures implement this interface and
+ * are combined with the built-in ones with a {@link CompositeRiskModel}.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public interface RiskModel extends Serializable {
+
+    /**
+     * @return false if the model does nothing, so that the trader keeps no risk state
+     */
+    public boolean isActive();
+
+    /**
+     * Called before the strategies of the trader trade, with the positions at t-1 and the prices at t
+     */
+    public void beforeTrading(Trader trader);
+
+    /**
+     * Called after the strategies of the trader set the positions at t, before the orders are sent
+     * to the market maker
+     *
+     * @param orders the orders of the trader at t, to which the model adds its reduction orders
+     */
+    public void afterTrading(Trader trader, ArrayList<Order> orders);
+}
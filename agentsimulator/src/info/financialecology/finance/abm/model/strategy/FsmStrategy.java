@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.strategy;
+
+import info.financialecology.finance.abm.model.util.IndicatorCache;
+import info.financialecology.finance.abm.model.util.TradingPortfolio;
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+import info.financialecology.finance.utilities.WorldClock;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * A single share strategy defined as a finite state machine (see {@link StrategyMachine}). The
+ * position of the strategy is its capFactor times the exposure of its current state.
+ * <p>
+ * The strategies of a machine on a share are evaluated together by the {@link Engine} of the
+ * machine and share: the indicators and guards are evaluated once per tick, and the state of
+ * every strategy is one entry of an int array, which moves along the compiled transition tables.
+ * Trading does not allocate any objects.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class FsmStrategy implements TradingStrategy, Serializable {
+
+    private Engine engine;
+    private int engineIndex;                // index of the strategy in the arrays of the engine
+    private Order order;
+    private ArrayList<Order> orders;        // the order of the strategy, returned by getOrders()
+    private HashSet<String> secIds;
+
+    /**
+     * @param engine the engine of the machine and share the strategy trades on
+     * @param capFactor the capital multiplier for the trading strategy
+     */
+    public FsmStrategy(Engine engine, double capFactor) {
+        this.engine = engine;
+        this.engineIndex = engine.add(capFactor);
+
+        this.order = new Order();
+        this.order.setSecId(engine.secId);
+        this.orders = new ArrayList<Order>();
+        this.orders.add(order);
+        this.secIds = new HashSet<String>();
+        this.secIds.add(engine.secId);
+    }
+
+    /**
+     * Set the position to the exposure of the state of the strategy at the current tick, after
+     * taking the transition whose guard holds, if any
+     */
+    public void trade(TradingPortfolio portfolio) {
+        int tick = WorldClock.currentTick();
+        DoubleTimeSeries tsPos = portfolio.getTsPosition(engine.secId);
+
+        tsPos.add(tick, engine.getPosition(engineIndex, tick));
+
+        if (tick > 0)
+            order.setOrder(tsPos.get(tick) - tsPos.get(tick - 1));
+    }
+
+    public ArrayList<Order> getOrders() {
+        return orders;
+    }
+
+    /**
+     * Get a unique identifier for the trading strategy, the secId of its share
+     */
+    public String getUniqueId() {
+        return engine.secId;
+    }
+
+    public HashSet<String> getSecIds() {
+        return secIds;
+    }
+
+    /**
+     * @return the current state of the strategy, see {@link StrategyMachine#getStateName(int)}
+     */
+    public int getState() {
+        return engine.state[engineIndex];
+    }
+
+    public StrategyMachine getMachine() {
+        return engine.machine;
+    }
+
+
+    /**
+     * The strategies of one machine on one share. The engine reads the inputs of the machine from
+     * the shared indicators of the market, evaluates the guards, and moves each strategy along the
+     * first transition out of its state whose guard holds. It is evaluated at the first call of a
+     * strategy in a tick; the strategies stay in the initial state, with no position, until the
+     * longest window of the inputs is filled.
+     */
+    public static class Engine implements Serializable {
+
+        private static final StrategyMachine.Input [] INPUTS = StrategyMachine.Input.values();
+        private static final StrategyMachine.Comparison [] COMPARISONS = StrategyMachine.Comparison.values();
+
+        private StrategyMachine machine;
+        private String secId;
+        private DoubleTimeSeries tsPrice;
+        private DoubleTimeSeries tsFundValue;
+        private IndicatorCache.MovingAverage [] averages;   // the indicators of the inputs, by input; null if the input is of another kind
+        private IndicatorCache.StdDev [] stdDevs;
+        private IndicatorCache.Channel [] channels;
+
+        private double [] inputValues;          // the inputs at the current tick
+        private boolean [] guardHolds;          // the guards at the current tick
+        private int evaluatedTick = -1;         // tick of the last evaluation; -1 before the first
+
+        private int size = 0;                   // number of strategies
+        private int [] state = new int[16];     // the state of each strategy
+        private double [] capFactor = new double[16];
+        private double [] position = new double[16];
+
+        /**
+         * @param machine the definition of the strategies, compiled if it is not yet
+         * @param secId the share the strategies trade on
+         * @param tsPrice the prices of the share
+         * @param tsFundValue the fundamental values of the share, or null if the machine does not read them
+         * @param indicators the indicators of the market
+         */
+        public Engine(StrategyMachine machine, String secId, DoubleTimeSeries tsPrice, DoubleTimeSeries tsFundValue, IndicatorCache indicators) {
+            Assertion.assertStrict(tsPrice != null, Level.ERR, "Price timeseries cannot be null");
+
+            machine.compile();
+
+            this.machine = machine;
+            this.secId = secId;
+            this.tsPrice = tsPrice;
+            this.tsFundValue = tsFundValue;
+
+            int numInputs = machine.inputKind.length;
+
+            averages = new IndicatorCache.MovingAverage[numInputs];
+            stdDevs = new IndicatorCache.StdDev[numInputs];
+            channels = new IndicatorCache.Channel[numInputs];
+            inputValues = new double[numInputs];
+            guardHolds = new boolean[machine.guardComparison.length];
+
+            for (int i = 0; i < numInputs; i++) {
+                StrategyMachine.Input input = INPUTS[machine.inputKind[i]];
+                int window = machine.inputWindow[i];
+
+                if (input == StrategyMachine.Input.FUND_VALUE)
+                    Assertion.assertStrict(tsFundValue != null, Level.ERR, "The strategy machine on '" + secId + "' reads the fundamental value, which is missing");
+                else if (input == StrategyMachine.Input.MOVING_AVERAGE)
+                    averages[i] = indicators.getMovingAverage(tsPrice, window);
+                else if (input == StrategyMachine.Input.STD_DEV)
+                    stdDevs[i] = indicators.getStdDev(tsPrice, window);
+                else if ((input == StrategyMachine.Input.CHANNEL_MIN) || (input == StrategyMachine.Input.CHANNEL_MAX))
+                    channels[i] = indicators.getChannel(tsPrice, window);
+            }
+        }
+
+        /**
+         * @return the number of strategies of the engine
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Add a strategy in the initial state
+         *
+         * @return the index of the strategy
+         */
+        private int add(double capFactor) {
+            Assertion.assertStrict(evaluatedTick == -1, Level.ERR, "Strategies need to be added to the engine on '" + secId +
+                    "' before it is evaluated");
+
+            if (size == state.length) {
+                state = Arrays.copyOf(state, 2 * size);
+                this.capFactor = Arrays.copyOf(this.capFactor, 2 * size);
+                position = Arrays.copyOf(position, 2 * size);
+            }
+
+            this.capFactor[size] = capFactor;
+
+            return size++;
+        }
+
+        /**
+         * @return the position of strategy {@code index} at tick {@code tick}, evaluating the engine if needed
+         */
+        private double getPosition(int index, int tick) {
+            if (tick != evaluatedTick)
+                evaluate(tick);
+
+            return position[index];
+        }
+
+        private void evaluate(int tick) {
+            evaluatedTick = tick;
+
+            if (tick < machine.getMaxWindow())      // no position until the indicators can be computed
+                return;
+
+            readInputs(tick);
+            evaluateGuards();
+
+            int [] transitionStart = machine.transitionStart;
+            int [] transitionGuard = machine.transitionGuard;
+            int [] transitionTarget = machine.transitionTarget;
+            double [] exposure = machine.exposure;
+
+            for (int i = 0; i < size; i++) {
+                int s = state[i];
+
+                for (int t = transitionStart[s]; t < transitionStart[s + 1]; t++) {
+                    if (guardHolds[transitionGuard[t]]) {
+                        s = transitionTarget[t];
+                        break;
+                    }
+                }
+
+                state[i] = s;
+                position[i] = capFactor[i] * exposure[s];
+            }
+        }
+
+        private void readInputs(int tick) {
+            int [] inputKind = machine.inputKind;
+
+            for (int i = 0; i < inputKind.length; i++) {
+                switch (INPUTS[inputKind[i]]) {
+                case CONSTANT_ONE:   inputValues[i] = 1; break;
+                case PRICE:          inputValues[i] = tsPrice.get(tick); break;
+                case FUND_VALUE:     inputValues[i] = tsFundValue.get(tick); break;
+                case MOVING_AVERAGE: inputValues[i] = averages[i].get(); break;
+                case STD_DEV:        inputValues[i] = stdDevs[i].get(); break;
+                case CHANNEL_MIN:    inputValues[i] = channels[i].getMin(); break;
+                case CHANNEL_MAX:    inputValues[i] = channels[i].getMax(); break;
+                }
+            }
+        }
+
+        private void evaluateGuards() {
+            for (int g = 0; g < guardHolds.length; g++) {
+                int comparison = machine.guardComparison[g];
+
+                if (comparison == StrategyMachine.AND) {    // the guards of a conjunction come before it
+                    guardHolds[g] = guardHolds[machine.guardLhs[g]] && guardHolds[machine.guardRhs[g]];
+                    continue;
+                }
+
+                double lhs = inputValues[machine.guardLhs[g]];
+                double rhs = inputValues[machine.guardRhs[g]] + machine.guardOffset[g] * inputValues[machine.guardScale[g]];
+
+                switch (COMPARISONS[comparison]) {
+                case GREATER:          guardHolds[g] = lhs > rhs; break;
+                case GREATER_OR_EQUAL: guardHolds[g] = lhs >= rhs; break;
+                case LESS:             guardHolds[g] = lhs < rhs; break;
+                case LESS_OR_EQUAL:    guardHolds[g] = lhs <= rhs; break;
+                }
+            }
+        }
+    }
+}
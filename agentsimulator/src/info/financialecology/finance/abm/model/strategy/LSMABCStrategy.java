@@ -15,23 +15,23 @@
  */
 package info.financialecology.finance.abm.model.strategy;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 
 import info.financialecology.finance.abm.model.strategy.TradingStrategy.Order;
 import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.MultiplierTrend;
+import info.financialecology.finance.abm.model.util.IndicatorCache;
 import info.financialecology.finance.abm.model.util.TradingPortfolio;
 import info.financialecology.finance.utilities.Assertion;
 import info.financialecology.finance.utilities.WorldClock;
 import info.financialecology.finance.utilities.Assertion.Level;
 import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
 import info.financialecology.finance.utilities.datastruct.DoubleTimeSeriesList;
+import info.financialecology.finance.utilities.output.TraceRecorder;
 import info.financialecology.finance.utilities.statistics.StatsTimeSeries;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 
 /**
  * A class that implements a multi-asset long-short strategy. The entry and 
@@ -54,10 +54,11 @@ import org.slf4j.LoggerFactory;
  * @author Barbara Llacay
  */
 
-public class LSMABCStrategy implements TradingStrategy {
+@SuppressWarnings("serial")
+public class LSMABCStrategy implements TradingStrategy, Serializable {
 
-    // Logging information and errors
-    private static Logger logger = LoggerFactory.getLogger(LSMABCStrategy.class);
+    // Tracing of the decisions, see TraceRecorder; the asset of the records is the pair, see getUniqueId()
+    private static final int TRACE_LS = TraceRecorder.registerEventType("LONG_SHORT", "spread", "position_1", "position_2");
     
 //    /*
 //     *  Parameters
@@ -73,13 +74,10 @@ public class LSMABCStrategy implements TradingStrategy {
     private double entryDivergenceSigmas;     // number of sigmas used in the entry condition (spread divergence) 
     private double exitConvergenceSigmas;     // number of sigmas used in the exit condition (spread convergence)
     private double exitStopLossSigmas;        // number of sigmas used in the exit condition (stop loss)
-    private int previousTick  = -1;           // flag to ensure trade() is called at every tick
+    private int previousTick  = -1;           // flag to ensure trade() is called at most once per tick; a trader that wakes up at intervals skips ticks
     
     private double warmUpPeriod;              // the warm-up period needed for this trading strategy, in ticks
     
-    private boolean firstMAShortCalculation = true;     // the first calculation needs to use the full MA method, after that incremental
-    private boolean firstMALongCalculation  = true;
-    
     private MultiplierLS multiplier;          // method to calculate the size of the position
     private PositionUpdateLS positionUpdate;  // specifies if a position can be modified while open
     
@@ -108,13 +106,19 @@ public class LSMABCStrategy implements TradingStrategy {
     private double maLong_t          = 0;        // compute: long-run moving average at t
     private double maVariance_t_1    = 0;        // given: variance at t-1
     private double maVariance_t      = 0;        // compute: variance at t
-    private Boolean forceFullMACalc  = false;    // enforces a full moving average calculation if no trade was made at the previous time step
     
     private DoubleTimeSeries tsPrice_1;       // time series of prices which constitute the spread - an input to LSMABC
     private DoubleTimeSeries tsPrice_2;
     private DoubleTimeSeries tsSpread;        // time series of the spread  Price_1 - Price_2
+    
+    private IndicatorCache.MovingAverage maShort;       // indicators of the spread, shared with the other strategies on the same spread
+    private IndicatorCache.MovingAverage maLong;
+    private IndicatorCache.MovingVariance maVariance;   // historical variance, over the long window
+    private IndicatorCache.StdDev stdDevSpread;         // only if the multiplier uses the standard deviation of the spread
 //    private DoubleTimeSeries tsPos_1;         // time series of positions in the two assets which constitute the spread - an output of LSMABC
 //    private DoubleTimeSeries tsPos_2;
+    private double pos_1 = 0;                 // the positions of this spread in the two assets, as set at the last trade (before any reductions)
+    private double pos_2 = 0;                 // - the trader's positions also hold the other spreads on the same assets
     
     private Order order_1;                    // the order of the two shares which constitute the spread
     private Order order_2;
@@ -157,6 +161,31 @@ public class LSMABCStrategy implements TradingStrategy {
     						double capFactor,
     						MultiplierLS multiplier,
     						PositionUpdateLS positionUpdate) {
+        
+        this(secId_1, tsPrice_1, secId_2, tsPrice_2, tsSpread, maSpreadShortTicks, maSpreadLongTicks, volWindowStrat, entryDivergenceSigmas, 
+                exitConvergenceSigmas, exitStopLossSigmas, capFactor, multiplier, positionUpdate, new IndicatorCache());
+    }
+    
+    /**
+     * Constructor for a strategy that reads the moving averages and variances of the spread from 
+     * {@code indicators}, so that they are computed once for all strategies with the same windows
+     * on the same spread (see {@link info.financialecology.finance.abm.model.ShareMarket#getIndicators()})
+     */
+    public LSMABCStrategy(String secId_1, 
+    						DoubleTimeSeries tsPrice_1,
+    						String secId_2,
+    						DoubleTimeSeries tsPrice_2,
+    						DoubleTimeSeries tsSpread,
+    						int maSpreadShortTicks,
+    						int maSpreadLongTicks,
+    						int volWindowStrat,
+    						double entryDivergenceSigmas,
+    						double exitConvergenceSigmas,
+    						double exitStopLossSigmas,
+    						double capFactor,
+    						MultiplierLS multiplier,
+    						PositionUpdateLS positionUpdate,
+    						IndicatorCache indicators) {
     
         Assertion.assertStrict((secId_1 != null) && (secId_1.compareTo("") != 0), Level.ERR, "secId_1 cannot be null or an empty string");
         Assertion.assertStrict((secId_2 != null) && (secId_2.compareTo("") != 0), Level.ERR, "secId_2 cannot be null or an empty string");
@@ -190,6 +219,13 @@ public class LSMABCStrategy implements TradingStrategy {
         this.secIds.add(secId_1);
         this.secIds.add(secId_2);
         
+        this.maShort = indicators.getMovingAverage(tsSpread, maSpreadShortTicks);
+        this.maLong = indicators.getMovingAverage(tsSpread, maSpreadLongTicks);
+        this.maVariance = indicators.getMovingVariance(tsSpread, maSpreadLongTicks);
+        
+        if (multiplier == MultiplierLS.DIVERGENCE_STDDEV)
+            this.stdDevSpread = indicators.getStdDev(tsSpread, volWindowStrat);
+        
         if (multiplier == MultiplierLS.DIVERGENCE_STDDEV) {
         	this.warmUpPeriod = Math.max(volWindowStrat, Math.max(maSpreadLongTicks, maSpreadShortTicks));
         }
@@ -237,9 +273,8 @@ public class LSMABCStrategy implements TradingStrategy {
     
 
     /**
-     * Compute the position and order for the current trade. If there was no trade placed at the
-     * previous tick, then force a full moving average calculation. Otherwise use the more efficient
-     * {@code incrementalMA(...)} algorithm
+     * Compute the position and order for the current trade. The moving averages and variances of 
+     * the spread are read from the shared indicators, which are computed incrementally
      *     
      */
     public void trade(TradingPortfolio portfolio) {
@@ -249,76 +284,36 @@ public class LSMABCStrategy implements TradingStrategy {
         String secId_2 = order_2.getSecId();
         DoubleTimeSeries tsPos_1 = portfolio.getTsPosition(secId_1);
         DoubleTimeSeries tsPos_2 = portfolio.getTsPosition(secId_2);
+        int lastTradeTick = previousTick;
                 
-        if (tick == previousTick + 1) { // incremental MA or full MA?
+        if (tick > previousTick)    // the moving averages are shared indicators, updated at every tick even if trade() is not called
             previousTick = tick;
-            forceFullMACalc = false;
-        }
-        else {
+        else
             Assertion.assertStrict(false, Level.INFO, "The method trade() in the class LSMABCStrategy " +
-            		"has not been called at the previous tick t=" + previousTick + ", so that the full MA" +
-            	    "calculation will be used to compute the new position");
-            forceFullMACalc = true;
-        }
+            		"has already been called at the tick t=" + previousTick);
         
 //        DoubleTimeSeries tsSpread = StatsTimeSeries.substraction(tsPrice_1, tsPrice_2);  // spread = Price_1 - Price_2  //!! Deleted because it takes too much time
  
         if (tick < warmUpPeriod) {    // no positions and orders are calculated during warm-up 
-            tsPos_1.add(tick, 0.0);
-            tsPos_2.add(tick, 0.0);
+            addPosition(tsPos_1, tick, 0.0);
+            addPosition(tsPos_2, tick, 0.0);
             return;
         }
         
-        // Recalculate the positions entered for this spread in the previous tick
-        double pos_1_previous_tick = -tsPos_2.get(tick - 1) * tsPrice_2.get(tick - 1) / tsPrice_1.get(tick - 1);
-        double pos_2_previous_tick = tsPos_2.get(tick - 1);
+        // The positions of this spread in the previous tick, after the reductions of the trader's positions
+        double pos_1_previous_tick = previousPosition(portfolio, secId_1, pos_1, lastTradeTick, tick);
+        double pos_2_previous_tick = previousPosition(portfolio, secId_2, pos_2, lastTradeTick, tick);
         
         double pos_1_current_tick = 0;
         double pos_2_current_tick = 0;      
         
-        // Check if a position has already been entered for asset 1 in current tick
-        double pos_1_already_introduced = 0;
-        if (tsPos_1.size() == tick + 1)    // a trade has been done in current tick for another spread
-        	pos_1_already_introduced = tsPos_1.get(tick);
-      
-
-        
         /*
-         * Compute the new moving averages at the current tick. If they are computed for the first time, 
-         * use the full MA computation. Otherwise, use the incremental computation.
-         * 
-         * This requires for now that trade() is called at every tick, which may 
-         * not be feasible.
-         * 
-         * 
+         * Read the moving averages and the historical variance of the spread at the current tick. They 
+         * are shared with the other strategies with the same windows and computed once per tick.
          */
-               
-        if (firstMAShortCalculation) {        	        	
-            maShort_t = StatsTimeSeries.fullMA(tsSpread, maSpreadShortTicks);
-            firstMAShortCalculation = false;
-        }
-        else {
-            if (forceFullMACalc)
-                maShort_t = StatsTimeSeries.fullMA(tsSpread, maSpreadShortTicks);
-            else
-                maShort_t = StatsTimeSeries.incrementalMA(tsSpread, maSpreadShortTicks, maShort_t_1);            
-        }
-        
-        if (firstMALongCalculation) {   // Historical (long-term) mean and stdev of the spread, used in entry/exit thresholds
-            maLong_t = StatsTimeSeries.fullMA(tsSpread, maSpreadLongTicks);
-            maVariance_t = Math.pow(StatsTimeSeries.stdDev(tsSpread, maSpreadLongTicks), 2);
-            firstMALongCalculation = false;
-        }
-        else {
-            if (forceFullMACalc) {
-                maLong_t = StatsTimeSeries.fullMA(tsSpread, maSpreadLongTicks);
-                maVariance_t = Math.pow(StatsTimeSeries.stdDev(tsSpread, maSpreadLongTicks), 2);
-            }
-            else {
-                maLong_t = StatsTimeSeries.incrementalMA(tsSpread, maSpreadLongTicks, maLong_t_1);
-                maVariance_t = StatsTimeSeries.incrementalVariance(tsSpread, maSpreadLongTicks, maVariance_t_1, maLong_t_1);
-            }
-        }
+        maShort_t = maShort.get();
+        maLong_t = maLong.get();    // historical (long-term) mean and stdev of the spread, used in entry/exit thresholds
+        maVariance_t = maVariance.get();
         
         double longStdDevSpread_t = Math.sqrt(maVariance_t);        
        
@@ -332,8 +327,7 @@ public class LSMABCStrategy implements TradingStrategy {
             manualNormFactor = 1.75;
         }        
         else if (multiplier == MultiplierLS.DIVERGENCE_STDDEV) {
-            double stdDevSpread_t = StatsTimeSeries.stdDev(tsSpread, volWindowStrat);    // Short-term mean and stdev of the spread, used in the calculation of positions
-                                                                                         // TODO: stdDev should be calculated using the incrementalVariance() method
+            double stdDevSpread_t = stdDevSpread.get();    // Short-term stdev of the spread, used in the calculation of positions
             position = capFactor * Math.abs(maShort_t - maLong_t) / stdDevSpread_t;
             manualNormFactor = 2.5;
         }        
@@ -350,8 +344,7 @@ public class LSMABCStrategy implements TradingStrategy {
         
         // Count the crossings of upper entry threshold (mean + 2*stdev) since last position
         
-        if (tsPos_2.get(tick - 1) != 0.0) {  // A position is already open in this spread 
-        	                                 // !! This condition assumes that all spreads are defined as Price_0 - Price_i, so they differ in the second asset
+        if (pos_2_previous_tick != 0.0) {  // A position is already open in this spread 
         	nCrossUpEntryThreshold = 0;
         }
         else {
@@ -364,8 +357,7 @@ public class LSMABCStrategy implements TradingStrategy {
         
         // Count the crossings of lower entry threshold (mean - 2*stdev) since last position
         
-        if (tsPos_2.get(tick - 1) != 0.0) {  // A position is already open in this spread 
-        	                                 // !! This condition assumes that all spreads are defined as Price_0 - Price_i, so they differ in the second asset
+        if (pos_2_previous_tick != 0.0) {  // A position is already open in this spread 
         	nCrossDownEntryThreshold = 0;
         }
         else {
@@ -398,7 +390,7 @@ public class LSMABCStrategy implements TradingStrategy {
          */
         
         else {  // The entry condition is not satisfied
-            if (tsPos_2.get(tick - 1) > 0 && ((maShort_t < maLong_t + exitConvergenceSigmas*longStdDevSpread_t) ||    // The position was opened after double-crossing the UPPER entry threshold
+            if (pos_2_previous_tick > 0 && ((maShort_t < maLong_t + exitConvergenceSigmas*longStdDevSpread_t) ||    // The position was opened after double-crossing the UPPER entry threshold
         			(maShort_t > maLong_t + exitStopLossSigmas*longStdDevSpread_t))) {   // The spread has converged or diverged too much
 
 //        		tsPos_1.add(tick, 0);
@@ -407,7 +399,7 @@ public class LSMABCStrategy implements TradingStrategy {
             	pos_2_current_tick = 0;
         	}
 
-            else if (tsPos_2.get(tick - 1) < 0 && ((maShort_t > maLong_t - exitConvergenceSigmas*longStdDevSpread_t) ||    // The position was opened after double-crossing the LOWER entry threshold
+            else if (pos_2_previous_tick < 0 && ((maShort_t > maLong_t - exitConvergenceSigmas*longStdDevSpread_t) ||    // The position was opened after double-crossing the LOWER entry threshold
         			(maShort_t < maLong_t - exitStopLossSigmas*longStdDevSpread_t))) {  // The spread has converged or diverged too much
 
 //        		tsPos_1.add(tick, 0);
@@ -426,8 +418,8 @@ public class LSMABCStrategy implements TradingStrategy {
         		else if (positionUpdate == PositionUpdateLS.CONSTANT) {        
 //        			tsPos_1.add(tick, tsPos_1.get(tick - 1));
 //        			tsPos_2.add(tick, tsPos_2.get(tick - 1));
-        			pos_1_current_tick = pos_1_previous_tick;  //!!! This does not work well, because one would need to know in which tick the position
-        			pos_2_current_tick = pos_2_previous_tick;  //    was opened (to recover the prices at that tick and calculate 'pos_1_previous_tick')
+        			pos_1_current_tick = pos_1_previous_tick;
+        			pos_2_current_tick = pos_2_previous_tick;
         		}
         		else 
         			Assertion.assertStrict(false, Level.ERR, "The method for positionUpdate " + positionUpdate + " is not implemented");        
@@ -443,14 +435,15 @@ public class LSMABCStrategy implements TradingStrategy {
 //        order_2.setOrder(tsPos_2.get(tick) - tsPos_2.get(tick - 1));
         order_1.setOrder(pos_1_current_tick - pos_1_previous_tick);
         order_2.setOrder(pos_2_current_tick - pos_2_previous_tick);
-        tsPos_1.add(tick, pos_1_already_introduced + pos_1_current_tick);
-        tsPos_2.add(tick, pos_2_current_tick);
+        addPosition(tsPos_1, tick, pos_1_current_tick);     // other spreads may have traded the same assets in current tick
+        addPosition(tsPos_2, tick, pos_2_current_tick);
+        pos_1 = pos_1_current_tick;
+        pos_2 = pos_2_current_tick;
        
-        logger.trace("Price_1_{}: {}", tick, tsPrice_1.get(tick));
-        logger.trace("Price_2_{}: {}", tick, tsPrice_2.get(tick));
-        logger.trace("Spread_{}: {}", tick, tsSpread.get(tick));
-        logger.trace("Pos_1_{}: {}", tick, tsPos_1.get(tick));
-        logger.trace("Pos_2_{}: {}", tick, tsPos_2.get(tick));
+        TraceRecorder tracer = TraceRecorder.current();
+        
+        if ((tracer != null) && tracer.isTraced(tick, tracer.getCurrentAgent()))
+            tracer.record(tick, TRACE_LS, tracer.getCurrentAgent(), tracer.asset(getUniqueId()), tsSpread.get(tick), pos_1_current_tick, pos_2_current_tick);
 
         
         /**
@@ -462,6 +455,39 @@ public class LSMABCStrategy implements TradingStrategy {
     } 
     
     
+    /**
+     * Add the position of this spread to the trader's position in current tick, which already holds 
+     * the positions of the other spreads on the same asset if they have traded in current tick 
+     */
+    private void addPosition(DoubleTimeSeries tsPos, int tick, double position) {
+        if (tsPos.size() == tick + 1)
+            tsPos.add(tick, tsPos.get(tick) + position);
+        else
+            tsPos.add(tick, position);
+    }
+    
+    
+    /**
+     * The position of this spread in an asset at the previous tick. The trader's position in the asset 
+     * may have been reduced after the last trade, e.g. to comply with its VaR limit, and it holds the 
+     * positions of all its spreads on the asset. The reduced position is shared between the spreads 
+     * in proportion to the positions they set at the last trade.
+     * 
+     * @param own the position of this spread at the last trade
+     * @param lastTradeTick the tick of the last trade
+     * @return the position of this spread at the previous tick
+     */
+    private double previousPosition(TradingPortfolio portfolio, String secId, double own, int lastTradeTick, int tick) {
+        if (own == 0.0) return 0.0;
+        
+        double traded = portfolio.getTradedPosition(secId, lastTradeTick);    // the positions of all spreads at the last trade
+        
+        if (traded == 0.0) return own;      // the spreads cancel out, so the position was not reduced
+        
+        return portfolio.getTsPosition(secId).get(tick - 1) * own / traded;
+    }
+    
+    
     /**
      * Compute the new general moving average (MA) of prices at time t.
      * The length of the MA interval is equal to maTicks.
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.strategy;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * The declarative definition of a strategy as a finite state machine, for {@link FsmStrategy}. The
+ * machine reads indicators of the share it trades (price, fundamental value, moving averages, ...),
+ * compares them in guards, and moves between states along transitions whose guards hold. Each
+ * state has an exposure, the position of the strategy in units of its capFactor. For example, a
+ * value strategy that goes long when the price is 2 below the fundamental value and closes the
+ * position when the price is back to the value:
+ *
+ * <pre>
+ * StrategyMachine machine = new StrategyMachine();
+ * int price = machine.price();
+ * int value = machine.fundValue();
+ * int flat = machine.addState("FLAT", 0);
+ * int isLong = machine.addState("LONG", 1);
+ *
+ * machine.addTransition(flat, machine.addGuard(price, Comparison.LESS, value, -2), isLong);
+ * machine.addTransition(isLong, machine.addGuard(price, Comparison.GREATER_OR_EQUAL, value, 0), flat);
+ * </pre>
+ *
+ * The first state added is the initial state. Of the transitions out of a state, the first one
+ * added whose guard holds is taken; at most one transition is taken per tick. The guards depend
+ * only on the indicators, so they are evaluated once per tick for all the strategies of a machine
+ * on a share.
+ * <p>
+ * The definition is compiled to integer tables when the first strategy uses it, and cannot be
+ * changed afterwards.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class StrategyMachine implements Serializable {
+
+    public static final int ONE = 0;            // the input that is constantly 1, the default scale of a guard
+
+    public enum Input {         // The indicators of the share that the guards compare
+        CONSTANT_ONE,
+        PRICE,
+        FUND_VALUE,
+        MOVING_AVERAGE,         // moving average of the prices
+        STD_DEV,                // standard deviation of the prices
+        CHANNEL_MIN,            // minimum of the prices; the window includes the current tick
+        CHANNEL_MAX;            // maximum of the prices; the window includes the current tick
+    }
+
+    public enum Comparison {
+        GREATER,
+        GREATER_OR_EQUAL,
+        LESS,
+        LESS_OR_EQUAL;
+    }
+
+    static final int AND = -1;                  // the comparison code of a conjunction of two guards
+
+    private ArrayList<Input> inputs = new ArrayList<Input>();
+    private ArrayList<Integer> inputWindows = new ArrayList<Integer>();
+    private ArrayList<String> stateNames = new ArrayList<String>();
+    private ArrayList<Double> stateExposures = new ArrayList<Double>();
+    private ArrayList<int []> guards = new ArrayList<int []>();            // {comparison, lhs, rhs, scale}
+    private ArrayList<Double> guardOffsets = new ArrayList<Double>();
+    private ArrayList<int []> transitions = new ArrayList<int []>();       // {from, guard, to}
+    private int maxWindow = 0;
+    private boolean compiled = false;
+
+    /*
+     * The compiled tables, see compile()
+     */
+    int [] inputKind;           // the ordinal of the Input, by input
+    int [] inputWindow;
+    int [] guardComparison;     // the ordinal of the Comparison, or AND; by guard
+    int [] guardLhs;            // inputs, or guards for AND
+    int [] guardRhs;
+    int [] guardScale;
+    double [] guardOffset;
+    double [] exposure;         // by state
+    int [] transitionStart;     // the transitions out of state s are transitionStart[s] ... transitionStart[s + 1] - 1
+    int [] transitionGuard;
+    int [] transitionTarget;
+
+    public StrategyMachine() {
+        addInput(Input.CONSTANT_ONE, 0);
+    }
+
+    /**
+     * @return the input of the price of the share
+     */
+    public int price() {
+        return addInput(Input.PRICE, 0);
+    }
+
+    /**
+     * @return the input of the fundamental value of the share
+     */
+    public int fundValue() {
+        return addInput(Input.FUND_VALUE, 0);
+    }
+
+    /**
+     * @return the input of the moving average of the prices over {@code window} ticks
+     */
+    public int movingAverage(int window) {
+        return addInput(Input.MOVING_AVERAGE, window);
+    }
+
+    /**
+     * @return the input of the standard deviation of the prices over {@code window} ticks
+     */
+    public int stdDev(int window) {
+        return addInput(Input.STD_DEV, window);
+    }
+
+    /**
+     * @return the input of the minimum of the prices over the last {@code window} ticks, including the current one
+     */
+    public int channelMin(int window) {
+        return addInput(Input.CHANNEL_MIN, window);
+    }
+
+    /**
+     * @return the input of the maximum of the prices over the last {@code window} ticks, including the current one
+     */
+    public int channelMax(int window) {
+        return addInput(Input.CHANNEL_MAX, window);
+    }
+
+    /**
+     * Add a state
+     *
+     * @param name the name of the state, for messages
+     * @param exposure the position of the strategy in the state, in units of its capFactor
+     * @return the state
+     */
+    public int addState(String name, double exposure) {
+        assertNotCompiled();
+
+        stateNames.add(name);
+        stateExposures.add(exposure);
+
+        return stateNames.size() - 1;
+    }
+
+    /**
+     * Add a guard that holds if {@code lhs comparison rhs + offset * scale}, e.g. if a short moving
+     * average is 2 standard deviations above a long one
+     *
+     * @param lhs an input
+     * @param comparison the comparison of the two sides
+     * @param rhs an input
+     * @param offset added to {@code rhs}, in units of {@code scale}
+     * @param scale an input, or {@link #ONE}
+     * @return the guard
+     */
+    public int addGuard(int lhs, Comparison comparison, int rhs, double offset, int scale) {
+        assertNotCompiled();
+        assertInput(lhs);
+        assertInput(rhs);
+        assertInput(scale);
+
+        guards.add(new int [] {comparison.ordinal(), lhs, rhs, scale});
+        guardOffsets.add(offset);
+
+        return guards.size() - 1;
+    }
+
+    /**
+     * Add a guard that holds if {@code lhs comparison rhs + offset}
+     */
+    public int addGuard(int lhs, Comparison comparison, int rhs, double offset) {
+        return addGuard(lhs, comparison, rhs, offset, ONE);
+    }
+
+    /**
+     * Add a guard that holds if both guards hold
+     *
+     * @return the guard
+     */
+    public int addConjunction(int guard_1, int guard_2) {
+        assertNotCompiled();
+        Assertion.assertStrict((guard_1 >= 0) && (guard_1 < guards.size()) && (guard_2 >= 0) && (guard_2 < guards.size()),
+                Level.ERR, "A conjunction needs to combine guards that have been added before");
+
+        guards.add(new int [] {AND, guard_1, guard_2, ONE});
+        guardOffsets.add(0.0);
+
+        return guards.size() - 1;
+    }
+
+    /**
+     * Add a transition. The transitions out of a state are tried in the order in which they were added.
+     *
+     * @param from the state in which the transition can be taken
+     * @param guard the guard that needs to hold
+     * @param to the state after the transition
+     */
+    public void addTransition(int from, int guard, int to) {
+        assertNotCompiled();
+        Assertion.assertStrict((from >= 0) && (from < stateNames.size()) && (to >= 0) && (to < stateNames.size()),
+                Level.ERR, "A transition needs to connect states that have been added before");
+        Assertion.assertStrict((guard >= 0) && (guard < guards.size()), Level.ERR, "The guard of the transition from state '" +
+                stateNames.get(from) + "' has not been added");
+
+        transitions.add(new int [] {from, guard, to});
+    }
+
+    /**
+     * @return the number of ticks the indicators need before the machine can be evaluated
+     */
+    public int getMaxWindow() {
+        return maxWindow;
+    }
+
+    public int getNumStates() {
+        return stateNames.size();
+    }
+
+    public String getStateName(int state) {
+        return stateNames.get(state);
+    }
+
+    /**
+     * Compile the definition to the tables read by {@link FsmStrategy.Engine}. Called once, when
+     * the first engine is created for the machine.
+     */
+    void compile() {
+        if (compiled) return;
+
+        Assertion.assertStrict(!stateNames.isEmpty(), Level.ERR, "The strategy machine has no states");
+
+        int numInputs = inputs.size();
+        int numGuards = guards.size();
+        int numStates = stateNames.size();
+        int numTransitions = transitions.size();
+
+        inputKind = new int[numInputs];
+        inputWindow = new int[numInputs];
+
+        for (int i = 0; i < numInputs; i++) {
+            inputKind[i] = inputs.get(i).ordinal();
+            inputWindow[i] = inputWindows.get(i);
+        }
+
+        guardComparison = new int[numGuards];
+        guardLhs = new int[numGuards];
+        guardRhs = new int[numGuards];
+        guardScale = new int[numGuards];
+        guardOffset = new double[numGuards];
+
+        for (int g = 0; g < numGuards; g++) {
+            int [] guard = guards.get(g);
+
+            guardComparison[g] = guard[0];
+            guardLhs[g] = guard[1];
+            guardRhs[g] = guard[2];
+            guardScale[g] = guard[3];
+            guardOffset[g] = guardOffsets.get(g);
+        }
+
+        exposure = new double[numStates];
+        transitionStart = new int[numStates + 1];
+        transitionGuard = new int[numTransitions];
+        transitionTarget = new int[numTransitions];
+
+        for (int s = 0; s < numStates; s++)
+            exposure[s] = stateExposures.get(s);
+
+        for (int [] transition : transitions)       // count the transitions out of each state, then fill them in by state, in order
+            transitionStart[transition[0] + 1]++;
+
+        for (int s = 0; s < numStates; s++)
+            transitionStart[s + 1] += transitionStart[s];
+
+        int [] next = new int[numStates];
+
+        System.arraycopy(transitionStart, 0, next, 0, numStates);
+
+        for (int [] transition : transitions) {
+            int t = next[transition[0]]++;
+
+            transitionGuard[t] = transition[1];
+            transitionTarget[t] = transition[2];
+        }
+
+        compiled = true;
+    }
+
+    private int addInput(Input input, int window) {
+        assertNotCompiled();
+
+        if (input.ordinal() >= Input.MOVING_AVERAGE.ordinal())
+            Assertion.assertStrict(window > 0, Level.ERR, "The window of the input " + input + " has to be greater than '0'");
+
+        for (int i = 0; i < inputs.size(); i++)     // the same input is read once
+            if ((inputs.get(i) == input) && (inputWindows.get(i) == window))
+                return i;
+
+        inputs.add(input);
+        inputWindows.add(window);
+        maxWindow = Math.max(maxWindow, window);
+
+        return inputs.size() - 1;
+    }
+
+    private void assertInput(int input) {
+        Assertion.assertStrict((input >= 0) && (input < inputs.size()), Level.ERR, "The input " + input + " has not been added");
+    }
+
+    private void assertNotCompiled() {
+        Assertion.assertStrict(!compiled, Level.ERR, "The strategy machine cannot be changed once a strategy uses it");
+    }
+}
@@ -12,6 +12,7 @@
  */
 package info.financialecology.finance.abm.model.strategy;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -23,7 +24,8 @@ import info.financialecology.finance.abm.model.util.TradingPortfolio;
  */
 public interface TradingStrategy {
     
-    public class Order {
+    @SuppressWarnings("serial")
+    public class Order implements Serializable {
         private String secId;
         private double order;
         
@@ -15,20 +15,20 @@
  */
 package info.financialecology.finance.abm.model.strategy;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 
 import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.PositionUpdateValue;
 import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.VariabilityCapFactorValue;
+import info.financialecology.finance.abm.model.util.IndicatorCache;
 import info.financialecology.finance.abm.model.util.TradingPortfolio;
 import info.financialecology.finance.utilities.Assertion;
 import info.financialecology.finance.utilities.WorldClock;
 import info.financialecology.finance.utilities.Assertion.Level;
 import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
-import info.financialecology.finance.utilities.statistics.StatsTimeSeries;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import info.financialecology.finance.utilities.output.TraceRecorder;
 
 import cern.colt.list.DoubleArrayList;
 
@@ -48,10 +48,12 @@ import cern.colt.list.DoubleArrayList;
  *
  */
 
-public class TrendMABCStrategy implements TradingStrategy {
+@SuppressWarnings("serial")
+public class TrendMABCStrategy implements TradingStrategy, Serializable {
 
-    // Logging information and errors
-    private static Logger logger = LoggerFactory.getLogger(TrendMABCStrategy.class);
+    // Tracing of the decisions, see TraceRecorder
+    private static final int TRACE_TREND = TraceRecorder.registerEventType("TREND", "maShort", "maLong", "position");
+    private static final int TRACE_CHANNEL = TraceRecorder.registerEventType("TREND_CHANNEL", "min", "max");
 //    private TrendValueAbmSimulator simulator;
     
     /**
@@ -67,7 +69,7 @@ public class TrendMABCStrategy implements TradingStrategy {
     private int maLongTicks;
     private int bcTicks;
     private int lastEntryTick = -1; // tick at which last order was placed - default '-1' indicates there are no previous orders
-    private int previousTick  = -1; // flag to ensure trade() is called at every tick
+    private int previousTick  = -1; // flag to ensure trade() is called at most once per tick; a trader that wakes up at intervals skips ticks
     private double capFactor;       // multiplier for size of investment 
     
     private double warmUpPeriod;    // the warm-up period needed for this trading strategy, in ticks
@@ -80,14 +82,19 @@ public class TrendMABCStrategy implements TradingStrategy {
     private double maLong_previous_tick     = 0;        // given: long-run (slow) moving average at t-1
     private double maShort_current_tick     = 0;        // compute: short-run moving average at t
     private double maLong_current_tick      = 0;        // compute: long-run moving average at t
-    private Boolean forceFullMACalc         = false;    // enforces a full moving average calculation if no trade was made at the previous time step
     
-    private boolean firstMAShortCalculation = true;     // the first calculation needs to use the full MA method, after that incremental
-    private boolean firstMALongCalculation  = true;
     private boolean isSlopeDefined  = false;            // to calculate the slope of the MA, we need to wait for the second MA calculation
 
     private DoubleTimeSeries tsPrice;       // time series of prices - an input to TrendMABC
+    
+    private IndicatorCache.MovingAverage maShort;   // indicators of the price, shared with the other strategies on the same share
+    private IndicatorCache.MovingAverage maLong;
+    private IndicatorCache.Channel exitChannel;
+    private IndicatorCache.StdDev stdDevPrices;     // only if the multiplier uses the standard deviation of prices
 //    private DoubleTimeSeries tsPos;         // time series of positions - an output of TrendMABC
+
+    private double accumulatedWealth = 0;   // wealth increment accumulated up to wealthTick, for a variable capFactor
+    private int wealthTick = 0;             // last tick included in accumulatedWealth
     
     private int volWindowStrat;             // window for the calculation of volatility    
     
@@ -129,6 +136,9 @@ public class TrendMABCStrategy implements TradingStrategy {
     private Order order;                    // the order of the share 
     private HashSet<String> secIds;         // the security identifier
     
+    private Batch batch = null;             // the batch that computes the position of this strategy, see Batch; null if the strategy computes it itself
+    private int batchIndex;                 // index of this strategy in the batch
+    
     private double automaticNormFactor    = 1.0;  // the (automatically calculated) factor to normalise the orders of VALUE and TREND traders 
     private double manualNormFactor = 1.0;  // the (manually calculated) factor to normalise the orders of VALUE and TREND traders
         
@@ -146,6 +156,29 @@ public class TrendMABCStrategy implements TradingStrategy {
                              VariabilityCapFactorTrend variabilityCapFactor,
                              ShortSellingTrend shortSelling) {
         
+        this(secId, maShortTicks, maLongTicks, bcTicks, capFactor, tsPrice, volWindowStrat, multiplier, positionUpdate, 
+                orderOrPositionStrategy, variabilityCapFactor, shortSelling, new IndicatorCache());
+    }
+    
+    /**
+     * Constructor for a strategy that reads its moving averages, exit channel and volatility from 
+     * {@code indicators}, so that they are computed once for all strategies with the same windows
+     * on the same share (see {@link info.financialecology.finance.abm.model.ShareMarket#getIndicators()})
+     */
+    public TrendMABCStrategy(String secId,
+                             int maShortTicks, 
+                             int maLongTicks, 
+                             int bcTicks, 
+                             double capFactor, 
+                             DoubleTimeSeries tsPrice,
+                             int volWindowStrat,
+                             MultiplierTrend multiplier,
+                             PositionUpdateTrend positionUpdate,
+                             OrderOrPositionStrategyTrend orderOrPositionStrategy,
+                             VariabilityCapFactorTrend variabilityCapFactor,
+                             ShortSellingTrend shortSelling,
+                             IndicatorCache indicators) {
+        
         Assertion.assertStrict((secId != null) && (secId.compareTo("") != 0), Level.ERR, "secId cannot be null or an empty string");
         Assertion.assertStrict(maShortTicks < maLongTicks, Level.ERR, "maLong = " + maLongTicks + " has to be " +
                 "strictly greater than maShort = " + maShortTicks);
@@ -176,6 +209,13 @@ public class TrendMABCStrategy implements TradingStrategy {
         this.secIds = new HashSet<String>();
         this.secIds.add(secId);
         
+        this.maShort = indicators.getMovingAverage(tsPrice, maShortTicks);
+        this.maLong = indicators.getMovingAverage(tsPrice, maLongTicks);
+        this.exitChannel = indicators.getChannel(tsPrice, bcTicks);
+        
+        if ((multiplier == MultiplierTrend.MA_SLOPE_DIFFERENCE_STDDEV) || (multiplier == MultiplierTrend.STDDEV))
+            this.stdDevPrices = indicators.getStdDev(tsPrice, volWindowStrat);
+        
         if ((multiplier == MultiplierTrend.MA_SLOPE_DIFFERENCE_STDDEV) || (multiplier == MultiplierTrend.STDDEV)) {   // TODO no need to compare with maShortTicks
         	this.warmUpPeriod = Math.max(volWindowStrat, Math.max(maLongTicks, Math.max(maShortTicks, bcTicks)));
         }
@@ -241,12 +281,35 @@ public class TrendMABCStrategy implements TradingStrategy {
     public int getBcTicks() {
         return bcTicks;
     }
+    
+    /**
+     * Get the capFactor used by the strategy
+     */
+    public double getCapFactor() {
+        return capFactor;
+    }
+    
+    /**
+     * Get a key for the parameters of the strategy other than the size of capFactor. Two strategies
+     * with the same key, trading on the same prices, take positions that are proportional to their 
+     * capFactor at every tick: the position is linear in capFactor and the entry and exit conditions 
+     * only depend on its sign. 
+     * 
+     * @return the key, or null if the capFactor varies with the wealth of the strategy, which breaks
+     * the proportionality
+     */
+    public String getCohortKey() {
+        if (variabilityCapFactor == VariabilityCapFactorTrend.VARIABLE)
+            return null;
+        
+        return order.getSecId() + "," + maShortTicks + "," + maLongTicks + "," + bcTicks + "," + volWindowStrat + "," + 
+                multiplier + "," + positionUpdate + "," + orderOrPositionStrategy + "," + shortSelling + "," + Math.signum(capFactor);
+    }
 
 
     /**
-     * Compute the position and order for the current trade. If there was no trade placed at the
-     * previous tick, then force a full moving average calculation. Otherwise use the more efficient
-     * {@code incrementalMA(...)} algorithm
+     * Compute the position and order for the current trade. The moving averages are read from the
+     * shared indicators, which are computed incrementally
      *     
      */
     public void trade(TradingPortfolio portfolio) {
@@ -256,17 +319,26 @@ public class TrendMABCStrategy implements TradingStrategy {
         String secId = order.getSecId();
         DoubleTimeSeries tsPos = portfolio.getTsPosition(secId);
         
-        if (tick == previousTick + 1) { // incremental MA or full MA?
+        if (tick > previousTick)    // the moving averages are shared indicators, updated at every tick even if trade() is not called
             previousTick = tick;
-            forceFullMACalc = false;
-        }
-        else {
+        else
             Assertion.assertStrict(false, Level.INFO, "The method trade() in the class TrendMABCStrategy " +
-            		"has not been called at the previous tick t=" + previousTick + ", so that the full MA" +
-            	    "calculation will be used to compute the new position");
-            forceFullMACalc = true;
+            		"has already been called at the tick t=" + previousTick);
+        
+        if (batch != null) {    // the position is computed together with the other trend strategies on the share
+            tsPos.add(tick, batch.getPosition(batchIndex, tick));
+            
+            if (tick >= warmUpPeriod) {
+                order.setOrder(tsPos.get(tick) - tsPos.get(tick - 1));
+                trace(tick, tsPos, batch.getMaShort(batchIndex), batch.getMaLong(batchIndex), batch.getLastEntryTick(batchIndex));
+            }
+            
+            return;
         }
         
+        if (variabilityCapFactor == VariabilityCapFactorTrend.VARIABLE)
+            accumulatedWealth(tsPos, tick);    // keep the accumulated wealth up to date during the warm-up
+        
         if (tick < warmUpPeriod) {  // no positions and orders are calculated during warm-up 
             tsPos.add(tick, 0.0);
             return;
@@ -274,34 +346,11 @@ public class TrendMABCStrategy implements TradingStrategy {
         
         
         /*
-         * Compute the new moving averages at the current tick. If they are computed for the first time, 
-         * use the full MA computation. Otherwise, use the incremental computation.
-         * 
-         * This requires for now that trade() is called at every tick, which may 
-         * not be feasible. See TODO comment above
-         * 
+         * Read the moving averages at the current tick. They are shared with the other strategies 
+         * with the same windows and computed once per tick.
          */
-        if (firstMAShortCalculation) {
-            maShort_current_tick = StatsTimeSeries.fullMA(tsPrice, maShortTicks);
-            firstMAShortCalculation = false;
-        }
-        else {
-            if (forceFullMACalc)
-                maShort_current_tick = StatsTimeSeries.fullMA(tsPrice, maShortTicks);
-            else
-                maShort_current_tick = StatsTimeSeries.incrementalMA(tsPrice, maShortTicks, maShort_previous_tick);            
-        }
-        
-        if (firstMALongCalculation) {
-            maLong_current_tick = StatsTimeSeries.fullMA(tsPrice, maLongTicks);
-            firstMALongCalculation = false;
-        }
-        else {
-            if (forceFullMACalc)
-                maLong_current_tick = StatsTimeSeries.fullMA(tsPrice, maLongTicks);
-            else
-                maLong_current_tick = StatsTimeSeries.incrementalMA(tsPrice, maLongTicks, maLong_previous_tick);
-        }
+        maShort_current_tick = maShort.get();
+        maLong_current_tick = maLong.get();
         
  
         /*
@@ -348,8 +397,7 @@ public class TrendMABCStrategy implements TradingStrategy {
                 double slopeShort_t = Math.atan(maShort_current_tick - maShort_previous_tick); 
                 double slopeLong_t = Math.atan(maLong_current_tick - maLong_previous_tick);
                 double deltaSlope_t = slopeShort_t - slopeLong_t;
-                double stdDevPrices_t = StatsTimeSeries.stdDev(tsPrice, volWindowStrat);   // Computing the standard deviation of prices
-                																		   // TODO: stdDev should be calculated using the incrementalVariance() method
+                double stdDevPrices_t = stdDevPrices.get();   // Computing the standard deviation of prices
                 
                 position = capFactor * Math.abs(deltaSlope_t) / stdDevPrices_t;
                 manualNormFactor = 25;
@@ -361,7 +409,7 @@ public class TrendMABCStrategy implements TradingStrategy {
         }
         else if (multiplier == MultiplierTrend.STDDEV) {     // Computing the standard deviation of prices
             
-            double stdDevPrices_t = StatsTimeSeries.stdDev(tsPrice, volWindowStrat);   // TODO: stdDev should be calculated using the incrementalVariance() method
+            double stdDevPrices_t = stdDevPrices.get();
              
             position = capFactor / stdDevPrices_t;     // TODO this needs to be normalised and calibrated properly
             manualNormFactor = 8;
@@ -375,7 +423,7 @@ public class TrendMABCStrategy implements TradingStrategy {
          */
         double wealthFactor = 1;        
         if (variabilityCapFactor == VariabilityCapFactorTrend.VARIABLE) {
-	        double deltaWealth = StatsTimeSeries.deltaWealth(tsPrice, tsPos).get(tick-1);
+	        double deltaWealth = accumulatedWealth(tsPos, tick);
 	        if (deltaWealth > 1) {
 	        	wealthFactor = 1 + Math.log(deltaWealth);
 	        }
@@ -433,8 +481,8 @@ public class TrendMABCStrategy implements TradingStrategy {
         else if ((tsPos.get(tick - 1) != 0) && (lastEntryTick != -1)) {
             if (lastEntryTick <= tick - bcTicks) {  // last entry, or order, needs to lie outside of bcTicks window
             	
-                double maExitMax = maxValue(tsPrice, bcTicks); 
-                double maExitMin = minValue(tsPrice, bcTicks);
+                double maExitMax = exitChannel.getMax(); 
+                double maExitMin = exitChannel.getMin();
                 
                 if (((tsPrice.get(tick) <= maExitMin) && (tsPos.get(tick - 1) > 0)) ||
                     ((tsPrice.get(tick) >= maExitMax) && (tsPos.get(tick - 1) < 0)))
@@ -484,13 +532,7 @@ public class TrendMABCStrategy implements TradingStrategy {
             order.setOrder(tsPos.get(tick) - tsPos.get(tick - 1));
         }
         
-        logger.trace("(MA_short, MA_long) = ({}, {})", maShort_current_tick, maLong_current_tick);
-        logger.trace("Price_{}: {}", tick, tsPrice.get(tick));
-        logger.trace("Pos_{}: {}", tick, tsPos.get(tick));
-        
-        if (tsPos.get(tick-1) != 0 && lastEntryTick <= tick - bcTicks) {
-        	logger.trace("(MIN, MAX) = ({}, {})", minValue(tsPrice, bcTicks), maxValue(tsPrice, bcTicks));
-        }
+        trace(tick, tsPos, maShort_current_tick, maLong_current_tick, lastEntryTick);
         
         // Shift ma_t to ma_t_minus_1
         maShort_previous_tick = maShort_current_tick;
@@ -499,6 +541,40 @@ public class TrendMABCStrategy implements TradingStrategy {
 
     
     
+    /**
+     * Record the moving averages and the position at the tick, and the exit channel if the position 
+     * can be closed, see {@link TraceRecorder}
+     */
+    private void trace(int tick, DoubleTimeSeries tsPos, double maShort, double maLong, int lastEntryTick) {
+        TraceRecorder tracer = TraceRecorder.current();
+        
+        if ((tracer == null) || !tracer.isTraced(tick, tracer.getCurrentAgent()))
+            return;
+        
+        int asset = tracer.asset(order.getSecId());
+        
+        tracer.record(tick, TRACE_TREND, tracer.getCurrentAgent(), asset, maShort, maLong, tsPos.get(tick));
+        
+        if (tsPos.get(tick-1) != 0 && lastEntryTick <= tick - bcTicks)
+            tracer.record(tick, TRACE_CHANNEL, tracer.getCurrentAgent(), asset, minValue(tsPrice, bcTicks), maxValue(tsPrice, bcTicks), 0);
+    }
+    
+    
+    /**
+     * Wealth accumulated up to tick {@code tick - 1}, equal to {@code StatsTimeSeries.deltaWealth(tsPrice, tsPos).get(tick - 1)}. 
+     * Updated incrementally, so it must be called at every tick; this avoids traversing the full history 
+     * of prices and positions at each tick.
+     */
+    private double accumulatedWealth(DoubleTimeSeries tsPos, int tick) {
+        while (wealthTick < tick - 1) {
+            wealthTick++;
+            accumulatedWealth += tsPos.get(wealthTick - 1) * (tsPrice.get(wealthTick) - tsPrice.get(wealthTick - 1));
+        }
+        
+        return accumulatedWealth;
+    }
+
+
     /**
      * Calculates the maximum value of a time series over a given window.
      * @param values Input time series
@@ -556,4 +632,310 @@ public class TrendMABCStrategy implements TradingStrategy {
         return minValue;
     }
     
-}
\ No newline at end of file
+    
+    
+    /**
+     * Trend strategies on the same share, evaluated together. The parameters and state of the strategies 
+     * are held in parallel arrays, and at each tick the positions of all strategies are computed in one 
+     * loop, the first time one of the strategies trades. The moving averages are read once per tick for 
+     * each distinct window. The positions are the same as if each strategy computed its own.
+     * <p>
+     * Add the strategies before the first tick of the run; from then on, the state of a strategy is kept 
+     * in the batch.
+     */
+    public static class Batch implements Serializable {
+        
+        private DoubleTimeSeries tsPrice;
+        private ArrayList<TrendMABCStrategy> strategies = new ArrayList<TrendMABCStrategy>();
+        private ArrayList<DoubleTimeSeries> positionSeries = new ArrayList<DoubleTimeSeries>();
+        private int evaluatedTick = -1;         // tick of the last evaluation; -1 before the first
+        private int size = 0;                   // number of strategies in the arrays, 0 until the first evaluation
+        
+        private IndicatorCache.MovingAverage [] averages;   // distinct moving averages of the prices
+        private int [] averageStart;            // first tick at which a strategy reads the moving average
+        private double [] averageValues;        // the moving averages at the current tick
+        
+        private int [] maShortIndex;            // parameters of the strategies
+        private int [] maLongIndex;
+        private int [] bcTicks;
+        private double [] capFactor;
+        private double [] warmUpPeriod;
+        private double [] normFactor;
+        private MultiplierTrend [] multiplier;
+        private boolean [] variablePosition;
+        private boolean [] orderBased;
+        private boolean [] variableCapFactor;
+        private boolean [] shortSellingAllowed;
+        private IndicatorCache.Channel [] exitChannel;
+        private IndicatorCache.StdDev [] stdDevPrices;
+        private DoubleTimeSeries [] tsPos;
+        
+        private double [] maShortPrevious;      // state of the strategies
+        private double [] maLongPrevious;
+        private boolean [] isSlopeDefined;
+        private int [] lastEntryTick;
+        private double [] accumulatedWealth;
+        private int [] wealthTick;
+        
+        private double [] position;             // the positions at the current tick
+        
+        /**
+         * @param tsPrice the prices of the share, the same for all strategies of the batch
+         */
+        public Batch(DoubleTimeSeries tsPrice) {
+            this.tsPrice = tsPrice;
+        }
+        
+        /**
+         * Add a strategy to the batch. Its positions are written to its own time series when it trades.
+         * 
+         * @param strategy a strategy on the prices of the batch, not yet in a batch
+         * @param portfolio the portfolio of the trader that owns the strategy
+         */
+        public void add(TrendMABCStrategy strategy, TradingPortfolio portfolio) {
+            Assertion.assertStrict(strategy.tsPrice == tsPrice, Level.ERR, "The strategy on '" + strategy.getUniqueId() + 
+                    "' does not trade on the prices of the batch");
+            Assertion.assertStrict((strategy.batch == null) && (evaluatedTick == -1), Level.ERR, "Strategies need to be added " +
+                    "to a single batch, before the batch is evaluated");
+            
+            strategy.batch = this;
+            strategy.batchIndex = strategies.size();
+            strategies.add(strategy);
+            positionSeries.add(portfolio.getTsPosition(strategy.getUniqueId()));
+        }
+        
+        /**
+         * @return the number of strategies in the batch
+         */
+        public int size() {
+            return strategies.size();
+        }
+        
+        /**
+         * @return the position of strategy {@code index} at tick {@code tick}, evaluating the batch if needed
+         */
+        double getPosition(int index, int tick) {
+            if (tick != evaluatedTick)
+                evaluate(tick);
+            
+            return position[index];
+        }
+        
+        /**
+         * @return the short moving average of strategy {@code index} at the tick of the last evaluation
+         */
+        double getMaShort(int index) {
+            return averageValues[maShortIndex[index]];
+        }
+        
+        /**
+         * @return the long moving average of strategy {@code index} at the tick of the last evaluation
+         */
+        double getMaLong(int index) {
+            return averageValues[maLongIndex[index]];
+        }
+        
+        int getLastEntryTick(int index) {
+            return lastEntryTick[index];
+        }
+        
+        /**
+         * Copy the parameters and the initial state of the strategies into the arrays
+         */
+        private void pack() {
+            size = strategies.size();
+            
+            IdentityHashMap<IndicatorCache.MovingAverage, Integer> averageIds = new IdentityHashMap<IndicatorCache.MovingAverage, Integer>();
+            ArrayList<IndicatorCache.MovingAverage> distinctAverages = new ArrayList<IndicatorCache.MovingAverage>();
+            ArrayList<Double> starts = new ArrayList<Double>();
+            
+            maShortIndex = new int[size];
+            maLongIndex = new int[size];
+            bcTicks = new int[size];
+            capFactor = new double[size];
+            warmUpPeriod = new double[size];
+            normFactor = new double[size];
+            multiplier = new MultiplierTrend[size];
+            variablePosition = new boolean[size];
+            orderBased = new boolean[size];
+            variableCapFactor = new boolean[size];
+            shortSellingAllowed = new boolean[size];
+            exitChannel = new IndicatorCache.Channel[size];
+            stdDevPrices = new IndicatorCache.StdDev[size];
+            tsPos = positionSeries.toArray(new DoubleTimeSeries[size]);
+            
+            maShortPrevious = new double[size];
+            maLongPrevious = new double[size];
+            isSlopeDefined = new boolean[size];
+            lastEntryTick = new int[size];
+            accumulatedWealth = new double[size];
+            wealthTick = new int[size];
+            position = new double[size];
+            
+            for (int i = 0; i < size; i++) {
+                TrendMABCStrategy strategy = strategies.get(i);
+                
+                for (IndicatorCache.MovingAverage average : new IndicatorCache.MovingAverage[] {strategy.maShort, strategy.maLong}) {
+                    Integer id = averageIds.get(average);
+                    
+                    if (id == null) {
+                        averageIds.put(average, distinctAverages.size());
+                        distinctAverages.add(average);
+                        starts.add(strategy.warmUpPeriod);
+                    }
+                    else
+                        starts.set(id, Math.min(starts.get(id), strategy.warmUpPeriod));
+                }
+                
+                Assertion.assertStrict((strategy.positionUpdate == PositionUpdateTrend.CONSTANT) || 
+                        (strategy.positionUpdate == PositionUpdateTrend.VARIABLE), Level.ERR, "The method for positionUpdate " + 
+                        strategy.positionUpdate + " is not implemented");
+                
+                maShortIndex[i] = averageIds.get(strategy.maShort);
+                maLongIndex[i] = averageIds.get(strategy.maLong);
+                bcTicks[i] = strategy.bcTicks;
+                capFactor[i] = strategy.capFactor;
+                warmUpPeriod[i] = strategy.warmUpPeriod;
+                normFactor[i] = normFactor(strategy.multiplier);
+                multiplier[i] = strategy.multiplier;
+                variablePosition[i] = (strategy.positionUpdate == PositionUpdateTrend.VARIABLE);
+                orderBased[i] = (strategy.orderOrPositionStrategy == OrderOrPositionStrategyTrend.ORDER);
+                variableCapFactor[i] = (strategy.variabilityCapFactor == VariabilityCapFactorTrend.VARIABLE);
+                shortSellingAllowed[i] = (strategy.shortSelling == ShortSellingTrend.ALLOWED);
+                exitChannel[i] = strategy.exitChannel;
+                stdDevPrices[i] = strategy.stdDevPrices;
+                
+                maShortPrevious[i] = strategy.maShort_previous_tick;
+                maLongPrevious[i] = strategy.maLong_previous_tick;
+                isSlopeDefined[i] = strategy.isSlopeDefined;
+                lastEntryTick[i] = strategy.lastEntryTick;
+                accumulatedWealth[i] = strategy.accumulatedWealth;
+                wealthTick[i] = strategy.wealthTick;
+            }
+            
+            averages = distinctAverages.toArray(new IndicatorCache.MovingAverage[distinctAverages.size()]);
+            averageStart = new int[averages.length];
+            averageValues = new double[averages.length];
+            
+            for (int h = 0; h < averages.length; h++)
+                averageStart[h] = (int) Math.ceil(starts.get(h));
+        }
+        
+        /**
+         * Compute the positions of all strategies at tick {@code tick}, as in {@link TrendMABCStrategy#trade(TradingPortfolio)}
+         */
+        private void evaluate(int tick) {
+            if (evaluatedTick == -1)
+                pack();
+            
+            for (int h = 0; h < averages.length; h++)
+                if (tick >= averageStart[h])
+                    averageValues[h] = averages[h].get();
+            
+            double price_t = tsPrice.get(tick);
+            
+            for (int i = 0; i < size; i++) {
+                
+                if (variableCapFactor[i]) {     // keep the accumulated wealth up to date during the warm-up
+                    while (wealthTick[i] < tick - 1) {
+                        wealthTick[i]++;
+                        accumulatedWealth[i] += tsPos[i].get(wealthTick[i] - 1) * (tsPrice.get(wealthTick[i]) - tsPrice.get(wealthTick[i] - 1));
+                    }
+                }
+                
+                if (tick < warmUpPeriod[i]) {
+                    position[i] = 0.0;
+                    continue;
+                }
+                
+                double maShort_t = averageValues[maShortIndex[i]];
+                double maLong_t = averageValues[maLongIndex[i]];
+                double size_t = 0;      // size of the position, from the multiplier
+                
+                switch (multiplier[i]) {
+                case CONSTANT:
+                    size_t = capFactor[i];
+                    break;
+                case FAST_MA_SLOPE:
+                    if (isSlopeDefined[i])
+                        size_t = capFactor[i] * Math.abs(Math.atan(maShort_t - maShortPrevious[i]));
+                    else
+                        isSlopeDefined[i] = true;
+                    break;
+                case MA_SLOPE_DIFFERENCE:
+                    if (isSlopeDefined[i])
+                        size_t = capFactor[i] * Math.abs(Math.atan(maShort_t - maShortPrevious[i]) - Math.atan(maLong_t - maLongPrevious[i]));
+                    else
+                        isSlopeDefined[i] = true;
+                    break;
+                case MA_SLOPE_DIFFERENCE_STDDEV:
+                    if (isSlopeDefined[i])
+                        size_t = capFactor[i] * Math.abs(Math.atan(maShort_t - maShortPrevious[i]) - Math.atan(maLong_t - maLongPrevious[i])) / 
+                                stdDevPrices[i].get();
+                    else
+                        isSlopeDefined[i] = true;
+                    break;
+                case STDDEV:
+                    size_t = capFactor[i] / stdDevPrices[i].get();
+                    break;
+                }
+                
+                double wealthFactor = 1;
+                
+                if (variableCapFactor[i]) {
+                    if (accumulatedWealth[i] > 1)
+                        wealthFactor = 1 + Math.log(accumulatedWealth[i]);
+                    if (accumulatedWealth[i] < 0)
+                        wealthFactor = Math.exp(accumulatedWealth[i]);
+                }
+                
+                size_t = size_t * normFactor[i] * wealthFactor;
+                
+                double pos_t_1 = tsPos[i].get(tick - 1);
+                
+                if ((maShortPrevious[i] < maLongPrevious[i]) && (maShort_t >= maLong_t) && (pos_t_1 == 0.0)) {
+                    position[i] = size_t;
+                    lastEntryTick[i] = tick;
+                }
+                else if (shortSellingAllowed[i] && (maShortPrevious[i] > maLongPrevious[i]) && (maShort_t <= maLong_t) && (pos_t_1 == 0.0)) {
+                    position[i] = - size_t;
+                    lastEntryTick[i] = tick;
+                }
+                else if ((pos_t_1 != 0) && (lastEntryTick[i] != -1)) {
+                    if ((lastEntryTick[i] <= tick - bcTicks[i]) && 
+                            (((price_t <= exitChannel[i].getMin()) && (pos_t_1 > 0)) || ((price_t >= exitChannel[i].getMax()) && (pos_t_1 < 0))))
+                        position[i] = 0.0;
+                    else if (!variablePosition[i])
+                        position[i] = pos_t_1;     // no change in the position
+                    else if (orderBased[i])
+                        position[i] = pos_t_1 + Math.abs(size_t) * Math.signum(pos_t_1);
+                    else
+                        position[i] = Math.abs(size_t) * Math.signum(pos_t_1);
+                }
+                else
+                    position[i] = pos_t_1;         // no change in the position
+                
+                maShortPrevious[i] = maShort_t;
+                maLongPrevious[i] = maLong_t;
+            }
+            
+            evaluatedTick = tick;
+        }
+        
+        /**
+         * The factor that normalises the positions for each multiplier, as in {@link TrendMABCStrategy#trade(TradingPortfolio)}
+         */
+        private static double normFactor(MultiplierTrend multiplier) {
+            switch (multiplier) {
+            case CONSTANT:                      return 12;
+            case FAST_MA_SLOPE:                 return 16;
+            case MA_SLOPE_DIFFERENCE:           return 25;
+            case MA_SLOPE_DIFFERENCE_STDDEV:    return 25;
+            case STDDEV:                        return 8;
+            default:
+                Assertion.assertStrict(false, Level.ERR, "The method for multiplier " + multiplier + " is not implemented");
+                return 0;
+            }
+        }
+    }
+}
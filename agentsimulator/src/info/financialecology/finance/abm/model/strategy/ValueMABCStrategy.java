@@ -15,6 +15,7 @@
  */
 package info.financialecology.finance.abm.model.strategy;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -23,12 +24,10 @@ import info.financialecology.finance.utilities.Assertion;
 import info.financialecology.finance.utilities.WorldClock;
 import info.financialecology.finance.utilities.Assertion.Level;
 import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+import info.financialecology.finance.utilities.output.TraceRecorder;
 import info.financialecology.finance.utilities.statistics.StatsTimeSeries;
 import info.financialecology.finance.abm.model.util.TradingPortfolio;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 
 /**
  * A class that implements a (single asset) fundamental strategy inspired in the fundamental strategy 
@@ -40,10 +39,11 @@ import org.slf4j.LoggerFactory;
  * 
  * @author Barbara Llacay
  */
-public class ValueMABCStrategy implements TradingStrategy {
+@SuppressWarnings("serial")
+public class ValueMABCStrategy implements TradingStrategy, Serializable {
 
-    // Logging information and errors
-    private static Logger logger = LoggerFactory.getLogger(ValueMABCStrategy.class);
+    // Tracing of the decisions, see TraceRecorder
+    private static final int TRACE_VALUE = TraceRecorder.registerEventType("VALUE", "fundValue", "ownValue", "position");
     
     /*
      *  Parameters
@@ -65,6 +65,9 @@ public class ValueMABCStrategy implements TradingStrategy {
     private OrderOrPositionStrategyValue orderOrPositionStrategy;   // specifies if the strategy is order-based or position-based
     private VariabilityCapFactorValue variabilityCapFactor;         // specifies if the capFactor is constant or varies based on the agent performance
     private ShortSellingValue shortSelling;        // specifies if short-selling is allowed
+
+    private double accumulatedWealth = 0;   // wealth increment accumulated up to wealthTick, for a variable capFactor
+    private int wealthTick = 0;             // last tick included in accumulatedWealth
     
     public enum PositionUpdateValue {   // Method to calculate the size of the position
         CONSTANT,                       // the position is kept constant while it is open
@@ -96,6 +99,9 @@ public class ValueMABCStrategy implements TradingStrategy {
     
     private Order order;   // the order of the shares
     private HashSet<String> secIds;          // the security identifier
+    
+    private Batch batch = null;             // the batch that computes the position of this strategy, see Batch; null if the strategy computes it itself
+    private int batchIndex;                 // index of this strategy in the batch
 
     /** Constructor
      * 
@@ -223,6 +229,17 @@ public class ValueMABCStrategy implements TradingStrategy {
         String secId = order.getSecId();
         DoubleTimeSeries tsPos = portfolio.getTsPosition(secId);
         
+        if (batch != null) {    // the position is computed together with the other value strategies on the share
+            tsPos.add(tick, batch.getPosition(batchIndex, tick));
+            
+            if (tick > 0) {
+                order.setOrder(tsPos.get(tick) - tsPos.get(tick - 1));
+                trace(tick, tsPos.get(tick));
+            }
+            
+            return;
+        }
+        
         /*
          *    - Entry condition for long position
          *    - Entry condition for short position
@@ -264,7 +281,7 @@ public class ValueMABCStrategy implements TradingStrategy {
         // Factor to update capFactor IF this varies based on performance
         double wealthFactor = 1;        
         if (variabilityCapFactor == VariabilityCapFactorValue.VARIABLE && tick != 0) {
-	        double deltaWealth = StatsTimeSeries.deltaWealth(tsPrice, tsPos).get(tick-1);
+	        double deltaWealth = accumulatedWealth(tsPos, tick);
 	        if (deltaWealth > 1) {
 	        	wealthFactor = 1 + Math.log(deltaWealth);
 	        }
@@ -368,10 +385,219 @@ public class ValueMABCStrategy implements TradingStrategy {
             order.setOrder(tsPos.get(tick) - tsPos.get(tick - 1));
         }
         
-        logger.trace("Price_{}: {}", tick, tsPrice.get(tick));
-        logger.trace("Generic value_{}: {}", tick, tsFundValue.get(tick));
-        logger.trace("Own value_{}: {}", tick, ownValue_t);
-        logger.trace("Pos_{}: {}", tick, tsPos.get(tick));
+        trace(tick, tsPos.get(tick));
+    }
+    
+    
+    /**
+     * Record the fundamental value, the own value and the position at the tick, see {@link TraceRecorder}
+     */
+    private void trace(int tick, double position) {
+        TraceRecorder tracer = TraceRecorder.current();
+        
+        if ((tracer != null) && tracer.isTraced(tick, tracer.getCurrentAgent()))
+            tracer.record(tick, TRACE_VALUE, tracer.getCurrentAgent(), tracer.asset(order.getSecId()), tsFundValue.get(tick), 
+                    tsFundValue.get(tick) + valueOffset, position);
+    }
+    
+    
+    /**
+     * Wealth accumulated up to tick {@code tick - 1}, equal to {@code StatsTimeSeries.deltaWealth(tsPrice, tsPos).get(tick - 1)}. 
+     * Updated incrementally, so it must be called at every tick; this avoids traversing the full history 
+     * of prices and positions at each tick.
+     */
+    private double accumulatedWealth(DoubleTimeSeries tsPos, int tick) {
+        while (wealthTick < tick - 1) {
+            wealthTick++;
+            accumulatedWealth += tsPos.get(wealthTick - 1) * (tsPrice.get(wealthTick) - tsPrice.get(wealthTick - 1));
+        }
+        
+        return accumulatedWealth;
     }
     
-}
\ No newline at end of file
+    
+    
+    /**
+     * Value strategies on the same share, evaluated together. The parameters and state of the strategies 
+     * are held in parallel arrays, and at each tick the positions of all strategies are computed in one 
+     * loop, the first time one of the strategies trades. The positions are the same as if each strategy 
+     * computed its own.
+     * <p>
+     * Add the strategies before the first tick of the run; from then on, the state of a strategy is kept 
+     * in the batch.
+     */
+    public static class Batch implements Serializable {
+        
+        private DoubleTimeSeries tsPrice;
+        private DoubleTimeSeries tsFundValue;
+        private ArrayList<ValueMABCStrategy> strategies = new ArrayList<ValueMABCStrategy>();
+        private ArrayList<DoubleTimeSeries> positionSeries = new ArrayList<DoubleTimeSeries>();
+        private int evaluatedTick = -1;         // tick of the last evaluation; -1 before the first
+        private int size = 0;                   // number of strategies in the arrays, 0 until the first evaluation
+        
+        private double [] entryThreshold;       // parameters of the strategies
+        private double [] exitThreshold;
+        private double [] valueOffset;
+        private double [] capFactor;
+        private int [] bcTicks;
+        private boolean [] variablePosition;
+        private boolean [] orderBased;
+        private boolean [] variableCapFactor;
+        private boolean [] shortSellingAllowed;
+        private DoubleTimeSeries [] tsPos;
+        
+        private int [] lastEntryTick;           // state of the strategies
+        private double [] accumulatedWealth;
+        private int [] wealthTick;
+        
+        private double [] position;             // the positions at the current tick
+        
+        /**
+         * @param tsPrice the prices of the share, the same for all strategies of the batch
+         * @param tsFundValue the generic fundamental values of the share, the same for all strategies of the batch
+         */
+        public Batch(DoubleTimeSeries tsPrice, DoubleTimeSeries tsFundValue) {
+            this.tsPrice = tsPrice;
+            this.tsFundValue = tsFundValue;
+        }
+        
+        /**
+         * Add a strategy to the batch. Its positions are written to its own time series when it trades.
+         * 
+         * @param strategy a strategy on the prices and values of the batch, not yet in a batch
+         * @param portfolio the portfolio of the trader that owns the strategy
+         */
+        public void add(ValueMABCStrategy strategy, TradingPortfolio portfolio) {
+            Assertion.assertStrict((strategy.tsPrice == tsPrice) && (strategy.tsFundValue == tsFundValue), Level.ERR, 
+                    "The strategy on '" + strategy.getUniqueId() + "' does not trade on the prices and values of the batch");
+            Assertion.assertStrict((strategy.batch == null) && (evaluatedTick == -1), Level.ERR, "Strategies need to be added " +
+                    "to a single batch, before the batch is evaluated");
+            
+            strategy.batch = this;
+            strategy.batchIndex = strategies.size();
+            strategies.add(strategy);
+            positionSeries.add(portfolio.getTsPosition(strategy.getUniqueId()));
+        }
+        
+        /**
+         * @return the number of strategies in the batch
+         */
+        public int size() {
+            return strategies.size();
+        }
+        
+        /**
+         * @return the position of strategy {@code index} at tick {@code tick}, evaluating the batch if needed
+         */
+        double getPosition(int index, int tick) {
+            if (tick != evaluatedTick)
+                evaluate(tick);
+            
+            return position[index];
+        }
+        
+        /**
+         * Copy the parameters and the initial state of the strategies into the arrays
+         */
+        private void pack() {
+            size = strategies.size();
+            
+            entryThreshold = new double[size];
+            exitThreshold = new double[size];
+            valueOffset = new double[size];
+            capFactor = new double[size];
+            bcTicks = new int[size];
+            variablePosition = new boolean[size];
+            orderBased = new boolean[size];
+            variableCapFactor = new boolean[size];
+            shortSellingAllowed = new boolean[size];
+            tsPos = positionSeries.toArray(new DoubleTimeSeries[size]);
+            
+            lastEntryTick = new int[size];
+            accumulatedWealth = new double[size];
+            wealthTick = new int[size];
+            position = new double[size];
+            
+            for (int i = 0; i < size; i++) {
+                ValueMABCStrategy strategy = strategies.get(i);
+                
+                entryThreshold[i] = strategy.entryThreshold;
+                exitThreshold[i] = strategy.exitThreshold;
+                valueOffset[i] = strategy.valueOffset;
+                capFactor[i] = strategy.capFactor;
+                bcTicks[i] = strategy.bcTicks;
+                variablePosition[i] = (strategy.positionUpdate == PositionUpdateValue.VARIABLE);
+                orderBased[i] = (strategy.orderOrPositionStrategy == OrderOrPositionStrategyValue.ORDER);
+                variableCapFactor[i] = (strategy.variabilityCapFactor == VariabilityCapFactorValue.VARIABLE);
+                shortSellingAllowed[i] = (strategy.shortSelling == ShortSellingValue.ALLOWED);
+                
+                lastEntryTick[i] = strategy.lastEntryTick;
+                accumulatedWealth[i] = strategy.accumulatedWealth;
+                wealthTick[i] = strategy.wealthTick;
+            }
+        }
+        
+        /**
+         * Compute the positions of all strategies at tick {@code tick}, as in {@link ValueMABCStrategy#trade(TradingPortfolio)}
+         */
+        private void evaluate(int tick) {
+            if (evaluatedTick == -1)
+                pack();
+            
+            evaluatedTick = tick;
+            
+            if (tick == 0) {    // positions are set to '0' at the first tick
+                for (int i = 0; i < size; i++)
+                    position[i] = 0.0;
+                
+                return;
+            }
+            
+            double fundValue_t = tsFundValue.get(tick);
+            double price_t = tsPrice.get(tick);
+            
+            for (int i = 0; i < size; i++) {
+                double wealthFactor = 1;
+                
+                if (variableCapFactor[i]) {
+                    while (wealthTick[i] < tick - 1) {
+                        wealthTick[i]++;
+                        accumulatedWealth[i] += tsPos[i].get(wealthTick[i] - 1) * (tsPrice.get(wealthTick[i]) - tsPrice.get(wealthTick[i] - 1));
+                    }
+                    
+                    if (accumulatedWealth[i] > 1)
+                        wealthFactor = 1 + Math.log(accumulatedWealth[i]);
+                    if (accumulatedWealth[i] < 0)
+                        wealthFactor = Math.exp(accumulatedWealth[i]);
+                }
+                
+                double mispricing = (fundValue_t + valueOffset[i]) - price_t;
+                double pos_t_1 = tsPos[i].get(tick - 1);
+                boolean canExit = (lastEntryTick[i] <= tick - bcTicks[i]);
+                
+                if ((mispricing > entryThreshold[i]) && (pos_t_1 == 0.0)) {     // open a long position
+                    position[i] = capFactor[i] * mispricing * wealthFactor;
+                    lastEntryTick[i] = tick;
+                }
+                else if (shortSellingAllowed[i] && (mispricing < -entryThreshold[i]) && (pos_t_1 == 0.0)) {    // open a short position
+                    position[i] = capFactor[i] * mispricing * wealthFactor;
+                    lastEntryTick[i] = tick;
+                }
+                else if ((mispricing < exitThreshold[i]) && (pos_t_1 > 0.0))    // close a long position
+                    position[i] = canExit ? 0.0 : pos_t_1;
+                else if (!shortSellingAllowed[i] && (mispricing < Math.max(exitThreshold[i], 0)) && (pos_t_1 > 0.0))
+                    position[i] = canExit ? 0.0 : pos_t_1;
+                else if ((mispricing > -exitThreshold[i]) && (pos_t_1 < 0.0))   // close a short position
+                    position[i] = canExit ? 0.0 : pos_t_1;
+                else if ((((mispricing > exitThreshold[i]) && (pos_t_1 > 0.0)) || ((mispricing < -exitThreshold[i]) && (pos_t_1 < 0.0))) 
+                        && variablePosition[i]) {      // update the open position
+                    double update = capFactor[i] * mispricing * wealthFactor;
+                    
+                    position[i] = orderBased[i] ? pos_t_1 + update : update;
+                }
+                else
+                    position[i] = pos_t_1;      // keep the position 'as is'
+            }
+        }
+    }
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A factor model of the covariance of the log-returns of N shares over a window of W ticks:
+ *
+ *    C = B H B^T + D
+ *
+ * where B are the N x k loadings of the shares on k factors, H is the k x k covariance of the
+ * factor returns and D is the diagonal of the specific variances of the shares. The factor
+ * returns are the least squares fits f_t = (B^T B)^-1 B^T r_t of the (centred) log-returns at
+ * each tick of the window, and the specific variances are the variances of the residuals
+ * r_t - B f_t. The variance of a portfolio with weights w is then
+ *
+ *    w^T C w = u^T H u + sum_i d_i w_i^2,    where u = B^T w
+ *
+ * which costs O(N k) rather than O(N^2), and the model takes O(N k) memory.
+ * <p>
+ * The loadings are either given, or statistical factors: the k principal components of the
+ * returns in the window, found by subspace iteration. The iteration starts from the components
+ * of the previous tick, so that a single step per tick keeps track of them as the window moves.
+ * <p>
+ * The model is estimated at most once per tick and shared by all traders with the same window,
+ * see {@link info.financialecology.finance.abm.model.ShareMarket#getFactorCovariance(int)}. Each
+ * estimate is an immutable {@link Estimate}, so a trader can keep an older one, e.g. for the
+ * stressed VaR.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class FactorCovariance implements Serializable {
+
+    private static final int INITIAL_ITERATIONS = 30;       // subspace iterations for the first estimate
+    private static final int ITERATIONS_PER_TICK = 1;       // subspace iterations for later estimates, starting from the previous components
+
+    private final HashMap<String, Integer> shareIndex = new HashMap<String, Integer>();   // position of each share in the loadings, by secId
+    private final DoubleTimeSeries [] logReturns;
+    private final int window;
+    private final int numFactors;
+    private final boolean statistical;          // true if the loadings are the principal components of the window
+
+    private double [][] loadings;               // N x k; orthonormal columns for statistical factors
+    private double [][] gramInverse;            // (B^T B)^-1 for given loadings, null for statistical factors
+    private double [][] returns;                // W x N centred log-returns of the window; reused from tick to tick
+    private Estimate estimate = null;           // the estimate for the window ending at index 'end'
+    private int end = -1;
+
+    /**
+     * Statistical factors: the loadings are the {@code numFactors} principal components of the
+     * log-returns in the window
+     *
+     * @param secIds the shares, in the order of the market
+     * @param logReturns the log-returns of the shares, by secId
+     * @param window the number of log-returns over which the covariance is estimated
+     * @param numFactors the number of factors
+     */
+    public FactorCovariance(List<String> secIds, Map<String, DoubleTimeSeries> logReturns, int window, int numFactors) {
+        this(secIds, logReturns, window, numFactors, true);
+
+        Assertion.assertStrict((numFactors > 0) && (numFactors <= secIds.size()), Level.ERR, "The number of factors needs " +
+                "to be between 1 and the number of shares (" + secIds.size() + ")");
+
+        loadings = new double[secIds.size()][numFactors];
+
+        for (int i = 0; i < loadings.length; i++)
+            for (int j = 0; j < numFactors; j++)
+                loadings[i][j] = startVector(i, j);
+
+        orthonormalise(loadings, null);
+    }
+
+    /**
+     * Given loadings: the loadings of each share on the factors, e.g. industries or style factors
+     *
+     * @param secIds the shares, in the order of the market
+     * @param logReturns the log-returns of the shares, by secId
+     * @param window the number of log-returns over which the covariance is estimated
+     * @param factorLoadings the loadings of each share on the factors, by secId; the same number of factors for all
+     */
+    public FactorCovariance(List<String> secIds, Map<String, DoubleTimeSeries> logReturns, int window, Map<String, double []> factorLoadings) {
+        this(secIds, logReturns, window, factorLoadings.get(secIds.get(0)).length, false);
+
+        loadings = new double[secIds.size()][];
+
+        for (int i = 0; i < loadings.length; i++) {
+            double [] shareLoadings = factorLoadings.get(secIds.get(i));
+
+            Assertion.assertStrict((shareLoadings != null) && (shareLoadings.length == numFactors), Level.ERR, "Share '" +
+                    secIds.get(i) + "' needs loadings on " + numFactors + " factors");
+
+            loadings[i] = shareLoadings.clone();
+        }
+
+        double [][] gram = new double[numFactors][numFactors];
+
+        for (double [] row : loadings)
+            for (int j = 0; j < numFactors; j++)
+                for (int l = 0; l < numFactors; l++)
+                    gram[j][l] += row[j] * row[l];
+
+        gramInverse = invert(gram);
+    }
+
+    private FactorCovariance(List<String> secIds, Map<String, DoubleTimeSeries> logReturns, int window, int numFactors, boolean statistical) {
+        Assertion.assertStrict(window > 1, Level.ERR, "The window of the factor covariance needs to be '> 1'");
+
+        this.logReturns = new DoubleTimeSeries[secIds.size()];
+        this.window = window;
+        this.numFactors = numFactors;
+        this.statistical = statistical;
+
+        for (int i = 0; i < secIds.size(); i++) {
+            shareIndex.put(secIds.get(i), i);
+            this.logReturns[i] = logReturns.get(secIds.get(i));
+        }
+
+        returns = new double[window][secIds.size()];
+    }
+
+    /**
+     * Estimate the model over the last {@code window} log-returns, unless it has been estimated
+     * for them already
+     *
+     * @return the estimate
+     */
+    public Estimate update() {
+        int last = logReturns[0].size() - 1;
+
+        if (last == end) return estimate;
+
+        Assertion.assertStrict(last + 1 >= window, Level.ERR, "The factor covariance over " + window + " ticks needs " +
+                window + " log-returns; there are " + (last + 1));
+
+        int n = logReturns.length;
+        int first = last - window + 1;
+
+        for (int i = 0; i < n; i++) {
+            double mean = 0;
+
+            for (int t = 0; t < window; t++) {
+                returns[t][i] = logReturns[i].get(first + t);
+                mean += returns[t][i];
+            }
+
+            mean /= window;
+
+            for (int t = 0; t < window; t++)
+                returns[t][i] -= mean;
+        }
+
+        double [][] factorLoadings = statistical ? principalComponents(estimate == null ? INITIAL_ITERATIONS : ITERATIONS_PER_TICK) : loadings;
+        double [][] factorReturns = project(factorLoadings);
+        double [][] factorCovariance = new double[numFactors][numFactors];
+        double [] specificVariances = new double[n];
+
+        for (int t = 0; t < window; t++)
+            for (int j = 0; j < numFactors; j++)
+                for (int l = 0; l <= j; l++)
+                    factorCovariance[j][l] += factorReturns[t][j] * factorReturns[t][l];
+
+        for (int j = 0; j < numFactors; j++)
+            for (int l = 0; l <= j; l++) {
+                factorCovariance[j][l] /= window - 1;
+                factorCovariance[l][j] = factorCovariance[j][l];
+            }
+
+        for (int i = 0; i < n; i++) {
+            double [] shareLoadings = factorLoadings[i];
+            double sum = 0;
+
+            for (int t = 0; t < window; t++) {
+                double residual = returns[t][i];
+
+                for (int j = 0; j < numFactors; j++)
+                    residual -= shareLoadings[j] * factorReturns[t][j];
+
+                sum += residual * residual;
+            }
+
+            specificVariances[i] = sum / (window - 1);
+        }
+
+        loadings = factorLoadings;
+        estimate = new Estimate(factorLoadings, factorCovariance, specificVariances);
+        end = last;
+
+        return estimate;
+    }
+
+    /**
+     * @return the number of log-returns over which the covariance is estimated
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the number of factors
+     */
+    public int getNumFactors() {
+        return numFactors;
+    }
+
+    /**
+     * The principal components of the returns, by subspace iteration starting from the current
+     * loadings: B <- orthonormalise(X^T X B)
+     *
+     * @return new loadings, with orthonormal columns
+     */
+    private double [][] principalComponents(int iterations) {
+        double [][] components = loadings;
+
+        for (int k = 0; k < iterations; k++) {
+            double [][] scores = multiply(returns, components);             // X B, W x k
+            double [][] next = new double[logReturns.length][numFactors];   // X^T X B, N x k
+
+            for (int t = 0; t < window; t++) {
+                double [] row = returns[t];
+                double [] score = scores[t];
+
+                for (int i = 0; i < row.length; i++) {
+                    double x = row[i];
+
+                    if (x == 0) continue;
+
+                    for (int j = 0; j < numFactors; j++)
+                        next[i][j] += x * score[j];
+                }
+            }
+
+            orthonormalise(next, components);
+            components = next;
+        }
+
+        return components;
+    }
+
+    /**
+     * The factor returns at each tick of the window: f_t = B^T x_t for orthonormal loadings, and
+     * (B^T B)^-1 B^T x_t otherwise
+     */
+    private double [][] project(double [][] factorLoadings) {
+        double [][] factorReturns = multiply(returns, factorLoadings);
+
+        if (gramInverse == null) return factorReturns;
+
+        double [] f = new double[numFactors];
+
+        for (double [] row : factorReturns) {
+            for (int j = 0; j < numFactors; j++) {
+                double sum = 0;
+
+                for (int l = 0; l < numFactors; l++)
+                    sum += gramInverse[j][l] * row[l];
+
+                f[j] = sum;
+            }
+
+            System.arraycopy(f, 0, row, 0, numFactors);
+        }
+
+        return factorReturns;
+    }
+
+    /**
+     * @return a b, for a W x N and b N x k
+     */
+    private double [][] multiply(double [][] a, double [][] b) {
+        double [][] product = new double[a.length][numFactors];
+
+        for (int t = 0; t < a.length; t++) {
+            double [] row = a[t];
+            double [] result = product[t];
+
+            for (int i = 0; i < row.length; i++) {
+                double x = row[i];
+
+                if (x == 0) continue;
+
+                double [] bRow = b[i];
+
+                for (int j = 0; j < numFactors; j++)
+                    result[j] += x * bRow[j];
+            }
+        }
+
+        return product;
+    }
+
+    /**
+     * Orthonormalise the columns of {@code vectors} by modified Gram-Schmidt. A column that
+     * vanishes, e.g. while all returns are '0', is replaced by the same column of
+     * {@code previous}, or by a start vector.
+     */
+    private static void orthonormalise(double [][] vectors, double [][] previous) {
+        int n = vectors.length;
+        int k = vectors[0].length;
+
+        for (int j = 0; j < k; j++) {
+            for (int attempt = 0; attempt < 3; attempt++) {
+                for (int l = 0; l < j; l++) {
+                    double dot = 0;
+
+                    for (int i = 0; i < n; i++)
+                        dot += vectors[i][j] * vectors[i][l];
+
+                    for (int i = 0; i < n; i++)
+                        vectors[i][j] -= dot * vectors[i][l];
+                }
+
+                double norm = 0;
+
+                for (int i = 0; i < n; i++)
+                    norm += vectors[i][j] * vectors[i][j];
+
+                norm = Math.sqrt(norm);
+
+                if (norm > 1E-150) {
+                    for (int i = 0; i < n; i++)
+                        vectors[i][j] /= norm;
+
+                    break;
+                }
+
+                for (int i = 0; i < n; i++)     // the column vanished; start again from another vector
+                    vectors[i][j] = ((previous != null) && (attempt == 0)) ? previous[i][j] : startVector(i, j + attempt);
+            }
+        }
+    }
+
+    /**
+     * A fixed start vector for the subspace iteration, with no special direction
+     */
+    private static double startVector(int i, int j) {
+        return Math.sin(1 + i + 7.3 * j) + 0.1;
+    }
+
+    /**
+     * The inverse of a symmetric positive definite matrix, by Gauss-Jordan elimination
+     */
+    private static double [][] invert(double [][] matrix) {
+        int k = matrix.length;
+        double [][] a = new double[k][2 * k];
+
+        for (int j = 0; j < k; j++) {
+            System.arraycopy(matrix[j], 0, a[j], 0, k);
+            a[j][k + j] = 1;
+        }
+
+        for (int j = 0; j < k; j++) {
+            int pivot = j;
+
+            for (int l = j + 1; l < k; l++)
+                if (Math.abs(a[l][j]) > Math.abs(a[pivot][j])) pivot = l;
+
+            Assertion.assertStrict(Math.abs(a[pivot][j]) > 1E-12, Level.ERR, "The factor loadings need to be linearly independent");
+
+            double [] swap = a[j];
+            a[j] = a[pivot];
+            a[pivot] = swap;
+
+            double p = a[j][j];
+
+            for (int c = 0; c < 2 * k; c++)
+                a[j][c] /= p;
+
+            for (int l = 0; l < k; l++) {
+                if (l == j) continue;
+
+                double factor = a[l][j];
+
+                for (int c = 0; c < 2 * k; c++)
+                    a[l][c] -= factor * a[j][c];
+            }
+        }
+
+        double [][] inverse = new double[k][k];
+
+        for (int j = 0; j < k; j++)
+            System.arraycopy(a[j], k, inverse[j], 0, k);
+
+        return inverse;
+    }
+
+
+    /**
+     * The estimate of the covariance at one tick. Immutable.
+     */
+    public class Estimate implements Serializable {
+
+        private final double [][] loadings;             // B, N x k
+        private final double [][] factorCovariance;     // H, k x k
+        private final double [] specificVariances;      // D
+        private final double totalVariance;             // the trace of C
+
+        private Estimate(double [][] loadings, double [][] factorCovariance, double [] specificVariances) {
+            this.loadings = loadings;
+            this.factorCovariance = factorCovariance;
+            this.specificVariances = specificVariances;
+
+            double total = 0;
+
+            for (int i = 0; i < specificVariances.length; i++)
+                total += covariance(i, i);
+
+            this.totalVariance = total;
+        }
+
+        /**
+         * @return the covariance of the log-returns of two shares
+         */
+        public double getCovariance(String secId_1, String secId_2) {
+            return covariance(index(secId_1), index(secId_2));
+        }
+
+        /**
+         * @return the sum of the variances of all shares
+         */
+        public double getTotalVariance() {
+            return totalVariance;
+        }
+
+        /**
+         * The variance of the returns of a portfolio, in O(n k)
+         *
+         * @param secIds the shares in which the portfolio has a position
+         * @param values the values of the positions in the shares
+         * @param n the number of shares
+         * @param portfolioValue the value of the portfolio, by which the values are divided to obtain the weights
+         */
+        public double portfolioVariance(String [] secIds, double [] values, int n, double portfolioValue) {
+            double [] u = new double[numFactors];   // B^T w
+            double specific = 0;
+
+            for (int s = 0; s < n; s++) {
+                int i = index(secIds[s]);
+                double weight = values[s] / portfolioValue;
+                double [] shareLoadings = loadings[i];
+
+                for (int j = 0; j < numFactors; j++)
+                    u[j] += weight * shareLoadings[j];
+
+                specific += specificVariances[i] * weight * weight;
+            }
+
+            double systematic = 0;
+
+            for (int j = 0; j < numFactors; j++) {
+                double sum = 0;
+
+                for (int l = 0; l < numFactors; l++)
+                    sum += factorCovariance[j][l] * u[l];
+
+                systematic += u[j] * sum;
+            }
+
+            return systematic + specific;
+        }
+
+        /**
+         * The variances of the returns of {@code m} portfolios at once, in O(m N k), see
+         * {@link PortfolioRiskBatch}
+         *
+         * @param weights the weights of the portfolios, one row per portfolio, in the order of the shares of the model
+         * @param m the number of portfolios
+         * @param variances the variances of the portfolios, set by this method
+         * @param marginal the product C w of the covariance with the weights of each portfolio, set by this method; or null
+         */
+        public void portfolioVariances(double [][] weights, int m, double [] variances, double [][] marginal) {
+            double [] v = new double[numFactors];
+
+            for (int r = 0; r < m; r++) {
+                double [] w = weights[r];
+                double specific = 0;
+
+                for (int j = 0; j < numFactors; j++)
+                    v[j] = 0;
+
+                for (int i = 0; i < w.length; i++) {
+                    double x = w[i];
+
+                    if (x == 0) continue;
+
+                    double [] shareLoadings = loadings[i];
+
+                    for (int j = 0; j < numFactors; j++)
+                        v[j] += x * shareLoadings[j];
+
+                    specific += specificVariances[i] * x * x;
+                }
+
+                double systematic = 0;
+                double [] hv = new double[numFactors];  // H B^T w
+
+                for (int j = 0; j < numFactors; j++) {
+                    for (int l = 0; l < numFactors; l++)
+                        hv[j] += factorCovariance[j][l] * v[l];
+
+                    systematic += v[j] * hv[j];
+                }
+
+                variances[r] = systematic + specific;
+
+                if (marginal == null) continue;
+
+                double [] row = marginal[r];
+
+                for (int i = 0; i < w.length; i++) {
+                    double [] shareLoadings = loadings[i];
+                    double sum = specificVariances[i] * w[i];
+
+                    for (int j = 0; j < numFactors; j++)
+                        sum += shareLoadings[j] * hv[j];
+
+                    row[i] = sum;
+                }
+            }
+        }
+
+        private double covariance(int i, int j) {
+            double [] loadings_1 = loadings[i];
+            double [] loadings_2 = loadings[j];
+            double covariance = (i == j) ? specificVariances[i] : 0;
+
+            for (int a = 0; a < numFactors; a++)
+                for (int b = 0; b < numFactors; b++)
+                    covariance += loadings_1[a] * factorCovariance[a][b] * loadings_2[b];
+
+            return covariance;
+        }
+
+        private int index(String secId) {
+            Integer i = shareIndex.get(secId);
+
+            Assertion.assertStrict(i != null, Level.ERR, "Share with secId '" + secId + "' is not part of the factor covariance");
+
+            return i;
+        }
+    }
+}
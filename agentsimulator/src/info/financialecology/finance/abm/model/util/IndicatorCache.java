@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+import info.financialecology.finance.utilities.statistics.StatsTimeSeries;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * Technical indicators of the time series of a market (prices of assets, spreads), shared by all
+ * the strategies that use them. Each distinct combination of time series, window and indicator is
+ * computed once per tick, however many strategies use it; the strategies hold read-only handles.
+ * <p>
+ * An indicator is brought up to date when it is read and the time series has grown since the last
+ * read. It is updated incrementally if the series grew by one value, and computed in full otherwise
+ * (first read, or a tick without reads). The indicators always refer to the last value of the series,
+ * so the values at the current tick have to be in the series before the indicators are read.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class IndicatorCache implements Serializable {
+
+    private HashMap<Key, MovingAverage> movingAverages  = new HashMap<Key, MovingAverage>();
+    private HashMap<Key, MovingVariance> movingVariances = new HashMap<Key, MovingVariance>();
+    private HashMap<Key, StdDev> stdDevs                = new HashMap<Key, StdDev>();
+    private HashMap<Key, Channel> channels              = new HashMap<Key, Channel>();
+
+    /**
+     * @return the moving average of {@code ts} over the last {@code window} values
+     */
+    public MovingAverage getMovingAverage(DoubleTimeSeries ts, int window) {
+        Key key = new Key(ts, window);
+        MovingAverage indicator = movingAverages.get(key);
+
+        if (indicator == null) {
+            indicator = new MovingAverage(ts, window);
+            movingAverages.put(key, indicator);
+        }
+
+        return indicator;
+    }
+
+    /**
+     * @return the variance of {@code ts} over the last {@code window} values, computed incrementally with
+     * {@link StatsTimeSeries#incrementalVariance(DoubleTimeSeries, int, double, double)} from the moving
+     * average of the same window
+     */
+    public MovingVariance getMovingVariance(DoubleTimeSeries ts, int window) {
+        Key key = new Key(ts, window);
+        MovingVariance indicator = movingVariances.get(key);
+
+        if (indicator == null) {
+            indicator = new MovingVariance(ts, window, getMovingAverage(ts, window));
+            movingVariances.put(key, indicator);
+        }
+
+        return indicator;
+    }
+
+    /**
+     * @return the standard deviation of {@code ts} over the last {@code window} values, as computed by
+     * {@link StatsTimeSeries#stdDev(DoubleTimeSeries, int)}
+     */
+    public StdDev getStdDev(DoubleTimeSeries ts, int window) {
+        Key key = new Key(ts, window);
+        StdDev indicator = stdDevs.get(key);
+
+        if (indicator == null) {
+            indicator = new StdDev(ts, window);
+            stdDevs.put(key, indicator);
+        }
+
+        return indicator;
+    }
+
+    /**
+     * @return the minimum and maximum of {@code ts} over the last {@code window} values
+     */
+    public Channel getChannel(DoubleTimeSeries ts, int window) {
+        Key key = new Key(ts, window);
+        Channel indicator = channels.get(key);
+
+        if (indicator == null) {
+            indicator = new Channel(ts, window);
+            channels.put(key, indicator);
+        }
+
+        return indicator;
+    }
+
+    /**
+     * @return the number of distinct indicators in the cache
+     */
+    public int size() {
+        return movingAverages.size() + movingVariances.size() + stdDevs.size() + channels.size();
+    }
+
+
+    /**
+     * Moving average over a window. Updated incrementally with
+     * {@link StatsTimeSeries#incrementalMA(DoubleTimeSeries, int, double)}.
+     */
+    public static class MovingAverage implements Serializable {
+
+        private DoubleTimeSeries ts;
+        private int window;
+        private int size = 0;       // size of the series at the last update
+        private double value;
+
+        private MovingAverage(DoubleTimeSeries ts, int window) {
+            Assertion.assertStrict(window > 0, Level.ERR, "The window of the moving average has to be greater than '0'");
+
+            this.ts = ts;
+            this.window = window;
+        }
+
+        /**
+         * @return the moving average at the last value of the series
+         */
+        public double get() {
+            int numTicks = ts.size();
+
+            if (numTicks != size) {
+                if ((size > 0) && (numTicks == size + 1))
+                    value = StatsTimeSeries.incrementalMA(ts, window, value);
+                else
+                    value = StatsTimeSeries.fullMA(ts, window);
+
+                size = numTicks;
+            }
+
+            return value;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+    }
+
+
+    /**
+     * Moving variance over a window, paired with the moving average of the same window. The first
+     * value is the square of {@link StatsTimeSeries#stdDev(DoubleTimeSeries, int)}.
+     */
+    public static class MovingVariance implements Serializable {
+
+        private DoubleTimeSeries ts;
+        private int window;
+        private MovingAverage mean;     // moving average of the same window
+        private int size = 0;           // size of the series at the last update
+        private double value;
+        private double lastMean;        // moving average at the last update
+
+        private MovingVariance(DoubleTimeSeries ts, int window, MovingAverage mean) {
+            this.ts = ts;
+            this.window = window;
+            this.mean = mean;
+        }
+
+        /**
+         * @return the variance at the last value of the series
+         */
+        public double get() {
+            int numTicks = ts.size();
+
+            if (numTicks != size) {
+                if ((size > 0) && (numTicks == size + 1))
+                    value = StatsTimeSeries.incrementalVariance(ts, window, value, lastMean);
+                else
+                    value = Math.pow(StatsTimeSeries.stdDev(ts, window), 2);
+
+                lastMean = mean.get();
+                size = numTicks;
+            }
+
+            return value;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+    }
+
+
+    /**
+     * Standard deviation over a window, computed in full once per tick.
+     */
+    public static class StdDev implements Serializable {
+
+        private DoubleTimeSeries ts;
+        private int window;
+        private int size = 0;       // size of the series at the last update
+        private double value;
+
+        private StdDev(DoubleTimeSeries ts, int window) {
+            this.ts = ts;
+            this.window = window;
+        }
+
+        /**
+         * @return the standard deviation at the last value of the series
+         */
+        public double get() {
+            int numTicks = ts.size();
+
+            if (numTicks != size) {
+                value = StatsTimeSeries.stdDev(ts, window);
+                size = numTicks;
+            }
+
+            return value;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+    }
+
+
+    /**
+     * Minimum and maximum over a window (the exit channel of the trend strategies), computed in one
+     * pass once per tick.
+     */
+    public static class Channel implements Serializable {
+
+        private DoubleTimeSeries ts;
+        private int window;
+        private int size = 0;       // size of the series at the last update
+        private double min;
+        private double max;
+
+        private Channel(DoubleTimeSeries ts, int window) {
+            Assertion.assertStrict(window > 0, Level.ERR, "The window of the channel has to be greater than '0'");
+
+            this.ts = ts;
+            this.window = window;
+        }
+
+        /**
+         * @return the minimum over the window ending at the last value of the series
+         */
+        public double getMin() {
+            update();
+            return min;
+        }
+
+        /**
+         * @return the maximum over the window ending at the last value of the series
+         */
+        public double getMax() {
+            update();
+            return max;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+
+        private void update() {
+            int numTicks = ts.size();
+
+            if (numTicks == size) return;
+
+            min = max = ts.get(numTicks - 1);
+
+            for (int i = 1; i < window; i++) {
+                double value = ts.get(numTicks - 1 - i);
+
+                if (value < min) min = value;
+                if (value > max) max = value;
+            }
+
+            size = numTicks;
+        }
+    }
+
+
+    /**
+     * A time series, by identity, and a window
+     */
+    private static class Key implements Serializable {
+
+        private final DoubleTimeSeries ts;
+        private final int window;
+
+        private Key(DoubleTimeSeries ts, int window) {
+            this.ts = ts;
+            this.window = window;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+
+            Key other = (Key) obj;
+
+            return (ts == other.ts) && (window == other.window);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(ts) + window;
+        }
+    }
+}
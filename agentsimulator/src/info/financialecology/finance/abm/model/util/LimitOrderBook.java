@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A continuous double-auction limit order book for one share, with price-time priority: an
+ * incoming order trades against the best price on the other side first, and at a price, against
+ * the oldest order first. Limit orders that do not trade in full rest in the book until they
+ * trade or are cancelled; market orders trade against the book until they are filled or the
+ * other side is empty.
+ * <p>
+ * Prices are multiples of the tick size. The price levels are kept in primitive arrays indexed
+ * by the price in ticks, which grow when an order arrives outside the range covered so far, and
+ * the orders of a level form a linked list in the order of arrival. The orders live in a pool of
+ * parallel arrays and are identified by handles; the slots of filled and cancelled orders are
+ * reused, and a handle carries the generation of its slot so that a stale handle cannot cancel
+ * a later order. Adding, cancelling and trading against an order are O(1); only the search for
+ * the next best price after a level is emptied scans the (usually adjacent) levels. No objects
+ * are allocated once the arrays have grown to the size of the book.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class LimitOrderBook implements Serializable {
+
+    public static final long NO_ORDER = -1;     // the handle returned for a limit order that was filled in full
+
+    private static final int NONE = -1;
+    private static final int INITIAL_LEVELS = 256;
+    private static final int INITIAL_ORDERS = 256;
+
+    private final double tickSize;
+
+    // Price levels: the price of level i is (offset + i) * tickSize
+
+    private int offset;
+    private int [] levelHead;               // oldest order at the level, or NONE
+    private int [] levelTail;               // newest order at the level, or NONE
+    private double [] levelVolume;          // remaining quantity of the orders at the level
+    private int bestBid = NONE;             // level of the highest bid, or NONE
+    private int bestAsk = NONE;             // level of the lowest ask, or NONE
+    private int numBids = 0;                // number of resting orders on each side
+    private int numAsks = 0;
+
+    // Order pool: order i is made of the i-th entries of the arrays
+
+    private double [] orderQuantity;        // remaining quantity, > 0
+    private int [] orderLevel;
+    private boolean [] orderIsBuy;
+    private int [] orderPrev;               // neighbours in the list of the level, or NONE
+    private int [] orderNext;               // next order at the level, or the next free slot
+    private int [] orderGeneration;         // incremented whenever the slot is freed
+    private int freeSlot = NONE;            // first slot of the list of free slots
+    private int numSlots = 0;               // slots used so far, free or not
+
+    // Trades
+
+    private double lastPrice = Double.NaN;  // price of the last trade
+    private double tradedVolume = 0;        // total quantity traded
+    private double tradedValue = 0;         // total value traded
+    private long numEvents = 0;             // limit orders, market orders and cancellations processed
+
+    /**
+     * @param tickSize the price increment, > 0
+     * @param price a price around which the first orders are expected, to place the initial range of levels
+     */
+    public LimitOrderBook(double tickSize, double price) {
+        Assertion.assertStrict(tickSize > 0, Level.ERR, "The tick size of an order book needs to be '> 0'");
+
+        this.tickSize = tickSize;
+        this.offset = toTicks(price) - INITIAL_LEVELS / 2;
+
+        levelHead = new int[INITIAL_LEVELS];
+        levelTail = new int[INITIAL_LEVELS];
+        levelVolume = new double[INITIAL_LEVELS];
+        Arrays.fill(levelHead, NONE);
+        Arrays.fill(levelTail, NONE);
+
+        orderQuantity = new double[INITIAL_ORDERS];
+        orderLevel = new int[INITIAL_ORDERS];
+        orderIsBuy = new boolean[INITIAL_ORDERS];
+        orderPrev = new int[INITIAL_ORDERS];
+        orderNext = new int[INITIAL_ORDERS];
+        orderGeneration = new int[INITIAL_ORDERS];
+    }
+
+    /**
+     * Add a limit order. The part of the order that can trade at the limit price or better trades
+     * at once, against the resting orders; the rest of the order rests in the book.
+     *
+     * @param isBuy true for a bid, false for an ask
+     * @param price the limit price, rounded to the nearest tick
+     * @param quantity the quantity, > 0
+     * @return the handle of the resting order, to cancel it, or {@link #NO_ORDER} if the order was filled in full
+     */
+    public long addLimitOrder(boolean isBuy, double price, double quantity) {
+        Assertion.assertStrict(quantity > 0, Level.ERR, "The quantity of an order needs to be '> 0'");
+
+        numEvents++;
+
+        int level = toLevel(toTicks(price));
+
+        if (isBuy) {
+            while ((quantity > 0) && (bestAsk != NONE) && (bestAsk <= level))
+                quantity = tradeAtBest(false, quantity);
+        }
+        else {
+            while ((quantity > 0) && (bestBid != NONE) && (bestBid >= level))
+                quantity = tradeAtBest(true, quantity);
+        }
+
+        if (quantity <= 0) return NO_ORDER;
+
+        int order = allocate();
+
+        orderQuantity[order] = quantity;
+        orderLevel[order] = level;
+        orderIsBuy[order] = isBuy;
+        orderNext[order] = NONE;
+        orderPrev[order] = levelTail[level];
+
+        if (levelTail[level] == NONE)
+            levelHead[level] = order;
+        else
+            orderNext[levelTail[level]] = order;
+
+        levelTail[level] = order;
+        levelVolume[level] += quantity;
+
+        if (isBuy) {
+            numBids++;
+
+            if ((bestBid == NONE) || (level > bestBid)) bestBid = level;
+        }
+        else {
+            numAsks++;
+
+            if ((bestAsk == NONE) || (level < bestAsk)) bestAsk = level;
+        }
+
+        return ((long) orderGeneration[order] << 32) | order;
+    }
+
+    /**
+     * Trade against the book until the order is filled or the other side of the book is empty
+     *
+     * @param quantity the quantity, > 0 to buy and < 0 to sell
+     * @return the quantity filled, with the sign of the order
+     */
+    public double marketOrder(double quantity) {
+        numEvents++;
+
+        boolean isBuy = (quantity > 0);
+        double remaining = Math.abs(quantity);
+
+        if (isBuy) {
+            while ((remaining > 0) && (bestAsk != NONE))
+                remaining = tradeAtBest(false, remaining);
+        }
+        else {
+            while ((remaining > 0) && (bestBid != NONE))
+                remaining = tradeAtBest(true, remaining);
+        }
+
+        return isBuy ? quantity - remaining : quantity + remaining;
+    }
+
+    /**
+     * Cancel a resting limit order
+     *
+     * @param handle the handle returned by {@link #addLimitOrder(boolean, double, double)}
+     * @return false if the order has traded in full or was cancelled before
+     */
+    public boolean cancel(long handle) {
+        numEvents++;
+
+        if (handle == NO_ORDER) return false;
+
+        int order = (int) handle;
+
+        if ((order >= numSlots) || (orderGeneration[order] != (int) (handle >>> 32))) return false;
+
+        remove(order);
+
+        return true;
+    }
+
+    /**
+     * @return the highest bid, or NaN if there are no bids
+     */
+    public double getBestBid() {
+        return (bestBid == NONE) ? Double.NaN : toPrice(bestBid);
+    }
+
+    /**
+     * @return the lowest ask, or NaN if there are no asks
+     */
+    public double getBestAsk() {
+        return (bestAsk == NONE) ? Double.NaN : toPrice(bestAsk);
+    }
+
+    /**
+     * @return the mid-point of the best bid and ask, or NaN if one side is empty
+     */
+    public double getMidPrice() {
+        return 0.5 * (getBestBid() + getBestAsk());
+    }
+
+    /**
+     * @return the price of the last trade, or NaN if nothing has traded yet
+     */
+    public double getLastPrice() {
+        return lastPrice;
+    }
+
+    /**
+     * @return the quantity resting at the price, on either side
+     */
+    public double getVolumeAt(double price) {
+        int ticks = toTicks(price);
+
+        return ((ticks < offset) || (ticks - offset >= levelHead.length)) ? 0 : levelVolume[ticks - offset];
+    }
+
+    public boolean hasBids() {
+        return numBids > 0;
+    }
+
+    public boolean hasAsks() {
+        return numAsks > 0;
+    }
+
+    public double getTickSize() {
+        return tickSize;
+    }
+
+    /**
+     * @return the total quantity traded since the book was created
+     */
+    public double getTradedVolume() {
+        return tradedVolume;
+    }
+
+    /**
+     * @return the total value traded since the book was created
+     */
+    public double getTradedValue() {
+        return tradedValue;
+    }
+
+    /**
+     * @return the number of limit orders, market orders and cancellations processed
+     */
+    public long getNumEvents() {
+        return numEvents;
+    }
+
+    /**
+     * Trade against the oldest order at the best price of one side
+     *
+     * @param againstBids true to trade against the best bid (a sell), false against the best ask (a buy)
+     * @param quantity the quantity still to trade, > 0
+     * @return the quantity left after the trade
+     */
+    private double tradeAtBest(boolean againstBids, double quantity) {
+        int level = againstBids ? bestBid : bestAsk;
+        int order = levelHead[level];
+        double fill = Math.min(quantity, orderQuantity[order]);
+        double price = toPrice(level);
+
+        lastPrice = price;
+        tradedVolume += fill;
+        tradedValue += fill * price;
+
+        if (fill < orderQuantity[order]) {
+            orderQuantity[order] -= fill;
+            levelVolume[level] -= fill;
+        }
+        else
+            remove(order);
+
+        return quantity - fill;
+    }
+
+    /**
+     * Take the order out of its level, update the best price of its side if the level is empty,
+     * and free its slot
+     */
+    private void remove(int order) {
+        int level = orderLevel[order];
+        int prev = orderPrev[order];
+        int next = orderNext[order];
+
+        if (prev == NONE) levelHead[level] = next; else orderNext[prev] = next;
+        if (next == NONE) levelTail[level] = prev; else orderPrev[next] = prev;
+
+        if (levelHead[level] == NONE)
+            levelVolume[level] = 0;     // no rounding residue on an empty level
+        else
+            levelVolume[level] -= orderQuantity[order];
+
+        if (orderIsBuy[order]) {
+            numBids--;
+
+            if ((level == bestBid) && (levelHead[level] == NONE)) {
+                int i = level - 1;
+
+                if (numBids > 0)
+                    while (levelHead[i] == NONE) i--;
+
+                bestBid = (numBids > 0) ? i : NONE;
+            }
+        }
+        else {
+            numAsks--;
+
+            if ((level == bestAsk) && (levelHead[level] == NONE)) {
+                int i = level + 1;
+
+                if (numAsks > 0)
+                    while (levelHead[i] == NONE) i++;
+
+                bestAsk = (numAsks > 0) ? i : NONE;
+            }
+        }
+
+        orderGeneration[order]++;
+        orderNext[order] = freeSlot;
+        freeSlot = order;
+    }
+
+    private int allocate() {
+        if (freeSlot != NONE) {
+            int order = freeSlot;
+
+            freeSlot = orderNext[order];
+
+            return order;
+        }
+
+        if (numSlots == orderQuantity.length) {
+            int capacity = 2 * numSlots;
+
+            orderQuantity = Arrays.copyOf(orderQuantity, capacity);
+            orderLevel = Arrays.copyOf(orderLevel, capacity);
+            orderIsBuy = Arrays.copyOf(orderIsBuy, capacity);
+            orderPrev = Arrays.copyOf(orderPrev, capacity);
+            orderNext = Arrays.copyOf(orderNext, capacity);
+            orderGeneration = Arrays.copyOf(orderGeneration, capacity);
+        }
+
+        return numSlots++;
+    }
+
+    /**
+     * @return the level of the price in ticks, after growing the levels to cover it if needed
+     */
+    private int toLevel(int ticks) {
+        int level = ticks - offset;
+
+        if ((level < 0) || (level >= levelHead.length)) {
+            grow(ticks);
+            level = ticks - offset;
+        }
+
+        return level;
+    }
+
+    /**
+     * Double the range of levels until it covers the price, keeping the existing levels in place
+     * relative to their prices
+     */
+    private void grow(int ticks) {
+        int length = levelHead.length;
+        int low = Math.min(offset, ticks);
+        int high = Math.max(offset + length, ticks + 1);
+
+        while (length < high - low) length *= 2;
+
+        int newOffset = (ticks < offset) ? high - length : low;
+        int shift = offset - newOffset;     // >= 0
+
+        int [] head = new int[length];
+        int [] tail = new int[length];
+        double [] volume = new double[length];
+
+        Arrays.fill(head, NONE);
+        Arrays.fill(tail, NONE);
+        System.arraycopy(levelHead, 0, head, shift, levelHead.length);
+        System.arraycopy(levelTail, 0, tail, shift, levelTail.length);
+        System.arraycopy(levelVolume, 0, volume, shift, levelVolume.length);
+
+        for (int i = 0; i < numSlots; i++)
+            orderLevel[i] += shift;         // harmless for free slots
+
+        if (bestBid != NONE) bestBid += shift;
+        if (bestAsk != NONE) bestAsk += shift;
+
+        levelHead = head;
+        levelTail = tail;
+        levelVolume = volume;
+        offset = newOffset;
+    }
+
+    private int toTicks(double price) {
+        return (int) Math.round(price / tickSize);
+    }
+
+    private double toPrice(int level) {
+        return (offset + level) * tickSize;
+    }
+}
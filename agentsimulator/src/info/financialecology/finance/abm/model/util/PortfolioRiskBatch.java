@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import info.financialecology.finance.abm.model.ShareMarket;
+import info.financialecology.finance.abm.model.ShareMarket.CovarianceModel;
+import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.agent.Trader.UseEs;
+import info.financialecology.finance.abm.model.agent.Trader.UseStressedEs;
+import info.financialecology.finance.abm.model.agent.Trader.UseStressedVar;
+import info.financialecology.finance.abm.model.agent.Trader.UseVar;
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The portfolio variances of the traders that use VaR or ES with the same volatility window,
+ * computed together. The traders face the same covariance matrix C of the log-returns, so the
+ * variances of their portfolios are the diagonal of W C W^T, where the rows of W are the weights
+ * of the portfolios (positions in absolute value). The batch computes the products W C with a
+ * cache-blocked loop, once for the positions before the trades (pre-trade VaR and ES), once after
+ * (VaR and ES limits) and, if a trader uses them, once with the maximum covariances (stressed
+ * VaR and ES). With a factor model (see {@link ShareMarket#setFactorCovariance(int)}), C is
+ * never formed and the cost is O(m N k) for m traders.
+ * <p>
+ * The batch is evaluated the first time one of its traders asks for a variance at a tick. The
+ * positions after the trades are then needed for all traders, so the batch lets each of them
+ * prepare its orders (see {@link Trader#prepareOrders()}) before their turn. The traders place
+ * their orders and apply their limits one by one as before.
+ * <p>
+ * Traders with the same window update their covariances in the same way from the first tick
+ * (unless some use both VaR and ES, which update them twice per tick, and need their own batch),
+ * so only the first trader of the batch keeps them, once per tick, and the other traders use
+ * them. Traders that use both VaR and ES compute the pre-trade VaR between the two updates, so
+ * their batch computes the pre-trade variances for the VaR when the first trader has updated the
+ * covariances for the VaR (see {@link #evaluatePreTradeVar(int)}). The variances agree with those computed by each trader up to rounding; near a limit, the
+ * rounding can decide whether the limit is hit.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class PortfolioRiskBatch implements Serializable {
+
+    private static final int BLOCK_SIZE = 64;   // rows and columns of the blocks of W and C, so that a block of C stays in the cache
+
+    private ShareMarket market;
+    private int window;
+    private ArrayList<Trader> traders = new ArrayList<Trader>();
+    private int evaluatedTick = -1;             // tick of the last evaluation; -1 before the first
+    private int size = 0;                       // number of traders in the arrays, 0 until the first evaluation
+    private boolean stressed;                   // true if a trader uses stressed VaR or ES
+
+    private String [] secIds;                   // the shares, in the order of the market maker
+    private DoubleTimeSeries [][] positions;    // the positions of each trader in each share
+    private double [] prices;                   // the prices at the current tick
+
+    private double [][] weights;                // W: the weights of the portfolios, one row per trader
+    private double [][] product;                // W C for the pre-trade and stressed variances
+    private double [][] marginal;               // W C for the current positions and covariances: the marginal contributions to the variances
+    private double [][] covariance;             // C for the full covariance model
+
+    private double [] preTradeValue;            // results of the current tick, by trader
+    private double [] preTradeVariance;
+    private double [] preTradeVarVariance;      // for traders that use both VaR and ES, see evaluatePreTradeVar(); otherwise preTradeVariance
+    private double [] postTradeValue;
+    private double [] postTradeVariance;
+    private double [] stressedVariance;
+
+    /**
+     * @param market the market of the traders
+     * @param window the volatility window of the traders
+     */
+    public PortfolioRiskBatch(ShareMarket market, int window) {
+        this.market = market;
+        this.window = window;
+    }
+
+    /**
+     * Add a trader to the batch, before the first tick of the run
+     *
+     * @param trader a trader that uses VaR or ES with the window of the batch, not yet in a batch
+     */
+    public void add(Trader trader) {
+        Assertion.assertStrict(trader.getVolWindow() == window, Level.ERR, "Trader '" + trader.getLabel() + "' has a volatility " +
+                "window of " + trader.getVolWindow() + ", not " + window);
+        Assertion.assertStrict(((trader.getUseVar() == UseVar.TRUE) || (trader.getUseEs() == UseEs.TRUE)) && trader.getRiskModel().isActive(), 
+                Level.ERR, "Trader '" + trader.getLabel() + "' uses neither VaR nor ES");
+        Assertion.assertStrict(traders.isEmpty() || (usesVarAndEs(trader) == usesVarAndEs(traders.get(0))), Level.ERR,
+                "The traders of a batch need to use either VaR or ES, or all both, so that they update their covariances alike");
+        Assertion.assertStrict((trader.getRiskBatch() == null) && (evaluatedTick == -1), Level.ERR, "Traders need to be added " +
+                "to a single batch, before the batch is evaluated");
+
+        trader.setRiskBatch(this, traders.size());
+        traders.add(trader);
+    }
+
+    /**
+     * @return the number of traders in the batch
+     */
+    public int size() {
+        return traders.size();
+    }
+
+    /**
+     * @return true if the trader uses both VaR and ES, and thus updates its covariances twice per tick
+     */
+    public static boolean usesVarAndEs(Trader trader) {
+        return (trader.getUseVar() == UseVar.TRUE) && (trader.getUseEs() == UseEs.TRUE);
+    }
+
+    /**
+     * @return trader {@code index} of the batch; trader 0 keeps the covariances of all
+     */
+    public Trader getTrader(int index) {
+        return traders.get(index);
+    }
+
+    /**
+     * @return the value of the portfolio of trader {@code index} before the trades at tick {@code tick} (positions at t - 1, prices at t)
+     */
+    public double getPreTradeValue(int index, int tick) {
+        evaluate(tick);
+
+        return preTradeValue[index];
+    }
+
+    /**
+     * @return the variance of the returns of the portfolio of trader {@code index} before the trades at tick {@code tick}
+     */
+    public double getPreTradeVariance(int index, int tick) {
+        evaluate(tick);
+
+        return preTradeVariance[index];
+    }
+
+    /**
+     * @return the variance of the returns of the portfolio of trader {@code index} before the trades at tick {@code tick},
+     * with the covariances used for the pre-trade VaR
+     */
+    public double getPreTradeVarVariance(int index, int tick) {
+        evaluate(tick);
+
+        return preTradeVarVariance[index];
+    }
+
+    /**
+     * @return the value of the portfolio of trader {@code index} after the trades at tick {@code tick}
+     */
+    public double getPostTradeValue(int index, int tick) {
+        evaluate(tick);
+
+        return postTradeValue[index];
+    }
+
+    /**
+     * @return the variance of the returns of the portfolio of trader {@code index} after the trades at tick {@code tick}
+     */
+    public double getPostTradeVariance(int index, int tick) {
+        evaluate(tick);
+
+        return postTradeVariance[index];
+    }
+
+    /**
+     * @return the variance of the returns of the portfolio of trader {@code index} after the trades at tick {@code tick},
+     * with the maximum covariances; '0' if no trader of the batch uses stressed VaR or ES
+     */
+    public double getStressedVariance(int index, int tick) {
+        evaluate(tick);
+
+        return stressedVariance[index];
+    }
+
+    /**
+     * The product C w of the covariances with the weights of the portfolio of trader {@code index} after the trades
+     * at tick {@code tick}. Element i is half the derivative of the variance with respect to the weight of share i.
+     *
+     * @return the products, in the order of the shares of the market maker; not to be modified
+     */
+    public double [] getMarginalContributions(int index, int tick) {
+        evaluate(tick);
+
+        return marginal[index];
+    }
+
+    /**
+     * Prepare the orders of the traders at tick {@code tick} and compute their variances, unless done already.
+     * Called by the traders when they place their orders.
+     */
+    public void evaluate(int tick) {
+        if (tick == evaluatedTick) return;
+
+        if (evaluatedTick == -1)
+            pack();
+
+        for (Trader trader : traders)      // the positions after the trades, and the covariances of the tick
+            if (trader.getPreparedTick() != tick)
+                trader.prepareOrders();
+
+        evaluatedTick = tick;
+
+        if (tick == 0) {    // the VaR and ES are '0' at the first tick
+            for (int r = 0; r < size; r++) {
+                preTradeValue[r] = postTradeValue[r] = 0;
+                preTradeVariance[r] = preTradeVarVariance[r] = postTradeVariance[r] = stressedVariance[r] = 0;
+            }
+
+            return;
+        }
+
+        for (int j = 0; j < secIds.length; j++)
+            prices[j] = market.getPrices(secIds[j]).get(tick);
+
+        Trader leader = traders.get(0);
+        boolean factor = (market.getCovarianceModel() == CovarianceModel.FACTOR);
+
+        if (!factor)
+            fillCovariance(leader, false);
+
+        setWeights(tick - 1, preTradeValue);
+        variances(factor, leader.getFactorCovariance(false), preTradeVariance, product);
+
+        setWeights(tick, postTradeValue);
+        variances(factor, leader.getFactorCovariance(false), postTradeVariance, marginal);
+
+        if (stressed) {
+            if (!factor)
+                fillCovariance(leader, true);
+
+            variances(factor, leader.getFactorCovariance(true), stressedVariance, product);
+        }
+    }
+
+    /**
+     * Compute the pre-trade variances for the VaR of traders that use both VaR and ES. They update
+     * their covariances once for the VaR and once more for the ES before they trade, and compute the
+     * pre-trade VaR in between. Called by the first trader of the batch once it has updated the
+     * covariances for the VaR, while the batch prepares the orders at tick {@code tick}.
+     */
+    public void evaluatePreTradeVar(int tick) {
+        if (tick == 0) return;      // set to '0' by evaluate()
+
+        for (int j = 0; j < secIds.length; j++)
+            prices[j] = market.getPrices(secIds[j]).get(tick);
+
+        Trader leader = traders.get(0);
+        boolean factor = (market.getCovarianceModel() == CovarianceModel.FACTOR);
+
+        if (!factor)
+            fillCovariance(leader, false);
+
+        setWeights(tick - 1, preTradeValue);
+        variances(factor, leader.getFactorCovariance(false), preTradeVarVariance, product);
+    }
+
+    /**
+     * Copy the traders and their positions into the arrays
+     */
+    private void pack() {
+        ArrayList<String> shares = market.getMarketMaker().getSecIds();
+        int n = shares.size();
+
+        size = traders.size();
+        secIds = shares.toArray(new String[n]);
+        positions = new DoubleTimeSeries[size][n];
+        prices = new double[n];
+        weights = new double[size][n];
+        product = new double[size][n];
+        marginal = new double[size][n];
+        covariance = new double[n][n];
+        preTradeValue = new double[size];
+        preTradeVariance = new double[size];
+        preTradeVarVariance = usesVarAndEs(traders.get(0)) ? new double[size] : preTradeVariance;
+        postTradeValue = new double[size];
+        postTradeVariance = new double[size];
+        stressedVariance = new double[size];
+
+        for (int r = 0; r < size; r++) {
+            Trader trader = traders.get(r);
+
+            for (int j = 0; j < n; j++)
+                positions[r][j] = trader.getPortfolio().getTsPosition(secIds[j]);
+
+            if (((trader.getUseVar() == UseVar.TRUE) && (trader.getUseStressedVar() == UseStressedVar.TRUE)) ||
+                    ((trader.getUseEs() == UseEs.TRUE) && (trader.getUseStressedEs() == UseStressedEs.TRUE)))
+                stressed = true;
+        }
+    }
+
+    private void fillCovariance(Trader leader, boolean max) {
+        for (int i = 0; i < secIds.length; i++)
+            for (int j = 0; j < secIds.length; j++)
+                covariance[i][j] = max ? leader.getMaxCovariance(secIds[i], secIds[j]) : leader.getCurrentCovariance(secIds[i], secIds[j]);
+    }
+
+    /**
+     * Set the weights of the portfolios at tick {@code positionTick}, valued at the current prices
+     */
+    private void setWeights(int positionTick, double [] values) {
+        for (int r = 0; r < size; r++) {
+            double [] w = weights[r];
+            double value = 0;
+
+            for (int j = 0; j < secIds.length; j++) {
+                double position = (positions[r][j] == null) ? 0 : positions[r][j].get(positionTick);
+
+                w[j] = Math.abs(position) * prices[j];
+                value += w[j];
+            }
+
+            values[r] = value;
+
+            if (value == 0) continue;
+
+            for (int j = 0; j < secIds.length; j++)
+                w[j] /= value;
+        }
+    }
+
+    /**
+     * The diagonal of W C W^T, with W C in {@code result}
+     *
+     * @param factor true to use the factor model, false to use the full covariance matrix
+     * @param factorCovariance the estimate of the factor model, or null if there is none yet
+     */
+    private void variances(boolean factor, FactorCovariance.Estimate factorCovariance, double [] result, double [][] result_WC) {
+        if (factor) {
+            if (factorCovariance == null) {     // the window is not full yet
+                for (int r = 0; r < size; r++) {
+                    result[r] = 0;
+                    Arrays.fill(result_WC[r], 0);
+                }
+            }
+            else
+                factorCovariance.portfolioVariances(weights, size, result, result_WC);
+
+            return;
+        }
+
+        multiply(weights, covariance, result_WC);
+
+        for (int r = 0; r < size; r++) {
+            double [] w = weights[r];
+            double [] wc = result_WC[r];
+            double sum = 0;
+
+            for (int j = 0; j < w.length; j++)
+                sum += wc[j] * w[j];
+
+            result[r] = sum;
+        }
+    }
+
+    /**
+     * c = a b, for a m x n and b n x n, in blocks so that a block of b is used for a block of rows of a
+     * while it is in the cache. Zero weights, e.g. of shares in which a trader has no position, are skipped.
+     */
+    private static void multiply(double [][] a, double [][] b, double [][] c) {
+        int m = a.length;
+        int n = b.length;
+
+        for (int r = 0; r < m; r++)
+            Arrays.fill(c[r], 0);
+
+        for (int r0 = 0; r0 < m; r0 += BLOCK_SIZE) {
+            int rEnd = Math.min(r0 + BLOCK_SIZE, m);
+
+            for (int i0 = 0; i0 < n; i0 += BLOCK_SIZE) {
+                int iEnd = Math.min(i0 + BLOCK_SIZE, n);
+
+                for (int j0 = 0; j0 < n; j0 += BLOCK_SIZE) {
+                    int jEnd = Math.min(j0 + BLOCK_SIZE, n);
+
+                    for (int r = r0; r < rEnd; r++) {
+                        double [] aRow = a[r];
+                        double [] cRow = c[r];
+
+                        for (int i = i0; i < iEnd; i++) {
+                            double x = aRow[i];
+
+                            if (x == 0) continue;
+
+                            double [] bRow = b[i];
+
+                            for (int j = j0; j < jEnd; j++)
+                                cRow[j] += x * bRow[j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
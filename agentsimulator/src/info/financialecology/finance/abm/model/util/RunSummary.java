@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import info.financialecology.finance.abm.model.util.TraderPopulation.Group;
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeriesList;
+import info.financialecology.finance.utilities.statistics.MomentAccumulator;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Summary targets of a single simulation run, accumulated online while the simulation runs so
+ * that they are available without keeping the full history of the run:
+ * <ul>
+ * <li> volatility and excess kurtosis of the log-returns of each share
+ * <li> final price of each share
+ * <li> number of failed traders and mean accumulated wealth, per group of traders
+ * <li> number of ticks simulated, and why the run stopped
+ * </ul>
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class RunSummary implements Serializable {
+
+    public enum StopReason {    // Reason why the run stopped
+        COMPLETED,              // all ticks have been simulated
+        FAILURES,               // the fraction of failed traders reached the threshold
+        INSTABILITY;            // a price became non-positive or a log-return exceeded the threshold
+    }
+
+    private LinkedHashMap<String, MomentAccumulator> logReturnMoments;     // moments of the log-returns, per share
+    private LinkedHashMap<String, Double> finalPrices;                     // prices at the last simulated tick, per share
+
+    private int [] numTraders       = new int[Group.values().length];
+    private int [] numFailures      = new int[Group.values().length];
+    private double [] meanWealth    = new double[Group.values().length];    // mean accumulated wealth at the last simulated tick
+
+    private int numTicks = 0;                           // number of ticks simulated
+    private StopReason stopReason = StopReason.COMPLETED;
+
+
+    /**
+     * @param secIds the shares for which the log-return statistics are accumulated
+     */
+    public RunSummary(List<String> secIds) {
+        logReturnMoments = new LinkedHashMap<String, MomentAccumulator>();
+        finalPrices = new LinkedHashMap<String, Double>();
+
+        for (String secId : secIds) {
+            logReturnMoments.put(secId, new MomentAccumulator());
+            finalPrices.put(secId, Double.NaN);
+        }
+    }
+
+    /**
+     * Add the log-return of share {@code secId} at the current tick
+     */
+    public void addLogReturn(String secId, double logReturn) {
+        logReturnMoments.get(secId).increment(logReturn);
+    }
+
+    public void setFinalPrice(String secId, double price) {
+        finalPrices.put(secId, price);
+    }
+
+    /**
+     * Set the failures and wealth of a group of traders at the last simulated tick
+     *
+     * @param group the group of traders
+     * @param numTraders the number of traders in the group
+     * @param numFailures the number of traders in the group that have failed
+     * @param meanWealth the mean accumulated wealth of the traders in the group
+     */
+    public void setGroup(Group group, int numTraders, int numFailures, double meanWealth) {
+        this.numTraders[group.ordinal()] = numTraders;
+        this.numFailures[group.ordinal()] = numFailures;
+        this.meanWealth[group.ordinal()] = meanWealth;
+    }
+
+    public void setNumTicks(int numTicks) {
+        this.numTicks = numTicks;
+    }
+
+    public void setStopReason(StopReason stopReason) {
+        this.stopReason = stopReason;
+    }
+
+    /**
+     * @return the moments of the log-returns of share {@code secId}
+     */
+    public MomentAccumulator getLogReturnMoments(String secId) {
+        Assertion.assertOrKill(logReturnMoments.containsKey(secId), "No summary for share '" + secId + "'");
+
+        return logReturnMoments.get(secId);
+    }
+
+    /**
+     * @return the volatility (standard deviation) of the log-returns of share {@code secId}
+     */
+    public double getVolatility(String secId) {
+        return getLogReturnMoments(secId).getStandardDeviation();
+    }
+
+    /**
+     * @return the unbiased excess kurtosis of the log-returns of share {@code secId}
+     */
+    public double getKurtosis(String secId) {
+        return getLogReturnMoments(secId).getKurtosis();
+    }
+
+    public double getFinalPrice(String secId) {
+        return finalPrices.get(secId);
+    }
+
+    public int getNumTraders(Group group) {
+        return numTraders[group.ordinal()];
+    }
+
+    public int getNumFailures(Group group) {
+        return numFailures[group.ordinal()];
+    }
+
+    public double getMeanWealth(Group group) {
+        return meanWealth[group.ordinal()];
+    }
+
+    public int getNumTicks() {
+        return numTicks;
+    }
+
+    public StopReason getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * The summary as a list of time series with a single value each, so it can be written with
+     * the existing result writers. The identifier of each time series is the name of the target.
+     *
+     * @return the summary targets
+     */
+    public DoubleTimeSeriesList toTimeSeriesList() {
+        DoubleTimeSeriesList dtsl = new DoubleTimeSeriesList();
+
+        for (String secId : logReturnMoments.keySet()) {
+            dtsl.add(target("volatility_" + secId, getVolatility(secId)));
+            dtsl.add(target("kurtosis_" + secId, getKurtosis(secId)));
+            dtsl.add(target("final_price_" + secId, getFinalPrice(secId)));
+        }
+
+        for (Group group : Group.values()) {
+            String name = group.name().toLowerCase();
+
+            dtsl.add(target("failures_" + name, getNumFailures(group)));
+            dtsl.add(target("wealth_" + name, getMeanWealth(group)));
+        }
+
+        dtsl.add(target("ticks", numTicks));
+        dtsl.add(target("stop_reason", stopReason.ordinal()));
+
+        return dtsl;
+    }
+
+    private static DoubleTimeSeries target(String name, double value) {
+        DoubleTimeSeries dts = new DoubleTimeSeries(name);
+
+        dts.add(0, value);
+
+        return dts;
+    }
+}
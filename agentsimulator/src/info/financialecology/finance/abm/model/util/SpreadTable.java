@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The spreads P_i - P_j between the prices of the shares of a market, for any pair of shares. A spread
+ * is only maintained once it has been requested, e.g. by a long-short strategy, and is shared by all
+ * who request it; with N shares, the cost per tick is that of the pairs in use rather than N^2.
+ * <p>
+ * The pairs are stored in a triangular table indexed by the positions of the two shares in the order
+ * in which they were added, so adding shares does not move the existing pairs. A spread requested
+ * after the start of the run is filled in from the retained prices. The moving averages and variances
+ * of the spreads are taken from the {@link IndicatorCache} of the market, so they too are computed
+ * once per tick for each spread and window.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class SpreadTable implements Serializable {
+
+    private IndicatorCache indicators;
+    private HashMap<String, Integer> shareIndex = new HashMap<String, Integer>();      // position of each share, by secId
+    private ArrayList<DoubleTimeSeries> prices = new ArrayList<DoubleTimeSeries>();   // prices of the shares, by position
+    private Pair [] pairs = new Pair[0];                    // pair (i, j), i < j, at index j * (j - 1) / 2 + i; null until requested
+    private ArrayList<Pair> activePairs = new ArrayList<Pair>();    // the requested pairs, in the order of the requests
+    private int historyLimit = 0;                           // if > 0, the spreads only keep their last 'historyLimit' values
+
+    /**
+     * @param indicators the technical indicators of the market, used for the moving averages and variances of the spreads
+     */
+    public SpreadTable(IndicatorCache indicators) {
+        this.indicators = indicators;
+    }
+
+    /**
+     * Add a share that can be part of spreads
+     *
+     * @param secId the identifier of the share
+     * @param tsPrice the prices of the share
+     */
+    public void addShare(String secId, DoubleTimeSeries tsPrice) {
+        Assertion.assertStrict(!shareIndex.containsKey(secId), Level.ERR, "Share with secId '" + secId + "' already has spreads");
+
+        int j = prices.size();
+
+        shareIndex.put(secId, j);
+        prices.add(tsPrice);
+        pairs = Arrays.copyOf(pairs, (j + 1) * j / 2);     // the pairs (0..j-1, j) are added at the end
+    }
+
+    /**
+     * @return true if {@code secId} has been added
+     */
+    public boolean hasShare(String secId) {
+        return shareIndex.containsKey(secId);
+    }
+
+    /**
+     * Get the spread secId_1 - secId_2, maintained from now on if it has not been requested before
+     *
+     * @return the time series of the spread, the same for all who request it
+     */
+    public DoubleTimeSeries getSpread(String secId_1, String secId_2) {
+        Integer i = shareIndex.get(secId_1);
+        Integer j = shareIndex.get(secId_2);
+
+        Assertion.assertStrict((i != null) && (j != null), Level.ERR, "The spread " + secId_1 + " - " + secId_2 +
+                " needs both shares to be added to the table");
+        Assertion.assertStrict(!i.equals(j), Level.ERR, "The spread of share '" + secId_1 + "' with itself is not defined");
+
+        int lower = Math.min(i, j);
+        int upper = Math.max(i, j);
+        int index = upper * (upper - 1) / 2 + lower;
+
+        if (pairs[index] == null) {
+            pairs[index] = new Pair(prices.get(lower), prices.get(upper));
+            activePairs.add(pairs[index]);
+        }
+
+        return pairs[index].getSpread(i < j);
+    }
+
+    /**
+     * @return the moving average of the spread secId_1 - secId_2 over {@code window} ticks
+     */
+    public IndicatorCache.MovingAverage getMovingAverage(String secId_1, String secId_2, int window) {
+        return indicators.getMovingAverage(getSpread(secId_1, secId_2), window);
+    }
+
+    /**
+     * @return the variance of the spread secId_1 - secId_2 over {@code window} ticks
+     */
+    public IndicatorCache.MovingVariance getMovingVariance(String secId_1, String secId_2, int window) {
+        return indicators.getMovingVariance(getSpread(secId_1, secId_2), window);
+    }
+
+    /**
+     * Add the spreads at tick {@code tick} from the prices at that tick. Called by the market maker
+     * once the prices of all shares have been set.
+     */
+    public void update(int tick) {
+        for (Pair pair : activePairs)
+            pair.update(tick);
+    }
+
+    /**
+     * Keep only the last {@code limit} values of the spreads, including those requested later.
+     * See {@link DoubleTimeSeries#setHistoryLimit(int)}.
+     */
+    public void setHistoryLimit(int limit) {
+        historyLimit = limit;
+
+        for (Pair pair : activePairs)
+            pair.setHistoryLimit(limit);
+    }
+
+    /**
+     * @return the number of spreads that are maintained, counting P_i - P_j and P_j - P_i separately
+     */
+    public int getNumSpreads() {
+        int numSpreads = 0;
+
+        for (Pair pair : activePairs)
+            numSpreads += ((pair.spread != null) ? 1 : 0) + ((pair.reverseSpread != null) ? 1 : 0);
+
+        return numSpreads;
+    }
+
+
+    /**
+     * The spreads of two shares, in one or both directions
+     */
+    private class Pair implements Serializable {
+
+        private DoubleTimeSeries tsPrice_1;         // the share added first
+        private DoubleTimeSeries tsPrice_2;
+        private DoubleTimeSeries spread;            // P_1 - P_2; null until requested
+        private DoubleTimeSeries reverseSpread;     // P_2 - P_1; null until requested
+
+        private Pair(DoubleTimeSeries tsPrice_1, DoubleTimeSeries tsPrice_2) {
+            this.tsPrice_1 = tsPrice_1;
+            this.tsPrice_2 = tsPrice_2;
+        }
+
+        private DoubleTimeSeries getSpread(boolean forward) {
+            if (forward && (spread == null))
+                spread = newSpread(tsPrice_1, tsPrice_2);
+            else if (!forward && (reverseSpread == null))
+                reverseSpread = newSpread(tsPrice_2, tsPrice_1);
+
+            return forward ? spread : reverseSpread;
+        }
+
+        private void update(int tick) {
+            double price_1 = tsPrice_1.get(tick);
+            double price_2 = tsPrice_2.get(tick);
+
+            if (spread != null) spread.add(tick, price_1 - price_2);
+            if (reverseSpread != null) reverseSpread.add(tick, price_2 - price_1);
+        }
+
+        private void setHistoryLimit(int limit) {
+            if (spread != null) spread.setHistoryLimit(limit);
+            if (reverseSpread != null) reverseSpread.setHistoryLimit(limit);
+        }
+
+        /**
+         * A new spread, filled in with the spreads of the prices available in both series
+         */
+        private DoubleTimeSeries newSpread(DoubleTimeSeries tsMinuend, DoubleTimeSeries tsSubtrahend) {
+            DoubleTimeSeries tsSpread = new DoubleTimeSeries();
+            int end = Math.min(tsMinuend.size(), tsSubtrahend.size());
+            int first = Math.max(tsMinuend.getFirstRetainedIndex(), tsSubtrahend.getFirstRetainedIndex());
+
+            tsSpread.enablePrefixSums();
+
+            if (historyLimit > 0)
+                tsSpread.setHistoryLimit(historyLimit);
+
+            for (int t = 0; t < end; t++)   // prices that are no longer retained leave a '0' spread
+                tsSpread.add(t, (t >= first) ? tsMinuend.get(t) - tsSubtrahend.get(t) : 0);
+
+            return tsSpread;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.agent.Trader.UseEs;
+import info.financialecology.finance.abm.model.agent.Trader.UseVar;
+import info.financialecology.finance.abm.model.strategy.TradingStrategy;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The traders of a group, partitioned into cohorts of traders that behave identically up to the
+ * size of their positions. Only one trader of each cohort, the representative, is simulated; its
+ * orders are weighted by the total scale of the cohort, and the other members skip their actions.
+ * The results of the members are the results of the representative, scaled, and are only filled
+ * in when requested (see {@link #expand()}).
+ * <p>
+ * A trader can join a cohort if it uses neither VaR nor ES, has the default or an inactive risk
+ * model, and all its strategies are trend strategies with a constant capFactor. Two such traders are in the same cohort if their strategies
+ * have the same cohort keys (see {@link TrendMABCStrategy#getCohortKey()}) and the ratios of their
+ * capFactors are the same. All other traders are in cohorts of their own.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class TraderCohorts implements Serializable {
+
+    private ArrayList<Trader> representatives = new ArrayList<Trader>();        // the simulated trader of each cohort
+    private ArrayList<ArrayList<Trader>> members = new ArrayList<ArrayList<Trader>>();  // the other traders of each cohort
+    private ArrayList<ArrayList<Double>> scales = new ArrayList<ArrayList<Double>>();   // positions of the members relative to the representative
+    private int numTraders = 0;
+    private boolean expanded = false;
+
+    private TraderCohorts() {
+    }
+
+    /**
+     * Partition the traders into cohorts, in the order of the list, and set up the representatives
+     * and members for the run: the first trader of each cohort is its representative.
+     *
+     * @param traders the traders of a group
+     * @return the cohorts
+     */
+    public static TraderCohorts compress(List<Trader> traders) {
+        TraderCohorts cohorts = new TraderCohorts();
+        HashMap<String, Integer> cohortIds = new HashMap<String, Integer>();   // cohorts that can take more members, by key
+
+        for (Trader trader : traders) {
+            String key = cohortKey(trader);
+            Integer id = (key == null) ? null : cohortIds.get(key);
+
+            if (id == null) {
+                if (key != null) cohortIds.put(key, cohorts.representatives.size());
+
+                cohorts.representatives.add(trader);
+                cohorts.members.add(new ArrayList<Trader>());
+                cohorts.scales.add(new ArrayList<Double>());
+            }
+            else {
+                Trader representative = cohorts.representatives.get(id);
+
+                cohorts.members.get(id).add(trader);
+                cohorts.scales.get(id).add(leadingCapFactor(trader) / leadingCapFactor(representative));
+            }
+
+            cohorts.numTraders++;
+        }
+
+        for (int id = 0; id < cohorts.representatives.size(); id++) {
+            double weight = 1;
+
+            for (double scale : cohorts.scales.get(id))
+                weight += scale;
+
+            cohorts.representatives.get(id).setOrderWeight(weight);
+
+            for (Trader member : cohorts.members.get(id))
+                member.setCohortMember(true);
+        }
+
+        return cohorts;
+    }
+
+    /**
+     * @return the representatives of the cohorts, the traders that are simulated
+     */
+    public Trader [] getRepresentatives() {
+        return representatives.toArray(new Trader[representatives.size()]);
+    }
+
+    /**
+     * @return the number of cohorts
+     */
+    public int getNumCohorts() {
+        return representatives.size();
+    }
+
+    /**
+     * @return the number of traders in all cohorts
+     */
+    public int getNumTraders() {
+        return numTraders;
+    }
+
+    /**
+     * @return the number of traders that have failed. The members of a cohort fail with its representative.
+     */
+    public int countFailures() {
+        int failures = 0;
+
+        for (int id = 0; id < representatives.size(); id++)
+            if (representatives.get(id).getFailureTick() >= 0)
+                failures += 1 + members.get(id).size();
+
+        return failures;
+    }
+
+    /**
+     * @return the sum of the wealth accumulated by all traders
+     */
+    public double getTotalAccumulatedWealth() {
+        double wealth = 0;
+
+        for (Trader representative : representatives)
+            wealth += representative.getOrderWeight() * representative.getAccumulatedWealth();
+
+        return wealth;
+    }
+
+    /**
+     * Fill in the results of the members from those of their representatives, see
+     * {@link Trader#expandFrom(Trader, double)}. Call this after the run; the members are only
+     * expanded once.
+     */
+    public void expand() {
+        if (expanded) return;
+
+        for (int id = 0; id < representatives.size(); id++) {
+            ArrayList<Trader> cohortMembers = members.get(id);
+
+            for (int i = 0; i < cohortMembers.size(); i++)
+                cohortMembers.get(i).expandFrom(representatives.get(id), scales.get(id).get(i));
+        }
+
+        expanded = true;
+    }
+
+    /**
+     * The key of the cohort of the trader: the cohort keys of its strategies, ordered by their
+     * unique ids, the ratios of their capFactors to the first one, and the wake-up interval of the trader
+     *
+     * @return the key, or null if the trader cannot share a cohort
+     */
+    private static String cohortKey(Trader trader) {
+        if ((trader.getUseVar() == UseVar.TRUE) || (trader.getUseEs() == UseEs.TRUE) || trader.getStrategies().isEmpty())
+            return null;
+
+        if (trader.getRiskModel().isActive() && (trader.getRiskModel() != Trader.DEFAULT_RISK_MODEL))
+            return null;    // a custom risk model need not scale with the positions
+
+        TreeMap<String, TradingStrategy> strategies = new TreeMap<String, TradingStrategy>(trader.getStrategies());
+        StringBuilder key = new StringBuilder();
+        double leadingCapFactor = leadingCapFactor(trader);
+
+        for (Map.Entry<String, TradingStrategy> entry : strategies.entrySet()) {
+            if (!(entry.getValue() instanceof TrendMABCStrategy))
+                return null;
+
+            TrendMABCStrategy strategy = (TrendMABCStrategy) entry.getValue();
+            String strategyKey = strategy.getCohortKey();
+
+            if ((strategyKey == null) || (leadingCapFactor == 0))
+                return null;
+
+            key.append(entry.getKey()).append(':').append(strategyKey).append(':')
+               .append(strategy.getCapFactor() / leadingCapFactor).append(';');
+        }
+
+        return key.append(trader.getWakeUpInterval()).toString();
+    }
+
+    /**
+     * The capFactor of the strategy with the first unique id, or 0 if that is not a trend strategy
+     */
+    private static double leadingCapFactor(Trader trader) {
+        TradingStrategy first = new TreeMap<String, TradingStrategy>(trader.getStrategies()).firstEntry().getValue();
+
+        return (first instanceof TrendMABCStrategy) ? ((TrendMABCStrategy) first).getCapFactor() : 0;
+    }
+}
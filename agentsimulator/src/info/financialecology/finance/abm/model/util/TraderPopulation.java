@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.utilities.Assertion;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The traders of a simulation, by group. Each trader gets a stable integer id within its group,
+ * in the order in which it was added, so that the traders of a group can be visited or looked up
+ * by id without going through their labels.
+ * <p>
+ * The registry is maintained as traders are created; it is never rebuilt from the market.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class TraderPopulation implements Serializable {
+
+    public enum Group {     // Groups of traders
+        TREND,              // trend followers
+        VALUE,              // value investors
+        LS;                 // long-short investors
+    }
+
+    private EnumMap<Group, ArrayList<Trader>> traders = new EnumMap<Group, ArrayList<Trader>>(Group.class);     // the traders of each group, by id
+    private EnumMap<Group, HashMap<String, Trader>> labels = new EnumMap<Group, HashMap<String, Trader>>(Group.class);  // the traders of each group, by label
+
+    public TraderPopulation() {
+        for (Group group : Group.values()) {
+            traders.put(group, new ArrayList<Trader>());
+            labels.put(group, new HashMap<String, Trader>());
+        }
+    }
+
+    /**
+     * Add a trader to a group
+     *
+     * @return the id of the trader within the group
+     */
+    public int add(Group group, Trader trader) {
+        ArrayList<Trader> members = traders.get(group);
+
+        Assertion.assertStrict(!labels.get(group).containsKey(trader.getLabel()), Assertion.Level.ERR, "A trader with label '" +
+                trader.getLabel() + "' is already in group " + group);
+
+        members.add(trader);
+        labels.get(group).put(trader.getLabel(), trader);
+
+        return members.size() - 1;
+    }
+
+    /**
+     * @return the trader with id {@code id} in the group
+     */
+    public Trader get(Group group, int id) {
+        return traders.get(group).get(id);
+    }
+
+    /**
+     * @return the number of traders in the group
+     */
+    public int size(Group group) {
+        return traders.get(group).size();
+    }
+
+    /**
+     * @return the traders of the group, in the order of their ids. The list cannot be modified.
+     */
+    public List<Trader> getTraders(Group group) {
+        return Collections.unmodifiableList(traders.get(group));
+    }
+
+    /**
+     * @return the traders of the group by label. This is the registry's own map, do not modify it.
+     */
+    public HashMap<String, Trader> getTraderMap(Group group) {
+        return labels.get(group);
+    }
+
+    /**
+     * @return a new array with the traders of the group, in the order of their ids
+     */
+    public Trader [] toArray(Group group) {
+        ArrayList<Trader> members = traders.get(group);
+
+        return members.toArray(new Trader[members.size()]);
+    }
+}
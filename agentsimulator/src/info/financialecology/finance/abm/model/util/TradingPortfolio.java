@@ -13,6 +13,7 @@
 package info.financialecology.finance.abm.model.util;
 
 import info.financialecology.finance.abm.model.ShareMarket;
+import info.financialecology.finance.abm.model.ShareMarket.CovarianceModel;
 import info.financialecology.finance.abm.model.agent.Trader;
 import info.financialecology.finance.abm.model.strategy.TradingStrategy;
 import info.financialecology.finance.utilities.Assertion;
@@ -26,6 +27,7 @@ import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.special.Gamma;
 import org.apache.commons.math3.distribution.TDistribution;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
@@ -39,12 +41,21 @@ import java.util.Collections;
  * @author Gilbert Peffer
  *
  */
-public class TradingPortfolio {   
+@SuppressWarnings("serial")
+public class TradingPortfolio implements Serializable {
 
 	private HashMap<String, DoubleTimeSeries> tsPosList;
+	private int historyLimit = 0;     // number of most recent positions kept per security; 0 to keep the full history
 	private String traderId;
 	private NormalDistribution normalDist;
 	
+	private String [] activeSecIds = new String[0];    // securities with a non-zero position, see gatherActivePositions()
+	private double [] activeValues = new double[0];    // absolute dollar values of those positions
+	private int numActive = 0;
+	
+	private int reducedTick = -1;                                      // the last tick at which the positions were reduced, see addToPositions()
+	private HashMap<String, Double> tradedPositions = new HashMap<String, Double>();   // positions set by the strategies at reducedTick, before the reductions
+	
 //	private double covarianceEWMA_previous_tick    = 0;        // given: EWMA covariance at t-1
 //	private double covarianceEWMA_current_tick     = 0;        // compute: EWMA covariance at t
     
@@ -58,6 +69,11 @@ public class TradingPortfolio {
         return tsPosList.get(secId);
     }
     
+    /**
+     * Add an order to the position at the current tick, e.g. to reduce the positions set by the 
+     * strategies when the trader exceeds its VaR limit. The positions set by the strategies are 
+     * kept, see {@link #getTradedPosition(String, int)}.
+     */
     public void addToPositions(Order order) {
     	int currentTick = WorldClock.currentTick();
     	double position_previous_tick;
@@ -67,8 +83,17 @@ public class TradingPortfolio {
         else
         	position_previous_tick = 0;
         
+        if (currentTick != reducedTick) {
+            tradedPositions.clear();
+            reducedTick = currentTick;
+        }
+        
         if (this.getTsPosition(order.getSecId()).size() > currentTick) {  // A position has already been introduced for this asset in current tick
         	double position_current_tick = this.getTsPosition(order.getSecId()).get(currentTick); 
+        	
+        	if (!tradedPositions.containsKey(order.getSecId()))
+        	    tradedPositions.put(order.getSecId(), position_current_tick);
+        	
         	this.getTsPosition(order.getSecId()).add(currentTick, position_current_tick + order.getOrder());
         }
         else {   // No position introduced for this asset yet in current tick
@@ -76,6 +101,25 @@ public class TradingPortfolio {
         }
     }
     
+    /**
+     * The position in a security as set by the strategies at a tick, before any orders added with 
+     * {@link #addToPositions(Order)}. Only the positions before the last reductions are kept, so 
+     * for earlier ticks this is the position after the reductions.
+     * 
+     * @param secId the security
+     * @param tick the tick of the position, within the history of the portfolio
+     * @return the position set by the strategies
+     */
+    public double getTradedPosition(String secId, int tick) {
+        if (tick == reducedTick) {
+            Double position = tradedPositions.get(secId);
+            
+            if (position != null) return position;
+        }
+        
+        return tsPosList.get(secId).get(tick);
+    }
+    
  
     /*
      * Calculate the value-at-risk of the portfolio at 99% confidence level (in dollars)
@@ -83,31 +127,16 @@ public class TradingPortfolio {
     
     public double valueAtRisk_conf99(ShareMarket market) {
     	int currentTick = WorldClock.currentTick();
-    	Set<String> secIds = market.getTradedShares().keySet();
     	
     	if (currentTick == 0)  return 0;
     	
     	// Calculate the current value of the portfolio (with positions in absolute value)
-    	double portfolioValue = 0;
-    	
-    	for (String secId : secIds) {
-    		portfolioValue = portfolioValue + Math.abs(this.tsPosList.get(secId).get(currentTick)) * market.getPrices(secId).get(currentTick);
-    	}
+    	double portfolioValue = gatherActivePositions(market, currentTick, currentTick);
     	
     	if (portfolioValue == 0) return 0;  // If there are no positions in the portfolio --> VaR = 0
             
     	// Calculate the volatility of the portfolio (with positions in absolute value)
-    	double portfolioVol = 0;
-
-    	for (String secId_1 : secIds) {
-    		double weight_1 =  Math.abs(this.tsPosList.get(secId_1).get(currentTick)) * market.getPrices(secId_1).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-    		
-        	for (String secId_2 : secIds) {
-        		double weight_2 =  Math.abs(this.tsPosList.get(secId_2).get(currentTick)) * market.getPrices(secId_2).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-        		double covariance = market.getTrader(traderId).getCurrentCovariance(secId_1, secId_2);        		
-        		portfolioVol = portfolioVol + weight_1 * weight_2 * covariance;
-        	}
-    	}
+    	double portfolioVol = portfolioVariance(market, portfolioValue, false);
     	
     	// Calculate the VaR at 99% of the portfolio (in dollar value)
     	double var;
@@ -123,31 +152,16 @@ public class TradingPortfolio {
     
     public double valueAtRisk(ShareMarket market, double confidenceLevel) {
     	int currentTick = WorldClock.currentTick();
-    	Set<String> secIds = market.getTradedShares().keySet();
     	
     	if (currentTick == 0)  return 0;
     	
     	// Calculate the current value of the portfolio (with positions in absolute value)
-    	double portfolioValue = 0;
-    	
-    	for (String secId : secIds) {
-    		portfolioValue = portfolioValue + Math.abs(this.tsPosList.get(secId).get(currentTick)) * market.getPrices(secId).get(currentTick);
-    	}
+    	double portfolioValue = gatherActivePositions(market, currentTick, currentTick);
     	
     	if (portfolioValue == 0) return 0;  // If there are no positions in the portfolio --> VaR = 0
             
     	// Calculate the volatility of the portfolio (with positions in absolute value)
-    	double portfolioVol = 0;
-
-    	for (String secId_1 : secIds) {
-    		double weight_1 =  Math.abs(this.tsPosList.get(secId_1).get(currentTick)) * market.getPrices(secId_1).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-    		
-        	for (String secId_2 : secIds) {
-        		double weight_2 =  Math.abs(this.tsPosList.get(secId_2).get(currentTick)) * market.getPrices(secId_2).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-        		double covariance = market.getTrader(traderId).getCurrentCovariance(secId_1, secId_2);        		
-        		portfolioVol = portfolioVol + weight_1 * weight_2 * covariance;
-        	}
-    	}
+    	double portfolioVol = portfolioVariance(market, portfolioValue, false);
     	
     	// Calculate the VaR of the portfolio (in dollar value)
         double zScore_N = this.normalDist.inverseCumulativeProbability(confidenceLevel);                    	
@@ -212,30 +226,16 @@ public class TradingPortfolio {
     
     public double expectedShortfallParametricNormal(ShareMarket market, double confidenceLevel) {
         int currentTick = WorldClock.currentTick();
-        Set<String> secIds = market.getTradedShares().keySet();
 
         if (currentTick == 0) return 0;
 
         // Calculate the current value of the portfolio (with positions in absolute value)
-        double portfolioValue = 0;
-        for (String secId : secIds) {
-            portfolioValue += Math.abs(this.tsPosList.get(secId).get(currentTick)) * market.getPrices(secId).get(currentTick);
-        }
+        double portfolioValue = gatherActivePositions(market, currentTick, currentTick);
 
         if (portfolioValue == 0) return 0; // If there are no positions in the portfolio --> ES = 0
         
         // Calculate the volatility of the portfolio (with positions in absolute value)
-        double portfolioVol = 0;
-        
-        for (String secId_1 : secIds) {
-            double weight1 = Math.abs(this.tsPosList.get(secId_1).get(currentTick)) * market.getPrices(secId_1).get(currentTick) / portfolioValue;
-            
-            for (String secId_2 : secIds) {
-                double weight2 = Math.abs(this.tsPosList.get(secId_2).get(currentTick)) * market.getPrices(secId_2).get(currentTick) / portfolioValue;
-                double covariance = market.getTrader(traderId).getCurrentCovariance(secId_1, secId_2);
-                portfolioVol += weight1 * weight2 * covariance;
-            }
-        }
+        double portfolioVol = portfolioVariance(market, portfolioValue, false);
         portfolioVol = Math.sqrt(portfolioVol);
        
         // ES with normal distribution
@@ -390,32 +390,17 @@ public class TradingPortfolio {
     
     public double stressedValueAtRisk_conf99(ShareMarket market) {
     	int currentTick = WorldClock.currentTick();
-    	Set<String> secIds = market.getTradedShares().keySet();
     	
     	if (currentTick == 0)  return 0;
     	
     	// Calculate the current value of the portfolio (with positions in absolute value)
-    	double portfolioValue = 0;
-    	
-    	for (String secId : secIds) {
-    		portfolioValue = portfolioValue + Math.abs(this.tsPosList.get(secId).get(currentTick)) * market.getPrices(secId).get(currentTick);
-    	}
+    	double portfolioValue = gatherActivePositions(market, currentTick, currentTick);
     	
     	if (portfolioValue == 0) return 0;  // If there are no positions in the portfolio --> VaR = 0
             
     	// Calculate the volatility of the portfolio (with positions in absolute value)
     	// Use the maximum volatilities instead of current volatilities
-    	double portfolioVol = 0;
-
-    	for (String secId_1 : secIds) {
-    		double weight_1 =  Math.abs(this.tsPosList.get(secId_1).get(currentTick)) * market.getPrices(secId_1).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-    		
-        	for (String secId_2 : secIds) {
-        		double weight_2 =  Math.abs(this.tsPosList.get(secId_2).get(currentTick)) * market.getPrices(secId_2).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-        		double covariance = market.getTrader(traderId).getMaxCovariance(secId_1, secId_2);        		
-        		portfolioVol = portfolioVol + weight_1 * weight_2 * covariance;
-        	}
-    	}
+    	double portfolioVol = portfolioVariance(market, portfolioValue, true);
     	
     	// Calculate the stressed VaR at 99% of the portfolio (in dollar value)
     	double sVar;
@@ -432,32 +417,17 @@ public class TradingPortfolio {
     
     public double stressedValueAtRisk(ShareMarket market, double confidenceLevel) {
     	int currentTick = WorldClock.currentTick();
-    	Set<String> secIds = market.getTradedShares().keySet();
     	
     	if (currentTick == 0)  return 0;
     	
     	// Calculate the current value of the portfolio (with positions in absolute value)
-    	double portfolioValue = 0;
-    	
-    	for (String secId : secIds) {
-    		portfolioValue = portfolioValue + Math.abs(this.tsPosList.get(secId).get(currentTick)) * market.getPrices(secId).get(currentTick);
-    	}
+    	double portfolioValue = gatherActivePositions(market, currentTick, currentTick);
     	
     	if (portfolioValue == 0) return 0;  // If there are no positions in the portfolio --> VaR = 0
             
     	// Calculate the volatility of the portfolio (with positions in absolute value)
     	// Use the maximum volatilities instead of current volatilities
-    	double portfolioVol = 0;
-
-    	for (String secId_1 : secIds) {
-    		double weight_1 =  Math.abs(this.tsPosList.get(secId_1).get(currentTick)) * market.getPrices(secId_1).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-    		
-        	for (String secId_2 : secIds) {
-        		double weight_2 =  Math.abs(this.tsPosList.get(secId_2).get(currentTick)) * market.getPrices(secId_2).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-        		double covariance = market.getTrader(traderId).getMaxCovariance(secId_1, secId_2);        		
-        		portfolioVol = portfolioVol + weight_1 * weight_2 * covariance;
-        	}
-    	}
+    	double portfolioVol = portfolioVariance(market, portfolioValue, true);
     	
     	// Calculate the stressed VaR of the portfolio (in dollar value)
         double zScore_N = this.normalDist.inverseCumulativeProbability(confidenceLevel);                    	
@@ -474,32 +444,17 @@ public class TradingPortfolio {
     
     public double stressedExpectedShortfall(ShareMarket market, double confidenceLevel) {
     	int currentTick = WorldClock.currentTick();
-    	Set<String> secIds = market.getTradedShares().keySet();
     	
     	if (currentTick == 0)  return 0;
     	
     	// Calculate the current value of the portfolio (with positions in absolute value)
-    	double portfolioValue = 0;
-    	
-    	for (String secId : secIds) {
-    		portfolioValue = portfolioValue + Math.abs(this.tsPosList.get(secId).get(currentTick)) * market.getPrices(secId).get(currentTick);
-    	}
+    	double portfolioValue = gatherActivePositions(market, currentTick, currentTick);
     	
     	if (portfolioValue == 0) return 0;  // If there are no positions in the portfolio --> ES = 0
             
     	// Calculate the volatility of the portfolio (with positions in absolute value)
     	// Use the maximum volatilities instead of current volatilities
-    	double portfolioVol = 0;
-
-    	for (String secId_1 : secIds) {
-    		double weight_1 =  Math.abs(this.tsPosList.get(secId_1).get(currentTick)) * market.getPrices(secId_1).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-    		
-        	for (String secId_2 : secIds) {
-        		double weight_2 =  Math.abs(this.tsPosList.get(secId_2).get(currentTick)) * market.getPrices(secId_2).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-        		double covariance = market.getTrader(traderId).getMaxCovariance(secId_1, secId_2);        		
-        		portfolioVol = portfolioVol + weight_1 * weight_2 * covariance;
-        	}
-    	}
+    	double portfolioVol = portfolioVariance(market, portfolioValue, true);
     	
     	// Calculate the stressed ES of the portfolio, assuming a normal distribution (in dollar value)
         double zScore_N = this.normalDist.inverseCumulativeProbability(confidenceLevel);
@@ -567,32 +522,16 @@ public class TradingPortfolio {
     
     public double preTradeValueAtRisk_conf99(ShareMarket market) {
     	int currentTick = WorldClock.currentTick();
-    	Set<String> secIds = market.getTradedShares().keySet();
     	
     	if (currentTick == 0)  return 0;
     	
     	// Calculate the current value of the portfolio (with positions in absolute value)
-    	double portfolioValue = 0;
-    	
-    	for (String secId : secIds) {
-    		portfolioValue = portfolioValue + Math.abs(this.tsPosList.get(secId).get(currentTick-1)) * market.getPrices(secId).get(currentTick);
-    	}
+    	double portfolioValue = gatherActivePositions(market, currentTick - 1, currentTick);
     	
     	if (portfolioValue == 0) return 0;  // If there are no positions in the portfolio --> VaR = 0
             
     	// Calculate the volatility of the portfolio (with positions in absolute value)
-    	double portfolioVol = 0;
-
-    	for (String secId_1 : secIds) {
-    		double weight_1 =  Math.abs(this.tsPosList.get(secId_1).get(currentTick-1)) * market.getPrices(secId_1).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-    		
-        	for (String secId_2 : secIds) {
-        		double weight_2 =  Math.abs(this.tsPosList.get(secId_2).get(currentTick-1)) * market.getPrices(secId_2).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-        		double covariance = market.getTrader(traderId).getCurrentCovariance(secId_1, secId_2);
-        		
-        		portfolioVol = portfolioVol + weight_1 * weight_2 * covariance;
-        	}
-    	}
+    	double portfolioVol = portfolioVariance(market, portfolioValue, false);
     	
     	// Calculate the VaR at 99% of the portfolio (in dollar value)
     	double var;
@@ -609,32 +548,16 @@ public class TradingPortfolio {
     
     public double preTradeValueAtRisk(ShareMarket market, double confidenceLevel) {
     	int currentTick = WorldClock.currentTick();
-    	Set<String> secIds = market.getTradedShares().keySet();
     	
     	if (currentTick == 0)  return 0;
     	
     	// Calculate the current value of the portfolio (with positions in absolute value)
-    	double portfolioValue = 0;
-    	
-    	for (String secId : secIds) {
-    		portfolioValue = portfolioValue + Math.abs(this.tsPosList.get(secId).get(currentTick-1)) * market.getPrices(secId).get(currentTick);
-    	}
+    	double portfolioValue = gatherActivePositions(market, currentTick - 1, currentTick);
     	
     	if (portfolioValue == 0) return 0;  // If there are no positions in the portfolio --> VaR = 0
             
     	// Calculate the volatility of the portfolio (with positions in absolute value)
-    	double portfolioVol = 0;
-
-    	for (String secId_1 : secIds) {
-    		double weight_1 =  Math.abs(this.tsPosList.get(secId_1).get(currentTick-1)) * market.getPrices(secId_1).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-    		
-        	for (String secId_2 : secIds) {
-        		double weight_2 =  Math.abs(this.tsPosList.get(secId_2).get(currentTick-1)) * market.getPrices(secId_2).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-        		double covariance = market.getTrader(traderId).getCurrentCovariance(secId_1, secId_2);
-        		
-        		portfolioVol = portfolioVol + weight_1 * weight_2 * covariance;
-        	}
-    	}
+    	double portfolioVol = portfolioVariance(market, portfolioValue, false);
   	
     	// Calculate the VaR of the portfolio (in dollar value)
         double zScore_N = this.normalDist.inverseCumulativeProbability(confidenceLevel);                    	
@@ -701,32 +624,16 @@ public class TradingPortfolio {
     
     public double preTradeShortfallParametricNormal(ShareMarket market, double confidenceLevel) {
     	int currentTick = WorldClock.currentTick();
-    	Set<String> secIds = market.getTradedShares().keySet();
     	
     	if (currentTick == 0)  return 0;
     	
     	// Calculate the current value of the portfolio (with positions in absolute value)
-    	double portfolioValue = 0;
-    	
-    	for (String secId : secIds) {
-    		portfolioValue = portfolioValue + Math.abs(this.tsPosList.get(secId).get(currentTick-1)) * market.getPrices(secId).get(currentTick);
-    	}
+    	double portfolioValue = gatherActivePositions(market, currentTick - 1, currentTick);
     	
     	if (portfolioValue == 0) return 0;  // If there are no positions in the portfolio --> ES = 0
             
     	// Calculate the volatility of the portfolio (with positions in absolute value)
-    	double portfolioVol = 0;
-
-    	for (String secId_1 : secIds) {
-    		double weight_1 =  Math.abs(this.tsPosList.get(secId_1).get(currentTick-1)) * market.getPrices(secId_1).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-    		
-        	for (String secId_2 : secIds) {
-        		double weight_2 =  Math.abs(this.tsPosList.get(secId_2).get(currentTick-1)) * market.getPrices(secId_2).get(currentTick) / portfolioValue;  // dollar ratio spent in this asset
-        		double covariance = market.getTrader(traderId).getCurrentCovariance(secId_1, secId_2);
-        		
-        		portfolioVol = portfolioVol + weight_1 * weight_2 * covariance;
-        	}
-    	}
+    	double portfolioVol = portfolioVariance(market, portfolioValue, false);
     	
         // ES with normal distribution
         double zScore_N = this.normalDist.inverseCumulativeProbability(confidenceLevel);
@@ -737,9 +644,133 @@ public class TradingPortfolio {
     }
 
     
+    /**
+     * The value-at-risk of a portfolio (in dollars) with the given value and variance, e.g. 
+     * computed for many portfolios at once by a {@link PortfolioRiskBatch}
+     * 
+     * @param portfolioValue the value of the portfolio, with positions in absolute value
+     * @param portfolioVariance the variance of the returns of the portfolio
+     */
+    public double valueAtRisk(double portfolioValue, double portfolioVariance, double confidenceLevel) {
+    	if (portfolioValue == 0) return 0;  // If there are no positions in the portfolio --> VaR = 0
+    	
+        double zScore_N = this.normalDist.inverseCumulativeProbability(confidenceLevel);                    	
+    	
+    	return Math.sqrt(portfolioVariance) * zScore_N * portfolioValue;
+    }
+    
+    
+    /**
+     * The expected shortfall of a portfolio (in dollars) with the given value and variance, 
+     * assuming a normal distribution, see {@link #valueAtRisk(double, double, double)}
+     */
+    public double expectedShortfallParametricNormal(double portfolioValue, double portfolioVariance, double confidenceLevel) {
+    	if (portfolioValue == 0) return 0;  // If there are no positions in the portfolio --> ES = 0
+    	
+        double zScore_N = this.normalDist.inverseCumulativeProbability(confidenceLevel);
+        double pdf_N = this.normalDist.density(zScore_N); // \phi(Z_\alpha)
+        
+        return portfolioValue * Math.sqrt(portfolioVariance) * (pdf_N / (1 - confidenceLevel));
+    }
+
+    
+    /**
+     * Collect the securities in which the portfolio has a non-zero position, in the order of the 
+     * shares of the market, with the absolute dollar values of the positions. The VaR and ES 
+     * only iterate over these, so a portfolio with positions in k of N shares costs O(N + k^2) 
+     * rather than O(N^2). Positions of '0' add nothing to the sums, so the results are unchanged.
+     * 
+     * @param positionTick the tick of the positions
+     * @param priceTick the tick of the prices
+     * @return the value of the portfolio, with positions in absolute value
+     */
+    private double gatherActivePositions(ShareMarket market, int positionTick, int priceTick) {
+        int numShares = market.getTradedShares().size();
+        double portfolioValue = 0;
+        
+        if (activeSecIds.length < numShares) {
+            activeSecIds = new String[numShares];
+            activeValues = new double[numShares];
+        }
+        
+        numActive = 0;
+        
+        for (String secId : market.getTradedShares().keySet()) {
+            double position = this.tsPosList.get(secId).get(positionTick);
+            
+            if (position == 0) continue;
+            
+            double value = Math.abs(position) * market.getPrices(secId).get(priceTick);
+            
+            activeSecIds[numActive] = secId;
+            activeValues[numActive] = value;
+            numActive++;
+            portfolioValue = portfolioValue + value;
+        }
+        
+        return portfolioValue;
+    }
+    
+    /**
+     * The variance of the returns of the portfolio, over the securities collected by 
+     * {@link #gatherActivePositions(ShareMarket, int, int)}, with positions in absolute value. 
+     * With a factor covariance model (see {@link ShareMarket#setFactorCovariance(int)}), the 
+     * cost is O(n k) rather than O(n^2).
+     * 
+     * @param portfolioValue the value returned by gatherActivePositions()
+     * @param stressed true to use the maximum covariances (stressed VaR and ES), false for the current ones
+     */
+    private double portfolioVariance(ShareMarket market, double portfolioValue, boolean stressed) {
+        Trader trader = market.getTrader(traderId);
+        
+        if (market.getCovarianceModel() == CovarianceModel.FACTOR) {
+            FactorCovariance.Estimate factorCovariance = trader.getFactorCovariance(stressed);
+            
+            return (factorCovariance == null) ? 0 : factorCovariance.portfolioVariance(activeSecIds, activeValues, numActive, portfolioValue);
+        }
+        
+        if (numActive == 1)     // the weight is '1'
+            return stressed ? trader.getMaxCovariance(activeSecIds[0], activeSecIds[0]) : 
+                              trader.getCurrentCovariance(activeSecIds[0], activeSecIds[0]);
+        
+        double portfolioVol = 0;
+        
+        for (int i = 0; i < numActive; i++) {
+            double weight_1 = activeValues[i] / portfolioValue;     // dollar ratio spent in this asset
+            
+            for (int j = 0; j < numActive; j++) {
+                double weight_2 = activeValues[j] / portfolioValue;
+                double covariance = stressed ? trader.getMaxCovariance(activeSecIds[i], activeSecIds[j]) : 
+                                               trader.getCurrentCovariance(activeSecIds[i], activeSecIds[j]);
+                
+                portfolioVol = portfolioVol + weight_1 * weight_2 * covariance;
+            }
+        }
+        
+        return portfolioVol;
+    }
+    
     public void newSecurity(String secId) {
-        if(!tsPosList.containsKey(secId))
-            tsPosList.put(secId, new DoubleTimeSeries());
+        if(!tsPosList.containsKey(secId)) {
+            DoubleTimeSeries tsPos = new DoubleTimeSeries();
+            
+            if (historyLimit > 0) tsPos.setHistoryLimit(historyLimit);
+            
+            tsPosList.put(secId, tsPos);
+        }
+    }
+    
+    /**
+     * Keep only the most recent positions, for the securities already in the portfolio and 
+     * for those added later. See {@link DoubleTimeSeries#setHistoryLimit(int)}.
+     * 
+     * @param limit the number of positions to keep per security
+     */
+    public void setHistoryLimit(int limit) {
+        this.historyLimit = limit;
+        
+        for (DoubleTimeSeries tsPos : tsPosList.values())
+            tsPos.setHistoryLimit(limit);
     }
     
     public void setTraderId(String traderId) {
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.agent.Trader.UseStressedVar;
+import info.financialecology.finance.abm.model.agent.Trader.UseVar;
+import info.financialecology.finance.abm.model.agent.Trader.VariabilityVarLimit;
+import info.financialecology.finance.utilities.datagen.DataGenerator;
+
+import java.io.Serializable;
+
+/**
+ * The VaR parameters of a group of traders. The parameters that differ between traders are
+ * drawn from data generators, one set of draws per trader, when the settings are applied to
+ * the trader.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class VarSettings implements Serializable {
+
+    private DataGenerator unif01Var;                // U[0,1] generator to decide if a trader uses VaR
+    private double probVar;                         // probability that a trader uses VaR
+    private UseStressedVar useStressedVar;
+    private DataGenerator varLimit;                 // generator for the VaR limit
+    private DataGenerator volWindowVar;             // generator for the volatility window of the VaR (rounded to ticks)
+    private VariabilityVarLimit variabilityVarLimit;
+
+    /**
+     * @param unif01Var U[0,1] generator; the trader uses VaR unless the draw is greater than {@code probVar}
+     * @param probVar the probability that a trader uses VaR
+     * @param useStressedVar whether the traders use stressed VaR
+     * @param varLimit generator for the VaR limit
+     * @param volWindowVar generator for the window over which the VaR volatility is computed
+     * @param variabilityVarLimit whether the VaR limit is constant or variable
+     */
+    public VarSettings(DataGenerator unif01Var,
+                       double probVar,
+                       UseStressedVar useStressedVar,
+                       DataGenerator varLimit,
+                       DataGenerator volWindowVar,
+                       VariabilityVarLimit variabilityVarLimit) {
+        this.unif01Var = unif01Var;
+        this.probVar = probVar;
+        this.useStressedVar = useStressedVar;
+        this.varLimit = varLimit;
+        this.volWindowVar = volWindowVar;
+        this.variabilityVarLimit = variabilityVarLimit;
+    }
+
+    /**
+     * Draw the VaR parameters of the trader and set them. The generators are drawn in the order:
+     * use of VaR, VaR limit, volatility window.
+     */
+    public void applyTo(Trader trader) {
+        trader.setUseVar(unif01Var.nextDouble() > probVar ? UseVar.FALSE : UseVar.TRUE);
+        trader.setUseStressedVar(useStressedVar);
+        trader.setVarLimit(varLimit.nextDouble());
+        trader.setVolWindow((int) Math.round(volWindowVar.nextDouble()));
+        trader.setVariabilityVarLimit(variabilityVarLimit);
+    }
+}
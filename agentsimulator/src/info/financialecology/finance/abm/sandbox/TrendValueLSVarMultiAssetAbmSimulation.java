@@ -24,6 +24,7 @@ import info.financialecology.finance.abm.model.agent.Trader;
 import info.financialecology.finance.abm.model.agent.Trader.UseVar;
 import info.financialecology.finance.abm.model.agent.Trader.UseStressedVar;
 import info.financialecology.finance.abm.model.agent.Trader.VariabilityVarLimit;
+import info.financialecology.finance.abm.model.util.VarSettings;
 import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy;
 import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.MultiplierTrend;
 import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.PositionUpdateTrend;
@@ -472,45 +473,11 @@ public class TrendValueLSVarMultiAssetAbmSimulation {
 	            OrderOrPositionStrategyTrend orderOrPositionStrategyTrend = OrderOrPositionStrategyTrend.POSITION;     // Specifies if the strategy is order-based or position-based
 	            VariabilityCapFactorTrend variabilityCapFactorTrend = VariabilityCapFactorTrend.CONSTANT;              // Specifies if the capFactor is constant or varies based on the agent performance
 	            
-	            for (int i = 0; i < trendFollowers.size(); i++) {
-	            	// Decide if the trader is allowed to short-sell
-	            	ShortSellingTrend shortSellingTrend = ShortSellingTrend.ALLOWED;
-	            	if (distUnif01SSTrend.nextDouble() > probShortSellingTrend) 
-	            		shortSellingTrend = ShortSellingTrend.NOT_ALLOWED;
-	            	
-	            	// Create TREND trader
-	                for (String secId : shareIds) {
-    	            	simulator.addTrendStrategyForOneTrendFollower(secId, "Trend_" + i, (int) Math.round(maShortTicks.get(secId).nextDouble()), 
-//    	            			(int) Math.round(maLongTicks.get(secId).nextDouble()), (int) Math.round(bcTicksTrend.get(secId).nextDouble()), params.capFactorTrend, 
-    	            			(int) Math.round(maLongTicks.get(secId).nextDouble()), (int) Math.round(bcTicksTrend.get(secId).nextDouble()), capFactTrend,
-    	            			params.volWindowStratTrend, trendMultiplier, positionUpdateTrend, orderOrPositionStrategyTrend, 
-    	            			variabilityCapFactorTrend, shortSellingTrend);
-	                }
-	                
-	                // Set VaR parameters
-	                UseVar useVarTrend = UseVar.TRUE;
-	            	if (distUnif01VarTrend.nextDouble() > probVarTrend) 
-	            		useVarTrend = UseVar.FALSE;
-	            	
-	            	simulator.getTrendFollowers().get("Trend_" + i).setUseVar(useVarTrend);
-	            	
-//	            	UseStressedVar useSVarTrend = UseStressedVar.FALSE;
-//	            	if (distUnif01VarTrend.nextDouble() < e*0.1)    //Use when the probabiliy of using stressed VaR changes along experiments
-//	            		useSVarTrend = UseStressedVar.TRUE;
-//
-//	            	simulator.getTrendFollowers().get("Trend_" + i).setUseStressedVar(useSVarTrend);
-	            	simulator.getTrendFollowers().get("Trend_" + i).setUseStressedVar(useStressedVar);
-	            	
-	                simulator.getTrendFollowers().get("Trend_" + i).setVarLimit(distVarLimitTrend.nextDouble());
-	            	simulator.getTrendFollowers().get("Trend_" + i).setVolWindowVar((int) Math.round(distVolWindowVarTrend.nextDouble()));
-	            	
-//	            	VariabilityVarLimit variabilityVarLimitTrend = VariabilityVarLimit.CONSTANT;
-//	            	if (distUnif01VarTrend.nextDouble() < e*0.1)    //Use when the probability of using a variable VaR limit changes along experiments
-//	            		variabilityVarLimitTrend = VariabilityVarLimit.COUNTERCYCLICAL;
-//	            	
-//	            	simulator.getTrendFollowers().get("Trend_" + i).setVariabilityVarLimit(variabilityVarLimitTrend);
-	            	simulator.getTrendFollowers().get("Trend_" + i).setVariabilityVarLimit(variabilityVarLimit);
-	            }
+	            // Set up all trend followers in one pass: short-selling, one trend strategy per asset, and VaR parameters
+	            simulator.setUpTrendFollowers(shareIds, maShortTicks, maLongTicks, bcTicksTrend, capFactTrend, 
+	                    params.volWindowStratTrend, trendMultiplier, positionUpdateTrend, orderOrPositionStrategyTrend, 
+	                    variabilityCapFactorTrend, distUnif01SSTrend, probShortSellingTrend, 
+	                    new VarSettings(distUnif01VarTrend, probVarTrend, useStressedVar, distVarLimitTrend, distVolWindowVarTrend, variabilityVarLimit));
 	    
 	            
 	            /* ***************************************
@@ -554,43 +521,10 @@ public class TrendValueLSVarMultiAssetAbmSimulation {
 	            OrderOrPositionStrategyValue orderOrPositionStrategyValue = OrderOrPositionStrategyValue.POSITION;     // Specifies if the strategy is order-based or position-based
 	            VariabilityCapFactorValue variabilityCapFactorValue = VariabilityCapFactorValue.CONSTANT;              // Specifies if the capFactor is constant or varies based on the agent performance
 	            	            
-	            for (int i = 0; i < valueTraders.size(); i++) {
-	            	// Decide if the trader is allowed to short-sell
-	            	ShortSellingValue shortSellingValue = ShortSellingValue.ALLOWED;
-	            	if (distUnif01SSValue.nextDouble() > probShortSellingValue)
-	            		shortSellingValue = ShortSellingValue.NOT_ALLOWED;
-	            	
-	            	// Create FUND trader
-	                for (String secId : shareIds) {	            
-    	            	simulator.addValueStrategyForOneValueInvestor(secId, "Value_" + i, entryThreshold.get(secId).nextDouble(), exitThreshold.get(secId).nextDouble(), 
-    	            	        valueOffset.get(secId).nextDouble(), (int) Math.round(bcTicksFund.get(secId).nextDouble()), params.capFactorFund, positionUpdateValue, 
-    	            	        orderOrPositionStrategyValue, variabilityCapFactorValue, shortSellingValue);
-    	            }
-	                
-	                // Set VaR parameters
-	                UseVar useVarValue = UseVar.TRUE;
-	                if (distUnif01VarValue.nextDouble() > probVarValue) 
-	            		useVarValue = UseVar.FALSE;
-	            	
-	                simulator.getValueInvestors().get("Value_" + i).setUseVar(useVarValue);
-	                
-//	            	UseStressedVar useSVarValue = UseStressedVar.FALSE;
-//	            	if (distUnif01VarValue.nextDouble() < e*0.1)    //Use when the probabiliy of using stressed VaR changes along experiments
-//	            		useSVarValue = UseStressedVar.TRUE;
-//
-//	            	simulator.getValueInvestors().get("Value_" + i).setUseStressedVar(useSVarValue);
-	            	simulator.getValueInvestors().get("Value_" + i).setUseStressedVar(useStressedVar);
-	            	
-	                simulator.getValueInvestors().get("Value_" + i).setVarLimit(distVarLimitValue.nextDouble());
-	            	simulator.getValueInvestors().get("Value_" + i).setVolWindowVar((int) Math.round(distVolWindowVarValue.nextDouble()));
-	            	
-//	            	VariabilityVarLimit variabilityVarLimitValue = VariabilityVarLimit.CONSTANT;
-//	            	if (distUnif01VarValue.nextDouble() < e*0.1)    //Use when the probability of using a variable VaR limit changes along experiments
-//	            		variabilityVarLimitValue = VariabilityVarLimit.COUNTERCYCLICAL;
-//	            	
-//	            	simulator.getValueInvestors().get("Value_" + i).setVariabilityVarLimit(variabilityVarLimitValue);
-	            	simulator.getValueInvestors().get("Value_" + i).setVariabilityVarLimit(variabilityVarLimit);
-	            }   
+	            // Set up all value investors in one pass: short-selling, one value strategy per asset, and VaR parameters
+	            simulator.setUpValueInvestors(shareIds, entryThreshold, exitThreshold, valueOffset, bcTicksFund, params.capFactorFund, 
+	                    positionUpdateValue, orderOrPositionStrategyValue, variabilityCapFactorValue, distUnif01SSValue, probShortSellingValue, 
+	                    new VarSettings(distUnif01VarValue, probVarValue, useStressedVar, distVarLimitValue, distVolWindowVarValue, variabilityVarLimit));
 	            
 	            
 	            
@@ -635,39 +569,10 @@ public class TrendValueLSVarMultiAssetAbmSimulation {
                 MultiplierLS LSMultiplier = MultiplierLS.DIVERGENCE;        // Method to calculate the size of the LS positions
 	            PositionUpdateLS positionUpdateLS = PositionUpdateLS.VARIABLE;     // Specifies if a position can be modified while open, !![25 Mar 2015] 'CONSTANT' will not work well
 	            
-	            for (int i = 0; i < LSTraders.size(); i++) {
-	            	for (int j = 1; j < numAssets; j++) {  // Add an LS strategy for each spread, where Spread = P_0 - P_j         
-    	            	simulator.addLSStrategyForOneLSInvestor(shareIds.get(0), shareIds.get(j), "LS_" + i, 
-    	            			(int) Math.round(maSpreadShortTicks.get(shareIds.get(j)).nextDouble()),
-    	            			(int) Math.round(maSpreadLongTicks.get(shareIds.get(j)).nextDouble()),
-    	            			params.volWindowStratLS, entryDivergenceSigmas.get(shareIds.get(j)).nextDouble(), exitConvergenceSigmas.get(shareIds.get(j)).nextDouble(),
-    	            			exitStopLossSigmas.get(shareIds.get(j)).nextDouble(), params.capFactorLS, LSMultiplier, positionUpdateLS);
-    	            }
-	            	
-	            	// Set VaR parameters
-	                UseVar useVarLS = UseVar.TRUE;
-	            	if (distUnif01VarLS.nextDouble() > probVarLS) 
-	            		useVarLS = UseVar.FALSE;
-	            	
-	            	simulator.getLSInvestors().get("LS_" + i).setUseVar(useVarLS);
-	            	
-//	            	UseStressedVar useSVarLS = UseStressedVar.FALSE;
-//	            	if (distUnif01VarLS.nextDouble() < e*0.1)    //Use when the probabiliy of using stressed VaR changes along experiments
-//	            		useSVarLS = UseStressedVar.TRUE;
-//	            	
-//	            	simulator.getLSInvestors().get("LS_" + i).setUseStressedVar(useSVarLS);
-	            	simulator.getLSInvestors().get("LS_" + i).setUseStressedVar(useStressedVar);
-	            	
-	                simulator.getLSInvestors().get("LS_" + i).setVarLimit(distVarLimitLS.nextDouble());
-	                simulator.getLSInvestors().get("LS_" + i).setVolWindowVar((int) Math.round(distVolWindowVarLS.nextDouble()));
-	                
-//	                VariabilityVarLimit variabilityVarLimitLS = VariabilityVarLimit.CONSTANT;
-//	            	if (distUnif01VarLS.nextDouble() < e*0.1)   //Use when the probability of using a variable VaR limit changes along experiments
-//	            		variabilityVarLimitLS = VariabilityVarLimit.COUNTERCYCLICAL;
-//	                
-//	                simulator.getLSInvestors().get("LS_" + i).setVariabilityVarLimit(variabilityVarLimitLS);
-	                simulator.getLSInvestors().get("LS_" + i).setVariabilityVarLimit(variabilityVarLimit);
-	            }
+	            // Set up all LS investors in one pass: one LS strategy per spread P_0 - P_j, and VaR parameters
+	            simulator.setUpLSInvestors(shareIds, maSpreadShortTicks, maSpreadLongTicks, params.volWindowStratLS, entryDivergenceSigmas, 
+	                    exitConvergenceSigmas, exitStopLossSigmas, params.capFactorLS, LSMultiplier, positionUpdateLS, 
+	                    new VarSettings(distUnif01VarLS, probVarLS, useStressedVar, distVarLimitLS, distVolWindowVarLS, variabilityVarLimit));
 
 	            
 	            
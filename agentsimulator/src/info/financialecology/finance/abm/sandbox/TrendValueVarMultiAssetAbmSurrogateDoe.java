@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.sandbox;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import info.financialecology.finance.abm.model.TrendValueLSVarAbmSimulator;
+import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.agent.Trader.UseVar;
+import info.financialecology.finance.abm.model.agent.Trader.UseStressedVar;
+import info.financialecology.finance.abm.model.agent.Trader.VariabilityVarLimit;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.MultiplierTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.PositionUpdateTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.OrderOrPositionStrategyTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.VariabilityCapFactorTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.ShortSellingTrend;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.PositionUpdateValue;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.OrderOrPositionStrategyValue;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.VariabilityCapFactorValue;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.ShortSellingValue;
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.CmdLineProcessor;
+import info.financialecology.finance.utilities.abm.ExperimentRunner;
+import info.financialecology.finance.utilities.abm.ExperimentSample;
+import info.financialecology.finance.utilities.abm.LhsDesign;
+import info.financialecology.finance.utilities.abm.ParameterMapping;
+import info.financialecology.finance.utilities.datagen.OverlayDataGenerator;
+import info.financialecology.finance.utilities.datagen.RandomDistDataGenerator;
+import info.financialecology.finance.utilities.datagen.OverlayDataGenerator.GeneratorType;
+import info.financialecology.finance.utilities.datagen.RandomGeneratorPool.DistributionType;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeriesList;
+import cern.colt.Timer;
+import cern.colt.list.DoubleArrayList;
+import ch.qos.logback.classic.Logger;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates the simulation outputs used to train the ML-based metamodel of the trend-value model
+ * with VaR, like {@link TrendValueVarMultiAssetAbmSimulation_Surrogate_Rev}, but runs the samples
+ * of the LHS design with an {@link ExperimentRunner}:
+ * <ul>
+ * <li> samples run in parallel, each with its own seed
+ * <li> the price series of each sample are written to their own file as soon as the sample finishes
+ * <li> when restarted, samples whose output file exists are skipped
+ * </ul>
+ * The columns of the LHS file are assigned by position, in the same order as in the original
+ * surrogate simulation.
+ *
+ * @author Gilbert Peffer, Barbara Llacay
+ */
+public class TrendValueVarMultiAssetAbmSurrogateDoe {
+
+    protected static final String TEST_ID = "TrendValueVarMultiAssetAbmSurrogateDoe";
+
+    private static final Logger logger = (Logger)LoggerFactory.getLogger(TrendValueVarMultiAssetAbmSurrogateDoe.class.getSimpleName());
+
+    /*
+     * Columns of the design that are not plain fields of TrendValueLSVarAbmParams
+     */
+    private static final String LIQUIDITY   = "liquidity";
+    private static final String SIGMA_VALUE = "sigma_value";
+
+    /**
+     * @param args
+     * @throws FileNotFoundException
+     */
+    public static void main(String[] args) throws FileNotFoundException {
+        Timer timerAll  = new Timer();  // a timer to calculate total execution time (cern.colt)
+        timerAll.start();
+
+        System.out.println("\nTEST: " + TEST_ID);
+        System.out.println("=============================================\n");
+
+        final TrendValueLSVarAbmParams params = TrendValueLSVarAbmParams.readParameters(CmdLineProcessor.process(args));
+
+        int nParamsLHS = 10;    // number of parameters which have been sampled in LHS (= # columns in CSV file)
+        int nSamples = 1000;    // number of samples generated with LHS (= # rows in CSV file)
+        String inputFile = "./in/params/TrendValueVarAbmSurrogateRev/LHS_parameters_" + nParamsLHS + "_" + nSamples + "_center_seed100.csv";
+        String outputDir = "./out/trend-value-var-abm-surrogate-doe/";
+
+        LhsDesign design = LhsDesign.read(inputFile);
+
+        Assertion.assertOrKill(design.getNumColumns() == nParamsLHS, "The design '" + inputFile + "' has " +
+                design.getNumColumns() + " columns, but " + nParamsLHS + " are expected");
+
+        /*
+         *      RANGE OF VARIATION OF CHANGING PARAMETERS
+         *
+         *      LHS sampling values move between 0 and 1 and are mapped to the true range of each parameter.
+         */
+        String [] columns = design.getColumnNames();
+        ParameterMapping mapping = new ParameterMapping();
+
+        mapping.map(columns[0], "numTrends", 100, 300);
+        mapping.map(columns[1], "numFunds", 100, 300);
+        mapping.rescale(columns[2], 300, 500);                          // liquidity of the first asset
+        mapping.rescale(columns[3], 0, 0.8);                            // sigma of the fundamental value process of the first asset
+        mapping.map(columns[4], "maShortTicksMin", 2, 10);
+        mapping.map(columns[5], "maLongTicksMin", 20, 60);
+        mapping.map(columns[6], "bcTicksTrendMin", 1, 15);
+        mapping.map(columns[7], "entryThresholdMin", 2, 7);
+        mapping.map(columns[8], "exitThresholdMin", -1.5, 0.5);
+        mapping.map(columns[9], "valueOffset", 1, 20);
+
+        final String liquidityColumn = columns[2];
+        final String sigmaValueColumn = columns[3];
+
+        ExperimentRunner<TrendValueLSVarAbmParams> runner = new ExperimentRunner<TrendValueLSVarAbmParams>(
+                design, mapping, params, outputDir, "java_price_timeseries_" + nParamsLHS + "_" + nSamples);
+
+        runner.setSeed(params.seed);
+
+        int numFailed = runner.run(new ExperimentRunner.SampleTask<TrendValueLSVarAbmParams>() {
+            public DoubleTimeSeriesList run(ExperimentSample<TrendValueLSVarAbmParams> sample) {
+                HashMap<String, Double> overrides = new HashMap<String, Double>();
+
+                overrides.put(LIQUIDITY, sample.getValue(liquidityColumn));
+                overrides.put(SIGMA_VALUE, sample.getValue(sigmaValueColumn));
+
+                return runSample(sample.getParams(), overrides);
+            }
+        });
+
+        timerAll.stop();
+
+        logger.info("{} samples failed", numFailed);
+        logger.info("Total execution time: {} s", timerAll.seconds());
+        logger.debug("----- END OF SIMULATION EXPERIMENT -----\n");
+    }
+
+
+    /**
+     * Set up and run the simulation of one sample
+     *
+     * @param params the parameters of the sample, with the LHS values already assigned
+     * @param overrides the sampled values of the liquidity and of the sigma of the fundamental value
+     * process of the first asset
+     * @return the price series of all assets
+     */
+    private static DoubleTimeSeriesList runSample(TrendValueLSVarAbmParams params, HashMap<String, Double> overrides) {
+
+        int numTicks = params.nTicks;
+
+        DoubleArrayList price_0          = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.PRICE_0);
+        DoubleArrayList liquidity        = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.LIQUIDITY);
+
+        DoubleArrayList amplitude_price  = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.AMPLITUDE_PRICE);
+        DoubleArrayList lag_price        = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.LAG_PRICE);
+        DoubleArrayList lambda_price     = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.LAMBDA_PRICE);
+        DoubleArrayList mu_price         = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.MU_PRICE);
+        DoubleArrayList sigma_price      = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.SIGMA_PRICE);
+
+        DoubleArrayList amplitude_value  = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.AMPLITUDE_VALUE);
+        DoubleArrayList lag_value        = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.LAG_VALUE);
+        DoubleArrayList lambda_value     = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.LAMBDA_VALUE);
+        DoubleArrayList mu_value         = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.MU_VALUE);
+        DoubleArrayList sigma_value      = params.getValidatedDoubleSequence(TrendValueLSVarAbmParams.Sequence.SIGMA_VALUE);
+
+        liquidity.set(0, overrides.get(LIQUIDITY));
+        sigma_value.set(0, overrides.get(SIGMA_VALUE));
+
+        // Ranges derived from the sampled lower bounds, as in the original surrogate simulation
+        int maShortTicksMax = params.maShortTicksMin + 10;
+        int maLongTicksMax = params.maLongTicksMin + 15;
+        int bcTicksTrendMax = params.bcTicksTrendMin + 25;
+        double entryThresholdMax = params.entryThresholdMin + 3;
+        double exitThresholdMax = params.exitThresholdMin + 1.5;
+
+        VariabilityVarLimit variabilityVarLimit = VariabilityVarLimit.CONSTANT;
+        UseStressedVar useStressedVar = UseStressedVar.FALSE;  // !! Ensure that VaR is used before setting stressedVar to 'TRUE'
+
+        int numAssets = price_0.size();
+
+        ArrayList<String> shareIds = new ArrayList<String>();
+        shareIds.add("IBM");
+        if (numAssets > 1) shareIds.add("MSFT");
+        if (numAssets > 2) shareIds.add("GOOG");
+        if (numAssets > 3) shareIds.add("AAPL");
+
+        Assertion.assertOrKill(shareIds.size() == numAssets, numAssets + " share identifiers have to be defined, but only " + shareIds + " are in the list");
+
+        /*
+         * Setting up the simulator
+         */
+        TrendValueLSVarAbmSimulator simulator = new TrendValueLSVarAbmSimulator();
+
+        for (int i = 0; i < numAssets; i++) {
+            simulator.addShares(shareIds.get(i));
+            simulator.getMarketMaker().setInitPrice(shareIds.get(i), price_0.get(i));
+            simulator.getMarket().setInitLogReturn(shareIds.get(i), 0);
+            simulator.getMarket().setInitValue(shareIds.get(i), price_0.get(i));
+            simulator.getMarket().setLiquidity(shareIds.get(i), liquidity.get(i));
+        }
+
+        for (int i = 1; i < numAssets; i++) {
+            simulator.addSpreads(shareIds.get(0) + "_" + shareIds.get(i));
+            simulator.getMarketMaker().setInitSpread(shareIds.get(0), price_0.get(0), shareIds.get(i), price_0.get(i));
+        }
+
+        simulator.createTrendFollowers(params.numTrends);
+        simulator.createValueInvestors(params.numFunds);
+
+        /*
+         * Setting up the data generators - the random generator pool of this thread is already configured
+         */
+        for (int i = 0; i < numAssets; i++) {
+            OverlayDataGenerator prices = new OverlayDataGenerator(
+                    "Price_" + shareIds.get(i), GeneratorType.SINUS, GeneratorType.ARITHMETIC_BROWNIAN_PROCESS,
+                    price_0.get(i), amplitude_price.get(i), lag_price.get(i), lambda_price.get(i), mu_price.get(i), sigma_price.get(i));
+
+            OverlayDataGenerator fundValues = new OverlayDataGenerator(
+                    "FundValue_" + shareIds.get(i), GeneratorType.SINUS, GeneratorType.ARITHMETIC_BROWNIAN_PROCESS,
+                    price_0.get(i), amplitude_value.get(i), lag_value.get(i), lambda_value.get(i), mu_value.get(i), sigma_value.get(i));
+
+            simulator.setExogeneousPriceProcess(shareIds.get(i), prices);
+            simulator.setFundamentalValueProcess(shareIds.get(i), fundValues);
+        }
+
+        /*
+         * Set up the trend strategies
+         */
+        HashMap<String, Trader> trendFollowers = simulator.getTrendFollowers();
+
+        HashMap<String, RandomDistDataGenerator> maShortTicks = new HashMap<String, RandomDistDataGenerator>();
+        HashMap<String, RandomDistDataGenerator> maLongTicks  = new HashMap<String, RandomDistDataGenerator>();
+        HashMap<String, RandomDistDataGenerator> bcTicksTrend = new HashMap<String, RandomDistDataGenerator>();
+
+        for (String secId : shareIds) {
+            maShortTicks.put(secId, new RandomDistDataGenerator("MA_Short_" + secId, DistributionType.UNIFORM, (double) params.maShortTicksMin, (double) maShortTicksMax));
+            maLongTicks.put(secId, new RandomDistDataGenerator("MA_Long_" + secId, DistributionType.UNIFORM, (double) params.maLongTicksMin, (double) maLongTicksMax));
+            bcTicksTrend.put(secId, new RandomDistDataGenerator("BC_Ticks_Trend_" + secId, DistributionType.UNIFORM, (double) params.bcTicksTrendMin, (double) bcTicksTrendMax));
+        }
+
+        RandomDistDataGenerator distVarLimitTrend = new RandomDistDataGenerator("VaR_Limit_Trend", DistributionType.UNIFORM, params.varLimitTrendMin, params.varLimitTrendMax);
+        RandomDistDataGenerator distVolWindowVarTrend = new RandomDistDataGenerator("Vol_Window_Trend", DistributionType.UNIFORM, (double) params.volWindowVarTrendMin, (double) params.volWindowVarTrendMax);
+        RandomDistDataGenerator distUnif01SSTrend = new RandomDistDataGenerator("Unif01_SS_Trend", DistributionType.UNIFORM, 0., 1.);
+        RandomDistDataGenerator distUnif01VarTrend = new RandomDistDataGenerator("Unif01_Var_Trend", DistributionType.UNIFORM, 0., 1.);
+
+        MultiplierTrend trendMultiplier = MultiplierTrend.MA_SLOPE_DIFFERENCE;
+        PositionUpdateTrend positionUpdateTrend = PositionUpdateTrend.VARIABLE;
+        OrderOrPositionStrategyTrend orderOrPositionStrategyTrend = OrderOrPositionStrategyTrend.POSITION;
+        VariabilityCapFactorTrend variabilityCapFactorTrend = VariabilityCapFactorTrend.CONSTANT;
+
+        for (int i = 0; i < trendFollowers.size(); i++) {
+            ShortSellingTrend shortSellingTrend = ShortSellingTrend.ALLOWED;
+            if (distUnif01SSTrend.nextDouble() > params.probShortSellingTrend)
+                shortSellingTrend = ShortSellingTrend.NOT_ALLOWED;
+
+            for (String secId : shareIds) {
+                simulator.addTrendStrategyForOneTrendFollower(secId, "Trend_" + i, (int) Math.round(maShortTicks.get(secId).nextDouble()),
+                        (int) Math.round(maLongTicks.get(secId).nextDouble()), (int) Math.round(bcTicksTrend.get(secId).nextDouble()), params.capFactorTrend,
+                        params.volWindowStratTrend, trendMultiplier, positionUpdateTrend, orderOrPositionStrategyTrend,
+                        variabilityCapFactorTrend, shortSellingTrend);
+            }
+
+            UseVar useVarTrend = UseVar.TRUE;
+            if (distUnif01VarTrend.nextDouble() > params.probVarTrend)
+                useVarTrend = UseVar.FALSE;
+
+            Trader trader = trendFollowers.get("Trend_" + i);
+
+            trader.setUseVar(useVarTrend);
+            trader.setUseStressedVar(useStressedVar);
+            trader.setVarLimit(distVarLimitTrend.nextDouble());
+            trader.setVolWindow((int) Math.round(distVolWindowVarTrend.nextDouble()));
+            trader.setVariabilityVarLimit(variabilityVarLimit);
+        }
+
+        /*
+         * Set up the value strategies
+         */
+        HashMap<String, Trader> valueTraders = simulator.getValueInvestors();
+
+        HashMap<String, RandomDistDataGenerator> entryThreshold = new HashMap<String, RandomDistDataGenerator>();
+        HashMap<String, RandomDistDataGenerator> exitThreshold = new HashMap<String, RandomDistDataGenerator>();
+        HashMap<String, RandomDistDataGenerator> valueOffset = new HashMap<String, RandomDistDataGenerator>();
+        HashMap<String, RandomDistDataGenerator> bcTicksFund = new HashMap<String, RandomDistDataGenerator>();
+
+        for (String secId : shareIds) {
+            entryThreshold.put(secId, new RandomDistDataGenerator("Entry_" + secId, DistributionType.UNIFORM, params.entryThresholdMin, entryThresholdMax));
+            exitThreshold.put(secId, new RandomDistDataGenerator("Exit_" + secId, DistributionType.UNIFORM, params.exitThresholdMin, exitThresholdMax));
+            valueOffset.put(secId, new RandomDistDataGenerator("Offset_" + secId, DistributionType.UNIFORM, -params.valueOffset, params.valueOffset));
+            bcTicksFund.put(secId, new RandomDistDataGenerator("BC_Ticks_Fund_" + secId, DistributionType.UNIFORM, (double) params.bcTicksFundMin, (double) params.bcTicksFundMax));
+        }
+
+        RandomDistDataGenerator distVarLimitValue = new RandomDistDataGenerator("VaR_Limit_Value", DistributionType.UNIFORM, params.varLimitFundMin, params.varLimitFundMax);
+        RandomDistDataGenerator distVolWindowVarValue = new RandomDistDataGenerator("Vol_Window_Value", DistributionType.UNIFORM, (double) params.volWindowVarFundMin, (double) params.volWindowVarFundMax);
+        RandomDistDataGenerator distUnif01SSValue = new RandomDistDataGenerator("Unif01_SS_Value", DistributionType.UNIFORM, 0., 1.);
+        RandomDistDataGenerator distUnif01VarValue = new RandomDistDataGenerator("Unif01_Var_Value", DistributionType.UNIFORM, 0., 1.);
+
+        PositionUpdateValue positionUpdateValue = PositionUpdateValue.VARIABLE;
+        OrderOrPositionStrategyValue orderOrPositionStrategyValue = OrderOrPositionStrategyValue.POSITION;
+        VariabilityCapFactorValue variabilityCapFactorValue = VariabilityCapFactorValue.CONSTANT;
+
+        for (int i = 0; i < valueTraders.size(); i++) {
+            ShortSellingValue shortSellingValue = ShortSellingValue.ALLOWED;
+            if (distUnif01SSValue.nextDouble() > params.probShortSellingValue)
+                shortSellingValue = ShortSellingValue.NOT_ALLOWED;
+
+            for (String secId : shareIds) {
+                simulator.addValueStrategyForOneValueInvestor(secId, "Value_" + i, entryThreshold.get(secId).nextDouble(), exitThreshold.get(secId).nextDouble(),
+                        valueOffset.get(secId).nextDouble(), (int) Math.round(bcTicksFund.get(secId).nextDouble()), params.capFactorFund, positionUpdateValue,
+                        orderOrPositionStrategyValue, variabilityCapFactorValue, shortSellingValue);
+            }
+
+            UseVar useVarValue = UseVar.TRUE;
+            if (distUnif01VarValue.nextDouble() > params.probVarFund)
+                useVarValue = UseVar.FALSE;
+
+            Trader trader = valueTraders.get("Value_" + i);
+
+            trader.setUseVar(useVarValue);
+            trader.setUseStressedVar(useStressedVar);
+            trader.setVarLimit(distVarLimitValue.nextDouble());
+            trader.setVolWindow((int) Math.round(distVolWindowVarValue.nextDouble()));
+            trader.setVariabilityVarLimit(variabilityVarLimit);
+        }
+
+        /*
+         * Run the simulation
+         */
+        simulator.setNumTicks(numTicks);
+        simulator.run();
+
+        DoubleTimeSeriesList tsPricesList = new DoubleTimeSeriesList();
+
+        for (String secId : shareIds)
+            tsPricesList.add(simulator.getPrices(secId));
+
+        return tsPricesList;
+    }
+}
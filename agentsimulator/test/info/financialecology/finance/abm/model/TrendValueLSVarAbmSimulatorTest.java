@@ -0,0 +1,596 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model;
+
+import static org.junit.Assert.*;
+import info.financialecology.finance.abm.model.TrendValueLSVarAbmSimulator.RunMode;
+import info.financialecology.finance.abm.model.agent.Trader;
+import info.financialecology.finance.abm.model.agent.Trader.UseEs;
+import info.financialecology.finance.abm.model.agent.Trader.UseStressedVar;
+import info.financialecology.finance.abm.model.agent.Trader.UseVar;
+import info.financialecology.finance.abm.model.agent.Trader.VariabilityVarLimit;
+import info.financialecology.finance.abm.model.risk.CompositeRiskModel;
+import info.financialecology.finance.abm.model.risk.FrtbEsModel;
+import info.financialecology.finance.abm.model.risk.ParametricVarModel;
+import info.financialecology.finance.abm.model.risk.RiskModel;
+import info.financialecology.finance.abm.model.strategy.TradingStrategy.Order;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.MultiplierTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.OrderOrPositionStrategyTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.PositionUpdateTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.ShortSellingTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.VariabilityCapFactorTrend;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.OrderOrPositionStrategyValue;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.PositionUpdateValue;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.ShortSellingValue;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.VariabilityCapFactorValue;
+import info.financialecology.finance.abm.model.util.TradingPortfolio;
+import info.financialecology.finance.abm.model.util.TraderPopulation.Group;
+import info.financialecology.finance.abm.model.util.VarSettings;
+import info.financialecology.finance.utilities.WorldClock;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+import info.financialecology.finance.utilities.datagen.OverlayDataGenerator;
+import info.financialecology.finance.utilities.datagen.OverlayDataGenerator.GeneratorType;
+import info.financialecology.finance.utilities.datagen.RandomDistDataGenerator;
+import info.financialecology.finance.utilities.datagen.RandomGeneratorPool;
+import info.financialecology.finance.utilities.datagen.RandomGeneratorPool.DistributionType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class TrendValueLSVarAbmSimulatorTest {
+
+    private static final int NUM_TICKS = 600;
+    private static final String [] SHARES = {"IBM", "MSFT"};
+
+    private static HashMap<String, RandomDistDataGenerator> uniform(String name, List<String> secIds, double min, double max) {
+        HashMap<String, RandomDistDataGenerator> generators = new HashMap<String, RandomDistDataGenerator>();
+
+        for (String secId : secIds)
+            generators.put(secId, new RandomDistDataGenerator(name + secId, DistributionType.UNIFORM, min, max));
+
+        return generators;
+    }
+
+    private static RandomDistDataGenerator uniform(String name, double min, double max) {
+        return new RandomDistDataGenerator(name, DistributionType.UNIFORM, min, max);
+    }
+
+    /**
+     * A market of two shares with trend followers and value investors; the value investors use VaR
+     *
+     * @param variableCapFactor true if the capFactors of the strategies vary with the volatility
+     */
+    private static TrendValueLSVarAbmSimulator newSimulator(int numTrend, int numValue, boolean variableCapFactor) {
+        return newSimulator(numTrend, numValue, variableCapFactor, false);
+    }
+
+    /**
+     * @param perTrader true to set up the traders one by one, strategy by strategy, rather than group by group
+     */
+    private static TrendValueLSVarAbmSimulator newSimulator(int numTrend, int numValue, boolean variableCapFactor, boolean perTrader) {
+        WorldClock.reset();
+        RandomGeneratorPool.configureGeneratorPool(7);
+
+        TrendValueLSVarAbmSimulator simulator = new TrendValueLSVarAbmSimulator();
+        List<String> secIds = new ArrayList<String>();
+
+        for (String secId : SHARES) {
+            secIds.add(secId);
+            simulator.addShares(secId);
+            simulator.getMarketMaker().setInitPrice(secId, 100);
+            simulator.getMarket().setInitLogReturn(secId, 0);
+            simulator.getMarket().setInitValue(secId, 100);
+            simulator.getMarket().setLiquidity(secId, 400);
+            simulator.setExogeneousPriceProcess(secId, new OverlayDataGenerator("Price" + secId, GeneratorType.SINUS,
+                    GeneratorType.ARITHMETIC_BROWNIAN_PROCESS, 100.0, 0.0, 0.0, 100.0, 0.0, 1.0));
+            simulator.setFundamentalValueProcess(secId, new OverlayDataGenerator("Value" + secId, GeneratorType.SINUS,
+                    GeneratorType.ARITHMETIC_BROWNIAN_PROCESS, 100.0, 0.0, 0.0, 100.0, 0.0, 1.0));
+        }
+
+        simulator.createTrendFollowers(numTrend);
+        simulator.createValueInvestors(numValue);
+
+        VariabilityCapFactorTrend variabilityTrend = variableCapFactor ? VariabilityCapFactorTrend.VARIABLE : VariabilityCapFactorTrend.CONSTANT;
+        VariabilityCapFactorValue variabilityValue = variableCapFactor ? VariabilityCapFactorValue.VARIABLE : VariabilityCapFactorValue.CONSTANT;
+        HashMap<String, RandomDistDataGenerator> maShort = uniform("maShort", secIds, 5, 7);
+        HashMap<String, RandomDistDataGenerator> maLong = uniform("maLong", secIds, 30, 32);
+        HashMap<String, RandomDistDataGenerator> bcTrend = uniform("bc", secIds, 5, 7);
+        RandomDistDataGenerator shortSellTrend = uniform("shortSellTrend", 0, 1);
+        RandomDistDataGenerator useVarTrend = uniform("useVarTrend", 0, 1);
+        RandomDistDataGenerator varLimitTrend = uniform("varLimitTrend", 500, 1000);
+        RandomDistDataGenerator volWindowTrend = uniform("volWindowTrend", 50, 100);
+        HashMap<String, RandomDistDataGenerator> entry = uniform("entry", secIds, 2, 5);
+        HashMap<String, RandomDistDataGenerator> exit = uniform("exit", secIds, -0.5, 0.5);
+        HashMap<String, RandomDistDataGenerator> offset = uniform("offset", secIds, -5, 5);
+        HashMap<String, RandomDistDataGenerator> delay = uniform("delay", secIds, 5, 15);
+        RandomDistDataGenerator shortSellValue = uniform("shortSellValue", 0, 1);
+        RandomDistDataGenerator useVarValue = uniform("useVarValue", 0, 1);
+        RandomDistDataGenerator varLimitValue = uniform("varLimitValue", 500, 1000);
+        RandomDistDataGenerator volWindowValue = uniform("volWindowValue", 50, 100);
+
+        if (!perTrader) {
+            simulator.setUpTrendFollowers(secIds, maShort, maLong, bcTrend, 0.5, 20, MultiplierTrend.MA_SLOPE_DIFFERENCE, PositionUpdateTrend.VARIABLE,
+                    OrderOrPositionStrategyTrend.POSITION, variabilityTrend, shortSellTrend, 0.7,
+                    new VarSettings(useVarTrend, 0.0, UseStressedVar.FALSE, varLimitTrend, volWindowTrend, VariabilityVarLimit.CONSTANT));
+            simulator.setUpValueInvestors(secIds, entry, exit, offset, delay, 0.5, PositionUpdateValue.VARIABLE,
+                    OrderOrPositionStrategyValue.POSITION, variabilityValue, shortSellValue, 0.7,
+                    new VarSettings(useVarValue, 0.6, UseStressedVar.FALSE, varLimitValue, volWindowValue, VariabilityVarLimit.PROCYCLICAL));
+        }
+        else {      // the set-up of the traders before the groups were set up in one pass
+            for (int i = 0; i < numTrend; i++) {
+                String traderId = "Trend_" + i;
+                ShortSellingTrend shortSelling = (shortSellTrend.nextDouble() > 0.7) ? ShortSellingTrend.NOT_ALLOWED : ShortSellingTrend.ALLOWED;
+
+                for (String secId : secIds)
+                    simulator.addTrendStrategyForOneTrendFollower(secId, traderId, (int) Math.round(maShort.get(secId).nextDouble()),
+                            (int) Math.round(maLong.get(secId).nextDouble()), (int) Math.round(bcTrend.get(secId).nextDouble()), 0.5, 20,
+                            MultiplierTrend.MA_SLOPE_DIFFERENCE, PositionUpdateTrend.VARIABLE, OrderOrPositionStrategyTrend.POSITION,
+                            variabilityTrend, shortSelling);
+
+                Trader trader = simulator.getTrendFollowers().get(traderId);
+
+                trader.setUseVar((useVarTrend.nextDouble() > 0.0) ? UseVar.FALSE : UseVar.TRUE);
+                trader.setUseStressedVar(UseStressedVar.FALSE);
+                trader.setVarLimit(varLimitTrend.nextDouble());
+                trader.setVolWindow((int) Math.round(volWindowTrend.nextDouble()));
+                trader.setVariabilityVarLimit(VariabilityVarLimit.CONSTANT);
+            }
+
+            for (int i = 0; i < numValue; i++) {
+                String traderId = "Value_" + i;
+                ShortSellingValue shortSelling = (shortSellValue.nextDouble() > 0.7) ? ShortSellingValue.NOT_ALLOWED : ShortSellingValue.ALLOWED;
+
+                for (String secId : secIds)
+                    simulator.addValueStrategyForOneValueInvestor(secId, traderId, entry.get(secId).nextDouble(), exit.get(secId).nextDouble(),
+                            offset.get(secId).nextDouble(), (int) Math.round(delay.get(secId).nextDouble()), 0.5, PositionUpdateValue.VARIABLE,
+                            OrderOrPositionStrategyValue.POSITION, variabilityValue, shortSelling);
+
+                Trader trader = simulator.getValueInvestors().get(traderId);
+
+                trader.setUseVar((useVarValue.nextDouble() > 0.6) ? UseVar.FALSE : UseVar.TRUE);
+                trader.setUseStressedVar(UseStressedVar.FALSE);
+                trader.setVarLimit(varLimitValue.nextDouble());
+                trader.setVolWindow((int) Math.round(volWindowValue.nextDouble()));
+                trader.setVariabilityVarLimit(VariabilityVarLimit.PROCYCLICAL);
+            }
+        }
+
+        simulator.setNumTicks(NUM_TICKS);
+
+        return simulator;
+    }
+
+    private static double [] finalPrices(TrendValueLSVarAbmSimulator simulator) {
+        double [] prices = new double[SHARES.length];
+
+        for (int i = 0; i < SHARES.length; i++)
+            prices[i] = simulator.getMarket().getPrices(SHARES[i]).get(NUM_TICKS - 1);
+
+        return prices;
+    }
+
+    private static void assertSameSeries(DoubleTimeSeries expected, DoubleTimeSeries actual) {
+        for (int tick = 0; tick < NUM_TICKS; tick++)
+            assertEquals(expected.get(tick), actual.get(tick), 1E-9);
+    }
+
+    /**
+     * The traders of both simulators have the same positions at every tick
+     */
+    private static void assertSamePositions(HashMap<String, Trader> expected, HashMap<String, Trader> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+
+        for (String traderId : expected.keySet())
+            for (String secId : SHARES)
+                assertSameSeries(expected.get(traderId).getPortfolio().getTsPosition(secId),
+                        actual.get(traderId).getPortfolio().getTsPosition(secId));
+    }
+
+    /**
+     * Run trend followers and value investors with a variable capFactor, which wake up every 3 and 5 ticks
+     *
+     * @return the final prices
+     */
+    private static double [] runEventMode(RunMode runMode) {
+        TrendValueLSVarAbmSimulator simulator = newSimulator(10, 10, true);
+
+        simulator.setRunMode(runMode);
+        simulator.setEventMode(true);
+        simulator.setWakeUpInterval(Group.TREND, 3);
+        simulator.setWakeUpInterval(Group.VALUE, 5);
+        simulator.run();
+
+        double [] prices = new double[SHARES.length];
+
+        for (int i = 0; i < SHARES.length; i++)
+            prices[i] = simulator.getRunSummary().getFinalPrice(SHARES[i]);
+
+        return prices;
+    }
+
+    /**
+     * Traders that wake up at intervals catch up on the wealth of the ticks they were idle, which
+     * the limited histories of {@link RunMode#SUMMARY_ONLY} need to keep
+     */
+    @Test
+    public void eventModeSummaryOnly_variableCapFactor() {
+        double [] fullHistory = runEventMode(RunMode.FULL_HISTORY);
+        double [] summaryOnly = runEventMode(RunMode.SUMMARY_ONLY);
+
+        assertArrayEquals(fullHistory, summaryOnly, 0);
+    }
+
+    /**
+     * The trend followers with the same parameters up to the scale of their positions are simulated in
+     * cohorts, which gives the same prices and positions as simulating each of them
+     */
+    @Test
+    public void cohortMode_sameAsUncompressed() {
+        TrendValueLSVarAbmSimulator uncompressed = newSimulator(40, 10, false);
+
+        uncompressed.run();
+
+        TrendValueLSVarAbmSimulator cohorts = newSimulator(40, 10, false);
+
+        cohorts.setCohortMode(true);
+        cohorts.run();
+
+        assertArrayEquals(finalPrices(uncompressed), finalPrices(cohorts), 1E-9);
+
+        assertSamePositions(uncompressed.getTrendFollowers(), cohorts.getTrendFollowers());
+
+        int numMembers = 0;
+
+        for (Trader trader : cohorts.getTrendFollowers().values())
+            if (trader.isCohortMember()) numMembers++;
+
+        assertTrue(numMembers > 0);     // some traders were not simulated
+    }
+
+    /**
+     * The trend and value strategies evaluated in batches give the same positions and orders as the
+     * strategies evaluated one by one, with a constant and a variable capFactor
+     */
+    @Test
+    public void batchMode_sameAsPerStrategy() {
+        for (boolean variableCapFactor : new boolean [] {false, true}) {
+            TrendValueLSVarAbmSimulator perStrategy = newSimulator(20, 20, variableCapFactor);
+
+            perStrategy.run();
+
+            TrendValueLSVarAbmSimulator batches = newSimulator(20, 20, variableCapFactor);
+
+            batches.setBatchMode(true);
+            batches.run();
+
+            assertArrayEquals(finalPrices(perStrategy), finalPrices(batches), 1E-9);
+            assertSamePositions(perStrategy.getTrendFollowers(), batches.getTrendFollowers());
+            assertSamePositions(perStrategy.getValueInvestors(), batches.getValueInvestors());
+
+            for (String secId : SHARES) {
+                assertSameSeries(perStrategy.getTrendTotalOrders(secId), batches.getTrendTotalOrders(secId));
+                assertSameSeries(perStrategy.getFundTotalOrders(secId), batches.getFundTotalOrders(secId));
+            }
+        }
+    }
+
+    /**
+     * The groups set up in one pass draw the same parameters as the traders set up one by one, which
+     * gives the same prices and positions
+     */
+    @Test
+    public void bulkSetUp_sameAsPerTrader() {
+        TrendValueLSVarAbmSimulator perTrader = newSimulator(10, 20, true, true);
+
+        perTrader.run();
+
+        TrendValueLSVarAbmSimulator bulk = newSimulator(10, 20, true);
+
+        bulk.run();
+
+        assertArrayEquals(finalPrices(perTrader), finalPrices(bulk), 0);
+        assertSamePositions(perTrader.getTrendFollowers(), bulk.getTrendFollowers());
+        assertSamePositions(perTrader.getValueInvestors(), bulk.getValueInvestors());
+
+        for (String traderId : bulk.getValueInvestors().keySet()) {
+            Trader expected = perTrader.getValueInvestors().get(traderId);
+            Trader actual = bulk.getValueInvestors().get(traderId);
+
+            assertEquals(expected.getUseVar(), actual.getUseVar());
+            assertEquals(expected.getVarLimit(), actual.getVarLimit(), 0);
+        }
+    }
+
+    /**
+     * Value investors with VaR and ES limits, some of them tight enough to be hit
+     */
+    private static TrendValueLSVarAbmSimulator newRiskSimulator(boolean riskBatchMode) {
+        TrendValueLSVarAbmSimulator simulator = newSimulator(10, 20, false);
+
+        simulator.getMarket().setConfLevelVar(0.99);
+        simulator.getMarket().setConfLevelEs(0.975);
+
+        for (int i = 0; i < 20; i++) {
+            Trader trader = simulator.getValueInvestors().get("Value_" + i);
+
+            if (i % 4 == 0) {
+                trader.setUseEs(UseEs.TRUE);
+                trader.setEsLimit(25);
+            }
+            else if (i % 4 == 1)
+                trader.setVarLimit(20);
+        }
+
+        simulator.setRiskBatchMode(riskBatchMode);
+
+        return simulator;
+    }
+
+    private static void assertCloseSeries(DoubleTimeSeries expected, DoubleTimeSeries actual) {
+        assertEquals(expected.size(), actual.size());
+
+        for (int tick = 0; tick < expected.size(); tick++)
+            assertEquals(expected.get(tick), actual.get(tick), 1E-9 * Math.max(1, Math.abs(expected.get(tick))));
+    }
+
+    /**
+     * The VaR and ES computed in batches agree with those computed by each trader, and so do the
+     * reductions of the traders that hit their limits
+     */
+    @Test
+    public void riskBatchMode_sameAsPerTrader() {
+        TrendValueLSVarAbmSimulator perTrader = newRiskSimulator(false);
+
+        perTrader.run();
+
+        TrendValueLSVarAbmSimulator batches = newRiskSimulator(true);
+
+        batches.run();
+
+        assertArrayEquals(finalPrices(perTrader), finalPrices(batches), 1E-9);
+
+        int numSelloffs = 0;
+
+        for (String traderId : perTrader.getValueInvestors().keySet()) {
+            Trader expected = perTrader.getValueInvestors().get(traderId);
+            Trader actual = batches.getValueInvestors().get(traderId);
+
+            assertCloseSeries(expected.getTsVarPreTrade(), actual.getTsVarPreTrade());
+            assertCloseSeries(expected.getTsVarPostTrade(), actual.getTsVarPostTrade());
+            assertCloseSeries(expected.getTsEsPreTrade(), actual.getTsEsPreTrade());
+            assertCloseSeries(expected.getTsEsPostTrade(), actual.getTsEsPostTrade());
+
+            for (String secId : SHARES) {
+                assertCloseSeries(expected.getTsVarSelloff().get(secId), actual.getTsVarSelloff().get(secId));
+                assertCloseSeries(expected.getTsEsSelloff().get(secId), actual.getTsEsSelloff().get(secId));
+                assertCloseSeries(expected.getPortfolio().getTsPosition(secId), actual.getPortfolio().getTsPosition(secId));
+
+                for (DoubleTimeSeries tsSelloff : new DoubleTimeSeries [] {expected.getTsVarSelloff().get(secId), expected.getTsEsSelloff().get(secId)})
+                    for (int tick = 0; tick < tsSelloff.size(); tick++)
+                        if (tsSelloff.get(tick) != 0) numSelloffs++;
+            }
+        }
+
+        assertTrue(numSelloffs > 0);    // some traders hit their limits
+    }
+
+    /**
+     * The portfolio variance computed over all traded shares, as before the VaR and ES iterated over
+     * the active positions only
+     */
+    private static double[] allSharesValueAndVariance(ShareMarket market, Trader trader, int positionTick, int priceTick, boolean stressed) {
+        TradingPortfolio portfolio = trader.getPortfolio();
+        double portfolioValue = 0;
+
+        for (String secId : market.getTradedShares().keySet())
+            portfolioValue = portfolioValue + Math.abs(portfolio.getTsPosition(secId).get(positionTick)) * market.getPrices(secId).get(priceTick);
+
+        double portfolioVol = 0;
+
+        for (String secId_1 : market.getTradedShares().keySet()) {
+            double weight_1 = Math.abs(portfolio.getTsPosition(secId_1).get(positionTick)) * market.getPrices(secId_1).get(priceTick) / portfolioValue;
+
+            for (String secId_2 : market.getTradedShares().keySet()) {
+                double weight_2 = Math.abs(portfolio.getTsPosition(secId_2).get(positionTick)) * market.getPrices(secId_2).get(priceTick) / portfolioValue;
+                double covariance = stressed ? trader.getMaxCovariance(secId_1, secId_2) : trader.getCurrentCovariance(secId_1, secId_2);
+
+                portfolioVol = portfolioVol + weight_1 * weight_2 * covariance;
+            }
+        }
+
+        return new double [] {portfolioValue, portfolioVol};
+    }
+
+    private static void assertSameRisk(ShareMarket market, Trader trader, double confLevel) {
+        NormalDistribution normalDist = new NormalDistribution();
+        double zScore = normalDist.inverseCumulativeProbability(confLevel);
+        double esFactor = normalDist.density(zScore) / (1 - confLevel);
+        int tick = WorldClock.currentTick();
+        TradingPortfolio portfolio = trader.getPortfolio();
+
+        double [] current = allSharesValueAndVariance(market, trader, tick, tick, false);
+        double [] stressed = allSharesValueAndVariance(market, trader, tick, tick, true);
+        double [] preTrade = allSharesValueAndVariance(market, trader, tick - 1, tick, false);
+
+        assertEquals(current[0] == 0 ? 0 : Math.sqrt(current[1]) * zScore * current[0], portfolio.valueAtRisk(market, confLevel), 0);
+        assertEquals(current[0] == 0 ? 0 : current[0] * Math.sqrt(current[1]) * esFactor, portfolio.expectedShortfallParametricNormal(market, confLevel), 0);
+        assertEquals(stressed[0] == 0 ? 0 : Math.sqrt(stressed[1]) * zScore * stressed[0], portfolio.stressedValueAtRisk(market, confLevel), 0);
+        assertEquals(preTrade[0] == 0 ? 0 : Math.sqrt(preTrade[1]) * zScore * preTrade[0], portfolio.preTradeValueAtRisk(market, confLevel), 0);
+    }
+
+    /**
+     * The VaR and ES iterate over the shares with a non-zero position only, which gives the same
+     * results as iterating over all shares, for portfolios with positions in all, some or none of the shares
+     */
+    @Test
+    public void riskOfActivePositions_sameAsAllShares() {
+        TrendValueLSVarAbmSimulator simulator = newSimulator(10, 20, false);
+
+        simulator.run();
+
+        ShareMarket market = simulator.getMarket();
+        int tick = NUM_TICKS - 1;
+        int numTraders = 0;     // traders with VaR and positions
+
+        WorldClock.setTick(tick);
+
+        for (Trader trader : simulator.getValueInvestors().values()) {
+            if (trader.getUseVar() != UseVar.TRUE) continue;
+
+            TradingPortfolio portfolio = trader.getPortfolio();
+
+            if (portfolio.valueAtRisk(market, 0.99) == 0) continue;
+
+            assertSameRisk(market, trader, 0.99);
+
+            for (String secId : SHARES) {       // positions in one share, then in none
+                portfolio.getTsPosition(secId).add(tick, 0.0);
+                assertSameRisk(market, trader, 0.975);
+            }
+
+            assertEquals(0, portfolio.valueAtRisk(market, 0.99), 0);
+            numTraders++;
+        }
+
+        assertTrue(numTraders > 0);
+    }
+
+    private static double sumOfAbs(DoubleTimeSeries ts) {
+        double sum = 0;
+
+        for (int tick = 0; tick < ts.size(); tick++)
+            sum += Math.abs(ts.get(tick));
+
+        return sum;
+    }
+
+    /**
+     * The default risk model, and the same models composed by the user, limit the VaR and ES as the
+     * traders did before the risk models were pluggable. The expected values were recorded with the
+     * VaR and ES limits inlined in the trader.
+     */
+    @Test
+    public void defaultRiskModel_sameAsInlinedLimits() {
+        for (boolean composed : new boolean [] {false, true}) {
+            TrendValueLSVarAbmSimulator simulator = newRiskSimulator(false);
+
+            if (composed)
+                simulator.setRiskModel(Group.VALUE, new CompositeRiskModel(new ParametricVarModel(), new FrtbEsModel()));
+
+            simulator.run();
+
+            double var = 0;
+            double es = 0;
+            double varSelloffs = 0;
+            double esSelloffs = 0;
+
+            for (Trader trader : simulator.getValueInvestors().values()) {
+                var += sumOfAbs(trader.getTsVarPostTrade());
+                es += sumOfAbs(trader.getTsEsPostTrade());
+
+                for (String secId : SHARES) {
+                    varSelloffs += sumOfAbs(trader.getTsVarSelloff().get(secId));
+                    esSelloffs += sumOfAbs(trader.getTsEsSelloff().get(secId));
+                }
+            }
+
+            assertArrayEquals(new double [] {91.55259119315265, 100.51531118004178}, finalPrices(simulator), 1E-9);
+            assertEquals(104885.00783328636, var, 1E-6);
+            assertEquals(39432.19189726999, es, 1E-6);
+            assertEquals(94.33602716088768, varSelloffs, 1E-9);
+            assertEquals(93.9136399791523, esSelloffs, 1E-9);
+        }
+    }
+
+    /**
+     * A risk model that caps the position of the trader in each share, and counts its calls
+     */
+    @SuppressWarnings("serial")
+    private static class PositionCapModel implements RiskModel {
+
+        private final double cap;
+        private int numBeforeTrading = 0;
+        private int numAfterTrading = 0;
+        private int numReductions = 0;
+
+        private PositionCapModel(double cap) {
+            this.cap = cap;
+        }
+
+        public boolean isActive() {
+            return true;
+        }
+
+        public void beforeTrading(Trader trader) {
+            numBeforeTrading++;
+        }
+
+        public void afterTrading(Trader trader, ArrayList<Order> orders) {
+            ArrayList<Order> reductionOrders = new ArrayList<Order>();
+            int tick = WorldClock.currentTick();
+
+            assertEquals(numBeforeTrading, ++numAfterTrading);
+
+            for (String secId : SHARES) {
+                double position = trader.getPortfolio().getTsPosition(secId).get(tick);
+
+                if (Math.abs(position) <= cap) continue;
+
+                Order order = new Order();
+                order.setSecId(secId);
+                order.setOrder(Math.signum(position) * cap - position);
+                reductionOrders.add(order);
+            }
+
+            numReductions += reductionOrders.size();
+            trader.reducePositions(reductionOrders, orders);
+        }
+    }
+
+    /**
+     * A custom risk model is called before and after every trader of its group trades, and its
+     * reductions hold. Its traders are not simulated in cohorts, since the model need not scale
+     * with the positions.
+     */
+    @Test
+    public void customRiskModel_calledForEveryTrader() {
+        TrendValueLSVarAbmSimulator simulator = newSimulator(40, 10, false);
+        PositionCapModel model = new PositionCapModel(1.0);
+
+        simulator.setRiskModel(Group.TREND, model);
+        simulator.setCohortMode(true);
+        simulator.run();
+
+        assertEquals(40 * NUM_TICKS, model.numAfterTrading);
+        assertTrue(model.numReductions > 0);
+
+        for (Trader trader : simulator.getTrendFollowers().values()) {
+            assertFalse(trader.isCohortMember());
+
+            for (String secId : SHARES)
+                for (int tick = 0; tick < NUM_TICKS; tick++)
+                    assertTrue(Math.abs(trader.getPortfolio().getTsPosition(secId).get(tick)) <= model.cap + 1E-9);
+        }
+    }
+}
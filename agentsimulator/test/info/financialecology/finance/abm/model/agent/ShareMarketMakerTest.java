@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.agent;
+
+import static org.junit.Assert.*;
+import info.financialecology.finance.abm.model.ShareMarket;
+import info.financialecology.finance.abm.model.agent.ShareMarketMaker.Clearing;
+import info.financialecology.finance.abm.model.util.LimitOrderBook;
+import info.financialecology.finance.utilities.WorldClock;
+import info.financialecology.finance.utilities.datagen.SinusDataGenerator;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class ShareMarketMakerTest {
+
+    private static final String SEC_ID = "IBM";
+
+    /**
+     * Clear the market at the next tick, with the orders of the traders
+     *
+     * @return the new price
+     */
+    private static double clearMarket(ShareMarket market, double... orders) {
+        WorldClock.incrementTick();
+
+        for (double order : orders)
+            market.getMarketMaker().placeOrder(null, SEC_ID, order);
+
+        market.getMarketMaker().clearMarket();
+
+        return market.getPrices(SEC_ID).get(WorldClock.currentTick());
+    }
+
+    /**
+     * The market maker quotes 4 levels of 50 shares on each side, a quarter apart and half a point
+     * from the previous price. An order within the quotes moves the price to the new mid; a sell-off
+     * that exhausts the bids leaves the price at the last trade, and the rest of the order is not
+     * filled. The next tick quotes around that price again.
+     */
+    @Test
+    public void orderBookClearing_exhaustedSideFallsBackToLastTrade() {
+        WorldClock.reset();
+
+        ShareMarketMaker marketMaker = new ShareMarketMaker();
+        ShareMarket market = new ShareMarket("Share market", marketMaker);
+
+        market.addShares(SEC_ID);
+        marketMaker.makeMarketInAllSecurities();
+        marketMaker.setInitPrice(SEC_ID, 100);
+        market.setLiquidity(SEC_ID, 400);
+        marketMaker.setExogenousPriceGenerator(SEC_ID, new SinusDataGenerator(0.0, 0.0, 0.0, 100.0));    // no exogenous price changes
+        marketMaker.setOrderBookClearing(0.25, 0.5, 4);
+        marketMaker.clearMarket();
+
+        assertEquals(Clearing.ORDER_BOOK, marketMaker.getClearing());
+        assertEquals(100, market.getPrices(SEC_ID).get(0), 0);
+
+        // Buy 120 of the asks at 100.5, 100.75 and 101; the bids start at 99.5
+
+        assertEquals(100.25, clearMarket(market, 70, 50), 0);
+        assertEquals(0, marketMaker.getUnfilledVolume(), 0);
+
+        // Sell 300 against the bids at 99.75, 99.5, 99.25 and 99, of which 200 are filled
+
+        LimitOrderBook book = marketMaker.getLimitOrderBook(SEC_ID);
+
+        assertEquals(99, clearMarket(market, -300), 0);
+        assertFalse(book.hasBids());
+        assertEquals(99, book.getLastPrice(), 0);
+        assertEquals(100, marketMaker.getUnfilledVolume(), 0);
+
+        // The quotes are replaced around the last trade
+
+        assertEquals(99, clearMarket(market), 0);
+        assertTrue(book.hasBids());
+        assertEquals(98.5, book.getBestBid(), 0);
+        assertEquals(99.5, book.getBestAsk(), 0);
+    }
+}
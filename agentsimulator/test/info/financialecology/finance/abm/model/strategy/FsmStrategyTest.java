@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.strategy;
+
+import static org.junit.Assert.*;
+import info.financialecology.finance.abm.model.strategy.StrategyMachine.Comparison;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.OrderOrPositionStrategyValue;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.PositionUpdateValue;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.ShortSellingValue;
+import info.financialecology.finance.abm.model.strategy.ValueMABCStrategy.VariabilityCapFactorValue;
+import info.financialecology.finance.abm.model.util.IndicatorCache;
+import info.financialecology.finance.abm.model.util.TradingPortfolio;
+import info.financialecology.finance.utilities.WorldClock;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class FsmStrategyTest {
+
+    private static final double TOLERANCE = 1E-9;
+    private static final String SEC_ID = "IBM";
+
+    private static TradingPortfolio newPortfolio() {
+        TradingPortfolio portfolio = new TradingPortfolio();
+
+        portfolio.newSecurity(SEC_ID);
+
+        return portfolio;
+    }
+
+    /**
+     * Trade the strategy over the prices, one tick after another
+     *
+     * @return the positions of the strategy
+     */
+    private static double [] trade(StrategyMachine machine, double... prices) {
+        DoubleTimeSeries tsPrice = new DoubleTimeSeries();
+        FsmStrategy strategy = new FsmStrategy(new FsmStrategy.Engine(machine, SEC_ID, tsPrice, null, new IndicatorCache()), 1.0);
+        TradingPortfolio portfolio = newPortfolio();
+        double [] positions = new double[prices.length];
+
+        WorldClock.reset();
+
+        for (int t = 0; t < prices.length; t++) {
+            if (t > 0) WorldClock.incrementTick();
+
+            tsPrice.add(t, prices[t]);
+            strategy.trade(portfolio);
+            positions[t] = portfolio.getTsPosition(SEC_ID).get(t);
+        }
+
+        return positions;
+    }
+
+    /**
+     * The value strategy of the example of {@link StrategyMachine}, as a machine, trades as a value
+     * strategy with an entry threshold of 2, an exit threshold of 0, constant positions and no short
+     * selling. The value strategy sizes its position by the gap between the value and the price at
+     * entry, where the machine holds one capFactor, so the positions of the machine are scaled by that gap.
+     */
+    @Test
+    public void valueMachine_sameAsValueStrategy() {
+        StrategyMachine machine = new StrategyMachine();
+        int price = machine.price();
+        int value = machine.fundValue();
+        int flat = machine.addState("FLAT", 0);
+        int isLong = machine.addState("LONG", 1);
+
+        machine.addTransition(flat, machine.addGuard(price, Comparison.LESS, value, -2), isLong);
+        machine.addTransition(isLong, machine.addGuard(price, Comparison.GREATER_OR_EQUAL, value, 0), flat);
+
+        Random rand = new Random(13);
+        DoubleTimeSeries tsPrice = new DoubleTimeSeries();
+        DoubleTimeSeries tsFundValue = new DoubleTimeSeries();
+        FsmStrategy.Engine engine = new FsmStrategy.Engine(machine, SEC_ID, tsPrice, tsFundValue, new IndicatorCache());
+        double [] capFactors = {1.0, 2.5};
+        FsmStrategy [] machineStrategies = new FsmStrategy[capFactors.length];
+        ValueMABCStrategy [] valueStrategies = new ValueMABCStrategy[capFactors.length];
+        TradingPortfolio [] machinePortfolios = new TradingPortfolio[capFactors.length];
+        TradingPortfolio [] valuePortfolios = new TradingPortfolio[capFactors.length];
+
+        for (int i = 0; i < capFactors.length; i++) {
+            machineStrategies[i] = new FsmStrategy(engine, capFactors[i]);
+            valueStrategies[i] = new ValueMABCStrategy(SEC_ID, 2, 0, 0, 0, capFactors[i], tsPrice, tsFundValue, PositionUpdateValue.CONSTANT,
+                    OrderOrPositionStrategyValue.POSITION, VariabilityCapFactorValue.CONSTANT, ShortSellingValue.NOT_ALLOWED);
+            machinePortfolios[i] = newPortfolio();
+            valuePortfolios[i] = newPortfolio();
+        }
+
+        double fundValue = 100;
+        double gap = 0;     // the price minus the value, mean-reverting
+        double entryGap = 0;
+        int numEntries = 0;
+
+        WorldClock.reset();
+
+        for (int t = 0; t < 2000; t++) {
+            if (t > 0) {
+                WorldClock.incrementTick();
+                fundValue += rand.nextGaussian();
+                gap = 0.9 * gap + rand.nextGaussian();
+            }
+
+            tsFundValue.add(t, fundValue);
+            tsPrice.add(t, fundValue + gap);
+
+            for (int i = 0; i < capFactors.length; i++) {
+                machineStrategies[i].trade(machinePortfolios[i]);
+                valueStrategies[i].trade(valuePortfolios[i]);
+            }
+
+            boolean entered = (machineStrategies[0].getState() == isLong) && ((t == 0) || (machinePortfolios[0].getTsPosition(SEC_ID).get(t - 1) == 0));
+
+            if (entered) {
+                entryGap = fundValue - tsPrice.get(t);
+                numEntries++;
+            }
+
+            for (int i = 0; i < capFactors.length; i++)
+                assertEquals("tick " + t, valuePortfolios[i].getTsPosition(SEC_ID).get(t), machinePortfolios[i].getTsPosition(SEC_ID).get(t) * entryGap, TOLERANCE);
+        }
+
+        assertTrue(numEntries > 10);
+    }
+
+    /**
+     * Of the transitions out of a state, the first one added whose guard holds is taken, and only one
+     * transition is taken per tick
+     */
+    @Test
+    public void transitions_firstAddedWins() {
+        for (boolean upFirst : new boolean [] {true, false}) {
+            StrategyMachine machine = new StrategyMachine();
+            int price = machine.price();
+            int above101 = machine.addGuard(price, Comparison.GREATER, StrategyMachine.ONE, 100);     // price > 1 + 100
+            int above100 = machine.addGuard(price, Comparison.GREATER, StrategyMachine.ONE, 99);
+            int always = machine.addGuard(price, Comparison.GREATER, StrategyMachine.ONE, -1);
+            int flat = machine.addState("FLAT", 0);
+            int up = machine.addState("UP", 1);
+            int down = machine.addState("DOWN", -1);
+
+            if (upFirst) {
+                machine.addTransition(flat, above101, up);
+                machine.addTransition(flat, above100, down);
+            }
+            else {
+                machine.addTransition(flat, above100, down);
+                machine.addTransition(flat, above101, up);
+            }
+
+            machine.addTransition(up, always, down);
+
+            // Both guards hold from tick 2; from UP, the machine goes on to DOWN at the next tick
+
+            double [] positions = trade(machine, 100, 100, 102, 102, 102);
+
+            if (upFirst)
+                assertArrayEquals(new double [] {0, 0, 1, -1, -1}, positions, 0);
+            else
+                assertArrayEquals(new double [] {0, 0, -1, -1, -1}, positions, 0);
+        }
+    }
+
+    /**
+     * A conjunction holds if both its guards hold, also if one of them is a conjunction itself; two
+     * transitions between the same states take either guard
+     */
+    @Test
+    public void conjunctions_holdIfBothGuardsHold() {
+        StrategyMachine machine = new StrategyMachine();
+        int price = machine.price();
+        int aboveLow = machine.addGuard(price, Comparison.GREATER, StrategyMachine.ONE, 100.5);    // price > 101.5
+        int belowHigh = machine.addGuard(price, Comparison.LESS, StrategyMachine.ONE, 102.5);      // price < 103.5
+        int positive = machine.addGuard(price, Comparison.GREATER, StrategyMachine.ONE, -1);
+        int inBand = machine.addConjunction(positive, machine.addConjunction(aboveLow, belowHigh));
+        int out = machine.addState("OUT", 0);
+        int in = machine.addState("IN", 1);
+
+        machine.addTransition(out, inBand, in);
+        machine.addTransition(in, machine.addGuard(price, Comparison.GREATER_OR_EQUAL, StrategyMachine.ONE, 102.5), out);
+        machine.addTransition(in, machine.addGuard(price, Comparison.LESS_OR_EQUAL, StrategyMachine.ONE, 100.5), out);
+
+        double [] positions = trade(machine, 100, 101, 102, 103, 104, 103, 102, 101, 102);
+
+        assertArrayEquals(new double [] {0, 0, 1, 1, 0, 1, 1, 0, 1}, positions, 0);
+    }
+}
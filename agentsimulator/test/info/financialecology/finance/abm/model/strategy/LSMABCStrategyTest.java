@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.strategy;
+
+import static org.junit.Assert.*;
+import info.financialecology.finance.abm.model.strategy.LSMABCStrategy.MultiplierLS;
+import info.financialecology.finance.abm.model.strategy.LSMABCStrategy.PositionUpdateLS;
+import info.financialecology.finance.abm.model.strategy.TradingStrategy.Order;
+import info.financialecology.finance.abm.model.util.IndicatorCache;
+import info.financialecology.finance.abm.model.util.TradingPortfolio;
+import info.financialecology.finance.utilities.WorldClock;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class LSMABCStrategyTest {
+
+    private static final double TOLERANCE = 1E-9;
+    private static final int NUM_TICKS = 600;
+    private static final String [] SEC_IDS = {"A", "B", "C"};
+    private static final String [][] PAIRS = {{"A", "B"}, {"B", "C"}, {"C", "A"}};   // every asset is the first leg of one spread and the second leg of another
+    private static final double REDUCTION = 0.6;        // the trader keeps this share of its positions at the reduction ticks
+
+    private HashMap<String, DoubleTimeSeries> prices = new HashMap<String, DoubleTimeSeries>();
+    private HashMap<String, DoubleTimeSeries> spreads = new HashMap<String, DoubleTimeSeries>();
+
+    private LSMABCStrategy newStrategy(String [] pair, PositionUpdateLS positionUpdate) {
+        return new LSMABCStrategy(pair[0], prices.get(pair[0]), pair[1], prices.get(pair[1]), spreads.get(pair[0] + "_" + pair[1]),
+                3, 20, 10, 1.0, 0.5, 3.0, 1.0, MultiplierLS.DIVERGENCE_STDDEV, positionUpdate, new IndicatorCache());
+    }
+
+    private static TradingPortfolio newPortfolio() {
+        TradingPortfolio portfolio = new TradingPortfolio();
+
+        for (String secId : SEC_IDS)
+            portfolio.newSecurity(secId);
+
+        return portfolio;
+    }
+
+    private static double position(TradingPortfolio portfolio, String secId, int tick) {
+        DoubleTimeSeries tsPos = portfolio.getTsPosition(secId);
+
+        return (tsPos.size() > tick) ? tsPos.get(tick) : 0;     // a single spread trades only two of the assets
+    }
+
+    private static void reduce(TradingPortfolio portfolio, int tick) {
+        for (String secId : SEC_IDS) {
+            if (portfolio.getTsPosition(secId).size() <= tick) continue;
+
+            Order order = new Order();
+            order.setSecId(secId);
+            order.setOrder(-(1 - REDUCTION) * portfolio.getTsPosition(secId).get(tick));
+            portfolio.addToPositions(order);
+        }
+    }
+
+    /**
+     * A trader with overlapping spreads holds the sum of the positions of traders with one spread
+     * each, also when its positions are reduced, and its orders add up to its change of position
+     */
+    private void overlappingPairs(PositionUpdateLS positionUpdate) {
+        Random rand = new Random(11);
+        prices.clear();
+        spreads.clear();
+
+        for (String secId : SEC_IDS)
+            prices.put(secId, new DoubleTimeSeries());
+
+        for (String [] pair : PAIRS)
+            spreads.put(pair[0] + "_" + pair[1], new DoubleTimeSeries());
+
+        TradingPortfolio combined = newPortfolio();
+        LSMABCStrategy [] combinedStrategies = new LSMABCStrategy[PAIRS.length];
+        TradingPortfolio [] single = new TradingPortfolio[PAIRS.length];
+        LSMABCStrategy [] singleStrategies = new LSMABCStrategy[PAIRS.length];
+
+        for (int i = 0; i < PAIRS.length; i++) {
+            combinedStrategies[i] = newStrategy(PAIRS[i], positionUpdate);
+            single[i] = newPortfolio();
+            singleStrategies[i] = newStrategy(PAIRS[i], positionUpdate);
+        }
+
+        double [] price = {100, 100, 100};
+        int numOpen = 0;
+        int numReductions = 0;
+
+        WorldClock.reset();
+
+        for (int t = 0; t < NUM_TICKS; t++) {
+            if (t > 0) WorldClock.incrementTick();
+
+            for (int k = 0; k < SEC_IDS.length; k++) {
+                price[k] += rand.nextGaussian();
+                prices.get(SEC_IDS[k]).add(t, price[k]);
+            }
+
+            for (String [] pair : PAIRS)
+                spreads.get(pair[0] + "_" + pair[1]).add(t, prices.get(pair[0]).get(t) - prices.get(pair[1]).get(t));
+
+            HashMap<String, Double> orders = new HashMap<String, Double>();
+
+            for (String secId : SEC_IDS)
+                orders.put(secId, 0.0);
+
+            for (int i = 0; i < PAIRS.length; i++) {
+                combinedStrategies[i].trade(combined);
+                singleStrategies[i].trade(single[i]);
+
+                for (Order order : combinedStrategies[i].getOrders())
+                    orders.put(order.getSecId(), orders.get(order.getSecId()) + order.getOrder());
+            }
+
+            for (String secId : SEC_IDS) {
+                double previous = (t > 0) ? combined.getTsPosition(secId).get(t - 1) : 0;
+                assertEquals("orders " + secId + " at " + t, combined.getTsPosition(secId).get(t) - previous, orders.get(secId), TOLERANCE);
+            }
+
+            if ((t % 25 == 0) && (t > 0)) {     // reduce the positions as when the trader exceeds its VaR limit
+                reduce(combined, t);
+
+                for (int i = 0; i < PAIRS.length; i++)
+                    reduce(single[i], t);
+
+                numReductions++;
+            }
+
+            for (String secId : SEC_IDS) {
+                double sum = 0;
+
+                for (int i = 0; i < PAIRS.length; i++)
+                    sum += position(single[i], secId, t);
+
+                assertEquals("position " + secId + " at " + t, sum, combined.getTsPosition(secId).get(t), TOLERANCE);
+
+                if (combined.getTsPosition(secId).get(t) != 0) numOpen++;
+            }
+        }
+
+        assertTrue("the spreads open positions", numOpen > NUM_TICKS / 10);
+        assertTrue(numReductions > 0);
+    }
+
+    @Test
+    public void overlappingPairs_variablePositions() {
+        overlappingPairs(PositionUpdateLS.VARIABLE);
+    }
+
+    @Test
+    public void overlappingPairs_constantPositions() {
+        overlappingPairs(PositionUpdateLS.CONSTANT);
+    }
+}
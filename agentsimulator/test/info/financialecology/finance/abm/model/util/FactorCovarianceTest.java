@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import static org.junit.Assert.*;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class FactorCovarianceTest {
+
+    private static final double TOLERANCE = 1E-12;
+    private static final int NUM_SHARES = 4;
+
+    private List<String> secIds = new ArrayList<String>();
+    private HashMap<String, DoubleTimeSeries> logReturns = new HashMap<String, DoubleTimeSeries>();
+
+    /**
+     * @param returns the log-returns, one row per tick and one column per share
+     */
+    private void setLogReturns(double [][] returns) {
+        secIds.clear();
+        logReturns.clear();
+
+        for (int i = 0; i < NUM_SHARES; i++) {
+            String secId = "S" + i;
+            DoubleTimeSeries tsReturns = new DoubleTimeSeries();
+
+            for (int t = 0; t < returns.length; t++)
+                tsReturns.add(t, returns[t][i]);
+
+            secIds.add(secId);
+            logReturns.put(secId, tsReturns);
+        }
+    }
+
+    /**
+     * The sample covariance of the log-returns of two shares over the last {@code window} ticks
+     */
+    private double sampleCovariance(String secId_1, String secId_2, int window) {
+        DoubleTimeSeries returns_1 = logReturns.get(secId_1);
+        DoubleTimeSeries returns_2 = logReturns.get(secId_2);
+        int first = returns_1.size() - window;
+        double mean_1 = 0;
+        double mean_2 = 0;
+
+        for (int t = first; t < first + window; t++) {
+            mean_1 += returns_1.get(t) / window;
+            mean_2 += returns_2.get(t) / window;
+        }
+
+        double covariance = 0;
+
+        for (int t = first; t < first + window; t++)
+            covariance += (returns_1.get(t) - mean_1) * (returns_2.get(t) - mean_2);
+
+        return covariance / (window - 1);
+    }
+
+    /**
+     * With as many factors as shares, the factors explain all of the variance and the model is the
+     * sample covariance, for statistical as well as given factors
+     */
+    @Test
+    public void allFactors_reproduceSampleCovariance() {
+        Random rand = new Random(3);
+        int window = 30;
+        double [][] returns = new double[50][NUM_SHARES];
+
+        for (int t = 0; t < returns.length; t++) {
+            double market = rand.nextGaussian();
+
+            for (int i = 0; i < NUM_SHARES; i++)
+                returns[t][i] = 0.01 * (market + (i + 1) * rand.nextGaussian());
+        }
+
+        setLogReturns(returns);
+
+        HashMap<String, double []> identity = new HashMap<String, double []>();
+
+        for (int i = 0; i < NUM_SHARES; i++) {
+            identity.put(secIds.get(i), new double[NUM_SHARES]);
+            identity.get(secIds.get(i))[i] = 1;
+        }
+
+        FactorCovariance.Estimate statistical = new FactorCovariance(secIds, logReturns, window, NUM_SHARES).update();
+        FactorCovariance.Estimate given = new FactorCovariance(secIds, logReturns, window, identity).update();
+        double totalVariance = 0;
+
+        for (String secId_1 : secIds) {
+            totalVariance += sampleCovariance(secId_1, secId_1, window);
+
+            for (String secId_2 : secIds) {
+                double sample = sampleCovariance(secId_1, secId_2, window);
+
+                assertEquals(sample, statistical.getCovariance(secId_1, secId_2), TOLERANCE);
+                assertEquals(sample, given.getCovariance(secId_1, secId_2), TOLERANCE);
+            }
+        }
+
+        assertEquals(totalVariance, statistical.getTotalVariance(), TOLERANCE);
+    }
+
+    /**
+     * The returns are driven by two orthogonal components, one with 9 times the variance of the other.
+     * A single statistical factor finds the first, which explains 90% of the variance; the rest is
+     * specific variance, so the variances of the shares are kept.
+     */
+    @Test
+    public void oneFactor_explainsLargestComponent() {
+        int window = 8;
+        double [] z_1 = {3, -3, 3, -3, 3, -3, 3, -3};      // centred and orthogonal over the window
+        double [] z_2 = {1, 1, -1, -1, 1, 1, -1, -1};
+        double [] v_1 = {0.5, 0.5, 0.5, 0.5};               // orthonormal directions in the shares
+        double [] v_2 = {0.5, -0.5, 0.5, -0.5};
+        double [][] returns = new double[window][NUM_SHARES];
+
+        for (int t = 0; t < window; t++)
+            for (int i = 0; i < NUM_SHARES; i++)
+                returns[t][i] = z_1[t] * v_1[i] + z_2[t] * v_2[i];
+
+        setLogReturns(returns);
+
+        FactorCovariance.Estimate estimate = new FactorCovariance(secIds, logReturns, window, 1).update();
+        double totalVariance = 0;
+        double systematicVariance = 0;
+
+        for (int i = 0; i < NUM_SHARES; i++) {
+            String secId = secIds.get(i);
+
+            assertEquals(sampleCovariance(secId, secId, window), estimate.getCovariance(secId, secId), TOLERANCE);
+
+            totalVariance += estimate.getCovariance(secId, secId);
+            systematicVariance += estimate.getCovariance(secId, secIds.get((i + 1) % NUM_SHARES));  // the loadings on the factor are equal
+        }
+
+        assertEquals(totalVariance, estimate.getTotalVariance(), TOLERANCE);
+        assertEquals(0.9, systematicVariance / totalVariance, TOLERANCE);
+    }
+}
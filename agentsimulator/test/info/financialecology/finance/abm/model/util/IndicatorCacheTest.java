@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import static org.junit.Assert.*;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.MultiplierTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.OrderOrPositionStrategyTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.PositionUpdateTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.ShortSellingTrend;
+import info.financialecology.finance.abm.model.strategy.TrendMABCStrategy.VariabilityCapFactorTrend;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+import info.financialecology.finance.utilities.statistics.StatsTimeSeries;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class IndicatorCacheTest {
+
+    private static final double TOLERANCE = 1E-9;
+    private static final int WINDOW = 20;
+
+    private static TrendMABCStrategy trendStrategy(DoubleTimeSeries tsPrice, int maShortTicks, int maLongTicks, IndicatorCache indicators) {
+        return new TrendMABCStrategy("IBM", maShortTicks, maLongTicks, 5, 1.0, tsPrice, 30, MultiplierTrend.MA_SLOPE_DIFFERENCE_STDDEV,
+                PositionUpdateTrend.VARIABLE, OrderOrPositionStrategyTrend.POSITION, VariabilityCapFactorTrend.CONSTANT,
+                ShortSellingTrend.ALLOWED, indicators);
+    }
+
+    /**
+     * The indicators equal the direct computations, whether they are read at every tick (incremental
+     * updates) or only at some ticks (full updates). The variance follows the computation of the LS
+     * strategies: the square of the standard deviation at the first read, then incremental updates.
+     */
+    @Test
+    public void indicators_equalDirectComputations() {
+        Random rand = new Random(5);
+        DoubleTimeSeries tsPrice = new DoubleTimeSeries();
+        IndicatorCache indicators = new IndicatorCache();
+
+        IndicatorCache.MovingAverage ma = indicators.getMovingAverage(tsPrice, WINDOW);
+        IndicatorCache.MovingVariance variance = indicators.getMovingVariance(tsPrice, WINDOW);
+        IndicatorCache.StdDev stdDev = indicators.getStdDev(tsPrice, WINDOW);
+        IndicatorCache.Channel channel = indicators.getChannel(tsPrice, WINDOW);
+
+        double price = 100;
+        double directVariance = 0;
+        double directMean = 0;
+        int lastRead = -2;
+
+        for (int t = 0; t < 500; t++) {
+            price += rand.nextGaussian();
+            tsPrice.add(t, price);
+
+            if ((t < WINDOW - 1) || ((t > 200) && (t < 250) && (t % 7 != 0))) continue;    // some ticks without reads
+
+            double directStdDev = StatsTimeSeries.stdDev(tsPrice, WINDOW);
+
+            if (lastRead == t - 1)
+                directVariance = StatsTimeSeries.incrementalVariance(tsPrice, WINDOW, directVariance, directMean);
+            else
+                directVariance = directStdDev * directStdDev;
+
+            directMean = StatsTimeSeries.fullMA(tsPrice, WINDOW);
+            lastRead = t;
+
+            assertEquals(directMean, ma.get(), TOLERANCE);
+            assertEquals(directVariance, variance.get(), TOLERANCE);
+            assertEquals(directStdDev, stdDev.get(), TOLERANCE);
+            assertEquals(StatsTimeSeries.minValue(tsPrice, WINDOW).get(t), channel.getMin(), 0);
+            assertEquals(StatsTimeSeries.maxValue(tsPrice, WINDOW).get(t), channel.getMax(), 0);
+        }
+    }
+
+    /**
+     * Strategies with the same windows on the same series share the handles; other series get their own
+     */
+    @Test
+    public void strategies_shareHandles() {
+        DoubleTimeSeries tsPrice = new DoubleTimeSeries();
+        IndicatorCache indicators = new IndicatorCache();
+
+        trendStrategy(tsPrice, 5, 20, indicators);
+        trendStrategy(tsPrice, 5, 30, indicators);
+
+        assertEquals(3 + 1 + 1, indicators.size());     // MA(5), MA(20), MA(30), channel(5), stdDev(30)
+        assertSame(indicators.getMovingAverage(tsPrice, 5), indicators.getMovingAverage(tsPrice, 5));
+
+        trendStrategy(new DoubleTimeSeries(), 5, 20, indicators);
+
+        assertEquals(5 + 2 + 2, indicators.size());
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.abm.model.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class LimitOrderBookTest {
+
+    private static final double TOLERANCE = 1E-9;
+    private static final double TICK_SIZE = 0.01;
+    private static final int NUM_EVENTS = 200000;
+
+    /**
+     * A resting order of the reference book
+     */
+    private static class RestingOrder {
+        private final boolean isBuy;
+        private final int level;
+        private double quantity;
+
+        private RestingOrder(boolean isBuy, int level, double quantity) {
+            this.isBuy = isBuy;
+            this.level = level;
+            this.quantity = quantity;
+        }
+    }
+
+    /**
+     * A naive order book: the levels in ticks are the keys of sorted maps, and each level is a queue
+     * of its orders, oldest first
+     */
+    private static class ReferenceBook {
+        private TreeMap<Integer, ArrayDeque<RestingOrder>> bids = new TreeMap<Integer, ArrayDeque<RestingOrder>>();
+        private TreeMap<Integer, ArrayDeque<RestingOrder>> asks = new TreeMap<Integer, ArrayDeque<RestingOrder>>();
+        private double lastPrice = Double.NaN;
+
+        /**
+         * Trade against the other side of the book, up to the limit level
+         *
+         * @return the quantity not filled
+         */
+        private double trade(boolean isBuy, double quantity, int limit) {
+            TreeMap<Integer, ArrayDeque<RestingOrder>> side = isBuy ? asks : bids;
+
+            while ((quantity > 0) && !side.isEmpty()) {
+                int level = isBuy ? side.firstKey() : side.lastKey();
+
+                if (isBuy ? (level > limit) : (level < limit)) break;
+
+                ArrayDeque<RestingOrder> queue = side.get(level);
+                RestingOrder order = queue.peekFirst();
+                double filled = Math.min(quantity, order.quantity);
+
+                quantity -= filled;
+                order.quantity -= filled;
+                lastPrice = level * TICK_SIZE;
+
+                if (order.quantity <= 0) {
+                    queue.pollFirst();
+
+                    if (queue.isEmpty()) side.remove(level);
+                }
+            }
+
+            return quantity;
+        }
+
+        private void rest(RestingOrder order) {
+            TreeMap<Integer, ArrayDeque<RestingOrder>> side = order.isBuy ? bids : asks;
+
+            if (!side.containsKey(order.level))
+                side.put(order.level, new ArrayDeque<RestingOrder>());
+
+            side.get(order.level).addLast(order);
+        }
+
+        /**
+         * @return false if the order has traded in full or was cancelled before
+         */
+        private boolean cancel(RestingOrder order) {
+            TreeMap<Integer, ArrayDeque<RestingOrder>> side = order.isBuy ? bids : asks;
+            ArrayDeque<RestingOrder> queue = side.get(order.level);
+
+            if ((queue == null) || !queue.remove(order)) return false;
+
+            if (queue.isEmpty()) side.remove(order.level);
+
+            return true;
+        }
+
+        private double bestBid() {
+            return bids.isEmpty() ? Double.NaN : bids.lastKey() * TICK_SIZE;
+        }
+
+        private double bestAsk() {
+            return asks.isEmpty() ? Double.NaN : asks.firstKey() * TICK_SIZE;
+        }
+
+        private double volumeAtBestBid() {
+            double volume = 0;
+
+            for (RestingOrder order : bids.lastEntry().getValue())
+                volume += order.quantity;
+
+            return volume;
+        }
+    }
+
+    private static void assertSamePrice(String message, double expected, double actual) {
+        if (Double.isNaN(expected))
+            assertTrue(message, Double.isNaN(actual));
+        else
+            assertEquals(message, expected, actual, TOLERANCE);
+    }
+
+    /**
+     * A random mix of limit orders, cancellations and market orders gives the same fills, best
+     * prices, last prices and volumes as the naive book. The limit orders cross the spread at times,
+     * and once in a while fall far from the mid, so that the levels of the book grow.
+     */
+    @Test
+    public void randomEvents_sameAsTreeMapBook() {
+        Random rand = new Random(7);
+        LimitOrderBook book = new LimitOrderBook(TICK_SIZE, 100);
+        ReferenceBook reference = new ReferenceBook();
+        ArrayList<Long> handles = new ArrayList<Long>();     // the orders that rested, whether they still do or not
+        HashMap<Long, RestingOrder> referenceOrders = new HashMap<Long, RestingOrder>();
+        int mid = 10000;    // in ticks
+        int numCancelled = 0;
+
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            int event = rand.nextInt(10);
+            String message = "event " + i;
+
+            if (event < 5) {
+                boolean isBuy = rand.nextBoolean();
+                int level = mid + (isBuy ? -1 : 1) * (rand.nextInt(50) - 3);
+                double quantity = 1 + rand.nextInt(10);
+
+                if (rand.nextInt(1000) == 0)    // far from the mid
+                    level += rand.nextBoolean() ? 5000 : -5000;
+
+                long handle = book.addLimitOrder(isBuy, level * TICK_SIZE, quantity);
+                double remaining = reference.trade(isBuy, quantity, level);
+
+                assertEquals(message, remaining <= 0, handle == LimitOrderBook.NO_ORDER);
+
+                if (handle != LimitOrderBook.NO_ORDER) {
+                    RestingOrder order = new RestingOrder(isBuy, level, remaining);
+
+                    reference.rest(order);
+                    referenceOrders.put(handle, order);
+                    handles.add(handle);
+                }
+            }
+            else if (event < 8) {
+                if (handles.isEmpty()) continue;
+
+                int k = rand.nextInt(handles.size());
+                long handle = handles.get(k);
+
+                handles.set(k, handles.get(handles.size() - 1));
+                handles.remove(handles.size() - 1);
+
+                boolean cancelled = book.cancel(handle);
+
+                assertEquals(message, reference.cancel(referenceOrders.remove(handle)), cancelled);
+                assertFalse(message, book.cancel(handle));      // a stale handle
+
+                if (cancelled) numCancelled++;
+            }
+            else {
+                double quantity = (rand.nextBoolean() ? 1 : -1) * (1 + rand.nextInt(30));
+                double filled = book.marketOrder(quantity);
+                double remaining = reference.trade(quantity > 0, Math.abs(quantity), (quantity > 0) ? Integer.MAX_VALUE : Integer.MIN_VALUE);
+
+                assertEquals(message, Math.signum(quantity) * (Math.abs(quantity) - remaining), filled, TOLERANCE);
+            }
+
+            assertSamePrice(message, reference.bestBid(), book.getBestBid());
+            assertSamePrice(message, reference.bestAsk(), book.getBestAsk());
+            assertSamePrice(message, reference.lastPrice, book.getLastPrice());
+
+            if (!reference.bids.isEmpty())
+                assertEquals(message, reference.volumeAtBestBid(), book.getVolumeAt(book.getBestBid()), TOLERANCE);
+
+            if (!Double.isNaN(book.getMidPrice()))
+                mid = (int) Math.round(book.getMidPrice() / TICK_SIZE);
+        }
+
+        assertTrue(book.getTradedVolume() > 0);
+        assertTrue(numCancelled > 0);
+    }
+}
@@ -13,24 +13,37 @@
 package info.financialecology.finance.utilities;
 
 /**
+ * The simulation clock. Each thread has its own clock, so that independent simulations 
+ * (e.g. the samples of a design of experiments) can run concurrently, one per thread.
+ * 
  * @author Gilbert Peffer
  *
  */
 public class WorldClock {
 
-    private static int tick = 0;
+    private static final ThreadLocal<int []> tick = new ThreadLocal<int []>() {
+        @Override
+        protected int [] initialValue() {
+            return new int [1];     // a mutable holder avoids boxing on every increment
+        }
+    };
     
     public static void reset() {
-        tick = 0;
+        tick.get()[0] = 0;
     }
     
     public static int currentTick() {
-        return tick;
+        return tick.get()[0];
     }
     
     public static int incrementTick() {
-        tick++;
-        
-        return tick;
+        return ++tick.get()[0];
+    }
+    
+    /**
+     * Set the clock of the calling thread, e.g. to continue a simulation from a snapshot
+     */
+    public static void setTick(int currentTick) {
+        tick.get()[0] = currentTick;
     }
 }
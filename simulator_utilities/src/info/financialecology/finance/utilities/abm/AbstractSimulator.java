@@ -17,13 +17,16 @@ package info.financialecology.finance.utilities.abm;
 
 import info.financialecology.finance.utilities.WorldClock;
 
+import java.io.Serializable;
+
 /**
  * The abstract simulator class that provides some basic methods to manage simulation ticks. Uses the 
  * static class {@link WorldClock}. 
  * 
  * @author Gilbert Peffer
  */
-public abstract class AbstractSimulator {
+@SuppressWarnings("serial")
+public abstract class AbstractSimulator implements Serializable {
     protected long nTicks;  // number of ticks per simulation run
 
     /**
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.abm;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.WorldClock;
+import info.financialecology.finance.utilities.datagen.RandomGeneratorPool;
+import info.financialecology.finance.utilities.datagen.RandomStreamFactory;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeriesList;
+import info.financialecology.finance.utilities.datastruct.SimulationParameters;
+import info.financialecology.finance.utilities.output.CsvResultWriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Logger;
+
+/**
+ * Runs the samples of a design of experiments (e.g. a Latin hypercube sample read with
+ * {@link LhsDesign}) in parallel, one sample per thread.
+ * <p>
+ * For each sample, the runner
+ * <ul>
+ * <li> creates a copy of the base parameters and assigns the sampled values using a {@link ParameterMapping}
+ * <li> configures the {@link RandomGeneratorPool} of the worker thread with the random streams of the
+ *      sample, {@code new RandomStreamFactory(seed).split(index)}, so results do not depend on the
+ *      number of threads or on the order in which the samples are run. With common random numbers
+ *      (see {@link #setCommonRandomNumbers(boolean)}), all samples use the same streams.
+ * <li> runs the {@link SampleTask} and writes the time series it returns to its own CSV file
+ *      {@code <outputDir>/<prefix>_<index>.csv} as soon as the sample is finished
+ * </ul>
+ * The output file is first written under a temporary name and renamed once it is complete. A
+ * sample whose output file exists is therefore finished, and is skipped when the runner is
+ * started again, e.g. after a crash or after an assertion stopped the programme.
+ * <p>
+ * Simulations can run concurrently because the {@link WorldClock} and the
+ * {@link RandomGeneratorPool} are confined to the calling thread. A task must not share
+ * mutable objects with other samples.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ExperimentRunner<P extends SimulationParameters> {
+
+    private static final Logger logger = (Logger)LoggerFactory.getLogger(ExperimentRunner.class.getSimpleName());
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * The simulation of a single sample
+     */
+    public interface SampleTask<P extends SimulationParameters> {
+
+        /**
+         * Set up and run the simulation for one sample. Called in a worker thread whose random
+         * generator pool has already been configured with the seed of the sample.
+         *
+         * @param sample the sample, holding its parameters and seed
+         * @return the time series to be written to the output file of the sample
+         */
+        DoubleTimeSeriesList run(ExperimentSample<P> sample);
+    }
+
+    private final LhsDesign         design;
+    private final ParameterMapping  mapping;
+    private final P                 baseParams;
+    private final String            outputDir;
+    private final String            outputPrefix;
+
+    private int numThreads  = Runtime.getRuntime().availableProcessors();
+    private int seed        = -1;       // master seed of the experiment; -1 for random seeds
+    private boolean commonRandomNumbers = false;    // true if all samples use the random streams of sample 0
+
+    /**
+     * @param design the design of experiments
+     * @param mapping the mapping from the columns of the design to the parameters
+     * @param baseParams the parameters that are common to all samples; not modified by the runner
+     * @param outputDir the directory for the output files (created if it does not exist)
+     * @param outputPrefix the prefix of the output file names
+     */
+    public ExperimentRunner(LhsDesign design, ParameterMapping mapping, P baseParams, String outputDir, String outputPrefix) {
+        this.design = design;
+        this.mapping = mapping;
+        this.baseParams = baseParams;
+        this.outputDir = outputDir;
+        this.outputPrefix = outputPrefix;
+
+        mapping.validate(design, baseParams.getClass());
+    }
+
+    public void setNumThreads(int numThreads) {
+        Assertion.assertOrKill(numThreads > 0, "The number of threads needs to be '> 0'");
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * @param seed master seed from which the random streams of all samples are derived; -1 for random seeds
+     */
+    public void setSeed(int seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Use the same random streams in all samples, so that samples differ only in their parameters.
+     * This reduces the variance of the differences between samples. Use a
+     * {@link info.financialecology.finance.utilities.datagen.NoiseBank} to also draw the noise of
+     * the simulations only once. Needs a fixed seed.
+     *
+     * @param commonRandomNumbers true to use the random streams of sample 0 in all samples
+     */
+    public void setCommonRandomNumbers(boolean commonRandomNumbers) {
+        this.commonRandomNumbers = commonRandomNumbers;
+    }
+
+    /**
+     * @param index the sample index
+     * @return the factory of the random streams of the sample, or null if seeds are random
+     */
+    public RandomStreamFactory getStreamFactory(int index) {
+        return seed < 0 ? null : new RandomStreamFactory(seed).split(commonRandomNumbers ? 0 : index);
+    }
+
+    public File getOutputFile(int index) {
+        return new File(outputDir, outputPrefix + "_" + index + ".csv");
+    }
+
+    /**
+     * @param index the sample index
+     * @return true, if the output of the sample has been completely written
+     */
+    public boolean isCompleted(int index) {
+        return getOutputFile(index).exists();
+    }
+
+    /**
+     * Run all samples of the design that have not been completed in a previous execution.
+     *
+     * @param task the simulation of a single sample
+     * @return the number of samples that failed with an exception
+     */
+    public int run(final SampleTask<P> task) {
+        Assertion.assertOrKill(!commonRandomNumbers || (seed >= 0), "Common random numbers need a fixed seed");
+
+        new File(outputDir).mkdirs();
+
+        ArrayList<Integer> pending = new ArrayList<Integer>();
+
+        for (int i = 0; i < design.getNumSamples(); i++)
+            if (!isCompleted(i)) pending.add(i);
+
+        logger.info("Running {} of {} samples ({} completed previously) on {} threads",
+                new Object[] {pending.size(), design.getNumSamples(), design.getNumSamples() - pending.size(), numThreads});
+
+        final AtomicInteger numFinished = new AtomicInteger(0);
+        final AtomicInteger numFailed = new AtomicInteger(0);
+        final int numPending = pending.size();
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        for (final Integer index : pending) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        runSample(index, task);
+                        logger.info("Sample {} finished ({}/{})", new Object[] {index, numFinished.incrementAndGet(), numPending});
+                    } catch (RuntimeException e) {
+                        numFailed.incrementAndGet();
+                        logger.error("Sample {} failed", index, e);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) { /* wait for all samples */ }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        return numFailed.get();
+    }
+
+    /**
+     * Run a single sample in the calling thread and write its output
+     */
+    private void runSample(int index, SampleTask<P> task) {
+        double [] values = mapping.rescaleSample(design, index);
+        P params = mapping.apply(baseParams, values);
+        RandomStreamFactory streams = getStreamFactory(index);
+
+        WorldClock.reset();
+
+        if (streams == null)
+            RandomGeneratorPool.configureGeneratorPool();
+        else
+            RandomGeneratorPool.configureGeneratorPool(streams);
+
+        DoubleTimeSeriesList output = task.run(new ExperimentSample<P>(index, seed, params, mapping, values));
+
+        File outputFile = getOutputFile(index);
+        File tmpFile = new File(outputFile.getPath() + TMP_SUFFIX);
+
+        CsvResultWriter writer = new CsvResultWriter(tmpFile.getPath());
+        writer.write(output);
+        writer.close();
+
+        if (!tmpFile.renameTo(outputFile))
+            throw new RuntimeException("Cannot rename '" + tmpFile + "' to '" + outputFile + "'");
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.abm;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.datastruct.SimulationParameters;
+
+/**
+ * One sample of a design of experiments, as passed to an {@link ExperimentRunner.SampleTask}.
+ * Holds the sample's own copy of the parameters, with the mapped fields already set, and the
+ * rescaled values of all mapped columns.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ExperimentSample<P extends SimulationParameters> {
+
+    private final int               index;      // row of the sample in the design
+    private final int               seed;       // master seed of the experiment, or -1 for a random seed
+    private final P                 params;
+    private final ParameterMapping  mapping;
+    private final double []         values;     // rescaled values, in the order of the mapping
+
+    ExperimentSample(int index, int seed, P params, ParameterMapping mapping, double [] values) {
+        this.index = index;
+        this.seed = seed;
+        this.params = params;
+        this.mapping = mapping;
+        this.values = values;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the master seed of the experiment, from which the random streams of this sample
+     * are derived together with the sample index, or -1 if the seed is random
+     */
+    public int getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return the parameters of this sample. The object is not shared with other samples
+     * and can be modified.
+     */
+    public P getParams() {
+        return params;
+    }
+
+    /**
+     * @param column the name of a mapped or rescaled column of the design
+     * @return the rescaled value of the column for this sample
+     */
+    public double getValue(String column) {
+        for (int i = 0; i < mapping.size(); i++)
+            if (mapping.getColumn(i).equals(column)) return values[i];
+
+        Assertion.assertOrKill(false, "Column '" + column + "' is not part of the parameter mapping");
+
+        return Double.NaN;
+    }
+}
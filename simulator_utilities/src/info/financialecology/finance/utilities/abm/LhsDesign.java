@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.abm;
+
+import info.financialecology.finance.utilities.Assertion;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * A design of experiments, such as a Latin hypercube sample (LHS), read from a CSV file. The
+ * first row holds the column names and each following row holds one sample. The values are
+ * normalised to the range [0,1] and are mapped to the actual parameter ranges with a
+ * {@link ParameterMapping}.
+ * <p>
+ * The LHS files generated in Python contain the row index in the first column. Use
+ * {@link #read(String, boolean)} to skip it.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class LhsDesign {
+
+    private String []   columnNames;
+    private double [][] samples;        // samples[sample][column], normalised to [0,1]
+
+    private LhsDesign(String [] columnNames, double [][] samples) {
+        this.columnNames = columnNames;
+        this.samples = samples;
+    }
+
+    /**
+     * Reads a design whose first column holds the row indices, as in the files
+     * {@code LHS_parameters_*_*.csv}.
+     *
+     * @param fileName the CSV file
+     * @return the design
+     */
+    public static LhsDesign read(String fileName) {
+        return read(fileName, true);
+    }
+
+    /**
+     * Reads a design from a CSV file
+     *
+     * @param fileName the CSV file
+     * @param hasIndexColumn true, if the first column holds the row indices and should be skipped
+     * @return the design
+     */
+    public static LhsDesign read(String fileName, boolean hasIndexColumn) {
+        int firstColumn = hasIndexColumn ? 1 : 0;
+        String [] header = null;
+        ArrayList<double []> rows = new ArrayList<double []>();
+
+        try {
+            CSVReader reader = new CSVReader(new FileReader(fileName));
+            String [] nextLine;
+
+            while ((nextLine = reader.readNext()) != null) {
+                if (header == null) {   // first row contains the column names
+                    header = new String[nextLine.length - firstColumn];
+
+                    for (int c = firstColumn; c < nextLine.length; c++)
+                        header[c - firstColumn] = nextLine[c].trim();
+
+                    continue;
+                }
+
+                if ((nextLine.length == 1) && nextLine[0].trim().isEmpty()) continue;     // skip empty lines
+
+                Assertion.assertOrKill(nextLine.length - firstColumn == header.length, "Row " + (rows.size() + 1) +
+                        " of the design '" + fileName + "' has " + (nextLine.length - firstColumn) + " values, but " +
+                        header.length + " are expected");
+
+                double [] row = new double[header.length];
+
+                for (int c = firstColumn; c < nextLine.length; c++)
+                    row[c - firstColumn] = Double.parseDouble(nextLine[c]);
+
+                rows.add(row);
+            }
+
+            reader.close();
+        }
+        catch (IOException e) {
+            Assertion.assertOrKill(false, "Cannot read the design of experiments '" + fileName + "': " + e.getMessage());
+        }
+
+        Assertion.assertOrKill(header != null, "The design of experiments '" + fileName + "' is empty");
+
+        return new LhsDesign(header, rows.toArray(new double[rows.size()][]));
+    }
+
+    public int getNumSamples() {
+        return samples.length;
+    }
+
+    public int getNumColumns() {
+        return columnNames.length;
+    }
+
+    public String [] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * @param column the name of the column
+     * @return the index of the column, or -1 if the design has no such column
+     */
+    public int getColumnIndex(String column) {
+        for (int c = 0; c < columnNames.length; c++)
+            if (columnNames[c].equals(column)) return c;
+
+        return -1;
+    }
+
+    /**
+     * @param sample the sample (row) index
+     * @param column the column index
+     * @return the normalised value of the sample
+     */
+    public double getValue(int sample, int column) {
+        return samples[sample][column];
+    }
+}
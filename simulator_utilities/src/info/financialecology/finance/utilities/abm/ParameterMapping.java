@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.abm;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.datastruct.SimulationParameters;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+/**
+ * Maps the normalised columns of an {@link LhsDesign} to the actual ranges of the simulation
+ * parameters. A column is either mapped to a public {@code int}, {@code long} or {@code double}
+ * field of a {@link SimulationParameters} object, or only rescaled, for parameters that are not
+ * plain fields (e.g. one element of a parameter sequence). In both cases the rescaled value is
+ * available from {@link ExperimentSample#getValue(String)}.
+ * <p>
+ * A normalised value {@code u} is mapped to {@code min + u * (max - min)}. For integer fields
+ * the result is truncated, as in the original surrogate simulations.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ParameterMapping {
+
+    private static class Entry {
+        String column;      // column in the design
+        String field;       // parameter field, or null if the column is only rescaled
+        double min;
+        double max;
+    }
+
+    private ArrayList<Entry> entries = new ArrayList<Entry>();
+
+    public ParameterMapping() {
+    }
+
+    /**
+     * Map a column of the design to a field of the parameter object
+     *
+     * @param column the name of the column in the design
+     * @param field the name of the public field in the parameter class
+     * @param min the parameter value for a normalised value of 0
+     * @param max the parameter value for a normalised value of 1
+     */
+    public void map(String column, String field, double min, double max) {
+        Assertion.assertOrKill(field != null, "The field for column '" + column + "' is null, use rescale(...) instead");
+
+        add(column, field, min, max);
+    }
+
+    /**
+     * Rescale a column of the design without assigning it to a parameter field
+     *
+     * @param column the name of the column in the design
+     * @param min the value for a normalised value of 0
+     * @param max the value for a normalised value of 1
+     */
+    public void rescale(String column, double min, double max) {
+        add(column, null, min, max);
+    }
+
+    private void add(String column, String field, double min, double max) {
+        for (Entry e : entries)
+            Assertion.assertOrKill(!e.column.equals(column), "Column '" + column + "' is mapped twice");
+
+        Entry entry = new Entry();
+
+        entry.column = column;
+        entry.field = field;
+        entry.min = min;
+        entry.max = max;
+
+        entries.add(entry);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public String getColumn(int i) {
+        return entries.get(i).column;
+    }
+
+    /**
+     * Check that all mapped columns exist in the design and that all mapped fields are numeric
+     * public fields of the parameter class.
+     */
+    public void validate(LhsDesign design, Class<? extends SimulationParameters> paramsClass) {
+        for (Entry e : entries) {
+            Assertion.assertOrKill(design.getColumnIndex(e.column) >= 0, "Column '" + e.column +
+                    "' does not exist in the design");
+
+            if (e.field == null) continue;
+
+            try {
+                Class<?> type = paramsClass.getField(e.field).getType();
+
+                Assertion.assertOrKill(type == int.class || type == long.class || type == double.class,
+                        "Field '" + e.field + "' has type " + type + ", but only int, long and double fields can be mapped");
+            } catch (NoSuchFieldException ex) {
+                Assertion.assertOrKill(false, "Class " + paramsClass.getSimpleName() + " has no public field '" + e.field + "'");
+            }
+        }
+    }
+
+    /**
+     * Rescale the values of one sample of the design
+     *
+     * @param design the design
+     * @param sample the sample (row) index
+     * @return the rescaled values, in the order in which the columns were mapped
+     */
+    double [] rescaleSample(LhsDesign design, int sample) {
+        double [] values = new double[entries.size()];
+
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            double u = design.getValue(sample, design.getColumnIndex(e.column));
+
+            values[i] = e.min + u * (e.max - e.min);
+        }
+
+        return values;
+    }
+
+    /**
+     * Create a copy of the base parameters and assign the rescaled values of one sample to the
+     * mapped fields. The base parameters are not modified, so that samples can be created
+     * concurrently.
+     *
+     * @param base the parameters shared by all samples
+     * @param values the rescaled values of the sample, see {@link #rescaleSample(LhsDesign, int)}
+     * @return the parameters of the sample
+     */
+    @SuppressWarnings("unchecked")
+    <P extends SimulationParameters> P apply(P base, double [] values) {
+        P params = null;
+
+        try {
+            params = (P) copy(base);
+
+            for (int i = 0; i < entries.size(); i++) {
+                Entry e = entries.get(i);
+
+                if (e.field == null) continue;
+
+                Field f = params.getClass().getField(e.field);
+
+                if (f.getType() == int.class)
+                    f.setInt(params, (int) values[i]);
+                else if (f.getType() == long.class)
+                    f.setLong(params, (long) values[i]);
+                else
+                    f.setDouble(params, values[i]);
+            }
+        } catch (Exception ex) {
+            Assertion.assertOrKill(false, "Cannot create the parameters of the sample: " + ex);
+        }
+
+        return params;
+    }
+
+    /**
+     * Shallow copy of a parameter object, including the fields declared in its super classes.
+     * Parameter fields are primitives or immutable strings, so a shallow copy is sufficient.
+     */
+    private static Object copy(Object source) throws Exception {
+        Constructor<?> constructor = source.getClass().getDeclaredConstructor();
+
+        constructor.setAccessible(true);     // parameter classes have non-public constructors
+
+        Object target = constructor.newInstance();
+
+        for (Class<?> c = source.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers())) continue;
+
+                f.setAccessible(true);
+                f.set(target, f.get(source));
+            }
+        }
+
+        return target;
+    }
+}
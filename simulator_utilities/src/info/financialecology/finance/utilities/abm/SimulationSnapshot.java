@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.abm;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+import info.financialecology.finance.utilities.WorldClock;
+import info.financialecology.finance.utilities.datagen.RandomGeneratorPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Logger;
+
+/**
+ * The state of a simulation at a given tick: the simulator with everything it holds (market,
+ * agents, strategies, data generators and the positions of their random streams), the
+ * {@link WorldClock} and the {@link RandomGeneratorPool} of the thread in which it ran.
+ * <p>
+ * A simulation can be restored from a snapshot any number of times, in any thread, and
+ * continues exactly as the original would have. This allows a warm-up period to be simulated
+ * once and then forked into branches that differ only in what is set after the warm-up:
+ * <pre>
+ *    simulator.setNumTicks(warmUp);
+ *    simulator.run();
+ *
+ *    SimulationSnapshot&lt;MySimulator&gt; snapshot = SimulationSnapshot.take(simulator);
+ *
+ *    snapshot.fork(numBranches, numThreads, new SimulationSnapshot.Branch&lt;MySimulator&gt;() {
+ *        public void run(int index, MySimulator simulator) {
+ *            ...     // set the parameters of branch 'index'
+ *            simulator.setNumTicks(nTicks);
+ *            simulator.run();
+ *        }
+ *    });
+ * </pre>
+ * The branches continue the same random streams, so the differences between them are due to
+ * their parameters alone.
+ * <p>
+ * The snapshot is a deep copy made with Java serialisation, so everything the simulator refers
+ * to needs to be {@link Serializable}. Objects that cannot be serialised, such as the scheduler
+ * of a simulator, need to be declared {@code transient} and recreated by the simulator when it
+ * is read back.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class SimulationSnapshot<S extends AbstractSimulator> {
+
+    private static final Logger logger = (Logger)LoggerFactory.getLogger(SimulationSnapshot.class.getSimpleName());
+
+    private final byte [] state;                // the serialised simulator
+    private final int tick;                     // the tick of the world clock
+    private final Serializable poolState;       // the state of the random generator pool
+
+    /**
+     * A branch of a forked simulation
+     */
+    public interface Branch<S extends AbstractSimulator> {
+
+        /**
+         * Set up and continue the simulation of one branch. Called in a worker thread whose world
+         * clock and random generator pool have been restored from the snapshot.
+         *
+         * @param index the index of the branch
+         * @param simulator the simulator of the branch, restored from the snapshot
+         */
+        void run(int index, S simulator);
+    }
+
+    private SimulationSnapshot(byte [] state, int tick, Serializable poolState) {
+        this.state = state;
+        this.tick = tick;
+        this.poolState = poolState;
+    }
+
+    /**
+     * Take a snapshot of the simulator, and of the world clock and random generator pool of
+     * the calling thread. The simulator is not changed and can continue.
+     *
+     * @param simulator the simulator, between two ticks
+     * @return the snapshot
+     */
+    public static <S extends AbstractSimulator> SimulationSnapshot<S> take(S simulator) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(simulator);
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot take a snapshot of the simulation; the state of the simulator needs to be serialisable", e);
+        }
+
+        return new SimulationSnapshot<S>(bytes.toByteArray(), WorldClock.currentTick(), RandomGeneratorPool.savePoolState());
+    }
+
+    /**
+     * Restore the simulation in the calling thread: set the world clock and the random generator
+     * pool of the thread, and create a new copy of the simulator. Each call returns a separate copy.
+     *
+     * @return the simulator, at the tick of the snapshot
+     */
+    @SuppressWarnings("unchecked")
+    public S restore() {
+        WorldClock.setTick(tick);
+        RandomGeneratorPool.restorePoolState(poolState);
+
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state));
+            S simulator = (S) in.readObject();
+            in.close();
+
+            return simulator;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot restore the simulation from the snapshot", e);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Cannot restore the simulation from the snapshot", e);
+        }
+    }
+
+    /**
+     * @return the tick at which the snapshot was taken, the next tick to be simulated
+     */
+    public int getTick() {
+        return tick;
+    }
+
+    /**
+     * @return the size of the snapshot in bytes
+     */
+    public int getSize() {
+        return state.length;
+    }
+
+    /**
+     * Restore the simulation in {@code numBranches} separate copies and continue each in a
+     * worker thread, see {@link Branch}. Returns once all branches have finished.
+     *
+     * @param numBranches the number of branches
+     * @param numThreads the number of worker threads
+     * @param branch the continuation of the simulation in each branch
+     * @return the number of branches that failed with an exception
+     */
+    public int fork(int numBranches, int numThreads, final Branch<S> branch) {
+        Assertion.assertStrict(numBranches > 0, Level.ERR, "The number of branches needs to be '> 0'");
+        Assertion.assertStrict(numThreads > 0, Level.ERR, "The number of threads needs to be '> 0'");
+
+        logger.debug("Forking the simulation at tick {} into {} branches on {} threads", new Object[] {tick, numBranches, numThreads});
+
+        final AtomicInteger numFailed = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, numBranches));
+
+        for (int i = 0; i < numBranches; i++) {
+            final int index = i;
+
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        branch.run(index, restore());
+                    } catch (RuntimeException e) {
+                        numFailed.incrementAndGet();
+                        logger.error("Branch {} failed", index, e);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) { /* wait for all branches */ }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        return numFailed.get();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.abm;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import cern.colt.list.IntArrayList;
+
+/**
+ * A hierarchical timing wheel of events identified by integers, e.g. the indices of the agents
+ * that wake up at a tick. The wheel advances one tick at a time and returns the events due at
+ * each tick; ticks without events cost next to nothing, so agents that act at long intervals do
+ * not cost anything in the ticks in between.
+ * <p>
+ * Level l of the wheel has 64 slots of 64^l ticks each. An event goes to the lowest level whose
+ * slot holds only ticks that agree with the current tick in all higher digits (base 64), and
+ * moves down a level each time the current tick enters its slot, at most once per level.
+ * Scheduling and firing an event are O(1); the events are kept in primitive arrays, whose
+ * entries are reused.
+ * <p>
+ * The events of a tick are returned in no particular order.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class TimingWheel implements Serializable {
+
+    private static final int BITS = 6;                  // 64 slots per level
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 6;                // 6 * 6 bits cover all non-negative ints
+    private static final int NONE = -1;
+
+    private int now;                                    // the next tick to fire
+    private int numEvents = 0;
+    private final int [] slotHead = new int[LEVELS * SLOTS];    // first event of each slot, or NONE
+    private final int [] slotTail = new int[LEVELS * SLOTS];
+
+    private int [] eventId = new int[64];               // the events: the i-th entries of the arrays
+    private int [] eventTick = new int[64];
+    private int [] eventNext = new int[64];             // next event in the slot, or next free entry
+    private int freeEntry = NONE;
+    private int numEntries = 0;
+
+    /**
+     * @param tick the first tick of the wheel, >= 0
+     */
+    public TimingWheel(int tick) {
+        Assertion.assertStrict(tick >= 0, Level.ERR, "The first tick of a timing wheel needs to be '>= 0'");
+
+        this.now = tick;
+
+        Arrays.fill(slotHead, NONE);
+        Arrays.fill(slotTail, NONE);
+    }
+
+    /**
+     * Schedule an event
+     *
+     * @param id the identifier of the event; the same identifier can be scheduled several times
+     * @param tick the tick of the event, not before the current tick
+     */
+    public void schedule(int id, int tick) {
+        Assertion.assertStrict(tick >= now, Level.ERR, "Event " + id + " is scheduled at tick " + tick +
+                ", before the current tick " + now + " of the timing wheel");
+
+        int entry;
+
+        if (freeEntry != NONE) {
+            entry = freeEntry;
+            freeEntry = eventNext[entry];
+        }
+        else {
+            if (numEntries == eventId.length) {
+                eventId = Arrays.copyOf(eventId, 2 * numEntries);
+                eventTick = Arrays.copyOf(eventTick, 2 * numEntries);
+                eventNext = Arrays.copyOf(eventNext, 2 * numEntries);
+            }
+
+            entry = numEntries++;
+        }
+
+        eventId[entry] = id;
+        eventTick[entry] = tick;
+        insert(entry);
+        numEvents++;
+    }
+
+    /**
+     * Fire the events of the current tick and move to the next tick
+     *
+     * @param fired cleared, then filled with the identifiers of the events of the current tick
+     * @return the tick of the events
+     */
+    public int advance(IntArrayList fired) {
+        fired.clear();
+
+        int slot = now & MASK;
+        int entry = slotHead[slot];
+
+        slotHead[slot] = NONE;
+        slotTail[slot] = NONE;
+
+        while (entry != NONE) {
+            int next = eventNext[entry];
+
+            fired.add(eventId[entry]);
+            eventNext[entry] = freeEntry;
+            freeEntry = entry;
+            numEvents--;
+            entry = next;
+        }
+
+        int tick = now++;
+
+        if ((now & MASK) == 0) {        // the current tick enters new slots of the higher levels: move their events down
+            int top = Math.min(LEVELS - 1, Integer.numberOfTrailingZeros(now) / BITS);
+
+            for (int level = top; level >= 1; level--)
+                cascade(level);
+        }
+
+        return tick;
+    }
+
+    /**
+     * @return the next tick to fire
+     */
+    public int getTick() {
+        return now;
+    }
+
+    /**
+     * @return the number of events scheduled and not fired yet
+     */
+    public int getNumEvents() {
+        return numEvents;
+    }
+
+    private void cascade(int level) {
+        int slot = level * SLOTS + ((now >>> (level * BITS)) & MASK);
+        int entry = slotHead[slot];
+
+        slotHead[slot] = NONE;
+        slotTail[slot] = NONE;
+
+        while (entry != NONE) {
+            int next = eventNext[entry];
+
+            insert(entry);
+            entry = next;
+        }
+    }
+
+    private void insert(int entry) {
+        int tick = eventTick[entry];
+        int level = 0;
+        int differingBits = tick ^ now;
+
+        while ((level < LEVELS - 1) && ((differingBits >>> ((level + 1) * BITS)) != 0)) level++;
+
+        int slot = level * SLOTS + ((tick >>> (level * BITS)) & MASK);
+
+        eventNext[entry] = NONE;
+
+        if (slotTail[slot] == NONE)
+            slotHead[slot] = entry;
+        else
+            eventNext[slotTail[slot]] = entry;
+
+        slotTail[slot] = entry;
+    }
+}
@@ -32,6 +32,7 @@ import cern.jet.random.Normal;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class AR1Process implements DataGenerator {
     
     private double delta;
@@ -73,13 +74,17 @@ public class AR1Process implements DataGenerator {
         return newValue;
     }
 
-    /* (non-Javadoc)
-     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleIncrement()
+    /**
+     * Get the next increment of the AR(1) process, x_t - x_t-1
+     * 
+     * @see DataGenerator#nextDoubleIncrement()
      */
     @Override
     public double nextDoubleIncrement() {
-        // TODO Auto-generated method stub
-        return 0;
+        
+        double lastValue = this.lastValue;
+        
+        return nextDouble() - lastValue;
     }
 
     /* (non-Javadoc)
@@ -88,12 +93,45 @@ public class AR1Process implements DataGenerator {
     @Override
     public DoubleArrayList nextDoubles(int numDoubles) {
         
-        DoubleArrayList dal = new DoubleArrayList();
+        double [] values = new double[numDoubles];
+        
+        nextDoubles(values, 0, numDoubles);
+        
+        return new DoubleArrayList(values);
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubles(double[], int, int)
+     */
+    @Override
+    public void nextDoubles(double [] values, int offset, int length) {
+        
+        double value = lastValue;
+        
+        for (int k = offset; k < offset + length; k++) {
+            value = delta + phi * value + normal.nextDouble();
+            values[k] = value;
+        }
+        
+        lastValue = value;
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleIncrements(double[], int, int)
+     */
+    @Override
+    public void nextDoubleIncrements(double [] increments, int offset, int length) {
+        
+        double value = lastValue;
         
-        for (int i = 0; i < numDoubles; i++)
-            dal.add(nextDouble());
+        nextDoubles(increments, offset, length);
         
-        return dal;
+        for (int k = offset; k < offset + length; k++) {
+            double nextValue = increments[k];
+            
+            increments[k] = nextValue - value;
+            value = nextValue;
+        }
     }
 
     /* (non-Javadoc)
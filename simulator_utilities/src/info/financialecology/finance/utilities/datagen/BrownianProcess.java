@@ -20,7 +20,6 @@ import info.financialecology.finance.utilities.Assertion;
 import java.util.ArrayList;
 
 import cern.colt.list.DoubleArrayList;
-import cern.jet.random.AbstractDistribution;
 import cern.jet.random.Normal;
 
 /**
@@ -39,16 +38,21 @@ import cern.jet.random.Normal;
  * 
  * Preferably use a geometric Brownian motion to model prices.
  * 
+ * The processes are independent. Use {@link CorrelatedBrownianProcess} for 
+ * processes with correlated shocks.
+ * 
  * See http://math.gmu.edu/~tsauer/pre/sde.pdf
  * 
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class BrownianProcess implements DataGenerator {
     
-    private ArrayList<Double> paramList;
-    private ArrayList<Double> lastValues;
-    private ArrayList<AbstractDistribution> distList;
+    private double [] mu;               // drift of each process
+    private double [] sigma;            // volatility of each process
+    private double [] lastValues;       // current value of each process
+    private Normal [] distList;         // N(0,1) distributions to generate the z_i, one for each process
         
     private Type type;  // the type of the Brownian process
     
@@ -57,8 +61,6 @@ public class BrownianProcess implements DataGenerator {
         GEOMETRIC;      // generally used for prices
     }
 
-    // TODO Add the correlation matrix
-
     /**
      * Constructor for the Brownian processes.
      * 
@@ -74,19 +76,21 @@ public class BrownianProcess implements DataGenerator {
         Assertion.assertStrict(params.length % 3 == 0, Assertion.Level.ERR, "Number of parameters provided to the constructor" +
         		"of the BrownianProcess class is " + params.length + 
         		", but it should be a multiple of 3 (initial value, mu, sigma");
+        Assertion.assertStrict((type == Type.ARITHMETIC) || (type == Type.GEOMETRIC), Assertion.Level.ERR, 
+                "Type for Brownian process has to be ARITHMETIC or GEOMETRIC");
         
         this.type = type;
         
         int dimensions = (int) Math.floor(0.1 + params.length / 3);    // number of dimensions - a fix to avoid inaccuracy of division
         
-        paramList = new ArrayList<Double>();
-        lastValues = new ArrayList<Double>();
-        distList = new ArrayList<AbstractDistribution>();
+        mu = new double[dimensions];
+        sigma = new double[dimensions];
+        lastValues = new double[dimensions];
         
         for (int i = 0; i < dimensions; i++) {  // Extract parameters
-            lastValues.add(params[3*i]);                // initial value
-            paramList.add(2*i, params[3*i + 1]);        // mu
-            paramList.add(2*i + 1, params[3*i + 2]);    // sigma
+            lastValues[i] = params[3*i];    // initial value
+            mu[i] = params[3*i + 1];
+            sigma[i] = params[3*i + 2];
         }
         
         Double [] normalParams = new Double[dimensions * 2];
@@ -98,8 +102,7 @@ public class BrownianProcess implements DataGenerator {
         
         ArrayList<Normal> normalList = RandomGeneratorPool.createNormalMultiGenerator(name, normalParams);
         
-        for (Normal normal : normalList)
-            distList.add(normal);
+        distList = normalList.toArray(new Normal[normalList.size()]);
     }
 
     /**
@@ -108,21 +111,9 @@ public class BrownianProcess implements DataGenerator {
     @Override
     public double nextDouble() {
 
-        Assertion.assertStrict(distList.size() == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
+        Assertion.assertStrict(distList.length == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
         
-        AbstractDistribution dist = distList.get(0);
-        double nextValue = 0;
-        
-        if (type == Type.ARITHMETIC)
-            nextValue = lastValues.get(0) + paramList.get(0) + paramList.get(1) * dist.nextDouble();
-        else if (type == Type.GEOMETRIC)// Type = GEOMETRIC
-            nextValue = lastValues.get(0) * (1 + paramList.get(0) + paramList.get(1) * dist.nextDouble());
-        else
-            Assertion.assertOrKill(false, "Type for Brownian process has to be ARITHMETIC or GEOMETRIC");
-        
-        lastValues.add(0, nextValue);
-
-        return nextValue;
+        return next(0);
     }
         
     /**
@@ -131,23 +122,11 @@ public class BrownianProcess implements DataGenerator {
     @Override
     public double nextDoubleIncrement() {
         
-        Assertion.assertStrict(distList.size() == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
-        
-        AbstractDistribution dist = distList.get(0);
-        double nextDouble = 0;
-        double increment = 0;
+        Assertion.assertStrict(distList.length == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
         
-        if (type == Type.ARITHMETIC)
-            nextDouble = lastValues.get(0) + paramList.get(0) + paramList.get(1) * dist.nextDouble();
-        else if (type == Type.GEOMETRIC)
-            nextDouble = lastValues.get(0) * (1 + paramList.get(0) + paramList.get(1) * dist.nextDouble());
-        else
-            Assertion.assertOrKill(false, "Type for Brownian process has to be ARITHMETIC or GEOMETRIC");
-
-        increment =  nextDouble - lastValues.get(0);
-        lastValues.add(0, nextDouble);
+        double lastValue = lastValues[0];
         
-        return increment;        
+        return next(0) - lastValue;        
     }
         
     /**
@@ -156,27 +135,12 @@ public class BrownianProcess implements DataGenerator {
     @Override
     public DoubleArrayList nextDoubleVector() {
 
-    	DoubleArrayList nextValues = new DoubleArrayList();
-        
-    	for (int i = 0; i < distList.size(); i++) {
-    	    
-    		double value = 0;
-    		 
-            if (type == Type.ARITHMETIC)
-                value = lastValues.get(i) + paramList.get(2*i) + paramList.get(2*i+1) * distList.get(i).nextDouble(); 
-            else if (type == Type.GEOMETRIC)
-                value = lastValues.get(i) * (1 + paramList.get(2*i) + paramList.get(2*i+1) * distList.get(i).nextDouble()); 
-            else
-                Assertion.assertOrKill(false, "Type for Brownian process has to be ARITHMETIC or GEOMETRIC");
-
-            nextValues.add(value);            
-        }
-    	
-    	for (int i = 0; i < distList.size(); i++) {   // Update the lastValues for the next iteration
-    		lastValues.add(i, nextValues.get(i));
-    	}
+        double [] nextValues = new double[distList.length];
+        
+        for (int i = 0; i < distList.length; i++)
+            nextValues[i] = next(i);
     	
-        return nextValues;         
+        return new DoubleArrayList(nextValues);         
     }
     
     /**
@@ -185,29 +149,15 @@ public class BrownianProcess implements DataGenerator {
     @Override
     public DoubleArrayList nextDoubleVectorIncrements() {
     	
-    	DoubleArrayList nextValues = new DoubleArrayList();
-    	DoubleArrayList increments = new DoubleArrayList();
-    	
-        for (int i = 0; i < distList.size(); i++) {
-    		
-            double value = 0;
-
-            if (type == Type.ARITHMETIC)
-                value = lastValues.get(i) + paramList.get(2*i) + paramList.get(2*i+1) * distList.get(i).nextDouble();
-            else if (type == Type.GEOMETRIC)
-                value = lastValues.get(i) * (1 + paramList.get(2*i) + paramList.get(2*i+1) * distList.get(i).nextDouble()); 
-            else
-                Assertion.assertOrKill(false, "Type for Brownian process has to be ARITHMETIC or GEOMETRIC");
-
-            nextValues.add(value);
-            increments.add(value - lastValues.get(i));
+        double [] increments = new double[distList.length];
+        
+        for (int i = 0; i < distList.length; i++) {
+            double lastValue = lastValues[i];
+            
+            increments[i] = next(i) - lastValue;
         }
-    	    	
-    	for (int i = 0; i < distList.size(); i++) {   // Update the lastValues for the next iteration
-    		lastValues.add(i, nextValues.get(i));
-    	}
     	
-        return increments;        
+        return new DoubleArrayList(increments);        
     }
     
     /**
@@ -215,11 +165,71 @@ public class BrownianProcess implements DataGenerator {
      */
     @Override
     public DoubleArrayList nextDoubles(int numDoubles) {
-        DoubleArrayList dal = new DoubleArrayList();
+        double [] values = new double[numDoubles];
         
-        for (int i = 0; i < numDoubles; i++)
-            dal.add(nextDouble());
+        nextDoubles(values, 0, numDoubles);
         
-        return dal;
+        return new DoubleArrayList(values);
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubles(double[], int, int)
+     */
+    @Override
+    public void nextDoubles(double [] values, int offset, int length) {
+        
+        Assertion.assertStrict(distList.length == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
+        
+        Normal dist = distList[0];
+        double m = mu[0];
+        double s = sigma[0];
+        double value = lastValues[0];
+        
+        if (type == Type.ARITHMETIC)
+            for (int k = offset; k < offset + length; k++) {
+                value = value + m + s * dist.nextDouble();
+                values[k] = value;
+            }
+        else
+            for (int k = offset; k < offset + length; k++) {
+                value = value * (1 + m + s * dist.nextDouble());
+                values[k] = value;
+            }
+        
+        lastValues[0] = value;
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleIncrements(double[], int, int)
+     */
+    @Override
+    public void nextDoubleIncrements(double [] increments, int offset, int length) {
+        
+        double lastValue = lastValues[0];
+        
+        nextDoubles(increments, offset, length);
+        
+        for (int k = offset; k < offset + length; k++) {
+            double value = increments[k];
+            
+            increments[k] = value - lastValue;
+            lastValue = value;
+        }
+    }
+    
+    /**
+     * Compute the next value of process {@code i} and make it the current value
+     */
+    private double next(int i) {
+        double nextValue;
+        
+        if (type == Type.ARITHMETIC)
+            nextValue = lastValues[i] + mu[i] + sigma[i] * distList[i].nextDouble();
+        else    // Type = GEOMETRIC
+            nextValue = lastValues[i] * (1 + mu[i] + sigma[i] * distList[i].nextDouble());
+        
+        lastValues[i] = nextValue;
+        
+        return nextValue;
     }
 }
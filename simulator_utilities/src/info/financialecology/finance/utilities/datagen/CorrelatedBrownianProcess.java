@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datagen;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.datagen.BrownianProcess.Type;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import cern.colt.list.DoubleArrayList;
+import cern.jet.random.Normal;
+
+/**
+ * This class generates a set of Brownian processes whose shocks are correlated:
+ *
+ *    S^k_i+1 = S^k_i + mu^k + sigma^k * z^k_i              (arithmetic)
+ *    S^k_i+1 = S^k_i * (1 + mu^k + sigma^k * z^k_i)        (geometric)
+ *
+ * where the vector z_i = L * e_i, e_i is a vector of independent N(0,1) draws and L is the
+ * Cholesky factor of the correlation matrix. As for the {@link BrownianProcess}, mu and sigma
+ * have to be normalised to the time step.
+ * <p>
+ * Each process is a scalar {@link DataGenerator} obtained with {@link #getProcess(int)}, so that
+ * the processes can be assigned to different assets, e.g. as exogenous price processes or
+ * fundamental value processes. The correlated shocks are generated in blocks and kept until all
+ * processes have used them. The processes therefore need to be consumed at roughly the same
+ * rate: a process that is never used keeps all shocks generated after its last use in memory.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class CorrelatedBrownianProcess implements Serializable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    private static final double TOLERANCE = 1E-9;   // tolerance for the symmetry and the unit diagonal of the correlation matrix
+
+    private Type type;                  // the type of the Brownian processes
+    private int numProcesses;           // the number of correlated processes
+    private int blockSize;              // number of shock vectors generated at once
+
+    private double [] cholesky;         // lower triangular Cholesky factor of the correlation matrix, packed by rows
+    private Normal normal;              // N(0,1) distribution to generate the independent draws e_i
+    private double [] draws;            // independent draws of one block, blockSize x numProcesses
+
+    private double [] shocks;           // correlated shocks z_i, one row of numProcesses values per time step
+    private int firstRow = 0;           // time step of the first row in 'shocks'
+    private int numRows = 0;            // number of rows in 'shocks'
+
+    private Process [] processes;       // the scalar processes, one for each dimension
+
+
+    /**
+     * Constructor for the correlated Brownian processes.
+     *
+     * @param name registration name for the random number generator
+     * @param type the type of the processes, ARITHMETIC or GEOMETRIC
+     * @param correlation the correlation matrix of the shocks; symmetric and positive definite, with a unit diagonal
+     * @param params the list of parameters in the following order: init, mu, sigma; one triple for each process
+     */
+    public CorrelatedBrownianProcess(String name, Type type, double [][] correlation, Double...params) {
+        this(name, type, correlation, DEFAULT_BLOCK_SIZE, params);
+    }
+
+    /**
+     * Constructor for the correlated Brownian processes.
+     *
+     * @param name registration name for the random number generator
+     * @param type the type of the processes, ARITHMETIC or GEOMETRIC
+     * @param correlation the correlation matrix of the shocks; symmetric and positive definite, with a unit diagonal
+     * @param blockSize the number of shock vectors generated at once
+     * @param params the list of parameters in the following order: init, mu, sigma; one triple for each process
+     */
+    public CorrelatedBrownianProcess(String name, Type type, double [][] correlation, int blockSize, Double...params) {
+
+        Assertion.assertStrict(params.length % 3 == 0, Assertion.Level.ERR, "Number of parameters provided to the constructor " +
+                "of the CorrelatedBrownianProcess class is " + params.length +
+                ", but it should be a multiple of 3 (initial value, mu, sigma)");
+        Assertion.assertStrict((type == Type.ARITHMETIC) || (type == Type.GEOMETRIC), Assertion.Level.ERR,
+                "Type for Brownian process has to be ARITHMETIC or GEOMETRIC");
+        Assertion.assertStrict(blockSize > 0, Assertion.Level.ERR, "The block size needs to be '> 0'");
+
+        this.type = type;
+        this.blockSize = blockSize;
+        this.numProcesses = params.length / 3;
+
+        Assertion.assertStrict(correlation.length == numProcesses, Assertion.Level.ERR, "The correlation matrix has " +
+                correlation.length + " rows, but there are " + numProcesses + " processes");
+
+        cholesky = factorise(correlation);
+        normal = RandomGeneratorPool.createNormalGenerator(name, 0, 1);
+        draws = new double[blockSize * numProcesses];
+        shocks = new double[blockSize * numProcesses];
+
+        processes = new Process[numProcesses];
+
+        for (int k = 0; k < numProcesses; k++)
+            processes[k] = new Process(k, params[3 * k], params[3 * k + 1], params[3 * k + 2]);
+    }
+
+    /**
+     * @param k the index of the process, in the order of the parameters and of the correlation matrix
+     * @return the scalar generator of process {@code k}
+     */
+    public DataGenerator getProcess(int k) {
+        return processes[k];
+    }
+
+    public int getNumProcesses() {
+        return numProcesses;
+    }
+
+    /**
+     * Compute the lower triangular Cholesky factor L of the correlation matrix C = L * L^T, packed
+     * by rows: element (i, j) with j <= i is stored at i * (i + 1) / 2 + j.
+     */
+    private static double [] factorise(double [][] correlation) {
+        int n = correlation.length;
+        double [] l = new double[n * (n + 1) / 2];
+
+        for (int i = 0; i < n; i++) {
+            Assertion.assertStrict(correlation[i].length == n, Assertion.Level.ERR, "The correlation matrix is not square");
+            Assertion.assertStrict(Math.abs(correlation[i][i] - 1) < TOLERANCE, Assertion.Level.ERR,
+                    "The diagonal element " + i + " of the correlation matrix is " + correlation[i][i] + ", but it should be 1");
+
+            int rowI = i * (i + 1) / 2;
+
+            for (int j = 0; j <= i; j++) {
+                Assertion.assertStrict(Math.abs(correlation[i][j] - correlation[j][i]) < TOLERANCE, Assertion.Level.ERR,
+                        "The correlation matrix is not symmetric in (" + i + ", " + j + ")");
+
+                int rowJ = j * (j + 1) / 2;
+                double sum = correlation[i][j];
+
+                for (int m = 0; m < j; m++)
+                    sum -= l[rowI + m] * l[rowJ + m];
+
+                if (j < i)
+                    l[rowI + j] = sum / l[rowJ + j];
+                else {
+                    Assertion.assertStrict(sum > 0, Assertion.Level.ERR, "The correlation matrix is not positive definite");
+                    l[rowI + i] = Math.sqrt(sum);
+                }
+            }
+        }
+
+        return l;
+    }
+
+    /**
+     * Append a block of correlated shock vectors, after dropping the rows that all processes have
+     * already used. The array of shocks only grows if the processes are consumed at different rates.
+     */
+    private void generateBlock() {
+        int n = numProcesses;
+        int minPosition = Integer.MAX_VALUE;
+
+        for (Process process : processes)
+            minPosition = Math.min(minPosition, process.position);
+
+        int numUsed = minPosition - firstRow;
+
+        if (numUsed > 0) {
+            System.arraycopy(shocks, numUsed * n, shocks, 0, (numRows - numUsed) * n);
+            firstRow += numUsed;
+            numRows -= numUsed;
+        }
+
+        if ((numRows + blockSize) * n > shocks.length)
+            shocks = Arrays.copyOf(shocks, (numRows + blockSize) * n);
+
+        for (int k = 0; k < draws.length; k++)
+            draws[k] = normal.nextDouble();
+
+        for (int r = 0; r < blockSize; r++) {    // z = L * e, for each row of the block
+            int e = r * n;
+            int z = (numRows + r) * n;
+
+            for (int i = 0; i < n; i++) {
+                int rowI = i * (i + 1) / 2;
+                double sum = 0;
+
+                for (int j = 0; j <= i; j++)
+                    sum += cholesky[rowI + j] * draws[e + j];
+
+                shocks[z + i] = sum;
+            }
+        }
+
+        numRows += blockSize;
+    }
+
+
+    /**
+     * One of the correlated processes. Reads its shocks from column {@code index} of the shared
+     * shock vectors.
+     */
+    private class Process implements DataGenerator {
+
+        private int index;              // the column of the process in the shock vectors
+        private double mu;              // drift
+        private double sigma;           // volatility
+        private double lastValue;       // current value
+        private int position = 0;       // time step of the next shock to be used
+
+        private Process(int index, double init, double mu, double sigma) {
+            this.index = index;
+            this.lastValue = init;
+            this.mu = mu;
+            this.sigma = sigma;
+        }
+
+        /**
+         * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDouble()
+         */
+        @Override
+        public double nextDouble() {
+            if (position == firstRow + numRows) generateBlock();
+
+            double z = shocks[(position - firstRow) * numProcesses + index];
+
+            position++;
+
+            if (type == Type.ARITHMETIC)
+                lastValue = lastValue + mu + sigma * z;
+            else    // Type = GEOMETRIC
+                lastValue = lastValue * (1 + mu + sigma * z);
+
+            return lastValue;
+        }
+
+        /**
+         * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleIncrement()
+         */
+        @Override
+        public double nextDoubleIncrement() {
+            double value = lastValue;
+
+            return nextDouble() - value;
+        }
+
+        /**
+         * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleVector()
+         */
+        @Override
+        public DoubleArrayList nextDoubleVector() {
+            return new DoubleArrayList(new double[] {nextDouble()});
+        }
+
+        /**
+         * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleVectorIncrements()
+         */
+        @Override
+        public DoubleArrayList nextDoubleVectorIncrements() {
+            return new DoubleArrayList(new double[] {nextDoubleIncrement()});
+        }
+
+        /**
+         * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubles(int)
+         */
+        @Override
+        public DoubleArrayList nextDoubles(int numDoubles) {
+            double [] values = new double[numDoubles];
+
+            nextDoubles(values, 0, numDoubles);
+
+            return new DoubleArrayList(values);
+        }
+
+        /**
+         * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubles(double[], int, int)
+         */
+        @Override
+        public void nextDoubles(double [] values, int offset, int length) {
+            int n = numProcesses;
+            double value = lastValue;
+            int k = offset;
+            int end = offset + length;
+
+            while (k < end) {
+                if (position == firstRow + numRows) generateBlock();
+
+                int available = Math.min(firstRow + numRows - position, end - k);
+                int s = (position - firstRow) * n + index;
+
+                if (type == Type.ARITHMETIC)
+                    for (int m = 0; m < available; m++, s += n) {
+                        value = value + mu + sigma * shocks[s];
+                        values[k++] = value;
+                    }
+                else
+                    for (int m = 0; m < available; m++, s += n) {
+                        value = value * (1 + mu + sigma * shocks[s]);
+                        values[k++] = value;
+                    }
+
+                position += available;
+            }
+
+            lastValue = value;
+        }
+
+        /**
+         * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleIncrements(double[], int, int)
+         */
+        @Override
+        public void nextDoubleIncrements(double [] increments, int offset, int length) {
+            double value = lastValue;
+
+            nextDoubles(increments, offset, length);
+
+            for (int k = offset; k < offset + length; k++) {
+                double nextValue = increments[k];
+
+                increments[k] = nextValue - value;
+                value = nextValue;
+            }
+        }
+    }
+}
@@ -14,11 +14,13 @@ package info.financialecology.finance.utilities.datagen;
 
 import cern.colt.list.DoubleArrayList;
 
+import java.io.Serializable;
+
 /**
  * @author Gilbert Peffer
  *
  */
-public interface DataGenerator {
+public interface DataGenerator extends Serializable {
     
     /**
      * Get the next value in the data stream
@@ -31,4 +33,24 @@ public interface DataGenerator {
     DoubleArrayList nextDoubles(int numDoubles);
     DoubleArrayList nextDoubleVector();
     DoubleArrayList nextDoubleVectorIncrements();
+    
+    /**
+     * Fill a block of an array with the next values in the data stream. The values are the
+     * same as those returned by {@code length} consecutive calls to {@link #nextDouble()}.
+     * 
+     * @param values the array to be filled
+     * @param offset the index of the first element of the block
+     * @param length the number of values to generate
+     */
+    void nextDoubles(double [] values, int offset, int length);
+    
+    /**
+     * Fill a block of an array with the next increments in the data stream. The increments are 
+     * the same as those returned by {@code length} consecutive calls to {@link #nextDoubleIncrement()}.
+     * 
+     * @param increments the array to be filled
+     * @param offset the index of the first element of the block
+     * @param length the number of increments to generate
+     */
+    void nextDoubleIncrements(double [] increments, int offset, int length);
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datagen;
+
+import info.financialecology.finance.utilities.Assertion;
+
+import java.io.Serializable;
+
+/**
+ * Reads the values or the increments of a scalar {@link DataGenerator} one at a time, but
+ * draws them from the generator in blocks using {@link DataGenerator#nextDoubles(double[], int, int)}
+ * or {@link DataGenerator#nextDoubleIncrements(double[], int, int)}.
+ * <p>
+ * The values are the same as those obtained by calling the generator directly, as long as
+ * the generator is not used elsewhere while it is buffered. Values drawn ahead of time and
+ * not used are discarded.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class DataGeneratorBuffer implements Serializable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    private final DataGenerator generator;
+    private final boolean increments;   // true if the buffer holds increments rather than values
+    private final double [] block;
+    private int next;                   // index of the next value in the block
+
+    /**
+     * @param generator a scalar data generator
+     * @param increments true to read increments, false to read values
+     */
+    public DataGeneratorBuffer(DataGenerator generator, boolean increments) {
+        this(generator, increments, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param generator a scalar data generator
+     * @param increments true to read increments, false to read values
+     * @param blockSize the number of values drawn from the generator at once
+     */
+    public DataGeneratorBuffer(DataGenerator generator, boolean increments, int blockSize) {
+        Assertion.assertOrKill(blockSize > 0, "The block size needs to be '> 0'");
+
+        this.generator = generator;
+        this.increments = increments;
+        this.block = new double[blockSize];
+        this.next = blockSize;
+    }
+
+    /**
+     * @return the next value or increment of the generator
+     */
+    public double next() {
+        if (next == block.length) {
+            if (increments)
+                generator.nextDoubleIncrements(block, 0, block.length);
+            else
+                generator.nextDoubles(block, 0, block.length);
+
+            next = 0;
+        }
+
+        return block[next++];
+    }
+
+    /**
+     * @return the buffered generator
+     */
+    public DataGenerator getGenerator() {
+        return generator;
+    }
+}
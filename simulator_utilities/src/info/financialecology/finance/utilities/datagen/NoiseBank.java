@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datagen;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Logger;
+
+import cern.colt.list.DoubleArrayList;
+
+/**
+ * A bank of common random numbers: the first {@code length} values (or increments) of scalar
+ * data generators, drawn once and replayed by every run that asks for them. Runs that differ only
+ * in their parameters then see identical noise, e.g. the same exogenous price and fundamental
+ * value paths, and do not have to draw it again:
+ * <pre>
+ *    NoiseBank bank = new NoiseBank(new File("noise/seed_" + seed), nTicks);
+ *    ...
+ *    simulator.setExogeneousPriceProcess(secId, bank.replay("Price_" + secId, prices, true));
+ * </pre>
+ * A stream is materialised the first time its key is requested, from the generator passed along,
+ * and later requests for the same key ignore the values of their generator. The generators passed
+ * for a key therefore need to be the same process, e.g. created with the same name from the same
+ * seed (see {@link RandomGeneratorPool}). A generator replays its stream from the beginning; past
+ * the end of the bank, it continues with the values of its own generator, so the replayed series
+ * is the series of the generator whatever the length of the bank.
+ * <p>
+ * The streams are held in memory, or, if the bank has a directory, in one file per stream that is
+ * memory-mapped by the runs. Files that are in the directory already are used instead of drawing
+ * the values again, so a directory must only be used for generators with the same seed.
+ * <p>
+ * The bank can be shared by runs in different threads. The replaying generators are not
+ * thread-safe, as any other generator.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class NoiseBank {
+
+    private static final Logger logger = (Logger)LoggerFactory.getLogger(NoiseBank.class.getSimpleName());
+
+    private static final String VALUES_SUFFIX = ".values";
+    private static final String INCREMENTS_SUFFIX = ".increments";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final int length;                   // number of values of each stream
+    private final File directory;               // directory of the stream files, or null if the streams are in memory
+    private final HashMap<String, Stream> streams = new HashMap<String, Stream>();    // the materialised streams, by key and suffix
+
+    /**
+     * A bank that holds its streams in memory
+     *
+     * @param length the number of values of each stream
+     */
+    public NoiseBank(int length) {
+        this(null, length);
+    }
+
+    /**
+     * A bank that keeps its streams in files in {@code directory}, created if it does not exist
+     *
+     * @param directory the directory of the stream files, or null to hold the streams in memory
+     * @param length the number of values of each stream
+     */
+    public NoiseBank(File directory, int length) {
+        Assertion.assertStrict(length > 0, Level.ERR, "The length of the streams of the noise bank needs to be '> 0'");
+
+        this.length = length;
+        this.directory = directory;
+
+        if (directory != null)
+            directory.mkdirs();
+    }
+
+    /**
+     * Get a generator that replays the stream {@code key}, drawing it from {@code source} if it is not
+     * in the bank yet. The generator reads values with {@link DataGenerator#nextDouble()} and
+     * {@link DataGenerator#nextDoubles(double[], int, int)}, or increments with the corresponding
+     * methods, as does a {@link DataGeneratorBuffer}.
+     *
+     * @param key the key of the stream, made of letters, digits and '_', '-' or '.'
+     * @param source the scalar generator of the stream. Not to be used elsewhere.
+     * @param increments true to replay increments, false to replay values
+     * @return the replaying generator
+     */
+    public synchronized DataGenerator replay(String key, DataGenerator source, boolean increments) {
+        Assertion.assertStrict(key.matches("[A-Za-z0-9_.-]+"), Level.ERR, "The key '" + key + "' of the noise bank " +
+                "can only contain letters, digits and '_', '-' or '.'");
+
+        String name = key + (increments ? INCREMENTS_SUFFIX : VALUES_SUFFIX);
+        Stream stream = streams.get(name);
+        int sourcePosition = 0;
+
+        if (stream == null) {
+            File file = (directory == null) ? null : new File(directory, name);
+
+            if ((file != null) && (file.length() >= 8L * length)) {
+                logger.debug("Noise bank: reading stream '{}' from '{}'", name, file);
+                stream = new Stream(file, length);
+            }
+            else {
+                double [] values = new double[length];
+
+                if (increments)
+                    source.nextDoubleIncrements(values, 0, length);
+                else
+                    source.nextDoubles(values, 0, length);
+
+                sourcePosition = length;
+                stream = (file == null) ? new Stream(values) : new Stream(write(file, values), length);
+            }
+
+            streams.put(name, stream);
+        }
+
+        return new Replay(stream, source, sourcePosition, increments);
+    }
+
+    /**
+     * @return the number of values of each stream
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the number of streams that have been requested
+     */
+    public synchronized int getNumStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Write the values to a temporary file and rename it, so that the file is complete if it exists
+     */
+    private static File write(File file, double [] values) {
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+            for (double value : values)
+                out.writeDouble(value);     // big-endian, the default order of the mapped buffers
+
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write the noise bank file '" + tmpFile + "'", e);
+        }
+
+        if (!tmpFile.renameTo(file))
+            throw new RuntimeException("Cannot rename '" + tmpFile + "' to '" + file + "'");
+
+        return file;
+    }
+
+
+    /**
+     * A materialised stream, held in memory or mapped from a file
+     */
+    @SuppressWarnings("serial")
+    private static class Stream implements Serializable {
+
+        private final double [] memory;         // the values, or null if they are in a file
+        private final File file;
+        private final int length;
+        private transient DoubleBuffer values;  // read-only view of the values, mapped again when deserialised
+
+        private Stream(double [] values) {
+            this.memory = values;
+            this.file = null;
+            this.length = values.length;
+            this.values = DoubleBuffer.wrap(values).asReadOnlyBuffer();
+        }
+
+        private Stream(File file, int length) {
+            this.memory = null;
+            this.file = file;
+            this.length = length;
+            this.values = map(file, length);
+        }
+
+        private static DoubleBuffer map(File file, int length) {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+                try {
+                    return raf.getChannel().map(MapMode.READ_ONLY, 0, 8L * length).asDoubleBuffer();
+                } finally {
+                    raf.close();    // the mapping remains valid
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot map the noise bank file '" + file + "'", e);
+            }
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            values = (file == null) ? DoubleBuffer.wrap(memory).asReadOnlyBuffer() : map(file, length);
+        }
+    }
+
+
+    /**
+     * Replays a stream of the bank, and continues with its own generator past the end of the stream
+     */
+    @SuppressWarnings("serial")
+    private static class Replay implements DataGenerator {
+
+        private final Stream stream;
+        private final DataGenerator source;
+        private final boolean increments;
+        private int position = 0;               // index of the next value of the stream
+        private int sourcePosition;             // number of values drawn from the source so far
+        private transient DoubleBuffer values;  // this generator's own view of the stream
+
+        private Replay(Stream stream, DataGenerator source, int sourcePosition, boolean increments) {
+            this.stream = stream;
+            this.source = source;
+            this.sourcePosition = sourcePosition;
+            this.increments = increments;
+        }
+
+        public double nextDouble() {
+            checkMode(false);
+
+            return next();
+        }
+
+        public double nextDoubleIncrement() {
+            checkMode(true);
+
+            return next();
+        }
+
+        public DoubleArrayList nextDoubles(int numDoubles) {
+            double [] values = new double[numDoubles];
+
+            nextDoubles(values, 0, numDoubles);
+
+            return new DoubleArrayList(values);
+        }
+
+        public DoubleArrayList nextDoubleVector() {
+            Assertion.assertStrict(false, Level.ERR, "A generator of the noise bank replays a single stream");
+
+            return null;
+        }
+
+        public DoubleArrayList nextDoubleVectorIncrements() {
+            Assertion.assertStrict(false, Level.ERR, "A generator of the noise bank replays a single stream");
+
+            return null;
+        }
+
+        public void nextDoubles(double [] values, int offset, int length) {
+            checkMode(false);
+            next(values, offset, length);
+        }
+
+        public void nextDoubleIncrements(double [] increments, int offset, int length) {
+            checkMode(true);
+            next(increments, offset, length);
+        }
+
+        private double next() {
+            if (position < stream.length)
+                return view().get(position++);
+
+            double [] value = new double[1];
+
+            next(value, 0, 1);
+
+            return value[0];
+        }
+
+        private void next(double [] values, int offset, int length) {
+            int fromStream = Math.max(0, Math.min(length, stream.length - position));
+
+            if (fromStream > 0) {
+                DoubleBuffer view = view();
+
+                view.position(position);
+                view.get(values, offset, fromStream);
+                position += fromStream;
+            }
+
+            if (length > fromStream) {
+                skipSource();
+                draw(values, offset + fromStream, length - fromStream);
+                position += length - fromStream;
+                sourcePosition = position;
+            }
+        }
+
+        /**
+         * Advance the source to the end of the stream, the first time the stream runs out
+         */
+        private void skipSource() {
+            if (sourcePosition >= stream.length) return;
+
+            double [] skipped = new double[Math.min(stream.length - sourcePosition, DataGeneratorBuffer.DEFAULT_BLOCK_SIZE)];
+
+            while (sourcePosition < stream.length) {
+                int n = Math.min(skipped.length, stream.length - sourcePosition);
+
+                draw(skipped, 0, n);
+                sourcePosition += n;
+            }
+        }
+
+        private void draw(double [] values, int offset, int length) {
+            if (increments)
+                source.nextDoubleIncrements(values, offset, length);
+            else
+                source.nextDoubles(values, offset, length);
+        }
+
+        private DoubleBuffer view() {
+            if (values == null)
+                values = stream.values.duplicate();
+
+            return values;
+        }
+
+        private void checkMode(boolean readsIncrements) {
+            if (readsIncrements != increments)
+                Assertion.assertStrict(false, Level.ERR, "The generator replays the " + (increments ? "increments" : "values") +
+                        " of its stream, not the " + (increments ? "values" : "increments"));
+        }
+    }
+}
@@ -24,8 +24,6 @@ import info.financialecology.finance.utilities.datagen.SinusDataGenerator;
 import info.financialecology.finance.utilities.datagen.SteppedDataGenerator;
 import info.financialecology.finance.utilities.Assertion;
 
-import java.util.ArrayList;
-
 import cern.colt.list.DoubleArrayList;
 
 
@@ -41,16 +39,16 @@ import cern.colt.list.DoubleArrayList;
  * @author Barbara Llacay, Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class OverlayDataGenerator implements DataGenerator {
 	
-	private ArrayList<DataGenerator> detList = new ArrayList<DataGenerator>();
-	private ArrayList<DataGenerator> distList = new ArrayList<DataGenerator>();
-    private ArrayList<GeneratorType> detTypes = new ArrayList<GeneratorType>();
-    private ArrayList<GeneratorType> distTypes = new ArrayList<GeneratorType>();
+	private DataGenerator [] detList;      // deterministic generators, one for each stream
+	private DataGenerator [] distList;     // random generators, one for each stream
+    private GeneratorType distType;        // type of the random generators
 	
-	private DoubleArrayList params = new DoubleArrayList();	
-    private DoubleArrayList initialValues = new DoubleArrayList(); // initial values need to substracted from Brownian processes
-    private DoubleArrayList lastValues = new DoubleArrayList();    // stores the last values of the process, to compute the first difference
+    private double [] initialValues;       // initial values need to substracted from Brownian processes
+    private double [] lastValues;          // stores the last values of the process, to compute the first difference
+    private double [] block = new double[0];   // buffer for the random values when filling blocks
 	
 	private boolean firstValue = true;     // false if the generator has already returned data
 	private int numStreams;                // the number of data streams of this generator
@@ -87,14 +85,16 @@ public class OverlayDataGenerator implements DataGenerator {
         		"of the OverlayDataGenerator class is " + paramList.length + 
         		", but it should be a multiple of 6 (1 for the initial value, 3 for the sinus or stepped function + 2 for the uniform or normal distribution");
 
-        for(Double item : paramList) {
-            params.add(item);
-        }
-                               
         /**
          * Setup of generators
          */        
-        numStreams = (int) Math.floor(0.1 + params.size() / 6);    // number of dimensions - a fix to avoid inaccuracy of division
+        numStreams = (int) Math.floor(0.1 + paramList.length / 6);    // number of dimensions - a fix to avoid inaccuracy of division
+        
+        this.distType = distType;
+        detList = new DataGenerator[numStreams];
+        distList = new DataGenerator[numStreams];
+        initialValues = new double[numStreams];
+        lastValues = new double[numStreams];
         
         for (int i = 0; i < numStreams; i++) {
         	String name = baseName;
@@ -113,43 +113,28 @@ public class OverlayDataGenerator implements DataGenerator {
             
             if (numStreams > 1) name += "_" + i;
             
-            initialValues.add(params.get(iParam_1));
-            lastValues.add(params.get(iParam_1));   // the first 'last value' is equal to the initial value
+            initialValues[i] = paramList[iParam_1];
+            lastValues[i] = paramList[iParam_1];   // the first 'last value' is equal to the initial value
             
             // Deterministic generator
-            if (detType == GeneratorType.SINUS) {
-            	SinusDataGenerator sinus = new SinusDataGenerator(params.get(iParam_1), params.get(iParam_2), params.get(iParam_3), params.get(iParam_4));            	
-            	detList.add(sinus);
-            	detTypes.add(GeneratorType.SINUS);
-            }
-            else if (detType == GeneratorType.STEP) {
-            	SteppedDataGenerator stepped = new SteppedDataGenerator(params.get(iParam_1), params.get(iParam_2), params.get(iParam_3), params.get(iParam_4));
-            	detList.add(stepped);
-                detTypes.add(GeneratorType.STEP);
-            }
-            else
-                Assertion.assertOrKill(false, "Deterministic generator '" + detType.toString() + "' does not exist");
+            detList[i] = createDeterministic(detType, paramList[iParam_1], paramList[iParam_2], paramList[iParam_3], paramList[iParam_4]);
             
             // Random generator
             if (distType == GeneratorType.UNIFORM) {
-            	RandomDistDataGenerator uniform = new RandomDistDataGenerator(name, DistributionType.UNIFORM, params.get(iParam_5), params.get(iParam_6));
-            	distList.add(uniform);                        
-                distTypes.add(GeneratorType.UNIFORM);
+            	RandomDistDataGenerator uniform = new RandomDistDataGenerator(name, DistributionType.UNIFORM, paramList[iParam_5], paramList[iParam_6]);
+            	distList[i] = uniform;                        
             }
             else if (distType == GeneratorType.NORMAL) {
-                RandomDistDataGenerator normal = new RandomDistDataGenerator(name, DistributionType.NORMAL, params.get(iParam_5), params.get(iParam_6));
-                distList.add(normal);
-                distTypes.add(GeneratorType.NORMAL);
+                RandomDistDataGenerator normal = new RandomDistDataGenerator(name, DistributionType.NORMAL, paramList[iParam_5], paramList[iParam_6]);
+                distList[i] = normal;
             }
             else if (distType == GeneratorType.ARITHMETIC_BROWNIAN_PROCESS) {   // TODO This is not really a distribution type. There should be a process type, though unclear where it should live
-                BrownianProcess brownian = new BrownianProcess(name, Type.ARITHMETIC, params.get(iParam_1), params.get(iParam_5), params.get(iParam_6));
-                distList.add(brownian);
-                distTypes.add(GeneratorType.ARITHMETIC_BROWNIAN_PROCESS);
+                BrownianProcess brownian = new BrownianProcess(name, Type.ARITHMETIC, paramList[iParam_1], paramList[iParam_5], paramList[iParam_6]);
+                distList[i] = brownian;
             }
             else if (distType == GeneratorType.GEOMETRIC_BROWNIAN_PROCESS) {   // TODO This is not really a distribution type. There should be a process type, though unclear where it should live
-                BrownianProcess brownian = new BrownianProcess(name, Type.GEOMETRIC, params.get(iParam_1), params.get(iParam_5), params.get(iParam_6));
-                distList.add(brownian);
-                distTypes.add(GeneratorType.GEOMETRIC_BROWNIAN_PROCESS);
+                BrownianProcess brownian = new BrownianProcess(name, Type.GEOMETRIC, paramList[iParam_1], paramList[iParam_5], paramList[iParam_6]);
+                distList[i] = brownian;
             }
             else
                 Assertion.assertOrKill(false, "Distribution or process '" + distType.toString() + "' does not exist");
@@ -157,6 +142,47 @@ public class OverlayDataGenerator implements DataGenerator {
     }
 
 
+    /**
+     * Constructor for an overlay data generator with a single stream, whose random generator is provided
+     * by the caller, e.g. one of the processes of a {@link CorrelatedBrownianProcess}. A Brownian process 
+     * has to start at the initial value, as in the other constructor.
+     * 
+     * @param detType Type of the deterministic generator: Sinus or Stepped
+     * @param distType Type of the random generator: Uniform, Normal or one of the Brownian processes
+     * @param random The random generator; not used elsewhere
+     * @param paramList List of parameters for the deterministic generator (1 for the initial value, 3 for the sinus or stepped function)
+     */
+    public OverlayDataGenerator(GeneratorType detType, GeneratorType distType, DataGenerator random, Double...paramList) {
+        super();
+        
+        Assertion.assertStrict(paramList.length == 4, Assertion.Level.ERR, "Number of parameters provided to the constructor " +
+                "of the OverlayDataGenerator class is " + paramList.length + 
+                ", but it should be 4 (1 for the initial value, 3 for the sinus or stepped function)");
+        
+        numStreams = 1;
+        
+        this.distType = distType;
+        detList = new DataGenerator[] {createDeterministic(detType, paramList[0], paramList[1], paramList[2], paramList[3])};
+        distList = new DataGenerator[] {random};
+        initialValues = new double[] {paramList[0]};
+        lastValues = new double[] {paramList[0]};
+    }
+    
+    /**
+     * Create the sinus or stepped generator of a stream
+     */
+    private static DataGenerator createDeterministic(GeneratorType detType, Double initialValue, Double param_2, Double param_3, Double param_4) {
+        if (detType == GeneratorType.SINUS)
+            return new SinusDataGenerator(initialValue, param_2, param_3, param_4);
+        else if (detType == GeneratorType.STEP)
+            return new SteppedDataGenerator(initialValue, param_2, param_3, param_4);
+        
+        Assertion.assertOrKill(false, "Deterministic generator '" + detType.toString() + "' does not exist");
+        
+        return null;
+    }
+
+
     /**
      * Get the number of data streams of this generator
      * 
@@ -180,19 +206,14 @@ public class OverlayDataGenerator implements DataGenerator {
         
         Assertion.assertStrict(numStreams == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
         
-        double nextValue = detList.get(0).nextDouble();
+        double nextValue = detList[0].nextDouble();
         
         if (!firstValue)
-            if ((distTypes.get(0) == GeneratorType.UNIFORM) || (distTypes.get(0) == GeneratorType.NORMAL))
-                nextValue += distList.get(0).nextDouble();
-            else if ((distTypes.get(0) == GeneratorType.ARITHMETIC_BROWNIAN_PROCESS) || (distTypes.get(0) == GeneratorType.GEOMETRIC_BROWNIAN_PROCESS))
-                nextValue += distList.get(0).nextDouble() - initialValues.get(0);
-            else
-                Assertion.assertOrKill(false, "Unknown generator type '" + distTypes.get(0).toString());
+            nextValue += randomComponent(0, distList[0].nextDouble());
         else
             firstValue = false;
                 
-        lastValues.set(0, nextValue);
+        lastValues[0] = nextValue;
 
         return nextValue;      
     }
@@ -210,7 +231,7 @@ public class OverlayDataGenerator implements DataGenerator {
         
         if (firstValue) nextDouble();   // create a first data point if no values have been generated yet; nextDouble() stores this in lastValues
         
-        double lastValue = lastValues.get(0);        
+        double lastValue = lastValues[0];        
         double nextValue = this.nextDouble();   // note that lastValues is updated already in the method nextDouble()
         double increment =  nextValue - lastValue;
         
@@ -228,35 +249,20 @@ public class OverlayDataGenerator implements DataGenerator {
     @Override
     public DoubleArrayList nextDoubleVector() {
         
-    	DoubleArrayList nextValues = new DoubleArrayList();
+    	double [] nextValues = new double[numStreams];
     	
-    	// Get the base value(s) from the deterministic generator(s)
-        for (int i = 0; i < numStreams; i++)
-            nextValues.add(detList.get(i).nextDouble());
-        
-        double nextValue;
-        
-        // Add the UNIFORM / NORMAL value (s) or the increment of the BROWNIAN value(s) to the base value(s)
-        if (!firstValue && ((distTypes.get(0) == GeneratorType.UNIFORM) || (distTypes.get(0) == GeneratorType.NORMAL))) {
+        for (int i = 0; i < numStreams; i++) {
+            nextValues[i] = detList[i].nextDouble();    // the base value from the deterministic generator
             
-            for (int i = 0; i < numStreams; i++) {
-                nextValue = nextValues.get(i);
-                nextValue += distList.get(i).nextDouble();
-                lastValues.set(i, nextValue);
-                nextValues.set(i, nextValue);
-            }
-        }
-        else if (!firstValue && ((distTypes.get(0) == GeneratorType.ARITHMETIC_BROWNIAN_PROCESS) || (distTypes.get(0) == GeneratorType.GEOMETRIC_BROWNIAN_PROCESS))) {
-
-            for (int i = 0; i < numStreams; i++) {
-                nextValue = nextValues.get(i);
-                nextValue += distList.get(i).nextDouble() - initialValues.get(i);
-                lastValues.set(i, nextValue);
-                nextValues.set(i, nextValue);
-            }            
+            if (!firstValue)    // add the UNIFORM / NORMAL value or the increment of the BROWNIAN value to the base value
+                nextValues[i] += randomComponent(i, distList[i].nextDouble());
+            
+            lastValues[i] = nextValues[i];
         }
+        
+        firstValue = false;
             	
-        return nextValues;
+        return new DoubleArrayList(nextValues);
     }    
     
     /**
@@ -269,18 +275,16 @@ public class OverlayDataGenerator implements DataGenerator {
     	
         if (firstValue) nextDoubleVector();   // create a first data vector if no values have been generated yet; nextDoubleVector() stores this in lastValues
         
-    	DoubleArrayList increments = new DoubleArrayList();
-    	DoubleArrayList lastValue = new DoubleArrayList();
+    	double [] increments = new double[numStreams];
 
-    	for (int i = 0; i < numStreams; i++)   // store the last values before nextDoubleVector() overrides them with the new values
-            lastValue.add(lastValues.get(i));
-        
-        DoubleArrayList nextValues = this.nextDoubleVector();   // note that lastValues is updated already in the method nextDouble()
-    	
-    	for (int i = 0; i < numStreams; i++)
-            increments.add(nextValues.get(i) - lastValue.get(i));
+    	for (int i = 0; i < numStreams; i++) {
+    	    double nextValue = detList[i].nextDouble() + randomComponent(i, distList[i].nextDouble());
+    	    
+            increments[i] = nextValue - lastValues[i];
+            lastValues[i] = nextValue;
+    	}
     	
-        return increments;        
+        return new DoubleArrayList(increments);        
     }    
     
     /**
@@ -288,11 +292,81 @@ public class OverlayDataGenerator implements DataGenerator {
      */
     @Override
     public DoubleArrayList nextDoubles(int numDoubles) {
-        DoubleArrayList dal = new DoubleArrayList();
+        double [] values = new double[numDoubles];
         
-        for (int i = 0; i < numDoubles; i++)
-            dal.add(nextDouble());
+        nextDoubles(values, 0, numDoubles);
         
-        return dal;
+        return new DoubleArrayList(values);
+    }
+    
+    /**
+     * Fill a block with the next values, drawing the deterministic and the random components 
+     * of the whole block from their generators at once.
+     * 
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubles(double[], int, int)
+     */
+    @Override
+    public void nextDoubles(double [] values, int offset, int length) {
+        
+        Assertion.assertStrict(numStreams == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
+        
+        if (length <= 0) return;
+        
+        detList[0].nextDoubles(values, offset, length);
+        
+        int start = offset;
+        
+        if (firstValue) {   // the first value has no random component
+            firstValue = false;
+            start++;
+        }
+        
+        int numRandom = offset + length - start;
+        
+        if (block.length < numRandom)
+            block = new double[numRandom];
+        
+        distList[0].nextDoubles(block, 0, numRandom);
+        
+        if (isBrownian())
+            for (int k = 0; k < numRandom; k++)
+                values[start + k] += block[k] - initialValues[0];
+        else
+            for (int k = 0; k < numRandom; k++)
+                values[start + k] += block[k];
+        
+        lastValues[0] = values[offset + length - 1];
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleIncrements(double[], int, int)
+     */
+    @Override
+    public void nextDoubleIncrements(double [] increments, int offset, int length) {
+        
+        if (firstValue) nextDouble();   // create a first data point if no values have been generated yet
+        
+        double lastValue = lastValues[0];
+        
+        nextDoubles(increments, offset, length);
+        
+        for (int k = offset; k < offset + length; k++) {
+            double value = increments[k];
+            
+            increments[k] = value - lastValue;
+            lastValue = value;
+        }
+    }
+    
+    /**
+     * The random component of stream {@code i} given the value of its random generator. For the
+     * Brownian processes, which start at the initial value, this is the change since the start.
+     */
+    private double randomComponent(int i, double randomValue) {
+        return isBrownian() ? randomValue - initialValues[i] : randomValue;
+    }
+    
+    private boolean isBrownian() {
+        return (distType == GeneratorType.ARITHMETIC_BROWNIAN_PROCESS) || (distType == GeneratorType.GEOMETRIC_BROWNIAN_PROCESS);
     }
 }
@@ -20,23 +20,22 @@ import java.util.ArrayList;
 
 import cern.colt.list.DoubleArrayList;
 import cern.jet.random.AbstractDistribution;
-import cern.jet.random.Normal;
-import cern.jet.random.Uniform;
 
 /**
  * This data generator creates one or several independent streams of random 
  * numbers drawn from given distributions. The streams are created by the 
- * class RandomGeneratorPool using non-repeated seeds provided by class 
- * RandomSeedTable. The data generator can create both scalar and vector 
- * random values.
+ * class RandomGeneratorPool, which derives them from the seed of the pool 
+ * and the names of the generators. The data generator can create both 
+ * scalar and vector random values.
  *  
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class RandomDistDataGenerator implements DataGenerator {
 
-    private ArrayList<AbstractDistribution> distList = new ArrayList<AbstractDistribution>();
-    private ArrayList<Double> lastValues;
+    private AbstractDistribution [] distList;   // the distributions, one for each stream
+    private double [] lastValues;               // the last value drawn in each stream
 
     /**
      * Constructor for the scalar random data generator.
@@ -46,24 +45,15 @@ public class RandomDistDataGenerator implements DataGenerator {
     public RandomDistDataGenerator(String name, DistributionType distType, Double...params) {
         super();
         
-        lastValues = new ArrayList<Double>();
+        ArrayList<? extends AbstractDistribution> dists = new ArrayList<AbstractDistribution>();
 
-        if (distType == DistributionType.UNIFORM) {
-            ArrayList<Uniform> uniformList = RandomGeneratorPool.createUniformMultiGenerator(name, params);
-            
-            for (Uniform uniform : uniformList) {
-                distList.add(uniform);
-                lastValues.add(0.0);
-            }            
-        }
-        else if (distType == DistributionType.NORMAL) {
-            ArrayList<Normal> normalList = RandomGeneratorPool.createNormalMultiGenerator(name, params);
-            
-            for (Normal normal : normalList) {
-                distList.add(normal);
-                lastValues.add(0.0);
-            }            
-        }
+        if (distType == DistributionType.UNIFORM)
+            dists = RandomGeneratorPool.createUniformMultiGenerator(name, params);
+        else if (distType == DistributionType.NORMAL)
+            dists = RandomGeneratorPool.createNormalMultiGenerator(name, params);
+        
+        distList = dists.toArray(new AbstractDistribution[dists.size()]);
+        lastValues = new double[distList.length];
     }
 
     /**
@@ -72,11 +62,10 @@ public class RandomDistDataGenerator implements DataGenerator {
     @Override
     public double nextDouble() {
         
-        Assertion.assertStrict(distList.size() == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
-        AbstractDistribution dist = distList.get(0);
+        Assertion.assertStrict(distList.length == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
         
-        double nextValue = dist.nextDouble();
-        lastValues.add(0, nextValue);
+        double nextValue = distList[0].nextDouble();
+        lastValues[0] = nextValue;
         
         return nextValue;
     }
@@ -87,12 +76,11 @@ public class RandomDistDataGenerator implements DataGenerator {
     @Override
     public double nextDoubleIncrement() {
 
-        Assertion.assertStrict(distList.size() == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
-        AbstractDistribution dist = distList.get(0);
+        Assertion.assertStrict(distList.length == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
         
-        double nextDouble = dist.nextDouble();
-        double increment =  nextDouble - lastValues.get(0);
-        lastValues.add(0, nextDouble);
+        double nextDouble = distList[0].nextDouble();
+        double increment =  nextDouble - lastValues[0];
+        lastValues[0] = nextDouble;
         
         return increment;
     }
@@ -103,17 +91,14 @@ public class RandomDistDataGenerator implements DataGenerator {
     @Override
     public DoubleArrayList nextDoubleVector() {
         
-        DoubleArrayList nextValues = new DoubleArrayList();
+        double [] nextValues = new double[distList.length];
         
-        for (AbstractDistribution dist : distList) {
-            nextValues.add(dist.nextDouble());
+        for (int i = 0; i < distList.length; i++) {
+            nextValues[i] = distList[i].nextDouble();
+            lastValues[i] = nextValues[i];
         }
         
-        for (int i = 0; i < distList.size(); i++) {   // Update the lastValues for the next iteration
-    		lastValues.add(i, nextValues.get(i));
-    	}
-        
-        return nextValues;
+        return new DoubleArrayList(nextValues);
     }
     
     /**
@@ -122,21 +107,15 @@ public class RandomDistDataGenerator implements DataGenerator {
     @Override
     public DoubleArrayList nextDoubleVectorIncrements() {
     	
-    	DoubleArrayList nextValues = new DoubleArrayList();
-    	DoubleArrayList increments = new DoubleArrayList();
+        double [] increments = new double[distList.length];
     	
-    	for (int i = 0; i < distList.size(); i++) {
-    		
-    		double value = distList.get(i).nextDouble(); 
-            nextValues.add(value);
-            increments.add(value - lastValues.get(i));
+    	for (int i = 0; i < distList.length; i++) {
+    		double value = distList[i].nextDouble(); 
+            increments[i] = value - lastValues[i];
+            lastValues[i] = value;
         }
-    	    	
-    	for (int i = 0; i < distList.size(); i++) {   // Update the lastValues for the next iteration
-    		lastValues.add(i, nextValues.get(i));
-    	}
     	
-        return increments;        
+        return new DoubleArrayList(increments);        
     }
 
     /**
@@ -144,11 +123,44 @@ public class RandomDistDataGenerator implements DataGenerator {
      */
     @Override
     public DoubleArrayList nextDoubles(int numDoubles) {
-        DoubleArrayList dal = new DoubleArrayList();
+        double [] values = new double[numDoubles];
+        
+        nextDoubles(values, 0, numDoubles);
+        
+        return new DoubleArrayList(values);
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubles(double[], int, int)
+     */
+    @Override
+    public void nextDoubles(double [] values, int offset, int length) {
         
-        for (int i = 0; i < numDoubles; i++)
-            dal.add(nextDouble());
+        Assertion.assertStrict(distList.length == 1, Assertion.Level.ERR, "Asked for a scalar value, but data generator creates vector values");
         
-        return dal;
+        AbstractDistribution dist = distList[0];
+        
+        for (int k = offset; k < offset + length; k++)
+            values[k] = dist.nextDouble();
+        
+        if (length > 0) lastValues[0] = values[offset + length - 1];
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleIncrements(double[], int, int)
+     */
+    @Override
+    public void nextDoubleIncrements(double [] increments, int offset, int length) {
+        
+        double lastValue = lastValues[0];
+        
+        nextDoubles(increments, offset, length);
+        
+        for (int k = offset; k < offset + length; k++) {
+            double value = increments[k];
+            
+            increments[k] = value - lastValue;
+            lastValue = value;
+        }
     }
 }
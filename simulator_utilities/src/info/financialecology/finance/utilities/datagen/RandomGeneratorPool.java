@@ -16,24 +16,45 @@
 package info.financialecology.finance.utilities.datagen;
 import info.financialecology.finance.utilities.Assertion;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import cern.jet.random.Normal;
 import cern.jet.random.Uniform;
 import cern.jet.random.engine.RandomEngine;
-import cern.jet.random.engine.RandomSeedTable;
-import repast.simphony.random.RandomHelper;
 
 /**
  * Singleton.
+ * <p>
+ * The state of the pool is confined to the calling thread: each thread configures its own 
+ * pool and obtains its own, independently seeded generators. This allows independent 
+ * simulations to run concurrently, one per thread, with the same random sequences they 
+ * would produce when run sequentially.
+ * <p>
+ * The pool of a thread holds a {@link RandomStreamFactory}, and the stream of a generator is 
+ * derived from the seed of the pool and the name of the generator. The sequence of a generator
+ * therefore does not depend on the other generators created or on the order of creation. Names
+ * need to be unique within a pool, as generators with the same name have the same sequence.
  * 
  * @author Gilbert Peffer
  *
  */
 public class RandomGeneratorPool {
 
-    private static Boolean isPoolConfigured = false;   // TRUE if the generator pool has been set up using the configure methods
-    private static int nextSeedIndex = 0;              // index pointing to the next usable seed in RandomSeedTable
+    @SuppressWarnings("serial")
+    private static class PoolState implements Serializable {
+        Boolean isPoolConfigured = false;                   // TRUE if the generator pool has been set up using the configure methods
+        RandomStreamFactory streams;                        // derives the streams of the generators from their names
+        HashSet<String> names = new HashSet<String>();      // names of the generators created since the pool was configured
+    }
+    
+    private static final ThreadLocal<PoolState> pool = new ThreadLocal<PoolState>() {
+        @Override
+        protected PoolState initialValue() {
+            return new PoolState();
+        }
+    };
     
     public enum DistributionType {
         UNIFORM (2),
@@ -64,42 +85,98 @@ public class RandomGeneratorPool {
      */
     public static void configureGeneratorPool() {
 
-        clearGeneratorPool((int) System.currentTimeMillis());
-        isPoolConfigured = true;
+        configureGeneratorPool(new RandomStreamFactory(System.nanoTime()).split(Thread.currentThread().getId()));
     }
         
     /**
      * Get the unique instance of RandomGeneratorPool. In case the 
      * generator pool does not yet exist, create the unique instance.
      * 
-     * This method creates a generator pool that for a fixed seed index
+     * This method creates a generator pool that for a fixed seed
      * provide random generators that produce the same random sequences 
      * every time the program is executed or the generator pool reset.
-     * Specifying the seed index for the RandomSeedTable rather than
-     * always starting at index 0 has the advantage of being able to 
-     * make comparisons between simulation runs/experiments when executing
-     * manually, for visual verification.
+     * Different seeds, including consecutive ones, give independent 
+     * sequences, so {@code seed + run} can be used for the runs of an
+     * experiment.
      * 
-     * @param seedIndex the starting index in the seed table RandomSeedTable 
+     * @param seed the master seed of the random streams 
      * @return the unique instance of RandomGeneratorPool
      */
-    public static void configureGeneratorPool(int startSeedIndex) {
+    public static void configureGeneratorPool(int seed) {
+        
+        configureGeneratorPool(new RandomStreamFactory(seed));
+    }
+        
+    /**
+     * Configure the generator pool to derive the streams of its generators from the
+     * given factory, e.g. the factory of a run obtained with 
+     * {@code new RandomStreamFactory(masterSeed).split(experiment).split(run)}.
+     * 
+     * @param streams the factory of the random streams
+     */
+    public static void configureGeneratorPool(RandomStreamFactory streams) {
         
-        clearGeneratorPool(startSeedIndex);
-        isPoolConfigured = true;
+        clearGeneratorPool(streams);
+        pool.get().isPoolConfigured = true;
     }
         
     /**
-     * Reset the generator pool and restart random number streams using as the first
-     * seed the entry the table RandomSeedTable to which iSeedStartIndex points 
+     * Reset the generator pool and restart random number streams from the given factory 
      * 
-     * @param iSeedStartIndex the index pointing to the entry in the RandomSeedTable
-     * that is to be used as the first seed
+     * @param streams the factory of the random streams
      */
-    protected static void clearGeneratorPool(int startSeedIndex) {
+    protected static void clearGeneratorPool(RandomStreamFactory streams) {
+        
+        PoolState state = pool.get();
         
-        RandomHelper.getRegistry().reset();
-        nextSeedIndex = Math.abs(startSeedIndex);
+        state.names.clear();
+        state.streams = streams;
+    }
+    
+    /**
+     * @return a copy of the state of the pool of the calling thread, its stream factory and the names
+     * of the generators created so far, to be installed with {@link #restorePoolState(Serializable)}
+     */
+    public static Serializable savePoolState() {
+        PoolState state = pool.get();
+        PoolState copy = new PoolState();
+        
+        copy.isPoolConfigured = state.isPoolConfigured;
+        copy.streams = state.streams;
+        copy.names.addAll(state.names);
+        
+        return copy;
+    }
+    
+    /**
+     * Install a state saved with {@link #savePoolState()} in the pool of the calling thread, e.g. to 
+     * continue a simulation in another thread. The positions of the generators in their streams are 
+     * part of the generators, not of the pool.
+     * 
+     * @param state the saved state
+     */
+    public static void restorePoolState(Serializable state) {
+        Assertion.assertStrict(state instanceof PoolState, Assertion.Level.ERR, "The state of the random generator pool " +
+                "has to be obtained with savePoolState()");
+        
+        PoolState saved = (PoolState) state;
+        PoolState current = pool.get();
+        
+        current.isPoolConfigured = saved.isPoolConfigured;
+        current.streams = saved.streams;
+        current.names.clear();
+        current.names.addAll(saved.names);
+    }
+    
+    /**
+     * @return the stream factory of the pool of the calling thread, to derive further 
+     * streams, e.g. one for each agent
+     */
+    public static RandomStreamFactory getStreamFactory() {
+        Assertion.assertStrict(pool.get().isPoolConfigured, Assertion.Level.ERR, "Random generator pool " + 
+                "not configured. Use the configureGeneratorPool(...) methods to create a generator pool");
+        
+        return pool.get().streams;
     }
     
     
@@ -112,16 +189,10 @@ public class RandomGeneratorPool {
      * @return Uniform distribution
      */    
     public static Uniform createUniformGenerator(String name, double from, double to) {
-        Assertion.assertStrict(isPoolConfigured, Assertion.Level.ERR, "Random generator pool " + 
+        Assertion.assertStrict(pool.get().isPoolConfigured, Assertion.Level.ERR, "Random generator pool " + 
                 "not configured. Use the configureGeneratorPool(...) methods to create a generator pool");
-        getNextIndex();
-        int seed = RandomSeedTable.getSeedAtRowColumn(nextSeedIndex, 0);
-        
-        checkForDuplicateName(name);
-        
-        RandomEngine generator = RandomHelper.registerGenerator(name, seed);
+        RandomEngine generator = createGenerator(name);
         Uniform distribution = new Uniform(from, to, generator);
-        RandomHelper.registerDistribution(name, distribution);
         
         return distribution;
     }
@@ -135,16 +206,10 @@ public class RandomGeneratorPool {
      * @return Normal distribution
      */    
     public static Normal createNormalGenerator(String name, double mean, double stdev) {
-        Assertion.assertStrict(isPoolConfigured, Assertion.Level.ERR, "Random generator pool " + 
+        Assertion.assertStrict(pool.get().isPoolConfigured, Assertion.Level.ERR, "Random generator pool " + 
                 "not configured. Use the configureGeneratorPool(...) methods to create a generator pool");
-        getNextIndex();
-        int seed = RandomSeedTable.getSeedAtRowColumn(nextSeedIndex, 0);
-
-        checkForDuplicateName(name);
-        
-        RandomEngine generator = RandomHelper.registerGenerator(name, seed);
+        RandomEngine generator = createGenerator(name);
         Normal distribution = new Normal(mean, stdev, generator);
-        RandomHelper.registerDistribution(name, distribution);
         
         return distribution;
     }
@@ -158,7 +223,7 @@ public class RandomGeneratorPool {
      * @return Array of uniform distributions
      */    
     public static ArrayList<Uniform> createUniformMultiGenerator(String baseName, Double...params) {
-        Assertion.assertStrict(isPoolConfigured, Assertion.Level.ERR, "Random generator pool " + 
+        Assertion.assertStrict(pool.get().isPoolConfigured, Assertion.Level.ERR, "Random generator pool " + 
                 "not configured. Use the configureGeneratorPool(...) methods to create a generator pool");
 
         ArrayList<Uniform> distList = new ArrayList<Uniform>();
@@ -190,7 +255,7 @@ public class RandomGeneratorPool {
      * @return Array of normal distributions
      */  
     public static ArrayList<Normal> createNormalMultiGenerator(String baseName, Double...params) {
-        Assertion.assertStrict(isPoolConfigured, Assertion.Level.ERR, "Random generator pool " + 
+        Assertion.assertStrict(pool.get().isPoolConfigured, Assertion.Level.ERR, "Random generator pool " + 
                 "not configured. Use the configureGeneratorPool(...) methods to create a generator pool");
 
         ArrayList<Normal> distList = new ArrayList<Normal>();
@@ -215,20 +280,16 @@ public class RandomGeneratorPool {
     }
     
     
-    private static int getNextIndex() {
-        int currentIndex = nextSeedIndex;
-        nextSeedIndex++;
-        return (currentIndex) % Integer.MAX_VALUE;
+    /**
+     * Creates the random engine for a new generator, with the stream derived from its 
+     * name, and records the name in the pool of the calling thread.
+     */
+    private static RandomEngine createGenerator(String name) {
+        PoolState state = pool.get();
+        
+        Assertion.assertStrict(state.names.add(name), Assertion.Level.ERR, 
+                "Random generator with name '" + name + "' already exists in the generator pool.");
+        
+        return state.streams.createEngine(name);
     }
-    
-    private static void checkForDuplicateName(String name) {
-        
-        try {
-            RandomHelper.getGenerator(name);
-            Assertion.assertStrict(false, Assertion.Level.ERR, 
-                    "Random generator with name '" + name + "' already exists in the generator pool.");
-        } catch (Exception e) {
-            // do nothing
-        }
-    }    
 }
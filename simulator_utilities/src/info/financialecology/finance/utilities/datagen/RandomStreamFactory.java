@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datagen;
+
+import cern.jet.random.Normal;
+import cern.jet.random.Uniform;
+
+import java.io.Serializable;
+
+/**
+ * Derives independent random streams deterministically from a master seed and a sequence of
+ * keys, e.g. (master seed, experiment, run, agent, purpose):
+ * <pre>
+ *    RandomStreamFactory run = new RandomStreamFactory(masterSeed).split(experiment).split(run);
+ *    Normal noise = run.split(agentId).createNormal("noise", 0, 1);
+ * </pre>
+ * A stream depends only on its keys, not on how many other streams have been created or in which
+ * order, so adding an agent or creating generators in a different order leaves the other streams
+ * unchanged. Each stream is a {@link SplitMix64Engine} whose counter and increment are hashes of
+ * the keys.
+ * <p>
+ * The factory is immutable and can be shared between threads; the streams it creates cannot.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public final class RandomStreamFactory implements Serializable {
+
+    private final long seed;    // hash of the master seed and the keys of the splits leading to this factory
+
+    /**
+     * @param masterSeed the seed from which all streams are derived
+     */
+    public RandomStreamFactory(long masterSeed) {
+        this.seed = SplitMix64Engine.mix64(masterSeed);
+    }
+
+    private RandomStreamFactory(long seed, boolean derived) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param key e.g. the index of an experiment, a run or an agent
+     * @return the factory of the streams below {@code key}
+     */
+    public RandomStreamFactory split(long key) {
+        return new RandomStreamFactory(derive(key), true);
+    }
+
+    /**
+     * @param key e.g. the identifier of an agent or an asset
+     * @return the factory of the streams below {@code key}
+     */
+    public RandomStreamFactory split(String key) {
+        return split(hash(key));
+    }
+
+    /**
+     * @param name the purpose of the stream
+     * @return a new random engine for stream {@code name}. Creating the stream again returns an
+     * engine with the same sequence.
+     */
+    public SplitMix64Engine createEngine(String name) {
+        long streamSeed = derive(hash(name));
+
+        return new SplitMix64Engine(streamSeed, SplitMix64Engine.mixGamma(streamSeed + SplitMix64Engine.GOLDEN_GAMMA));
+    }
+
+    /**
+     * @see #createEngine(String)
+     */
+    public Uniform createUniform(String name, double from, double to) {
+        return new Uniform(from, to, createEngine(name));
+    }
+
+    /**
+     * @see #createEngine(String)
+     */
+    public Normal createNormal(String name, double mean, double stdev) {
+        return new Normal(mean, stdev, createEngine(name));
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    private long derive(long key) {
+        return SplitMix64Engine.mix64(seed + SplitMix64Engine.mix64(key + SplitMix64Engine.GOLDEN_GAMMA));
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a string
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        return h;
+    }
+}
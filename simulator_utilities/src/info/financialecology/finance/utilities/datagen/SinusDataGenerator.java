@@ -15,9 +15,6 @@ package info.financialecology.finance.utilities.datagen;
 
 import info.financialecology.finance.utilities.Assertion;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import cern.colt.list.DoubleArrayList;
 
 /**
@@ -34,11 +31,15 @@ import cern.colt.list.DoubleArrayList;
  * @author Gilbert Peffer
  *
  */
+@SuppressWarnings("serial")
 public class SinusDataGenerator implements DataGenerator {
     
-	private List<Double> params;
+    private double [] mean;         // parameters of each stream
+    private double [] amplitude;
+    private double [] shift;
+    private double [] lambda;
     private int tick;
-    private ArrayList<Double> lastValues = new ArrayList<Double>();
+    private double [] lastValues;   // the last value of each stream
 
     /**
      * Constructor for the sinus generator.
@@ -55,10 +56,9 @@ public class SinusDataGenerator implements DataGenerator {
         tick = 0;
         
         int dim = (int) Math.floor(0.1 + paramList.length / 4);    // number of dimensions - a fix to avoid inaccuracy of division
-        for (int i = 0; i < dim; i++)
-            lastValues.add(0.0);
+        lastValues = new double[dim];
         
-        setParams(paramList);
+        setParams(dim, paramList);
     }
     
     
@@ -67,8 +67,8 @@ public class SinusDataGenerator implements DataGenerator {
      */
     @Override
     public double nextDouble() {
-        double nextValue = params.get(0) + params.get(1) * Math.sin(2 * Math.PI * ( params.get(2) + tick ) / params.get(3) );
-        lastValues.add(0, nextValue);
+        double nextValue = value(0, tick);
+        lastValues[0] = nextValue;
         
         tick++;
          
@@ -81,7 +81,7 @@ public class SinusDataGenerator implements DataGenerator {
     @Override
     public double nextDoubleIncrement() {
 
-    	double lastValue = lastValues.get(0);
+    	double lastValue = lastValues[0];
     	double nextValue = nextDouble();
         double increment =  nextValue - lastValue;
                 
@@ -94,60 +94,59 @@ public class SinusDataGenerator implements DataGenerator {
     @Override
     public DoubleArrayList nextDoubleVector() {
 
-        DoubleArrayList values = new DoubleArrayList();
-        
-        int dim = (int) Math.floor(0.1 + params.size() / 4);    // number of dimensions - a fix to avoid inaccuracy of division
+        double [] values = new double[lastValues.length];
         
-        for (int i = 0; i < dim; i++) {
-            int iMean = i * 4;
-            int iAmplitude = i * 4 + 1;
-            int iShift = i * 4 + 2;
-            int iLambda = i * 4 + 3;
-            
-            values.add(params.get(iMean) + params.get(iAmplitude) * Math.sin(2 * Math.PI * ( params.get(iShift) + tick ) / params.get(iLambda) ) );
+        for (int i = 0; i < lastValues.length; i++) {
+            values[i] = value(i, tick);
+            lastValues[i] = values[i];
         }
         
-        for (int i = 0; i < dim; i++) {   // Update the lastValues for the next iteration
-    		lastValues.add(i, values.get(i));
-    	}
-        
         tick++;
         
-        return values;
+        return new DoubleArrayList(values);
     }
     
     @Override
     public DoubleArrayList nextDoubleVectorIncrements() {
     	
-    	int dim = (int) Math.floor(0.1 + params.size() / 4);    // number of dimensions - a fix to avoid inaccuracy of division
-    	DoubleArrayList copyLastValues = new DoubleArrayList();
-    	
-    	for (int i = 0; i < dim; i++) {   // Update the lastValues for the next iteration
-    		copyLastValues.add(lastValues.get(i));
-    	}
-    	
-    	DoubleArrayList nextValues = nextDoubleVector();
-    	DoubleArrayList increments = new DoubleArrayList();
-    	
-    	for (int i = 0; i < dim; i++) {    		
-    		increments.add(nextValues.get(i) - copyLastValues.get(i));
+        double [] increments = new double[lastValues.length];
+        
+        for (int i = 0; i < lastValues.length; i++) {
+            double value = value(i, tick);
+            increments[i] = value - lastValues[i];
+            lastValues[i] = value;
         }
+        
+        tick++;
    	
-        return increments;        
+        return new DoubleArrayList(increments);        
     }   
     
     /**
-     * Add the parameters for the generator equation to the parameter list
+     * Add the parameters for the generator equation to the parameter arrays
      * 
+     * @param dim the number of streams
      * @param paramList the parameter list provided via the constructor
      */
-    private void setParams(Double...paramList) {
-        params = new ArrayList<Double>();
+    private void setParams(int dim, Double...paramList) {
+        mean = new double[dim];
+        amplitude = new double[dim];
+        shift = new double[dim];
+        lambda = new double[dim];
         
-        for(Double item : paramList) {
-            params.add(item);
+        for (int i = 0; i < dim; i++) {
+            mean[i] = paramList[i * 4];
+            amplitude[i] = paramList[i * 4 + 1];
+            shift[i] = paramList[i * 4 + 2];
+            lambda[i] = paramList[i * 4 + 3];
         }
-            
+    }
+    
+    /**
+     * The value of stream {@code i} at time {@code t}
+     */
+    private double value(int i, int t) {
+        return mean[i] + amplitude[i] * Math.sin(2 * Math.PI * ( shift[i] + t ) / lambda[i] );
     }
 
     /**
@@ -155,11 +154,38 @@ public class SinusDataGenerator implements DataGenerator {
      */
     @Override
     public DoubleArrayList nextDoubles(int numDoubles) {
-        DoubleArrayList dal = new DoubleArrayList();
+        double [] values = new double[numDoubles];
+        
+        nextDoubles(values, 0, numDoubles);
+        
+        return new DoubleArrayList(values);
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubles(double[], int, int)
+     */
+    @Override
+    public void nextDoubles(double [] values, int offset, int length) {
+        for (int k = offset; k < offset + length; k++)
+            values[k] = value(0, tick++);
         
-        for (int i = 0; i < numDoubles; i++)
-            dal.add(nextDouble());
+        if (length > 0) lastValues[0] = values[offset + length - 1];
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleIncrements(double[], int, int)
+     */
+    @Override
+    public void nextDoubleIncrements(double [] increments, int offset, int length) {
+        double lastValue = lastValues[0];
+        
+        nextDoubles(increments, offset, length);
         
-        return dal;
+        for (int k = offset; k < offset + length; k++) {
+            double value = increments[k];
+            
+            increments[k] = value - lastValue;
+            lastValue = value;
+        }
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datagen;
+
+import cern.jet.random.engine.RandomEngine;
+
+/**
+ * The SplitMix64 random engine (Steele, Lea and Flood, "Fast splittable pseudorandom number
+ * generators", OOPSLA 2014), the algorithm of {@code java.util.SplittableRandom}, as a colt
+ * {@link RandomEngine} so it can drive the colt distributions.
+ * <p>
+ * The state is a 64-bit counter that advances by an odd increment (the gamma) at every draw;
+ * the output is a mix of the counter. Engines are cheap to create, can jump ahead any number of
+ * draws in constant time, and can be split into independent engines. Engines are not thread-safe;
+ * each thread should use its own engines.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class SplitMix64Engine extends RandomEngine {
+
+    private static final long serialVersionUID = 1L;
+
+    static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;   // default increment, the odd integer closest to 2^64 / golden ratio
+
+    private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+    private long state;             // the counter
+    private final long gamma;       // the increment of the counter; always odd
+
+    /**
+     * @param seed the initial value of the counter
+     */
+    public SplitMix64Engine(long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    /**
+     * @param seed the initial value of the counter
+     * @param gamma the increment of the counter; made odd if it is not
+     */
+    public SplitMix64Engine(long seed, long gamma) {
+        this.state = seed;
+        this.gamma = gamma | 1L;
+    }
+
+    /**
+     * @return a new engine whose sequence is independent of this one. Advances this engine by two draws.
+     */
+    public SplitMix64Engine split() {
+        return new SplitMix64Engine(nextLong(), mixGamma(nextSeed()));
+    }
+
+    /**
+     * Skip the next {@code numDraws} draws of {@link #nextLong()}, in constant time. A draw of
+     * {@link #nextInt()} or {@link #raw()} also uses one draw.
+     */
+    public void jump(long numDraws) {
+        state += numDraws * gamma;
+    }
+
+    /**
+     * @see cern.jet.random.engine.RandomEngine#nextInt()
+     */
+    @Override
+    public int nextInt() {
+        return (int) (mix64(nextSeed()) >>> 32);
+    }
+
+    /**
+     * @see cern.jet.random.engine.RandomEngine#nextLong()
+     */
+    @Override
+    public long nextLong() {
+        return mix64(nextSeed());
+    }
+
+    /**
+     * A 53-bit uniform value in the open interval (0, 1), from a single draw
+     *
+     * @see cern.jet.random.engine.RandomEngine#nextDouble()
+     */
+    @Override
+    public double nextDouble() {
+        return ((nextLong() >>> 11) + 0.5) * DOUBLE_UNIT;
+    }
+
+    private long nextSeed() {
+        return state += gamma;
+    }
+
+    /**
+     * The finaliser of SplitMix64 (variant 13 of Stafford's MurmurHash3 mixers); a bijection
+     * on 64-bit values whose output bits all depend on all input bits.
+     */
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Derive an odd increment from a seed, avoiding increments with too few bit transitions,
+     * as done by {@code java.util.SplittableRandom}.
+     */
+    static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+
+        int n = Long.bitCount(z ^ (z >>> 1));
+
+        return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
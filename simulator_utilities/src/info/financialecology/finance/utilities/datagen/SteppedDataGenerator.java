@@ -15,9 +15,6 @@ package info.financialecology.finance.utilities.datagen;
 
 import info.financialecology.finance.utilities.Assertion;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import cern.colt.list.DoubleArrayList;
 
 /**
@@ -37,11 +34,15 @@ import cern.colt.list.DoubleArrayList;
  *  
  */
 
+@SuppressWarnings("serial")
 public class SteppedDataGenerator implements DataGenerator {
     
-    private List<Double> params;
+    private double [] shift;        // parameters of each stream
+    private double [] stepHeight;
+    private double [] period;       // stepWidth + valleyWidth
+    private double [] valleyWidth;
     private int tick;
-    private ArrayList<Double> lastValues = new ArrayList<Double>();
+    private double [] lastValues;   // the last value of each stream
 
     /**
      * Constructor for the stepped data generator.
@@ -58,10 +59,9 @@ public class SteppedDataGenerator implements DataGenerator {
         tick = 0;
         
         int dim = (int) Math.floor(0.1 + paramList.length / 4);    // number of dimensions - a fix to avoid inaccuracy of division
-        for (int i = 0; i < dim; i++)
-            lastValues.add(0.0);
+        lastValues = new double[dim];
         
-        setParams(paramList);
+        setParams(dim, paramList);
     }
 
     /**
@@ -69,17 +69,8 @@ public class SteppedDataGenerator implements DataGenerator {
      */
     @Override
     public double nextDouble() {    	
-
-    	// Conditions that indicate if in the current time step the process lies in a step (instead of a valley)
-    	// The boolean conditions are transformed to numerical variables for the subsequent calculations
-    	// Absolute value is taken for the stepWidth and valleyWidth parameters, because a negative value for these parameters makes no sense 
-    	   	
-    	int stepStarted = (tick - Math.floor(tick/(Math.abs(params.get(2))+Math.abs(params.get(3)))) * (Math.abs(params.get(2))+Math.abs(params.get(3))) >= Math.abs(params.get(3)) == true ? 1 : 0);
-    	int stepNotFinished = (tick - Math.floor(tick/(Math.abs(params.get(2))+Math.abs(params.get(3)))) * (Math.abs(params.get(2))+Math.abs(params.get(3))) < (Math.abs(params.get(2))+Math.abs(params.get(3))) == true ? 1 : 0);
-    	
-    	// Calculate a new value for the stepped process
-    	double nextValue = params.get(0) + params.get(1) * stepStarted * stepNotFinished;
-    	lastValues.add(0, nextValue);
+    	double nextValue = value(0, tick);
+    	lastValues[0] = nextValue;
         
         tick++;
          
@@ -92,7 +83,7 @@ public class SteppedDataGenerator implements DataGenerator {
     @Override
     public double nextDoubleIncrement() {
     	
-    	double lastValue = lastValues.get(0);
+    	double lastValue = lastValues[0];
     	double nextValue = nextDouble();
         double increment =  nextValue - lastValue;
                 
@@ -105,32 +96,16 @@ public class SteppedDataGenerator implements DataGenerator {
     @Override
     public DoubleArrayList nextDoubleVector() {
         
-        DoubleArrayList values = new DoubleArrayList();
+        double [] values = new double[lastValues.length];
         
-        int dim = (int) Math.floor(0.1 + params.size() / 4);    // number of dimensions - a fix to avoid inaccuracy of division
-        
-        for (int i = 0; i < dim; i++) {
-            int iShift = i * 4;
-            int iStepHeight = i * 4 + 1;
-            int iStepWidth = i * 4 + 2;
-            int iValleyWidth = i * 4 + 3;
-            
-            // Conditions that indicate if in the current time step the process lies in a step (instead of a valley)
-        	// The boolean conditions are transformed to numerical variables for the subsequent calculations    	
-        	int stepStarted = (tick - Math.floor(tick/(params.get(iStepWidth)+params.get(iValleyWidth))) * (params.get(iStepWidth)+params.get(iValleyWidth)) >= params.get(iValleyWidth) == true ? 1 : 0);
-        	int stepNotFinished = (tick - Math.floor(tick/(params.get(iStepWidth)+params.get(iValleyWidth))) * (params.get(iStepWidth)+params.get(iValleyWidth)) < (params.get(iStepWidth)+params.get(iValleyWidth)) == true ? 1 : 0);
-        	
-        	// Calculate a new value for the stepped process            
-            values.add(params.get(iShift) + params.get(iStepHeight) * stepStarted * stepNotFinished);
+        for (int i = 0; i < lastValues.length; i++) {
+            values[i] = value(i, tick);
+            lastValues[i] = values[i];
         }
         
-        for (int i = 0; i < dim; i++) {   // Update the lastValues for the next iteration
-    		lastValues.add(i, values.get(i));
-    	}
-        
         tick++;
         
-        return values;
+        return new DoubleArrayList(values);
     }
     
     /**
@@ -139,46 +114,93 @@ public class SteppedDataGenerator implements DataGenerator {
     @Override
     public DoubleArrayList nextDoubleVectorIncrements() {
     	
-    	int dim = (int) Math.floor(0.1 + params.size() / 4);    // number of dimensions - a fix to avoid inaccuracy of division
-    	DoubleArrayList copyLastValues = new DoubleArrayList();
-    	
-    	for (int i = 0; i < dim; i++) {   // Update the lastValues for the next iteration
-    		copyLastValues.add(lastValues.get(i));
-    	}
-    	
-    	DoubleArrayList nextValues = nextDoubleVector();
-    	DoubleArrayList increments = new DoubleArrayList();
-    	
-    	for (int i = 0; i < dim; i++) {    		
-    		increments.add(nextValues.get(i) - copyLastValues.get(i));
+        double [] increments = new double[lastValues.length];
+        
+        for (int i = 0; i < lastValues.length; i++) {
+            double value = value(i, tick);
+            increments[i] = value - lastValues[i];
+            lastValues[i] = value;
         }
+        
+        tick++;
    	
-        return increments;        
+        return new DoubleArrayList(increments);        
     }   
     
     /**
-     * Add the parameters for the generator equation to the parameter list
+     * Add the parameters for the generator equation to the parameter arrays. Absolute values
+     * are taken for the stepWidth and valleyWidth parameters, because a negative value for these
+     * parameters makes no sense.
      * 
+     * @param dim the number of streams
      * @param paramList the parameter list provided via the constructor
      */
-    private void setParams(Double...paramList) {
-        params = new ArrayList<Double>();
+    private void setParams(int dim, Double...paramList) {
+        shift = new double[dim];
+        stepHeight = new double[dim];
+        period = new double[dim];
+        valleyWidth = new double[dim];
         
-        for(Double item : paramList) {
-            params.add(item);
+        for (int i = 0; i < dim; i++) {
+            shift[i] = paramList[i * 4];
+            stepHeight[i] = paramList[i * 4 + 1];
+            period[i] = Math.abs(paramList[i * 4 + 2]) + Math.abs(paramList[i * 4 + 3]);
+            valleyWidth[i] = Math.abs(paramList[i * 4 + 3]);
         }
     }
+    
+    /**
+     * The value of stream {@code i} at time {@code t}
+     */
+    private double value(int i, int t) {
+        
+        // Conditions that indicate if in the current time step the process lies in a step (instead of a valley)
+        // The boolean conditions are transformed to numerical variables for the subsequent calculations
+        double position = t - Math.floor(t / period[i]) * period[i];
+        int stepStarted = (position >= valleyWidth[i] ? 1 : 0);
+        int stepNotFinished = (position < period[i] ? 1 : 0);
+        
+        // Calculate a new value for the stepped process
+        return shift[i] + stepHeight[i] * stepStarted * stepNotFinished;
+    }
 
     /**
      * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubles(int)
      */
     @Override
     public DoubleArrayList nextDoubles(int numDoubles) {
-        DoubleArrayList dal = new DoubleArrayList();
+        double [] values = new double[numDoubles];
         
-        for (int i = 0; i < numDoubles; i++)
-            dal.add(nextDouble());
+        nextDoubles(values, 0, numDoubles);
         
-        return dal;
+        return new DoubleArrayList(values);
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubles(double[], int, int)
+     */
+    @Override
+    public void nextDoubles(double [] values, int offset, int length) {
+        for (int k = offset; k < offset + length; k++)
+            values[k] = value(0, tick++);
+        
+        if (length > 0) lastValues[0] = values[offset + length - 1];
+    }
+    
+    /**
+     * @see info.financialecology.finance.utilities.datagen.DataGenerator#nextDoubleIncrements(double[], int, int)
+     */
+    @Override
+    public void nextDoubleIncrements(double [] increments, int offset, int length) {
+        double lastValue = lastValues[0];
+        
+        nextDoubles(increments, offset, length);
+        
+        for (int k = offset; k < offset + length; k++) {
+            double value = increments[k];
+            
+            increments[k] = value - lastValue;
+            lastValue = value;
+        }
     }
 }
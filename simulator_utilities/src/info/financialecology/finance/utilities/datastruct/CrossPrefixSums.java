@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datastruct;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+
+import java.io.Serializable;
+
+/**
+ * Compensated prefix sums of the products x_k * y_k of two time series, for the covariance over
+ * any window in constant time. Both time series need to have their own prefix sums enabled (see
+ * {@link DoubleTimeSeries#enablePrefixSums()}).
+ * <p>
+ * The sums of the products are brought up to date when they are queried: new values of the two
+ * series are added, and if a value of either series has been replaced, the retained products are
+ * recomputed. Queries only cover the ticks available in both series.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class CrossPrefixSums implements Serializable {
+
+    private DoubleTimeSeries tsX;
+    private DoubleTimeSeries tsY;
+    private PrefixSums products = new PrefixSums(false);    // prefix sums of x_k * y_k
+    private int versionX;                                   // versions of the prefix sums of the series included in 'products'
+    private int versionY;
+
+    /**
+     * @param tsX the first time series, with prefix sums enabled
+     * @param tsY the second time series, with prefix sums enabled
+     */
+    public CrossPrefixSums(DoubleTimeSeries tsX, DoubleTimeSeries tsY) {
+        Assertion.assertStrict(tsX.hasPrefixSums() && tsY.hasPrefixSums(), Level.ERR, "The time series '" + tsX.getId() +
+                "' and '" + tsY.getId() + "' need to have prefix sums enabled to compute the sums of their products");
+
+        this.tsX = tsX;
+        this.tsY = tsY;
+        this.versionX = tsX.getPrefixSums().getVersion();
+        this.versionY = tsY.getPrefixSums().getVersion();
+    }
+
+    /**
+     * @return x_from * y_from + ... + x_to * y_to
+     */
+    public double sumOfProducts(int from, int to) {
+        update();
+
+        return products.sum(from, to);
+    }
+
+    /**
+     * @return the sample covariance (divided by {@code window - 1}) of the {@code window} values of the two
+     * series ending at index {@code endTick}
+     */
+    public double covariance(int endTick, int window) {
+        Assertion.assertStrict(window > 1, Level.ERR, "The window of the covariance needs to be '> 1'");
+
+        int from = endTick - window + 1;
+        double sumXY = sumOfProducts(from, endTick);
+        double sumX = tsX.getPrefixSums().sum(from, endTick);
+        double sumY = tsY.getPrefixSums().sum(from, endTick);
+
+        return (sumXY - sumX * sumY / window) / (window - 1);
+    }
+
+    /**
+     * @return the number of ticks covered, the length of the shorter series
+     */
+    public int size() {
+        update();
+
+        return products.size();
+    }
+
+    private void update() {
+        PrefixSums sumsX = tsX.getPrefixSums();
+        PrefixSums sumsY = tsY.getPrefixSums();
+        int first = Math.max(sumsX.getFirstRetainedIndex(), sumsY.getFirstRetainedIndex());
+        int limit = commonLimit(sumsX.getHistoryLimit(), sumsY.getHistoryLimit());
+
+        if ((limit > 0) && (limit != products.getHistoryLimit()))
+            products.setHistoryLimit(limit);
+
+        if ((sumsX.getVersion() != versionX) || (sumsY.getVersion() != versionY)) {    // values were replaced; recompute the retained products
+            if (products.size() > first)
+                products.truncate(Math.max(first, products.getFirstRetainedIndex()));
+            
+            versionX = sumsX.getVersion();
+            versionY = sumsY.getVersion();
+        }
+
+        int end = Math.min(tsX.size(), tsY.size());
+
+        if ((products.size() < first) || (products.size() > end))   // the series moved on beyond the retained products, or were refilled
+            products.restart(first);
+
+        for (int k = products.size(); k < end; k++)
+            products.append(tsX.get(k) * tsY.get(k));
+    }
+
+    /**
+     * The smaller of two history limits, where 0 stands for no limit
+     */
+    private static int commonLimit(int limitX, int limitY) {
+        if (limitX == 0) return limitY;
+        if (limitY == 0) return limitX;
+
+        return Math.min(limitX, limitY);
+    }
+}
@@ -17,6 +17,7 @@ package info.financialecology.finance.utilities.datastruct;
 
 import info.financialecology.finance.utilities.Assertion;
 import info.financialecology.finance.utilities.Assertion.Level;
+import info.financialecology.finance.utilities.statistics.MomentAccumulator;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -29,6 +30,12 @@ import cern.jet.stat.Descriptive;
 
 /**
  * A time series class that holds doubles. Based on the {@code DoubleArrayList} from {@literal cern.colt.list }
+ * <p>
+ * By default the full history is kept. With {@link #setHistoryLimit(int)} only the most recent values 
+ * are kept, in a ring buffer of fixed size. Indices remain the same (index = tick), but values that 
+ * have dropped out of the buffer can no longer be read. The moments used by {@link #mean()}, 
+ * {@link #stdev()}, etc. still cover the full history; a value replaced in the buffer is swapped 
+ * in the moments.
  * 
  * @author Gilbert Peffer
  *
@@ -48,6 +55,13 @@ public class DoubleTimeSeries extends AbstractDoubleList {
     private DoubleArrayList values;
     private String          id;
     private int             size = 0;
+    
+    private double []       ring = null;    // the most recent values if the history is limited, see setHistoryLimit(); null otherwise
+    
+    private MomentAccumulator moments = new MomentAccumulator();   // cached moments of 'values', see moments()
+    private boolean           momentsValid = true;                 // false if a value has been replaced since the last pass
+    
+    private PrefixSums      prefixSums = null;  // prefix sums of the values and their squares, see enablePrefixSums(); null if not enabled
 
     public DoubleTimeSeries() {
         this.id = "anonymous_double_time_series";
@@ -80,6 +94,10 @@ public class DoubleTimeSeries extends AbstractDoubleList {
         ticks.clear();
         values.clear();
         size = 0;
+        moments.clear();
+        momentsValid = true;
+        
+        if (prefixSums != null) prefixSums.restart(0);
         
         for (int i = 0; i < length; i++)
             add(constant);
@@ -100,8 +118,152 @@ public class DoubleTimeSeries extends AbstractDoubleList {
     
     @Override
     public double get(int index) {
+        if (ring != null) return ring[ringIndex(index)];
+        
         return values.get(index);
     }
+    
+    /**
+     * Limit the history of the time series to the last {@code limit} values. The retained values are 
+     * kept in a ring buffer, so the memory used by the time series no longer grows with its length. 
+     * Reading or replacing a value older than the last {@code limit} values is an error, as is any 
+     * method that requires the full history, e.g. {@link #values()} or {@link #acf(int)}.
+     * <p>
+     * Use this for long runs where only summary statistics are needed and the model only looks back 
+     * over a bounded window.
+     * 
+     * @param limit the number of most recent values to keep
+     */
+    public void setHistoryLimit(int limit) {
+        Assertion.assertStrict(limit > 0, Level.ERR, "The history limit of DoubleTimeSeries '" + id + "' needs to be '> 0'");
+        
+        if (ring == null) moments();    // recompute stale moments, e.g. after a replaced value, while all values are there
+        
+        double [] newRing = new double[limit];
+        
+        for (int i = Math.max(0, size - limit); i < size; i++)
+            newRing[i % limit] = get(i);
+        
+        ring = newRing;
+        ticks.clear();
+        ticks.trimToSize();
+        values.clear();
+        values.trimToSize();
+        
+        if (prefixSums != null) prefixSums.setHistoryLimit(limit);
+    }
+    
+    /**
+     * @return true, if only the most recent values are kept, see {@link #setHistoryLimit(int)}
+     */
+    public boolean hasHistoryLimit() {
+        return ring != null;
+    }
+    
+    /**
+     * @return the index of the oldest value that can still be read
+     */
+    public int getFirstRetainedIndex() {
+        return ring == null ? 0 : Math.max(0, size - ring.length);
+    }
+    
+    /**
+     * Maintain prefix sums of the values and of their squares from now on, so that the sum, mean and 
+     * variance over any window of the retained values take constant time, see {@link PrefixSums}. 
+     * The prefix sums are kept up to date as values are added or replaced, and their history is 
+     * limited along with that of the time series.
+     * <p>
+     * Enabling the prefix sums again has no effect.
+     */
+    public void enablePrefixSums() {
+        if (prefixSums != null) return;
+        
+        prefixSums = new PrefixSums();
+        
+        if (ring != null) prefixSums.setHistoryLimit(ring.length);
+        
+        prefixSums.restart(getFirstRetainedIndex());
+        
+        for (int i = getFirstRetainedIndex(); i < size; i++)
+            prefixSums.append(get(i));
+    }
+    
+    /**
+     * @return true, if the prefix sums are maintained, see {@link #enablePrefixSums()}
+     */
+    public boolean hasPrefixSums() {
+        return prefixSums != null;
+    }
+    
+    /**
+     * @return the prefix sums of the time series, or null if they are not enabled
+     */
+    public PrefixSums getPrefixSums() {
+        return prefixSums;
+    }
+    
+    /**
+     * Position of the value with index {@code index} in the ring buffer 
+     */
+    private int ringIndex(int index) {
+        if ((index < size - ring.length) || (index >= size) || (index < 0))
+            Assertion.assertStrict(false, Level.ERR, "Index " + index + " of DoubleTimeSeries '" + id + "' is not available. " + 
+                    "Only the values with index " + getFirstRetainedIndex() + " to " + (size - 1) + " are kept");
+        
+        return index % ring.length;
+    }
+    
+    /**
+     * Methods that operate on the full history cannot be used if the history is limited 
+     */
+    private void checkFullHistory(String method) {
+        Assertion.assertStrict(ring == null, Level.ERR, "Method " + method + " requires the full history, but the history " +
+                "of DoubleTimeSeries '" + id + "' is limited to " + (ring == null ? 0 : ring.length) + " values");
+    }
+    
+    /**
+     * Append a value, in either storage mode 
+     */
+    private void append(int tick, double value) {
+        if (ring != null) {
+            ring[tick % ring.length] = value;
+        }
+        else {
+            ticks.add(tick);
+            values.add(value);
+        }
+        
+        if (momentsValid) moments.increment(value);
+        
+        if (prefixSums != null) prefixSums.append(value);
+    }
+    
+    /**
+     * Replace an existing value, in either storage mode 
+     */
+    private void replace(int tick, double value) {
+        if (ring != null) {     // the moments cannot be recomputed, so the old value is swapped for the new one
+            int index = ringIndex(tick);
+            
+            if (momentsValid) {
+                moments.decrement(ring[index]);
+                moments.increment(value);
+            }
+            
+            ring[index] = value;
+        }
+        else {
+            values.set(tick, value);
+            momentsValid = false;
+        }
+        
+        if (prefixSums != null) {   // recompute the prefix sums from the replaced value on
+            prefixSums.truncate(tick);
+            
+            for (int i = tick; i < size; i++)
+                prefixSums.append(get(i));
+        }
+    }
 
     /**
      * Add a value at location tick. Handles the three cases where the
@@ -115,65 +277,73 @@ public class DoubleTimeSeries extends AbstractDoubleList {
     public void add(int tick, double value) {
         
         if (tick == size) {         // tick is the next in sequence -> append to array
-            ticks.add(tick);
-            values.add(value);
+            append(tick, value);
             size++;
         } else if (tick < size) {   // tick already exists in the sequence -> replace value
-            values.set(tick, value);
+            replace(tick, value);
         } else {                    // tick skips ahead of end of sequence -> insert zeros for the skipped values but emit warning
             Assertion.assertStrict(false, Level.INFO, "Inserting value beyond end of array in DoubleTimeSeries '" + id);
             
-            for (int i = size; i < tick; i++) {
-                ticks.add(i);
-                values.add(0);                
-            }
+            for (int i = size; i < tick; i++)
+                append(i, 0);
             
-            ticks.add(tick);
-            values.add(value);
+            append(tick, value);
             
             size = tick + 1;
         }
     }
     
     public void addToValue(int tick, double value) {
-        double v = this.values.get(tick);
-        this.values.set(tick, v + value);
+        replace(tick, get(tick) + value);
     }
 
     public void set(int tick, double element) {
-        values.set(tick, element);
+        replace(tick, element);
     }
 
     public int[] ticks() {
+        checkFullHistory("ticks()");
+        
         return ticks.elements();
     }
 
+    /**
+     * Returns the internal array holding the values. Note that the array may be longer
+     * than the time series and that writing to it bypasses the cached moments used by
+     * {@link #mean()}, {@link #stdev()}, etc. Call {@link #invalidateMoments()} after
+     * modifying the array directly.
+     * 
+     * @return the internal value array
+     */
     public double[] values() {
+        checkFullHistory("values()");
+        
         return values.elements();
     }
     
     public String ticksToString() {
         String ts = "[";
-        int nTicks = ticks.size();
+        int first = getFirstRetainedIndex();
+        int nTicks = size - first;
         int headLength = nTicks < MAX_OUPUT_HEAD ? nTicks : MAX_OUPUT_HEAD;
         int tailLength = nTicks < MAX_OUPUT_HEAD ? 0 : nTicks - MAX_OUPUT_HEAD;
         tailLength = tailLength < MAX_OUPUT_TAIL ? tailLength : MAX_OUPUT_TAIL; 
         
-        for (int i = 0; i < headLength; i++) {
-            ts += String.format("%11d", ticks.get(i));
+        for (int i = first; i < first + headLength; i++) {
+            ts += String.format("%11d", getTick(i));
         }
         
         if (tailLength > 0) ts += "     ... ";
         
-        for (int i = nTicks - tailLength; i < nTicks; i++) {
-            ts += String.format("%11d", ticks.get(i));       // TODO create a settings xml file for the formatting and other settings
+        for (int i = size - tailLength; i < size; i++) {
+            ts += String.format("%11d", getTick(i));       // TODO create a settings xml file for the formatting and other settings
         }
 
         return ts + "]";
     }
 
     public int size() {
-        return values.size();
+        return size;
     }
     
     public static void setFormatter(DecimalFormat df) {
@@ -185,11 +355,18 @@ public class DoubleTimeSeries extends AbstractDoubleList {
      */
     @Override
     public void ensureCapacity(int minCapacity) {
+        if (ring != null) return;     // the ring buffer has a fixed size
+        
         ticks.ensureCapacity(minCapacity);
         values.ensureCapacity(minCapacity);
     }
 
     public int getTick(int index) {
+        if (ring != null) {     // ticks are not stored, since they are equal to the index
+            ringIndex(index);
+            return index;
+        }
+        
         return ticks.get(index);
     }
     
@@ -200,11 +377,11 @@ public class DoubleTimeSeries extends AbstractDoubleList {
      * @return
      */
     public int getLastTick() {
-        return ticks.get(ticks.size() - 1);
+        return getTick(size - 1);
     }
 
     public double getValue(int index) {
-        return values.get(index);
+        return get(index);
     }
 
     /* (non-Javadoc)
@@ -212,6 +389,8 @@ public class DoubleTimeSeries extends AbstractDoubleList {
      */
     @Override
     protected double getQuick(int index) {
+        if (ring != null) return ring[index % ring.length];
+        
         return values.getQuick(index);
     }
 
@@ -261,79 +440,72 @@ public class DoubleTimeSeries extends AbstractDoubleList {
     }
     
     
-    public double mean() {
-        DescriptiveStatistics stats = new DescriptiveStatistics();
-
-        for (int i = 0; i < this.values.size(); i++)
-            stats.addValue(this.values.get(i));
+    /**
+     * Returns the accumulator holding the moments of the time series. The moments are 
+     * updated incrementally when values are appended and recomputed in a single pass 
+     * if any existing value has been modified since the last call.
+     * 
+     * @return the up-to-date moments of the time series
+     */
+    private MomentAccumulator moments() {
+        if (!momentsValid) {
+            checkFullHistory("moments()");     // cannot recompute the moments once values have been dropped
+            
+            moments.clear();
+            moments.incrementAll(values.elements(), 0, values.size());
+            momentsValid = true;
+        }
         
-        return stats.getMean();
+        return moments;
+    }
+    
+    /**
+     * Forces the moments of the time series to be recomputed the next time a statistic
+     * is requested. Only needed if the array returned by {@link #values()} has been 
+     * modified directly.
+     */
+    public void invalidateMoments() {
+        momentsValid = false;
+    }
+    
+    public double mean() {
+        return moments().getMean();
     }
 
     public double stdev() {
-        DescriptiveStatistics   stats = new DescriptiveStatistics();
-        for (int i = 0; i < this.values.size(); i++)
-            stats.addValue(this.values.get(i));
-        
-        return stats.getStandardDeviation();
+        return moments().getStandardDeviation();
     }
 
     public double skewness() {
-        DescriptiveStatistics   stats = new DescriptiveStatistics();
-        for (int i = 0; i < this.values.size(); i++)
-            stats.addValue(this.values.get(i));
-        
-        return stats.getSkewness();
+        return moments().getSkewness();
     }
 
     public double unbiasedExcessKurtosis() {
-        DescriptiveStatistics   stats = new DescriptiveStatistics();
-        for (int i = 0; i < this.values.size(); i++)
-            stats.addValue(this.values.get(i));
-        
-        return stats.getKurtosis();
+        return moments().getKurtosis();
     }
 
     public double excessKurtosis() {
-        double s2 = 0, s4 = 0, mean = 0, n = this.values.size();
-        
-        for (int i = 0; i < n; i++)
-            mean += this.values.get(i);
-
-        mean /= n;
-        
-        for (int i = 0; i < n; i++) {
-            s2 += Math.pow(this.values.get(i) - mean, 2);
-            s4 += Math.pow(this.values.get(i) - mean, 4);
-        }
-        
-        double m2 = s2 / n;
-        double m4 = s4 / n;    
-        
-        return m4 / Math.pow(m2, 2) - 3;
+        return moments().getPopulationExcessKurtosis();
     }
     
     public double unbiasedExcessKurtosisOverInterval(int start, int length) {
-        DescriptiveStatistics   stats = new DescriptiveStatistics();
-
+        MomentAccumulator intervalMoments = new MomentAccumulator();
+        
         for (int i = start; i < start + length; i++)
-            stats.addValue(this.values.get(i));
+            intervalMoments.increment(get(i));   // get() checks the bounds
         
-        return stats.getKurtosis();
+        return intervalMoments.getKurtosis();
     }
 
     public double normalisedVolatility() {
-        DescriptiveStatistics   stats = new DescriptiveStatistics();
-
-        for (int i = 0; i < this.values.size(); i++)
-            stats.addValue(this.values.get(i));
-        
-        return stats.getStandardDeviation() / Math.sqrt(this.values.size());
+        return moments().getStandardDeviation() / Math.sqrt(size);
     }
     
     
     public DoubleArrayList acf(int maxLag) {
         
+        checkFullHistory("acf()");
+        
         DoubleArrayList acfValues = new DoubleArrayList();
 
         double mean = Descriptive.mean(values);
@@ -348,6 +520,8 @@ public class DoubleTimeSeries extends AbstractDoubleList {
     
     public DoubleArrayList acfAbs(int maxLag) {
         
+        checkFullHistory("acfAbs()");
+        
         DoubleArrayList acfValues = new DoubleArrayList();
         DoubleArrayList absValues = new DoubleArrayList();
         
@@ -366,6 +540,8 @@ public class DoubleTimeSeries extends AbstractDoubleList {
     
     public DoubleArrayList acfSquared(int maxLag) {
         
+        checkFullHistory("acfSquared()");
+        
         DoubleArrayList acfValues = new DoubleArrayList();
         DoubleArrayList squareValues = new DoubleArrayList();
         
@@ -384,13 +560,13 @@ public class DoubleTimeSeries extends AbstractDoubleList {
     
     public double percentile(int percentile, int window) {
     	
-    	Assertion.assertStrict(window <= this.values.size(), Level.ERR, "percentile(): Length of time series must be larger than the window (" + window + ").");
+    	Assertion.assertStrict(window <= size - getFirstRetainedIndex(), Level.ERR, "percentile(): Length of time series must be larger than the window (" + window + ").");
     	
         DescriptiveStatistics stats = new DescriptiveStatistics();
-        int tsLength = this.values.size();
+        int tsLength = size;
 
         for (int i = 0; i < window; i++) {
-            stats.addValue(this.values.get(tsLength-i-1));
+            stats.addValue(get(tsLength-i-1));
         }
         
         return stats.getPercentile(percentile);
@@ -400,19 +576,20 @@ public class DoubleTimeSeries extends AbstractDoubleList {
     @Override
     public String toString() {
         String ts = "[";
-        int nTicks = ticks.size();
+        int first = getFirstRetainedIndex();
+        int nTicks = size - first;
         int headLength = nTicks < MAX_OUPUT_HEAD ? nTicks : MAX_OUPUT_HEAD;
         int tailLength = nTicks < MAX_OUPUT_HEAD ? 0 : nTicks - MAX_OUPUT_HEAD;
         tailLength = tailLength < MAX_OUPUT_TAIL ? tailLength : MAX_OUPUT_TAIL; 
         
-        for (int i = 0; i < headLength; i++) {
-            ts += String.format("%11.5g", values.get(i));
+        for (int i = first; i < first + headLength; i++) {
+            ts += String.format("%11.5g", get(i));
         }
         
         if (tailLength > 0) ts += "     ... ";
         
-        for (int i = nTicks - tailLength; i < nTicks; i++) {
-            ts += String.format("%11.5g", values.get(i));       // TODO create a settings xml file for the formatting and other settings
+        for (int i = size - tailLength; i < size; i++) {
+            ts += String.format("%11.5g", get(i));       // TODO create a settings xml file for the formatting and other settings
         }
 
         return ts + "]";
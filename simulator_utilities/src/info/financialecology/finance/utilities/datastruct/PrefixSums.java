@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datastruct;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Prefix sums of the values x_0, x_1, ... of a time series and of their squares, so that the sum,
+ * mean and variance over any window can be computed in constant time:
+ *
+ *    sum(x_a .. x_b) = P_b+1 - P_a,    where P_k = x_0 + ... + x_k-1
+ *
+ * The prefix sums are compensated: each is kept as an unevaluated sum of two doubles (the rounded
+ * sum and its rounding error, accumulated with the TwoSum algorithm), so that the difference of two
+ * large prefix sums does not lose the digits of a small window sum.
+ * <p>
+ * The prefix sums are maintained by the {@link DoubleTimeSeries} they belong to, see
+ * {@link DoubleTimeSeries#enablePrefixSums()}. If the history of the series is limited, so are
+ * the prefix sums.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class PrefixSums implements Serializable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final boolean withSquares;  // false if only the sums are needed, see CrossPrefixSums
+
+    private double [] sum;              // P_k, rounded
+    private double [] sumErr;           // rounding error of P_k
+    private double [] sumSq;            // prefix sums of the squares, rounded
+    private double [] sumSqErr;         // rounding error of the prefix sums of the squares
+
+    private int numValues = 0;          // number of values summed; the prefix sums P_0 .. P_numValues exist
+    private int limit = 0;              // if > 0, only the last 'limit' values can be used in windows (ring buffer of limit + 1 prefix sums)
+    private int version = 0;            // incremented whenever prefix sums are discarded and recomputed
+    private int first = 0;              // index of the first value summed, see restart()
+
+    PrefixSums() {
+        this(true);
+    }
+
+    PrefixSums(boolean withSquares) {
+        this.withSquares = withSquares;
+
+        sum = new double[INITIAL_CAPACITY];
+        sumErr = new double[INITIAL_CAPACITY];
+
+        if (withSquares) {
+            sumSq = new double[INITIAL_CAPACITY];
+            sumSqErr = new double[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * Add the next value
+     */
+    void append(double x) {
+        int k = slot(numValues);
+        int next = numValues + 1;
+
+        if ((limit == 0) && (next == sum.length)) grow();
+
+        int n = slot(next);
+
+        double s = sum[k] + x;
+        sum[n] = s;
+        sumErr[n] = sumErr[k] + twoSumError(sum[k], x, s);
+
+        if (withSquares) {
+            double x2 = x * x;
+            double q = sumSq[k] + x2;
+            sumSq[n] = q;
+            sumSqErr[n] = sumSqErr[k] + twoSumError(sumSq[k], x2, q);
+        }
+
+        numValues = next;
+    }
+
+    /**
+     * Discard the values from index {@code numValues} on, e.g. before adding them again after one
+     * of them has been replaced
+     */
+    void truncate(int numValues) {
+        Assertion.assertStrict((numValues >= getFirstRetainedIndex()) && (numValues <= this.numValues), Level.ERR,
+                "Cannot truncate the prefix sums to " + numValues + " values; the values " + getFirstRetainedIndex() +
+                " to " + this.numValues + " are available");
+
+        this.numValues = numValues;
+        version++;
+    }
+
+    /**
+     * Start again at index {@code numValues}, with a zero prefix sum, discarding all values. Windows
+     * can only start at or after this index.
+     */
+    void restart(int numValues) {
+        if (limit == 0)
+            while (numValues >= sum.length) grow();
+
+        int k = slot(numValues);
+
+        sum[k] = 0;
+        sumErr[k] = 0;
+
+        if (withSquares) {
+            sumSq[k] = 0;
+            sumSqErr[k] = 0;
+        }
+
+        this.numValues = numValues;
+        this.first = numValues;
+        version++;
+    }
+
+    /**
+     * Keep only the prefix sums needed for windows over the last {@code limit} values
+     */
+    void setHistoryLimit(int limit) {
+        Assertion.assertStrict(limit > 0, Level.ERR, "The history limit of the prefix sums needs to be '> 0'");
+
+        int oldest = Math.max(getFirstRetainedIndex(), numValues - limit);
+        double [][] arrays = withSquares ? new double[][] {sum, sumErr, sumSq, sumSqErr} : new double[][] {sum, sumErr};
+        double [][] rings = new double[arrays.length][limit + 1];
+
+        for (int a = 0; a < arrays.length; a++)
+            for (int k = oldest; k <= numValues; k++)
+                rings[a][k % (limit + 1)] = arrays[a][slot(k)];
+
+        this.limit = limit;
+
+        sum = rings[0];
+        sumErr = rings[1];
+
+        if (withSquares) {
+            sumSq = rings[2];
+            sumSqErr = rings[3];
+        }
+    }
+
+    /**
+     * @return the number of values summed, equal to the size of the time series
+     */
+    public int size() {
+        return numValues;
+    }
+
+    /**
+     * @return the index of the oldest value that can be the start of a window
+     */
+    public int getFirstRetainedIndex() {
+        return limit == 0 ? first : Math.max(first, numValues - limit);
+    }
+
+    /**
+     * @return the number of values that can be used in windows, or 0 if the history is not limited
+     */
+    public int getHistoryLimit() {
+        return limit;
+    }
+
+    /**
+     * @return a counter that changes whenever values have been replaced and the prefix sums recomputed
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return x_from + ... + x_to
+     */
+    public double sum(int from, int to) {
+        checkWindow(from, to);
+
+        int a = slot(from);
+        int b = slot(to + 1);
+
+        return (sum[b] - sum[a]) + (sumErr[b] - sumErr[a]);
+    }
+
+    /**
+     * @return x_from^2 + ... + x_to^2
+     */
+    public double sumOfSquares(int from, int to) {
+        Assertion.assertStrict(withSquares, Level.ERR, "The prefix sums do not include the squares of the values");
+        checkWindow(from, to);
+
+        int a = slot(from);
+        int b = slot(to + 1);
+
+        return (sumSq[b] - sumSq[a]) + (sumSqErr[b] - sumSqErr[a]);
+    }
+
+    /**
+     * @return the mean of the {@code window} values ending at index {@code endTick}
+     */
+    public double mean(int endTick, int window) {
+        return sum(endTick - window + 1, endTick) / window;
+    }
+
+    /**
+     * @return the sample variance (divided by {@code window - 1}) of the {@code window} values ending at
+     * index {@code endTick}. Computed from the sums of the values and of their squares, so about
+     * log10(mean^2 / variance) digits are lost to cancellation.
+     */
+    public double variance(int endTick, int window) {
+        Assertion.assertStrict(window > 1, Level.ERR, "The window of the variance needs to be '> 1'");
+
+        int from = endTick - window + 1;
+        double s = sum(from, endTick);
+        double variance = (sumOfSquares(from, endTick) - s * s / window) / (window - 1);
+
+        return Math.max(variance, 0);
+    }
+
+    /**
+     * @return the sample standard deviation of the {@code window} values ending at index {@code endTick}
+     */
+    public double stdDev(int endTick, int window) {
+        return Math.sqrt(variance(endTick, window));
+    }
+
+    /**
+     * Rounding error of s = a + b, such that a + b = s + error exactly (Knuth's TwoSum)
+     */
+    static double twoSumError(double a, double b, double s) {
+        double bVirtual = s - a;
+        double aVirtual = s - bVirtual;
+
+        return (a - aVirtual) + (b - bVirtual);
+    }
+
+    private int slot(int k) {
+        return limit == 0 ? k : k % (limit + 1);
+    }
+
+    private void checkWindow(int from, int to) {
+        if ((from < getFirstRetainedIndex()) || (to >= numValues) || (from > to + 1))
+            Assertion.assertStrict(false, Level.ERR, "Window [" + from + ", " + to + "] is not available in the prefix sums; " +
+                    "windows have to lie within the values " + getFirstRetainedIndex() + " to " + (numValues - 1));
+    }
+
+    private void grow() {
+        int capacity = 2 * sum.length;
+
+        sum = Arrays.copyOf(sum, capacity);
+        sumErr = Arrays.copyOf(sumErr, capacity);
+
+        if (withSquares) {
+            sumSq = Arrays.copyOf(sumSq, capacity);
+            sumSqErr = Arrays.copyOf(sumSqErr, capacity);
+        }
+    }
+}
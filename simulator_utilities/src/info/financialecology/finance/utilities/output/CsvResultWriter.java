@@ -72,6 +72,18 @@ public class CsvResultWriter implements ResultWriter {
     public void write(Object result) {      // TODO add overloaded method that takes a ResultEnum (see Datastore for method signature)
         write(result, null);
     }
+    
+    /**
+     * Close the underlying file. Needed when many files are written by the same program, e.g. 
+     * one file per sample of a design of experiments, so file handles are not exhausted.
+     */
+    public void close() {
+        try {
+            w.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
     
     /**
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.output;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the records written by a {@link TraceRecorder} and turns them into text, one line per
+ * record, e.g.
+ *
+ * <pre>
+ * t = 1203 | Trader_4 | IBM | REDUCTION | order = -12.5, position = 40.0
+ * </pre>
+ *
+ * The records can be filtered by agent and by tick range. The decoder is used offline, after the
+ * run, so it does not need to be fast:
+ *
+ * <pre>
+ * java info.financialecology.finance.utilities.output.TraceDecoder trace.bin [agent|*] [fromTick toTick]
+ * </pre>
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class TraceDecoder {
+
+    private String [] eventTypeNames;
+    private String [][] eventTypeValueNames;
+    private String [] agentNames;
+    private String [] assetNames;
+    private long numRecorded;
+    private int numRecords;
+    private ByteBuffer records;
+
+    /**
+     * Read a dump of a trace recorder. The stream is not closed.
+     */
+    public TraceDecoder(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+
+        Assertion.assertStrict(data.readInt() == TraceRecorder.MAGIC, Level.ERR, "The stream is not the dump of a trace recorder");
+
+        int numTypes = data.readInt();
+
+        eventTypeNames = new String[numTypes];
+        eventTypeValueNames = new String[numTypes][];
+
+        for (int type = 0; type < numTypes; type++) {
+            eventTypeNames[type] = data.readUTF();
+            eventTypeValueNames[type] = readNames(data);
+        }
+
+        agentNames = readNames(data);
+        assetNames = readNames(data);
+        numRecorded = data.readLong();
+        numRecords = data.readInt();
+
+        byte [] bytes = new byte[numRecords * TraceRecorder.RECORD_SIZE];
+
+        data.readFully(bytes);
+        records = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Read the dump in a file
+     */
+    public static TraceDecoder read(String fileName) {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(fileName));
+
+            try {
+                return new TraceDecoder(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            Assertion.assertStrict(false, Level.ERR, "Cannot read the trace '" + fileName + "': " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of records in the dump, the oldest first
+     */
+    public int getNumRecords() {
+        return numRecords;
+    }
+
+    /**
+     * @return the number of events recorded, including those overwritten before the dump
+     */
+    public long getNumRecorded() {
+        return numRecorded;
+    }
+
+    public int getTick(int record) {
+        return records.getInt(record * TraceRecorder.RECORD_SIZE);
+    }
+
+    public String getEventType(int record) {
+        return eventTypeNames[records.getInt(record * TraceRecorder.RECORD_SIZE + 4)];
+    }
+
+    /**
+     * @return the name of the agent, or null for events without an agent
+     */
+    public String getAgent(int record) {
+        return nameOf(agentNames, records.getInt(record * TraceRecorder.RECORD_SIZE + 8));
+    }
+
+    /**
+     * @return the name of the asset, or null for events without an asset
+     */
+    public String getAsset(int record) {
+        return nameOf(assetNames, records.getInt(record * TraceRecorder.RECORD_SIZE + 12));
+    }
+
+    /**
+     * @param index the index of the value, in [0, {@link TraceRecorder#NUM_VALUES})
+     */
+    public double getValue(int record, int index) {
+        return records.getDouble(record * TraceRecorder.RECORD_SIZE + 16 + 8 * index);
+    }
+
+    /**
+     * @return the record as text
+     */
+    public String toString(int record) {
+        int type = records.getInt(record * TraceRecorder.RECORD_SIZE + 4);
+        String [] valueNames = eventTypeValueNames[type];
+        StringBuilder text = new StringBuilder();
+
+        text.append("t = ").append(getTick(record))
+            .append(" | ").append(orDash(getAgent(record)))
+            .append(" | ").append(orDash(getAsset(record)))
+            .append(" | ").append(eventTypeNames[type]).append(" |");
+
+        for (int i = 0; i < valueNames.length; i++)
+            text.append((i == 0) ? " " : ", ").append(valueNames[i]).append(" = ").append(getValue(record, i));
+
+        return text.toString();
+    }
+
+    /**
+     * Print the records of an agent in a tick range, one per line
+     *
+     * @param agent the name of the agent, or null for all agents; the events without an agent are always printed
+     * @param fromTick the first tick printed
+     * @param toTick the last tick printed
+     */
+    public void print(PrintStream out, String agent, int fromTick, int toTick) {
+        for (int record = 0; record < numRecords; record++) {
+            int tick = getTick(record);
+            String recordAgent = getAgent(record);
+
+            if ((tick < fromTick) || (tick > toTick)) continue;
+            if ((agent != null) && (recordAgent != null) && !agent.equals(recordAgent)) continue;
+
+            out.println(toString(record));
+        }
+    }
+
+    /**
+     * @param args the file of the dump, optionally followed by an agent (or * for all agents) and a tick range
+     */
+    public static void main(String[] args) {
+        if ((args.length != 1) && (args.length != 2) && (args.length != 4)) {
+            System.err.println("Usage: TraceDecoder <file> [<agent>|* [<fromTick> <toTick>]]");
+            System.exit(2);
+        }
+
+        TraceDecoder decoder = read(args[0]);
+        String agent = ((args.length >= 2) && !args[1].equals("*")) ? args[1] : null;
+        int fromTick = (args.length == 4) ? Integer.parseInt(args[2]) : 0;
+        int toTick = (args.length == 4) ? Integer.parseInt(args[3]) : Integer.MAX_VALUE;
+
+        if (decoder.getNumRecorded() > decoder.getNumRecords())
+            System.out.println("# " + (decoder.getNumRecorded() - decoder.getNumRecords()) + " older records were overwritten");
+
+        decoder.print(System.out, agent, fromTick, toTick);
+    }
+
+    private static String [] readNames(DataInputStream data) throws IOException {
+        String [] names = new String[data.readInt()];
+
+        for (int i = 0; i < names.length; i++)
+            names[i] = data.readUTF();
+
+        return names;
+    }
+
+    private static String nameOf(String [] names, int code) {
+        return (code == TraceRecorder.NONE) ? null : names[code];
+    }
+
+    private static String orDash(String name) {
+        return (name == null) ? "-" : name;
+    }
+}
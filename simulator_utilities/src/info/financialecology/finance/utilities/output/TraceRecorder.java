@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.output;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Records the decisions of the agents as binary records of a fixed layout, in place of trace
+ * logging in the hot paths of a simulation. A record holds the tick, the event type, the agent, the
+ * asset and {@value #NUM_VALUES} doubles (e.g. the VaR, the VaR limit and the reduction of a trader):
+ *
+ * <pre>
+ * int tick | int type | int agent | int asset | double value_0 | double value_1 | double value_2
+ * </pre>
+ *
+ * The records go to a ring buffer allocated once, which keeps the last records and overwrites the
+ * oldest ones; recording a value does not box it or allocate any objects. The recorder can be
+ * restricted to some agents and a range of ticks, so that a single agent can be debugged without
+ * slowing down the rest of the run. {@link #write(OutputStream)} dumps the records together with
+ * the names of the event types, agents and assets, and {@link TraceDecoder} turns the dump into text.
+ * <p>
+ * A recorder is installed for the calling thread, like the {@link info.financialecology.finance.utilities.WorldClock}.
+ * The agents obtain it at each call with {@link #current()}, which returns null if tracing is off:
+ *
+ * <pre>
+ * TraceRecorder tracer = TraceRecorder.current();
+ *
+ * if ((tracer != null) &amp;&amp; tracer.isTraced(tick, agent))
+ *     tracer.record(tick, VAR_LIMIT, agent, TraceRecorder.NONE, var, limit, reduction);
+ * </pre>
+ *
+ * The event types are registered once, usually as constants of the class that records them (see
+ * {@link #registerEventType(String, String...)}). The agents and assets are identified by their
+ * names, which are mapped to codes by each recorder.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class TraceRecorder {
+
+    public static final int NUM_VALUES = 3;                     // the doubles of a record
+    public static final int RECORD_SIZE = 4 * 4 + NUM_VALUES * 8;   // bytes
+    public static final int NONE = -1;                          // the agent or asset of events that have none, e.g. the prices of the market
+    static final int MAGIC = 0x54524331;                        // 'TRC1', the start of a dump
+
+    private static final ArrayList<String> eventTypeNames = new ArrayList<String>();        // by event type
+    private static final ArrayList<String []> eventTypeValueNames = new ArrayList<String []>();
+
+    private static final ThreadLocal<TraceRecorder> installed = new ThreadLocal<TraceRecorder>();
+    private static volatile int numInstalled = 0;               // saves the look-up of the thread's recorder while no thread traces
+
+    private final ByteBuffer buffer;            // the ring of records
+    private final int capacity;                 // in records
+    private long numRecorded = 0;               // including those overwritten
+
+    private final HashMap<String, Integer> agentCodes = new HashMap<String, Integer>();
+    private final ArrayList<String> agentNames = new ArrayList<String>();
+    private final HashMap<String, Integer> assetCodes = new HashMap<String, Integer>();
+    private final ArrayList<String> assetNames = new ArrayList<String>();
+
+    private HashSet<String> tracedAgentNames = null;    // null if all agents are traced
+    private boolean [] tracedAgents = new boolean[16];  // by agent code
+    private int fromTick = 0;
+    private int toTick = Integer.MAX_VALUE;
+    private int currentAgent = NONE;            // the agent that is acting, see setCurrentAgent()
+
+    /**
+     * @param capacity the number of records kept; older records are overwritten
+     */
+    public TraceRecorder(int capacity) {
+        Assertion.assertStrict(capacity > 0, Level.ERR, "The capacity of a trace recorder needs to be '> 0'");
+
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocate(capacity * RECORD_SIZE);
+    }
+
+    /**
+     * Register an event type
+     *
+     * @param name the name of the event type; registering a name again returns the same event type
+     * @param valueNames the names of the values of the records, at most {@value #NUM_VALUES}
+     * @return the event type
+     */
+    public static synchronized int registerEventType(String name, String... valueNames) {
+        Assertion.assertStrict(valueNames.length <= NUM_VALUES, Level.ERR, "The event type '" + name + "' has more than " +
+                NUM_VALUES + " values");
+
+        int type = eventTypeNames.indexOf(name);
+
+        if (type >= 0) return type;
+
+        eventTypeNames.add(name);
+        eventTypeValueNames.add(valueNames.clone());
+
+        return eventTypeNames.size() - 1;
+    }
+
+    /**
+     * @return the recorder of the calling thread, or null if the thread does not trace
+     */
+    public static TraceRecorder current() {
+        return (numInstalled == 0) ? null : installed.get();
+    }
+
+    /**
+     * Install the recorder for the calling thread, in place of its current one
+     */
+    public static synchronized void install(TraceRecorder recorder) {
+        Assertion.assertStrict(recorder != null, Level.ERR, "The trace recorder cannot be null; use uninstall()");
+
+        if (installed.get() == null) numInstalled++;
+
+        installed.set(recorder);
+    }
+
+    /**
+     * Stop tracing in the calling thread
+     */
+    public static synchronized void uninstall() {
+        if (installed.get() != null) numInstalled--;
+
+        installed.remove();
+    }
+
+    /**
+     * Trace the given agents only. The events without an agent, such as the prices, are always traced.
+     */
+    public void setAgentFilter(String... names) {
+        tracedAgentNames = new HashSet<String>(Arrays.asList(names));
+
+        for (int agent = 0; agent < agentNames.size(); agent++)
+            tracedAgents[agent] = tracedAgentNames.contains(agentNames.get(agent));
+    }
+
+    /**
+     * Trace the ticks from {@code fromTick} to {@code toTick}, both included
+     */
+    public void setTickFilter(int fromTick, int toTick) {
+        Assertion.assertStrict(fromTick <= toTick, Level.ERR, "The tick range of a trace recorder needs to be non-empty");
+
+        this.fromTick = fromTick;
+        this.toTick = toTick;
+    }
+
+    /**
+     * @return the code of the agent, which is assigned at the first call
+     */
+    public int agent(String name) {
+        Integer code = agentCodes.get(name);
+
+        if (code != null) return code;
+
+        int agent = agentNames.size();
+
+        agentNames.add(name);
+        agentCodes.put(name, agent);
+
+        if (agent == tracedAgents.length)
+            tracedAgents = Arrays.copyOf(tracedAgents, 2 * agent);
+
+        tracedAgents[agent] = (tracedAgentNames == null) || tracedAgentNames.contains(name);
+
+        return agent;
+    }
+
+    /**
+     * @return the code of the asset, which is assigned at the first call
+     */
+    public int asset(String name) {
+        Integer code = assetCodes.get(name);
+
+        if (code != null) return code;
+
+        assetNames.add(name);
+        assetCodes.put(name, assetNames.size() - 1);
+
+        return assetNames.size() - 1;
+    }
+
+    /**
+     * Set the agent that is acting, for the events recorded by objects that do not know their agent,
+     * such as the trading strategies
+     */
+    public void setCurrentAgent(int agent) {
+        this.currentAgent = agent;
+    }
+
+    public int getCurrentAgent() {
+        return currentAgent;
+    }
+
+    /**
+     * @return true if the events of the agent at the tick pass the filters; used to skip the
+     * computation of values that are only recorded
+     */
+    public boolean isTraced(int tick, int agent) {
+        return (tick >= fromTick) && (tick <= toTick) && ((agent == NONE) || tracedAgents[agent]);
+    }
+
+    /**
+     * Record an event, if it passes the filters
+     *
+     * @param agent the code of the agent (see {@link #agent(String)}), or {@link #NONE}
+     * @param asset the code of the asset (see {@link #asset(String)}), or {@link #NONE}
+     */
+    public void record(int tick, int type, int agent, int asset, double value_0, double value_1, double value_2) {
+        if (!isTraced(tick, agent)) return;
+
+        int offset = (int) (numRecorded % capacity) * RECORD_SIZE;
+
+        buffer.putInt(offset, tick);
+        buffer.putInt(offset + 4, type);
+        buffer.putInt(offset + 8, agent);
+        buffer.putInt(offset + 12, asset);
+        buffer.putDouble(offset + 16, value_0);
+        buffer.putDouble(offset + 24, value_1);
+        buffer.putDouble(offset + 32, value_2);
+        numRecorded++;
+    }
+
+    /**
+     * @return the number of events recorded, including those that have been overwritten
+     */
+    public long getNumRecorded() {
+        return numRecorded;
+    }
+
+    /**
+     * @return the number of records in the buffer
+     */
+    public int getNumRecords() {
+        return (int) Math.min(numRecorded, capacity);
+    }
+
+    /**
+     * Discard the records, e.g. between the runs of an experiment. The codes of the agents and
+     * assets are kept.
+     */
+    public void clear() {
+        numRecorded = 0;
+    }
+
+    /**
+     * Write the names of the event types, agents and assets, followed by the records in the order
+     * in which they were recorded. The stream is not closed.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        int numRecords = getNumRecords();
+
+        data.writeInt(MAGIC);
+
+        synchronized (TraceRecorder.class) {
+            data.writeInt(eventTypeNames.size());
+
+            for (int type = 0; type < eventTypeNames.size(); type++) {
+                String [] valueNames = eventTypeValueNames.get(type);
+
+                data.writeUTF(eventTypeNames.get(type));
+                data.writeInt(valueNames.length);
+
+                for (String valueName : valueNames)
+                    data.writeUTF(valueName);
+            }
+        }
+
+        writeNames(data, agentNames);
+        writeNames(data, assetNames);
+
+        data.writeLong(numRecorded);
+        data.writeInt(numRecords);
+
+        int first = (int) ((numRecorded - numRecords) % capacity);     // the oldest record
+        int untilEnd = Math.min(numRecords, capacity - first);
+
+        data.write(buffer.array(), first * RECORD_SIZE, untilEnd * RECORD_SIZE);
+
+        if (numRecords > untilEnd)              // the ring wraps around
+            data.write(buffer.array(), 0, (numRecords - untilEnd) * RECORD_SIZE);
+
+        data.flush();
+    }
+
+    /**
+     * Write the records to a file
+     */
+    public void write(String fileName) {
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+
+            try {
+                write(out);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            Assertion.assertStrict(false, Level.ERR, "Cannot write the trace to '" + fileName + "': " + e.getMessage());
+        }
+    }
+
+    private static void writeNames(DataOutputStream data, ArrayList<String> names) throws IOException {
+        data.writeInt(names.size());
+
+        for (String name : names)
+            data.writeUTF(name);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.statistics;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+
+import java.io.Serializable;
+
+/**
+ * Statistics across the runs of an ensemble, tick by tick: the number of runs, the moments (see
+ * {@link MomentAccumulator}) and the quantiles (see {@link QuantileDigest}) of the values of a time
+ * series at each tick. Each run is added when it finishes, and its series can then be discarded, so
+ * the memory does not grow with the number of runs; e.g. the fan chart of the prices of 10,000 runs
+ * needs the memory of one digest per tick.
+ * <p>
+ * The accumulators of parallel workers can be merged. A run that stopped early contributes to the
+ * ticks it reached only.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class EnsembleAccumulator implements Serializable {
+
+    public static final double DEFAULT_COMPRESSION = 100;
+
+    private final int numTicks;
+    private final double compression;
+    private final MomentAccumulator [] moments;     // by tick
+    private final QuantileDigest [] digests;        // by tick
+    private long numRuns = 0;
+
+    /**
+     * @param numTicks the number of ticks of the runs; later ticks are ignored
+     */
+    public EnsembleAccumulator(int numTicks) {
+        this(numTicks, DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param numTicks the number of ticks of the runs; later ticks are ignored
+     * @param compression the compression of the quantile digests, see {@link QuantileDigest#QuantileDigest(double)}
+     */
+    public EnsembleAccumulator(int numTicks, double compression) {
+        Assertion.assertStrict(numTicks > 0, Level.ERR, "The number of ticks of an ensemble needs to be '> 0'");
+
+        this.numTicks = numTicks;
+        this.compression = compression;
+        this.moments = new MomentAccumulator[numTicks];
+        this.digests = new QuantileDigest[numTicks];
+
+        for (int tick = 0; tick < numTicks; tick++) {
+            moments[tick] = new MomentAccumulator();
+            digests[tick] = new QuantileDigest(compression);
+        }
+    }
+
+    /**
+     * Add the values of a run, from tick 0
+     *
+     * @param ts the time series of the run, with its full history
+     */
+    public void addRun(DoubleTimeSeries ts) {
+        Assertion.assertStrict(ts.getFirstRetainedIndex() == 0, Level.ERR,
+                "The time series '" + ts.getId() + "' does not retain its full history");
+
+        int length = Math.min(ts.size(), numTicks);
+
+        for (int tick = 0; tick < length; tick++) {
+            double value = ts.get(tick);
+
+            moments[tick].increment(value);
+            digests[tick].increment(value);
+        }
+
+        numRuns++;
+    }
+
+    /**
+     * Add the values of a run, from tick 0
+     *
+     * @param values the values of the run
+     * @param length the number of ticks of the run
+     */
+    public void addRun(double [] values, int length) {
+        length = Math.min(length, numTicks);
+
+        for (int tick = 0; tick < length; tick++) {
+            moments[tick].increment(values[tick]);
+            digests[tick].increment(values[tick]);
+        }
+
+        numRuns++;
+    }
+
+    /**
+     * Add the runs of another ensemble, e.g. the partial ensemble of another worker. The other
+     * ensemble is not modified.
+     *
+     * @param other an ensemble with the same number of ticks
+     */
+    public void merge(EnsembleAccumulator other) {
+        Assertion.assertStrict(other.numTicks == numTicks, Level.ERR, "Ensembles of " + numTicks + " and " +
+                other.numTicks + " ticks cannot be merged");
+
+        for (int tick = 0; tick < numTicks; tick++) {
+            moments[tick].merge(other.moments[tick]);
+            digests[tick].merge(other.digests[tick]);
+        }
+
+        numRuns += other.numRuns;
+    }
+
+    public int getNumTicks() {
+        return numTicks;
+    }
+
+    public double getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return the number of runs added, including those of merged ensembles
+     */
+    public long getNumRuns() {
+        return numRuns;
+    }
+
+    /**
+     * @return the number of runs that reached the tick
+     */
+    public long getCount(int tick) {
+        return moments[tick].getN();
+    }
+
+    public double getMean(int tick) {
+        return moments[tick].getMean();
+    }
+
+    /**
+     * @return the sample variance across the runs at the tick
+     */
+    public double getVariance(int tick) {
+        return moments[tick].getVariance();
+    }
+
+    public double getStandardDeviation(int tick) {
+        return moments[tick].getStandardDeviation();
+    }
+
+    /**
+     * @param q the probability, in [0,1]
+     * @return the estimate of the quantile across the runs at the tick
+     */
+    public double getQuantile(int tick, double q) {
+        return digests[tick].getQuantile(q);
+    }
+
+    /**
+     * @return the moments across the runs at the tick
+     */
+    public MomentAccumulator getMoments(int tick) {
+        return moments[tick];
+    }
+
+    /**
+     * @return the mean at each tick reached by a run, e.g. the centre line of a fan chart
+     */
+    public DoubleTimeSeries getMeans() {
+        DoubleTimeSeries ts = new DoubleTimeSeries();
+
+        for (int tick = 0; (tick < numTicks) && (moments[tick].getN() > 0); tick++)
+            ts.add(tick, moments[tick].getMean());
+
+        return ts;
+    }
+
+    /**
+     * @return the standard deviation at each tick reached by a run
+     */
+    public DoubleTimeSeries getStandardDeviations() {
+        DoubleTimeSeries ts = new DoubleTimeSeries();
+
+        for (int tick = 0; (tick < numTicks) && (moments[tick].getN() > 0); tick++)
+            ts.add(tick, moments[tick].getStandardDeviation());
+
+        return ts;
+    }
+
+    /**
+     * @param q the probability, in [0,1]
+     * @return the quantile at each tick reached by a run, e.g. a band of a fan chart
+     */
+    public DoubleTimeSeries getQuantiles(double q) {
+        DoubleTimeSeries ts = new DoubleTimeSeries();
+
+        for (int tick = 0; (tick < numTicks) && (moments[tick].getN() > 0); tick++)
+            ts.add(tick, digests[tick].getQuantile(q));
+
+        return ts;
+    }
+}
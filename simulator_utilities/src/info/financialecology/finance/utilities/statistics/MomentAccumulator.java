@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.statistics;
+
+import java.io.Serializable;
+
+/**
+ * Single-pass accumulator for the first four central moments of a sample. Values are
+ * added one at a time using the numerically stable update formulas of Welford and
+ * Terriberry, and two accumulators can be combined with the pairwise formulas of
+ * Chan et al. and Pebay. No values are stored, so an accumulator uses constant space.
+ * <p>
+ * The sample estimators returned by {@link #getVariance()}, {@link #getSkewness()} and
+ * {@link #getKurtosis()} follow the definitions used by the commons-math
+ * {@code DescriptiveStatistics} class, so they can be used as a drop-in replacement.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class MomentAccumulator implements Serializable {
+
+    private long    n    = 0;      // number of values
+    private double  mean = 0;      // running mean
+    private double  m2   = 0;      // sum of squared deviations from the mean
+    private double  m3   = 0;      // sum of cubed deviations from the mean
+    private double  m4   = 0;      // sum of deviations from the mean to the power of four
+
+    public MomentAccumulator() {
+    }
+
+    /**
+     * Remove all values from the accumulator
+     */
+    public void clear() {
+        n = 0;
+        mean = m2 = m3 = m4 = 0;
+    }
+
+    /**
+     * Add a value to the accumulator
+     *
+     * @param x the new value
+     */
+    public void increment(double x) {
+        long   n1      = n;
+
+        n++;
+
+        double delta   = x - mean;
+        double deltaN  = delta / n;
+        double deltaN2 = deltaN * deltaN;
+        double term1   = delta * deltaN * n1;
+
+        mean += deltaN;
+        m4   += term1 * deltaN2 * ((double) n * n - 3 * n + 3) + 6 * deltaN2 * m2 - 4 * deltaN * m3;
+        m3   += term1 * deltaN * (n - 2) - 3 * deltaN * m2;
+        m2   += term1;
+    }
+
+    /**
+     * Remove a value from the accumulator, by inverting the update of {@link #increment(double)},
+     * e.g. to replace a value that is no longer stored
+     *
+     * @param x a value that has been added
+     */
+    public void decrement(double x) {
+        if (n <= 1) {
+            clear();
+            return;
+        }
+
+        long   n1      = n - 1;
+
+        double deltaN  = (x - mean) / n1;      // the deltaN of the update that added x
+        double deltaN2 = deltaN * deltaN;
+        double term1   = deltaN * deltaN * n * n1;
+
+        mean -= deltaN;
+        m2   -= term1;
+        m3   -= term1 * deltaN * (n - 2) - 3 * deltaN * m2;
+        m4   -= term1 * deltaN2 * ((double) n * n - 3 * n + 3) + 6 * deltaN2 * m2 - 4 * deltaN * m3;
+        n     = n1;
+    }
+
+    /**
+     * Add the values {@code values[from]} to {@code values[to - 1]} to the accumulator
+     *
+     * @param values the array holding the values
+     * @param from the index of the first value (inclusive)
+     * @param to the index of the last value (exclusive)
+     */
+    public void incrementAll(double [] values, int from, int to) {
+        for (int i = from; i < to; i++)
+            increment(values[i]);
+    }
+
+    /**
+     * Combine the moments of another accumulator with the moments of this one. The
+     * result is the same as if all values of {@code other} had been added to this
+     * accumulator. The other accumulator is not modified.
+     *
+     * @param other the accumulator to merge into this one
+     */
+    public void merge(MomentAccumulator other) {
+        if (other.n == 0) return;
+
+        if (n == 0) {
+            n    = other.n;
+            mean = other.mean;
+            m2   = other.m2;
+            m3   = other.m3;
+            m4   = other.m4;
+            return;
+        }
+
+        double na     = n;
+        double nb     = other.n;
+        double nab    = na + nb;
+        double delta  = other.mean - mean;
+        double delta2 = delta * delta;
+
+        double newM4 = m4 + other.m4
+                + delta2 * delta2 * na * nb * (na * na - na * nb + nb * nb) / (nab * nab * nab)
+                + 6 * delta2 * (na * na * other.m2 + nb * nb * m2) / (nab * nab)
+                + 4 * delta * (na * other.m3 - nb * m3) / nab;
+        double newM3 = m3 + other.m3
+                + delta2 * delta * na * nb * (na - nb) / (nab * nab)
+                + 3 * delta * (na * other.m2 - nb * m2) / nab;
+        double newM2 = m2 + other.m2 + delta2 * na * nb / nab;
+
+        mean += delta * nb / nab;
+        m2    = newM2;
+        m3    = newM3;
+        m4    = newM4;
+        n    += other.n;
+    }
+
+    public long getN() {
+        return n;
+    }
+
+    /**
+     * @return the mean of the values, or {@code NaN} if no value has been added
+     */
+    public double getMean() {
+        return n > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * @return the sample (bias-corrected) variance, 0 for a single value and {@code NaN} if empty
+     */
+    public double getVariance() {
+        if (n == 0) return Double.NaN;
+        if (n == 1) return 0.0;
+
+        return m2 / (n - 1);
+    }
+
+    /**
+     * @return the population variance, or {@code NaN} if empty
+     */
+    public double getPopulationVariance() {
+        return n > 0 ? m2 / n : Double.NaN;
+    }
+
+    /**
+     * @return the sample standard deviation, 0 for a single value and {@code NaN} if empty
+     */
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * The bias-corrected sample skewness, as computed by commons-math.
+     *
+     * @return the skewness, or {@code NaN} if there are fewer than three values
+     */
+    public double getSkewness() {
+        if (n < 3) return Double.NaN;
+
+        double variance = m2 / (n - 1);
+        double nd       = n;
+
+        return (nd / ((nd - 1) * (nd - 2))) * m3 / (variance * Math.sqrt(variance));
+    }
+
+    /**
+     * The bias-corrected sample excess kurtosis, as computed by commons-math.
+     *
+     * @return the excess kurtosis, or {@code NaN} if there are fewer than four values
+     */
+    public double getKurtosis() {
+        if (n < 4) return Double.NaN;
+
+        double variance       = m2 / (n - 1);
+        double nd             = n;
+        double coefficientOne = (nd * (nd + 1)) / ((nd - 1) * (nd - 2) * (nd - 3));
+        double termTwo        = (3 * (nd - 1) * (nd - 1)) / ((nd - 2) * (nd - 3));
+
+        return coefficientOne * (m4 / (variance * variance)) - termTwo;
+    }
+
+    /**
+     * The (biased) population excess kurtosis m4 / m2^2 - 3, where m2 and m4 are the
+     * second and fourth central sample moments.
+     *
+     * @return the population excess kurtosis, or {@code NaN} if empty
+     */
+    public double getPopulationExcessKurtosis() {
+        if (n == 0) return Double.NaN;
+
+        return n * m4 / (m2 * m2) - 3;
+    }
+}
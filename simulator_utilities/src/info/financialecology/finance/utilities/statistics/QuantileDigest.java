@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.statistics;
+
+import info.financialecology.finance.utilities.Assertion;
+import info.financialecology.finance.utilities.Assertion.Level;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Streaming estimate of the quantiles of a sample, as a merging t-digest (Dunning and Ertl). The
+ * values are summarised by centroids (a mean and a weight), which are small in the tails and large
+ * around the median, so that extreme quantiles are estimated more accurately than central ones.
+ * The number of centroids is bounded by about the compression, whatever the number of values, and
+ * two digests can be merged, e.g. those of the runs of different workers.
+ * <p>
+ * Values are added to a buffer, which is merged with the centroids when full. The digest is kept
+ * in primitive arrays allocated once.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+@SuppressWarnings("serial")
+public class QuantileDigest implements Serializable {
+
+    private final double compression;
+    private int numCentroids = 0;
+    private double [] mean;                 // the centroids, in increasing order of their means
+    private double [] weight;
+    private double [] mergedMean;           // the centroids being built by compress(), swapped with the above
+    private double [] mergedWeight;
+    private int numBuffered = 0;
+    private double [] bufferMean;           // the values (and centroids of merged digests) not yet compressed
+    private double [] bufferWeight;
+    private double totalWeight = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param compression the accuracy of the digest, e.g. 100; the number of centroids is bounded by
+     * about this value
+     */
+    public QuantileDigest(double compression) {
+        Assertion.assertStrict(compression >= 10, Level.ERR, "The compression of a quantile digest needs to be '>= 10'");
+
+        int maxCentroids = 2 * (int) Math.ceil(compression) + 10;
+        int bufferSize = 5 * (int) Math.ceil(compression);
+
+        this.compression = compression;
+        this.mean = new double[maxCentroids];
+        this.weight = new double[maxCentroids];
+        this.mergedMean = new double[maxCentroids];
+        this.mergedWeight = new double[maxCentroids];
+        this.bufferMean = new double[bufferSize];
+        this.bufferWeight = new double[bufferSize];
+    }
+
+    /**
+     * Add a value to the digest
+     */
+    public void increment(double x) {
+        add(x, 1);
+    }
+
+    /**
+     * Add the values of another digest to this one. The other digest is not modified.
+     */
+    public void merge(QuantileDigest other) {
+        Assertion.assertStrict(other != this, Level.ERR, "A quantile digest cannot be merged with itself");
+
+        for (int i = 0; i < other.numCentroids; i++)
+            add(other.mean[i], other.weight[i]);
+
+        for (int i = 0; i < other.numBuffered; i++)
+            add(other.bufferMean[i], other.bufferWeight[i]);
+
+        if (other.totalWeight > 0) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+    }
+
+    /**
+     * @return the number of values added, including those of merged digests
+     */
+    public long getN() {
+        return (long) totalWeight;
+    }
+
+    /**
+     * Estimate a quantile by interpolating between the centroids, and between the extreme centroids
+     * and the minimum and maximum
+     *
+     * @param q the probability, in [0,1]
+     * @return the estimate of the quantile, or {@code NaN} if no value has been added
+     */
+    public double getQuantile(double q) {
+        Assertion.assertStrict((q >= 0) && (q <= 1), Level.ERR, "The probability of a quantile needs to be in [0,1]");
+
+        compress();
+
+        if (numCentroids == 0) return Double.NaN;
+
+        double index = q * totalWeight;     // the position of the quantile in the cumulative weight
+
+        if (index <= weight[0] / 2)         // below the centre of the first centroid
+            return min + (mean[0] - min) * index / (weight[0] / 2);
+
+        double cumulative = weight[0] / 2;  // the cumulative weight at the centre of centroid i
+
+        for (int i = 0; i < numCentroids - 1; i++) {
+            double step = (weight[i] + weight[i + 1]) / 2;
+
+            if (index <= cumulative + step)
+                return mean[i] + (mean[i + 1] - mean[i]) * (index - cumulative) / step;
+
+            cumulative += step;
+        }
+
+        double lastHalf = weight[numCentroids - 1] / 2;     // above the centre of the last centroid
+
+        return mean[numCentroids - 1] + (max - mean[numCentroids - 1]) * Math.min(1, (index - cumulative) / lastHalf);
+    }
+
+    public double getMin() {
+        return (totalWeight > 0) ? min : Double.NaN;
+    }
+
+    public double getMax() {
+        return (totalWeight > 0) ? max : Double.NaN;
+    }
+
+    /**
+     * @return the number of centroids, after merging the buffer
+     */
+    public int getNumCentroids() {
+        compress();
+
+        return numCentroids;
+    }
+
+    private void add(double x, double w) {
+        if (numBuffered == bufferMean.length)
+            compress();
+
+        bufferMean[numBuffered] = x;
+        bufferWeight[numBuffered] = w;
+        numBuffered++;
+        totalWeight += w;
+
+        if (x < min) min = x;
+        if (x > max) max = x;
+    }
+
+    /**
+     * Merge the buffer with the centroids: walk the buffer and the centroids in increasing order and
+     * join neighbours as long as the joint centroid spans at most one unit of the scale function
+     * k(q) = compression / (2 pi) asin(2q - 1)
+     */
+    private void compress() {
+        if (numBuffered == 0) return;
+
+        sort(bufferMean, bufferWeight, 0, numBuffered - 1);
+
+        int i = 0;                          // next centroid
+        int j = 0;                          // next buffered value
+        int numMerged = 0;
+        double weightSoFar = 0;             // the weight of the centroids completed
+        double weightLimit = totalWeight * limit(0);    // the current centroid cannot grow beyond this cumulative weight
+
+        while ((i < numCentroids) || (j < numBuffered)) {
+            double x, w;
+
+            if ((j >= numBuffered) || ((i < numCentroids) && (mean[i] <= bufferMean[j]))) {
+                x = mean[i];
+                w = weight[i++];
+            }
+            else {
+                x = bufferMean[j];
+                w = bufferWeight[j++];
+            }
+
+            if (numMerged > 0) {
+                double joint = mergedWeight[numMerged - 1] + w;
+
+                if (weightSoFar + joint <= weightLimit) {
+                    mergedMean[numMerged - 1] += (x - mergedMean[numMerged - 1]) * w / joint;
+                    mergedWeight[numMerged - 1] = joint;
+                    continue;
+                }
+
+                weightSoFar += mergedWeight[numMerged - 1];
+                weightLimit = totalWeight * limit(weightSoFar / totalWeight);
+            }
+
+            if (numMerged == mergedMean.length)
+                grow();
+
+            mergedMean[numMerged] = x;
+            mergedWeight[numMerged] = w;
+            numMerged++;
+        }
+
+        double [] swap = mean;
+
+        mean = mergedMean;
+        mergedMean = swap;
+        swap = weight;
+        weight = mergedWeight;
+        mergedWeight = swap;
+        numCentroids = numMerged;
+        numBuffered = 0;
+    }
+
+    /**
+     * @return the probability one unit of the scale function above {@code q}
+     */
+    private double limit(double q) {
+        double k = compression / (2 * Math.PI) * Math.asin(2 * Math.min(1, q) - 1) + 1;
+
+        return (k >= compression / 4) ? 1 : (Math.sin(2 * Math.PI * k / compression) + 1) / 2;
+    }
+
+    private void grow() {
+        int length = 2 * mergedMean.length;
+
+        mergedMean = Arrays.copyOf(mergedMean, length);
+        mergedWeight = Arrays.copyOf(mergedWeight, length);
+        mean = Arrays.copyOf(mean, length);
+        weight = Arrays.copyOf(weight, length);
+    }
+
+    /**
+     * Sort the values and their weights by value, in place (quicksort, insertion sort for short ranges)
+     */
+    private static void sort(double [] values, double [] weights, int lo, int hi) {
+        while (hi - lo > 16) {
+            double pivot = values[(lo + hi) >>> 1];
+            int left = lo;
+            int right = hi;
+
+            while (left <= right) {
+                while (values[left] < pivot) left++;
+                while (values[right] > pivot) right--;
+
+                if (left <= right) {
+                    swap(values, weights, left++, right--);
+                }
+            }
+
+            if (right - lo < hi - left) {       // recurse into the shorter part
+                sort(values, weights, lo, right);
+                lo = left;
+            }
+            else {
+                sort(values, weights, left, hi);
+                hi = right;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; i++)
+            for (int k = i; (k > lo) && (values[k - 1] > values[k]); k--)
+                swap(values, weights, k - 1, k);
+    }
+
+    private static void swap(double [] values, double [] weights, int a, int b) {
+        double value = values[a];
+        double weight = weights[a];
+
+        values[a] = values[b];
+        weights[a] = weights[b];
+        values[b] = value;
+        weights[b] = weight;
+    }
+}
@@ -84,7 +84,8 @@ public class StatsTimeSeries {
     
     /**
      * Forces a full MA computation of a time series at time t
-     * (see problem mentioned in MA(...) method above)
+     * (see problem mentioned in MA(...) method above). Takes constant
+     * time if the time series maintains prefix sums.
      * 
      * @param dts the time series
      * @param maTicks the size of the MA window
@@ -97,6 +98,9 @@ public class StatsTimeSeries {
         if (numTicksDts < maTicks)
             Assertion.assertStrict(false, Level.ERR, "Not enough " +
                     "data points to compute the MA(" + maTicks + ") moving average");            
+        
+        if (dts.hasPrefixSums())
+            return dts.getPrefixSums().mean(numTicksDts - 1, maTicks);
             
         for (int i = dts.size() - maTicks; i < dts.size(); i++)
             ma_t += dts.getValue(i);
@@ -204,6 +208,9 @@ public class StatsTimeSeries {
             Assertion.assertStrict(false, Level.ERR, "Not enough data points to compute the mean of " + ts);
     	}
     	
+        if (ts.hasPrefixSums())
+            return ts.getPrefixSums().mean(ts.size() - 1, window);
+        
     	for (int i = ts.size() - window; i < ts.size(); i++) {
             dtsPartial.add(ts.getValue(i));
     	}
@@ -227,6 +234,9 @@ public class StatsTimeSeries {
             Assertion.assertStrict(false, Level.ERR, "Not enough data points to compute the stdDev of " + ts);
     	}
     	
+        if (ts.hasPrefixSums() && (window > 1))
+            return ts.getPrefixSums().stdDev(ts.size() - 1, window);
+        
     	for (int i = ts.size() - window; i < ts.size(); i++) {
             dtsPartial.add(ts.getValue(i));
     	}
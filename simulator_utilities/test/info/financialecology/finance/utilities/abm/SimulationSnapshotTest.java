@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.abm;
+
+import static org.junit.Assert.*;
+
+import info.financialecology.finance.utilities.WorldClock;
+import info.financialecology.finance.utilities.datagen.BrownianProcess;
+import info.financialecology.finance.utilities.datagen.DataGeneratorBuffer;
+import info.financialecology.finance.utilities.datagen.RandomGeneratorPool;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class SimulationSnapshotTest {
+
+    private static final int NUM_TICKS = 500;
+    private static final int WARM_UP = 200;
+
+    /**
+     * A random walk, drawn through a buffer so that the snapshot also covers values drawn ahead
+     */
+    @SuppressWarnings("serial")
+    private static class WalkSimulator extends AbstractSimulator {
+        private DataGeneratorBuffer walk = new DataGeneratorBuffer(new BrownianProcess("walk", BrownianProcess.Type.ARITHMETIC, 100.0, 0.1, 1.0), false, 64);
+        private DoubleTimeSeries tsWalk = new DoubleTimeSeries();
+
+        @Override
+        public void run() {
+            while (currentTick() < nTicks) {
+                tsWalk.add((int) currentTick(), walk.next());
+                incrementTick();
+            }
+        }
+    }
+
+    private static WalkSimulator warmUp() {
+        WorldClock.reset();
+        RandomGeneratorPool.configureGeneratorPool(4711);
+
+        WalkSimulator simulator = new WalkSimulator();
+
+        simulator.setNumTicks(WARM_UP);
+        simulator.run();
+
+        return simulator;
+    }
+
+    @Test
+    public void restore_continuesLikeOriginal() {
+        WalkSimulator original = warmUp();
+        SimulationSnapshot<WalkSimulator> snapshot = SimulationSnapshot.take(original);
+
+        original.setNumTicks(NUM_TICKS);
+        original.run();
+
+        WorldClock.reset();     // the snapshot restores the clock
+        WalkSimulator restored = snapshot.restore();
+
+        assertEquals(WARM_UP, snapshot.getTick());
+        assertEquals(WARM_UP, WorldClock.currentTick());
+
+        restored.setNumTicks(NUM_TICKS);
+        restored.run();
+
+        assertNotSame(original.tsWalk, restored.tsWalk);
+
+        for (int t = 0; t < NUM_TICKS; t++)
+            assertEquals(original.tsWalk.get(t), restored.tsWalk.get(t), 0);
+    }
+
+    @Test
+    public void fork_branchesAreIndependentCopies() {
+        WalkSimulator original = warmUp();
+        SimulationSnapshot<WalkSimulator> snapshot = SimulationSnapshot.take(original);
+        final double [][] paths = new double[4][];
+
+        original.setNumTicks(NUM_TICKS);
+        original.run();
+
+        int numFailed = snapshot.fork(paths.length, 2, new SimulationSnapshot.Branch<WalkSimulator>() {
+            public void run(int index, WalkSimulator simulator) {
+                simulator.setNumTicks(NUM_TICKS + index);   // the branches differ in their length
+                simulator.run();
+                paths[index] = new double[simulator.tsWalk.size()];
+
+                for (int t = 0; t < paths[index].length; t++)
+                    paths[index][t] = simulator.tsWalk.get(t);
+            }
+        });
+
+        assertEquals(0, numFailed);
+
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(NUM_TICKS + i, paths[i].length);
+
+            for (int t = 0; t < NUM_TICKS; t++)
+                assertEquals(original.tsWalk.get(t), paths[i][t], 0);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.abm;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import cern.colt.list.IntArrayList;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class TimingWheelTest {
+
+    private static final int NUM_AGENTS = 500;
+    private static final int NUM_TICKS = 20000;
+
+    /**
+     * Agents that wake up at random intervals, from one tick to beyond the range of the first two 
+     * levels, each fire exactly at the ticks at which they are due
+     */
+    @Test
+    public void advance_firesEventsAtTheirTicks() {
+        Random random = new Random(42);
+        int start = 4000;
+        TimingWheel wheel = new TimingWheel(start);
+        int [] due = new int[NUM_AGENTS];
+        IntArrayList fired = new IntArrayList();
+
+        for (int i = 0; i < NUM_AGENTS; i++) {
+            due[i] = start + random.nextInt(10);
+            wheel.schedule(i, due[i]);
+        }
+
+        for (int t = start; t < start + NUM_TICKS; t++) {
+            assertEquals(t, wheel.advance(fired));
+
+            int [] ids = Arrays.copyOf(fired.elements(), fired.size());
+            int numDue = 0;
+
+            Arrays.sort(ids);
+
+            for (int i = 0; i < NUM_AGENTS; i++) {
+                if (due[i] != t) continue;
+
+                assertTrue(Arrays.binarySearch(ids, i) >= 0);
+                numDue++;
+                due[i] = t + 1 + (random.nextBoolean() ? random.nextInt(5) : random.nextInt(6000));
+                wheel.schedule(i, due[i]);
+            }
+
+            assertEquals(numDue, ids.length);
+        }
+
+        assertEquals(NUM_AGENTS, wheel.getNumEvents());
+    }
+}
@@ -100,31 +100,31 @@ public class AR1ProcessTest {
                     " - Expected: " + autocorr.get(lag) + " - Diff: " + diffAutocorrOfSample.get(lag));
 
         assertEquals("The difference between the mean of the sample and the mean of the AR(1) "
-                + "process should be approx. 1.371783E-4", 1.371783E-4, diffMean, 1E-10);
+                + "process should be approx. 9.443715E-5", 9.443715E-5, diffMean, 1E-10);
         assertEquals("The difference between the variance of the sample and the variance of the AR(1) "
-                + "process should be approx. 6.602723E-4", 6.602723E-4, diffVar, 1E-10);
+                + "process should be approx. 3.747339E-4", 3.747339E-4, diffVar, 1E-10);
         assertEquals("The difference between the lag 0 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. -4.675013E-10", -4.675013E-10, diffAutocorrOfSample.get(0), 1E-16);
+                + "process should be approx. 3.8987286E-9", 3.8987286E-9, diffAutocorrOfSample.get(0), 1E-16);
         assertEquals("The difference between the lag 1 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. 3.980385E-5", 3.980385E-5, diffAutocorrOfSample.get(1), 1E-11);
+                + "process should be approx. -2.8637224E-4", -2.8637224E-4, diffAutocorrOfSample.get(1), 1E-11);
         assertEquals("The difference between the lag 2 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. -1.043077E-4", -1.043077E-4, diffAutocorrOfSample.get(2), 1E-10);
+                + "process should be approx. -3.623380E-4", -3.623380E-4, diffAutocorrOfSample.get(2), 1E-10);
         assertEquals("The difference between the lag 3 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. 4.907050E-5", 4.907050E-5, diffAutocorrOfSample.get(3), 1E-11);
+                + "process should be approx. -2.0761526E-4", -2.0761526E-4, diffAutocorrOfSample.get(3), 1E-11);
         assertEquals("The difference between the lag 4 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. 8.288177E-5", 8.288177E-5, diffAutocorrOfSample.get(4), 1E-11);
+                + "process should be approx. -3.3887588E-4", -3.3887588E-4, diffAutocorrOfSample.get(4), 1E-11);
         assertEquals("The difference between the lag 5 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. 9.694461E-5", 9.694461E-5, diffAutocorrOfSample.get(5), 1E-11);
+                + "process should be approx. -1.1315943E-4", -1.1315943E-4, diffAutocorrOfSample.get(5), 1E-11);
         assertEquals("The difference between the lag 6 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. -1.841221E-4", -1.841221E-4, diffAutocorrOfSample.get(6), 1E-10);
+                + "process should be approx. -1.547776E-5", -1.547776E-5, diffAutocorrOfSample.get(6), 1E-10);
         assertEquals("The difference between the lag 7 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. -4.238065E-4", -4.238065E-4, diffAutocorrOfSample.get(7), 1E-10);
+                + "process should be approx. -3.388137E-4", -3.388137E-4, diffAutocorrOfSample.get(7), 1E-10);
         assertEquals("The difference between the lag 8 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. 7.055056E-5", 7.055056E-5, diffAutocorrOfSample.get(8), 1E-11);
+                + "process should be approx. -4.0442014E-4", -4.0442014E-4, diffAutocorrOfSample.get(8), 1E-11);
         assertEquals("The difference between the lag 9 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. 2.203333E-4", 2.203333E-4, diffAutocorrOfSample.get(9), 1E-10);
+                + "process should be approx. -2.512452E-4", -2.512452E-4, diffAutocorrOfSample.get(9), 1E-10);
         assertEquals("The difference between the lag 10 autocorrelation of the sample and that of the AR(1) "
-                + "process should be approx. 3.663939E-4", 3.663939E-4, diffAutocorrOfSample.get(10), 1E-10);
+                + "process should be approx. -5.734230E-5", -5.734230E-5, diffAutocorrOfSample.get(10), 1E-10);
 
         System.out.println();
         System.out.println("Success");
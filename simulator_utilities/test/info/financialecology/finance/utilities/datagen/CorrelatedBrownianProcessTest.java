@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ * 
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datagen;
+
+import static org.junit.Assert.*;
+import info.financialecology.finance.utilities.datagen.BrownianProcess.Type;
+
+import org.junit.Test;
+
+import cern.colt.list.DoubleArrayList;
+import cern.jet.stat.Descriptive;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class CorrelatedBrownianProcessTest {
+
+    private static final double [][] CORRELATION = {
+        { 1.0,  0.6, -0.3},
+        { 0.6,  1.0,  0.2},
+        {-0.3,  0.2,  1.0}};
+
+    private static CorrelatedBrownianProcess createProcess(int blockSize) {
+        RandomGeneratorPool.configureGeneratorPool(731);
+
+        return new CorrelatedBrownianProcess("correlated", Type.ARITHMETIC, CORRELATION, blockSize,
+                100.0, 0.0, 1.0,
+                50.0, 0.1, 2.0,
+                80.0, -0.1, 0.5);
+    }
+
+    /**
+     * The increments of the processes have the volatilities and correlations of the parameters
+     */
+    @Test
+    public void nextDoubleIncrement_distributional() {
+        int numData = 200000;
+        CorrelatedBrownianProcess p = createProcess(CorrelatedBrownianProcess.DEFAULT_BLOCK_SIZE);
+        double [] sigma = {1.0, 2.0, 0.5};
+        DoubleArrayList [] data = new DoubleArrayList[3];
+
+        for (int k = 0; k < 3; k++)
+            data[k] = new DoubleArrayList(numData);
+
+        for (int i = 0; i < numData; i++)
+            for (int k = 0; k < 3; k++)
+                data[k].add(p.getProcess(k).nextDoubleIncrement());
+
+        double [] stdev = new double[3];
+
+        for (int k = 0; k < 3; k++) {
+            stdev[k] = Math.sqrt(Descriptive.sampleVariance(data[k], Descriptive.mean(data[k])));
+
+            assertEquals(sigma[k], stdev[k], 0.01 * sigma[k]);
+
+            for (int j = 0; j < k; j++)
+                assertEquals(CORRELATION[k][j], Descriptive.correlation(data[k], stdev[k], data[j], stdev[j]), 0.01);
+        }
+    }
+
+    /**
+     * The values do not depend on the block size, or on whether the processes are read one value
+     * at a time or in blocks of different sizes.
+     */
+    @Test
+    public void nextDoubles_blockEqualsScalar() {
+        int numData = 1000;
+        CorrelatedBrownianProcess scalar = createProcess(7);
+        CorrelatedBrownianProcess block = createProcess(CorrelatedBrownianProcess.DEFAULT_BLOCK_SIZE);
+        DataGeneratorBuffer [] buffers = new DataGeneratorBuffer[3];
+
+        for (int k = 0; k < 3; k++)
+            buffers[k] = new DataGeneratorBuffer(block.getProcess(k), false, 50 + 100 * k);
+
+        for (int i = 0; i < numData; i++)
+            for (int k = 0; k < 3; k++)
+                assertEquals(scalar.getProcess(k).nextDouble(), buffers[k].next(), 0);
+    }
+}
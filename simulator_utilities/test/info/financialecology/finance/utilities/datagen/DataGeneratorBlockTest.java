@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ * 
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datagen;
+
+import static org.junit.Assert.*;
+
+import info.financialecology.finance.utilities.datagen.OverlayDataGenerator.GeneratorType;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class DataGeneratorBlockTest {
+
+    private static final int NUM_DATA = 1000;
+
+    /**
+     * Creates one generator of each kind used by the simulators. Each generator draws from its
+     * own random stream, so the values do not depend on the order in which they are drawn.
+     */
+    private static DataGenerator [] createGenerators() {
+        RandomGeneratorPool.configureGeneratorPool(2357);
+
+        return new DataGenerator[] {
+                new OverlayDataGenerator("sinus_normal", GeneratorType.SINUS, GeneratorType.NORMAL, 100.0, 5.0, 3.0, 20.0, 0.0, 1.0),
+                new OverlayDataGenerator("step_uniform", GeneratorType.STEP, GeneratorType.UNIFORM, 50.0, 5.0, 3.0, 7.0, -1.0, 1.0),
+                new OverlayDataGenerator("sinus_gbm", GeneratorType.SINUS, GeneratorType.GEOMETRIC_BROWNIAN_PROCESS, 100.0, 2.0, 0.0, 30.0, 0.001, 0.01),
+                new BrownianProcess("abm", BrownianProcess.Type.ARITHMETIC, 100.0, 0.1, 1.0),
+                new AR1Process("ar1", 1.0, 0.5, 0.2)
+        };
+    }
+
+    /**
+     * Values drawn in blocks of varying size, and through a {@link DataGeneratorBuffer}, are
+     * identical to those drawn one at a time.
+     */
+    @Test
+    public void nextDoubles_blockEqualsScalar() {
+        DataGenerator [] scalar = createGenerators();
+        DataGenerator [] block = createGenerators();
+        DataGenerator [] buffered = createGenerators();
+
+        for (int k = 0; k < scalar.length; k++) {
+            double [] values = new double[NUM_DATA];
+            DataGeneratorBuffer buffer = new DataGeneratorBuffer(buffered[k], false, 64);
+
+            block[k].nextDoubles(values, 0, 1);
+            block[k].nextDoubles(values, 1, 299);
+            block[k].nextDoubles(values, 300, NUM_DATA - 300);
+
+            for (int i = 0; i < NUM_DATA; i++) {
+                double value = scalar[k].nextDouble();
+
+                assertEquals(value, values[i], 0);
+                assertEquals(value, buffer.next(), 0);
+            }
+        }
+    }
+
+    /**
+     * Increments drawn in blocks, and through a {@link DataGeneratorBuffer}, are identical to
+     * those drawn one at a time.
+     */
+    @Test
+    public void nextDoubleIncrements_blockEqualsScalar() {
+        DataGenerator [] scalar = createGenerators();
+        DataGenerator [] block = createGenerators();
+        DataGenerator [] buffered = createGenerators();
+
+        for (int k = 0; k < scalar.length; k++) {
+            double [] increments = new double[NUM_DATA];
+            DataGeneratorBuffer buffer = new DataGeneratorBuffer(buffered[k], true, 64);
+
+            block[k].nextDoubleIncrements(increments, 0, 500);
+            block[k].nextDoubleIncrements(increments, 500, NUM_DATA - 500);
+
+            for (int i = 0; i < NUM_DATA; i++) {
+                double increment = scalar[k].nextDoubleIncrement();
+
+                assertEquals(increment, increments[i], 0);
+                assertEquals(increment, buffer.next(), 0);
+            }
+        }
+    }
+}
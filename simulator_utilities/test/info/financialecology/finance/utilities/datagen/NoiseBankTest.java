@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datagen;
+
+import static org.junit.Assert.*;
+
+import info.financialecology.finance.utilities.datagen.OverlayDataGenerator.GeneratorType;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class NoiseBankTest {
+
+    private static final int BANK_LENGTH = 300;
+    private static final int NUM_DATA = 1000;     // read past the end of the bank
+
+    private static DataGenerator createGenerator() {
+        RandomGeneratorPool.configureGeneratorPool(1618);
+
+        return new OverlayDataGenerator("price", GeneratorType.SINUS, GeneratorType.ARITHMETIC_BROWNIAN_PROCESS, 100.0, 0.0, 0.0, 100.0, 0.0, 1.0);
+    }
+
+    /**
+     * Every run replays the values of the generator, in the bank and beyond
+     */
+    private static void assertReplaysGenerator(NoiseBank bank, boolean increments) {
+        for (int run = 0; run < 3; run++) {
+            DataGenerator direct = createGenerator();
+            DataGeneratorBuffer replayed = new DataGeneratorBuffer(bank.replay("price", createGenerator(), increments), increments, 64);
+
+            for (int i = 0; i < NUM_DATA; i++)
+                assertEquals(increments ? direct.nextDoubleIncrement() : direct.nextDouble(), replayed.next(), 0);
+        }
+    }
+
+    @Test
+    public void memoryBank_replaysGenerator() {
+        NoiseBank bank = new NoiseBank(BANK_LENGTH);
+
+        assertReplaysGenerator(bank, false);
+        assertReplaysGenerator(bank, true);
+        assertEquals(2, bank.getNumStreams());
+    }
+
+    @Test
+    public void fileBank_reusesFiles() throws IOException {
+        File directory = File.createTempFile("noise", "");
+
+        directory.delete();
+
+        assertReplaysGenerator(new NoiseBank(directory, BANK_LENGTH), true);
+
+        File file = new File(directory, "price.increments");
+
+        assertEquals(8L * BANK_LENGTH, file.length());
+
+        DataGenerator replayed = new NoiseBank(directory, BANK_LENGTH).replay("price", new RandomDistDataGenerator("other", RandomGeneratorPool.DistributionType.UNIFORM, 0.0, 1.0), true);
+        DataGenerator direct = createGenerator();
+
+        for (int i = 0; i < BANK_LENGTH; i++)      // the values in the file, not those of the generator passed along
+            assertEquals(direct.nextDoubleIncrement(), replayed.nextDoubleIncrement(), 0);
+
+        file.delete();
+        directory.delete();
+    }
+}
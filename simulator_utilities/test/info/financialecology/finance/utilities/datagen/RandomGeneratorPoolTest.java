@@ -46,8 +46,8 @@ public class RandomGeneratorPoolTest {
     
     
     /**
-     * Given a particular seed, the generator pool should create generators that produce identical
-     * random number sequences.
+     * Given a particular seed, the generator pool should create generators with the same names that 
+     * produce identical random number sequences.
      */
     @Test
     public void configureGeneratorPool_seed_succeed() {
@@ -81,8 +81,8 @@ public class RandomGeneratorPoolTest {
 
         RandomGeneratorPool.configureGeneratorPool(seed);        
         
-        Uniform unif_2 = RandomGeneratorPool.createUniformGenerator("Uniform2", -10, 10);
-        Normal norm_2 = RandomGeneratorPool.createNormalGenerator("Normal2", 5, 0.5);
+        Uniform unif_2 = RandomGeneratorPool.createUniformGenerator("Uniform1", -10, 10);
+        Normal norm_2 = RandomGeneratorPool.createNormalGenerator("Normal1", 5, 0.5);
                 
         for (int i = 0; i < numData; i++) {
             dal_u_2.add(unif_2.nextDouble());
@@ -143,13 +143,13 @@ public class RandomGeneratorPoolTest {
                 " - Diff: " + diffVar);
                     
         assertEquals("The difference between the maximum of the sample and the upper bound of the uniform "
-                + "distribution should be approx. 0.0024621", 0.0024621, diffMax, 0.0000001);
+                + "distribution should be approx. 0.0015926", 0.0015926, diffMax, 0.0000001);
         assertEquals("The difference between the minimum of the sample and the lower bound of the uniform "
-                + "distribution  should be approx. 0.0002654", 0.0002654, diffMin, 0.0000001);
+                + "distribution  should be approx. 0.0003981", 0.0003981, diffMin, 0.0000001);
         assertEquals("The difference between the mean of the sample and the mean of the uniform distribution "
-                + "should be approx. 0.6520551", 0.6520551, diffMean, 0.0000001);
+                + "should be approx. 0.0906731", 0.0906731, diffMean, 0.0000001);
         assertEquals("The difference between the variance of the sample and the variance of the uniform "
-                + "distribution should be approx. 120.2097675", 120.2097675, diffVar, 0.0000001);
+                + "distribution should be approx. 2313.2023051", 2313.2023051, diffVar, 0.0000001);
 
         System.out.println();
         System.out.println("Success");
@@ -240,7 +240,7 @@ public class RandomGeneratorPoolTest {
     
     /**
      * Test whether the multi-dimensional distribution generates the same sequences than a set of single 
-     * distributions, having the same start index into the RandomSeedTable.
+     * distributions, having the same pool seed and the same names.
      */
     @Test
     public void createUniformMultiGenerator_comparewith_createUniformGenerator_succeed() {
@@ -272,22 +272,22 @@ public class RandomGeneratorPoolTest {
         
         RandomGeneratorPool.configureGeneratorPool(seedStartIndex);     // reset the pool
                     
-        Uniform uniform = RandomGeneratorPool.createUniformGenerator("u0", -10, 2);
+        Uniform uniform = RandomGeneratorPool.createUniformGenerator("multi_uniform_0", -10, 2);
         
         for (int r = 0; r < numData; r++)
             assertEquals("The data stream 1 from the multi generator has to be the same than that from the single generator", adal.get(0).get(r), uniform.nextDouble(), precision);
             
-        uniform = RandomGeneratorPool.createUniformGenerator("u1", 34, 56);
+        uniform = RandomGeneratorPool.createUniformGenerator("multi_uniform_1", 34, 56);
                 
         for (int r = 0; r < numData; r++)
             assertEquals("The data stream 2 from the multi generator has to be the same than that from the single generator", adal.get(1).get(r), uniform.nextDouble(), precision);
             
-        uniform = RandomGeneratorPool.createUniformGenerator("u2", -6, -1);
+        uniform = RandomGeneratorPool.createUniformGenerator("multi_uniform_2", -6, -1);
         
         for (int r = 0; r < numData; r++)
             assertEquals("The data stream 3 from the multi generator has to be the same than that from the single generator", adal.get(2).get(r), uniform.nextDouble(), precision);
         
-        uniform = RandomGeneratorPool.createUniformGenerator("u3", 1000, 2000);
+        uniform = RandomGeneratorPool.createUniformGenerator("multi_uniform_3", 1000, 2000);
         
         for (int r = 0; r < numData; r++)
             assertEquals("The data stream 4 from the multi generator has to be the same than that from the single generator", adal.get(3).get(r), uniform.nextDouble(), precision);
@@ -333,9 +333,9 @@ public class RandomGeneratorPoolTest {
                 " - Diff: " + diffVar);
         
         assertEquals("The difference between the mean of the sample and the mean of the normal distribution "
-                + "should be approx. 0.0004785", 0.0004785, diffMean, 0.0000001);
+                + "should be approx. 0.0002066", 0.0002066, diffMean, 0.0000001);
         assertEquals("The difference between the variance of the sample and the variance of the normal "
-                + "distribution should be approx. 0.00147222", 0.00147222, diffVar, 0.00000001);
+                + "distribution should be approx. 0.00028496", 0.00028496, diffVar, 0.00000001);
 
         System.out.println();
         System.out.println("Success");
@@ -410,7 +410,7 @@ public class RandomGeneratorPoolTest {
     
     /**
      * Test whether the multi-dimensional distribution generates the same sequences than a set of single 
-     * distributions, having the same start index into the RandomSeedTable.
+     * distributions, having the same pool seed and the same names.
      */
     @Test
     public void createNormalMultiGenerator_comparewith_createNormalGenerator_succeed() {
@@ -442,22 +442,22 @@ public class RandomGeneratorPoolTest {
         
         RandomGeneratorPool.configureGeneratorPool(seedStartIndex);     // reset the pool
                     
-        Normal normal = RandomGeneratorPool.createNormalGenerator("n0", -10, 2);
+        Normal normal = RandomGeneratorPool.createNormalGenerator("multi_normal_0", -10, 2);
         
         for (int r = 0; r < numData; r++)
             assertEquals("The data stream 1 from the multi generator has to be the same than that from the single generator", adal.get(0).get(r), normal.nextDouble(), precision);
             
-        normal = RandomGeneratorPool.createNormalGenerator("n1", 340, 0.56);
+        normal = RandomGeneratorPool.createNormalGenerator("multi_normal_1", 340, 0.56);
                 
         for (int r = 0; r < numData; r++)
             assertEquals("The data stream 2 from the multi generator has to be the same than that from the single generator", adal.get(1).get(r), normal.nextDouble(), precision);
             
-        normal = RandomGeneratorPool.createNormalGenerator("n2", -6, 1);
+        normal = RandomGeneratorPool.createNormalGenerator("multi_normal_2", -6, 1);
         
         for (int r = 0; r < numData; r++)
             assertEquals("The data stream 3 from the multi generator has to be the same than that from the single generator", adal.get(2).get(r), normal.nextDouble(), precision);
         
-        normal = RandomGeneratorPool.createNormalGenerator("n3", 1000, 0.01);
+        normal = RandomGeneratorPool.createNormalGenerator("multi_normal_3", 1000, 0.01);
         
         for (int r = 0; r < numData; r++)
             assertEquals("The data stream 4 from the multi generator has to be the same than that from the single generator", adal.get(3).get(r), normal.nextDouble(), precision);
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ * 
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datagen;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import cern.jet.random.Uniform;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class RandomStreamFactoryTest {
+
+    /**
+     * A stream depends only on the master seed and its keys, not on the order in which streams
+     * are created
+     */
+    @Test
+    public void createEngine_independentOfOrder() {
+        RandomStreamFactory run = new RandomStreamFactory(42).split(3).split(17);
+
+        SplitMix64Engine first = run.split("Trend_1").createEngine("noise");
+        run.split("Trend_0").createEngine("noise");
+        SplitMix64Engine second = new RandomStreamFactory(42).split(3).split(17).split("Trend_1").createEngine("noise");
+
+        for (int i = 0; i < 1000; i++)
+            assertEquals(first.nextLong(), second.nextLong());
+
+        SplitMix64Engine otherRun = new RandomStreamFactory(42).split(3).split(18).split("Trend_1").createEngine("noise");
+        SplitMix64Engine otherPurpose = run.split("Trend_1").createEngine("offset");
+        SplitMix64Engine stream = run.split("Trend_1").createEngine("noise");
+
+        assertFalse(stream.nextLong() == otherRun.nextLong());
+        assertFalse(stream.nextLong() == otherPurpose.nextLong());
+    }
+
+    /**
+     * Jumping ahead gives the same values as drawing and discarding them
+     */
+    @Test
+    public void jump_equalsDraws() {
+        SplitMix64Engine drawn = new RandomStreamFactory(7).createEngine("jump");
+        SplitMix64Engine jumped = new RandomStreamFactory(7).createEngine("jump");
+
+        for (int i = 0; i < 12345; i++)
+            drawn.nextLong();
+
+        jumped.jump(12345);
+
+        for (int i = 0; i < 100; i++)
+            assertEquals(drawn.nextLong(), jumped.nextLong());
+    }
+
+    /**
+     * Streams derived from consecutive seeds are uncorrelated and uniformly distributed
+     */
+    @Test
+    public void createUniform_consecutiveSeeds_uncorrelated() {
+        int numData = 100000;
+        Uniform u1 = new RandomStreamFactory(100).createUniform("u", 0, 1);
+        Uniform u2 = new RandomStreamFactory(101).createUniform("u", 0, 1);
+        double sum1 = 0, sum2 = 0, sum12 = 0;
+
+        for (int i = 0; i < numData; i++) {
+            double x1 = u1.nextDouble();
+            double x2 = u2.nextDouble();
+
+            sum1 += x1;
+            sum2 += x2;
+            sum12 += x1 * x2;
+        }
+
+        double mean1 = sum1 / numData;
+        double mean2 = sum2 / numData;
+        double correlation = (sum12 / numData - mean1 * mean2) / (1.0 / 12);
+
+        assertEquals(0.5, mean1, 0.01);
+        assertEquals(0.5, mean2, 0.01);
+        assertEquals(0.0, correlation, 0.02);
+    }
+}
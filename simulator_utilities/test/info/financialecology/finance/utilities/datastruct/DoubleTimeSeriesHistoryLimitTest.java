@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datastruct;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class DoubleTimeSeriesHistoryLimitTest {
+
+    private static final double TOLERANCE = 1E-9;
+
+    @Test
+    public void limitedHistory_keepsRecentValuesAndFullMoments() {
+        Random rand = new Random(57);
+        DoubleTimeSeries full = new DoubleTimeSeries();
+        DoubleTimeSeries limited = new DoubleTimeSeries();
+
+        limited.add(0, 1.0);
+        limited.setHistoryLimit(10);    // values added before the limit is set are kept
+        full.add(0, 1.0);
+
+        for (int t = 1; t < 1000; t++) {
+            double value = rand.nextGaussian();
+
+            full.add(t, value);
+            limited.add(t, value);
+        }
+
+        assertTrue(limited.hasHistoryLimit());
+        assertEquals(full.size(), limited.size());
+        assertEquals(990, limited.getFirstRetainedIndex());
+        assertEquals(999, limited.getLastTick());
+
+        for (int t = limited.getFirstRetainedIndex(); t < limited.size(); t++)
+            assertEquals(full.get(t), limited.get(t), 0);
+
+        limited.add(995, 3.0);          // values within the window can be replaced
+        full.add(995, 3.0);
+
+        assertEquals(3.0, limited.get(995), 0);
+
+        DoubleTimeSeries appendOnly = new DoubleTimeSeries();
+        appendOnly.setHistoryLimit(5);
+
+        for (int t = 0; t < full.size(); t++)
+            appendOnly.add(full.get(t));
+
+        assertEquals(full.mean(), appendOnly.mean(), TOLERANCE);
+        assertEquals(full.stdev(), appendOnly.stdev(), TOLERANCE);
+        assertEquals(full.unbiasedExcessKurtosis(), appendOnly.unbiasedExcessKurtosis(), TOLERANCE);
+    }
+
+    /**
+     * A value replaced within the window is swapped in the moments, which still cover the full history
+     */
+    @Test
+    public void limitedHistory_replaceKeepsMoments() {
+        Random rand = new Random(91);
+        DoubleTimeSeries full = new DoubleTimeSeries();
+        DoubleTimeSeries limited = new DoubleTimeSeries();
+
+        limited.setHistoryLimit(10);
+
+        for (int t = 0; t < 500; t++) {
+            double value = 100 + rand.nextGaussian();
+
+            full.add(t, value);
+            limited.add(t, value);
+
+            if (t >= 3) {               // revise a recent value, as the traders do with their positions
+                full.add(t - 3, value - 2);
+                limited.add(t - 3, value - 2);
+            }
+        }
+
+        assertEquals(full.mean(), limited.mean(), TOLERANCE);
+        assertEquals(full.stdev(), limited.stdev(), TOLERANCE);
+        assertEquals(full.skewness(), limited.skewness(), 1E-6);
+        assertEquals(full.unbiasedExcessKurtosis(), limited.unbiasedExcessKurtosis(), 1E-6);
+    }
+
+    /**
+     * The moments are brought up to date before the history is limited, so a value replaced just 
+     * before the limit is set is still accounted for, as is a value replaced before the limit shrinks
+     */
+    @Test
+    public void replaceThenLimitHistory_keepsMoments() {
+        Random rand = new Random(17);
+        DoubleTimeSeries full = new DoubleTimeSeries();
+        DoubleTimeSeries limited = new DoubleTimeSeries();
+
+        for (int t = 0; t < 200; t++) {
+            double value = 100 + rand.nextGaussian();
+
+            full.add(t, value);
+            limited.add(t, value);
+        }
+
+        full.add(150, 90);
+        limited.add(150, 90);          // the moments of the full history are now stale
+        limited.setHistoryLimit(50);
+
+        full.add(190, 110);
+        limited.add(190, 110);
+        limited.setHistoryLimit(10);
+
+        assertEquals(full.mean(), limited.mean(), TOLERANCE);
+        assertEquals(full.stdev(), limited.stdev(), TOLERANCE);
+        assertEquals(full.skewness(), limited.skewness(), 1E-6);
+        assertEquals(full.unbiasedExcessKurtosis(), limited.unbiasedExcessKurtosis(), 1E-6);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.datastruct;
+
+import static org.junit.Assert.*;
+
+import info.financialecology.finance.utilities.statistics.StatsTimeSeries;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class PrefixSumsTest {
+
+    private static final double TOLERANCE = 1E-9;
+
+    @Test
+    public void windows_matchDirectComputation() {
+        Random rand = new Random(11);
+        DoubleTimeSeries plain = new DoubleTimeSeries();
+        DoubleTimeSeries summed = new DoubleTimeSeries();
+
+        summed.enablePrefixSums();
+
+        for (int t = 0; t < 5000; t++) {
+            double price = 100 + 10 * rand.nextGaussian();
+
+            plain.add(t, price);
+            summed.add(t, price);
+        }
+
+        PrefixSums sums = summed.getPrefixSums();
+
+        for (int window : new int[] {2, 20, 250, 5000}) {
+            assertEquals(StatsTimeSeries.fullMA(plain, window), StatsTimeSeries.fullMA(summed, window), TOLERANCE);
+            assertEquals(StatsTimeSeries.stdDev(plain, window), StatsTimeSeries.stdDev(summed, window), TOLERANCE);
+        }
+
+        for (int end = 100; end < 5000; end += 700)
+            assertEquals(direct(plain, end - 49, end), sums.sum(end - 49, end), TOLERANCE);
+    }
+
+    @Test
+    public void replacedValues_areSummedAgain() {
+        DoubleTimeSeries ts = new DoubleTimeSeries();
+
+        for (int t = 0; t < 10; t++)
+            ts.add(t, t);
+
+        ts.enablePrefixSums();      // values added before are summed too
+        ts.add(7, 100.0);
+        ts.addToValue(2, 1.0);
+
+        assertEquals(10, ts.getPrefixSums().size());
+        assertEquals(direct(ts, 0, 9), ts.getPrefixSums().sum(0, 9), 0);
+        assertEquals(direct(ts, 5, 8) / 4, ts.getPrefixSums().mean(8, 4), 0);
+
+        ts.fillWithConstants(3, 2.0);
+
+        assertEquals(3, ts.getPrefixSums().size());
+        assertEquals(0.0, ts.getPrefixSums().variance(2, 3), 0);
+    }
+
+    @Test
+    public void limitedHistory_limitsPrefixSums() {
+        Random rand = new Random(23);
+        DoubleTimeSeries full = new DoubleTimeSeries();
+        DoubleTimeSeries limited = new DoubleTimeSeries();
+
+        limited.enablePrefixSums();
+
+        for (int t = 0; t < 30; t++) {
+            double value = rand.nextGaussian();
+
+            full.add(t, value);
+            limited.add(t, value);
+        }
+
+        limited.setHistoryLimit(20);
+
+        for (int t = 30; t < 1000; t++) {
+            double value = rand.nextGaussian();
+
+            full.add(t, value);
+            limited.add(t, value);
+        }
+
+        limited.add(990, 5.0);
+        full.add(990, 5.0);
+
+        assertEquals(980, limited.getPrefixSums().getFirstRetainedIndex());
+        assertEquals(StatsTimeSeries.stdDev(full, 20), limited.getPrefixSums().stdDev(999, 20), TOLERANCE);
+        assertEquals(direct(full, 985, 995), limited.getPrefixSums().sum(985, 995), TOLERANCE);
+    }
+
+    @Test
+    public void crossSums_matchCovariance() {
+        Random rand = new Random(31);
+        DoubleTimeSeries tsX = new DoubleTimeSeries();
+        DoubleTimeSeries tsY = new DoubleTimeSeries();
+
+        tsX.enablePrefixSums();
+        tsY.enablePrefixSums();
+
+        CrossPrefixSums cross = new CrossPrefixSums(tsX, tsY);
+
+        for (int t = 0; t < 2000; t++) {
+            double x = 0.01 * rand.nextGaussian();
+
+            tsX.add(t, x);
+            tsY.add(t, 0.5 * x + 0.01 * rand.nextGaussian());
+
+            if (t >= 100)
+                assertEquals(StatsTimeSeries.covariance(tsX, tsY, 100), cross.covariance(t, 100), TOLERANCE);
+        }
+
+        tsY.add(1990, 0.3);     // replacing a value recomputes the products
+
+        assertEquals(StatsTimeSeries.covariance(tsX, tsY, 50), cross.covariance(1999, 50), TOLERANCE);
+
+        tsX.setHistoryLimit(60);
+        tsY.setHistoryLimit(60);
+
+        for (int t = 2000; t < 2500; t++) {
+            tsX.add(t, 0.01 * rand.nextGaussian());
+            tsY.add(t, 0.01 * rand.nextGaussian());
+        }
+
+        assertEquals(2500, cross.size());
+        assertEquals(directCovariance(tsX, tsY, 2451, 2499), cross.covariance(2499, 49), TOLERANCE);
+    }
+
+    private static double direct(DoubleTimeSeries ts, int from, int to) {
+        double sum = 0;
+
+        for (int i = from; i <= to; i++)
+            sum += ts.get(i);
+
+        return sum;
+    }
+
+    private static double directCovariance(DoubleTimeSeries tsX, DoubleTimeSeries tsY, int from, int to) {
+        int n = to - from + 1;
+        double meanX = direct(tsX, from, to) / n;
+        double meanY = direct(tsY, from, to) / n;
+        double sum = 0;
+
+        for (int i = from; i <= to; i++)
+            sum += (tsX.get(i) - meanX) * (tsY.get(i) - meanY);
+
+        return sum / (n - 1);
+    }
+}
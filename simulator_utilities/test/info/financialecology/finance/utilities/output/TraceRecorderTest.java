@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.output;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class TraceRecorderTest {
+
+    private static final int LIMIT = TraceRecorder.registerEventType("TEST_LIMIT", "var", "limit");
+
+    @After
+    public void tearDown() {
+        TraceRecorder.uninstall();
+    }
+
+    private static TraceDecoder roundTrip(TraceRecorder recorder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        recorder.write(out);
+
+        return new TraceDecoder(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    /**
+     * The ring keeps the last records, which are decoded in the order in which they were recorded
+     */
+    @Test
+    public void ringBuffer() throws IOException {
+        TraceRecorder recorder = new TraceRecorder(4);
+        int agent = recorder.agent("Trader_1");
+        int asset = recorder.asset("IBM");
+
+        for (int tick = 0; tick < 10; tick++)
+            recorder.record(tick, LIMIT, agent, asset, tick * 0.5, 100, 0);
+
+        TraceDecoder decoder = roundTrip(recorder);
+
+        assertEquals(10, decoder.getNumRecorded());
+        assertEquals(4, decoder.getNumRecords());
+
+        for (int record = 0; record < 4; record++) {
+            assertEquals(6 + record, decoder.getTick(record));
+            assertEquals("TEST_LIMIT", decoder.getEventType(record));
+            assertEquals("Trader_1", decoder.getAgent(record));
+            assertEquals("IBM", decoder.getAsset(record));
+            assertEquals((6 + record) * 0.5, decoder.getValue(record, 0), 0);
+        }
+
+        assertEquals("t = 9 | Trader_1 | IBM | TEST_LIMIT | var = 4.5, limit = 100.0", decoder.toString(3));
+    }
+
+    /**
+     * Only the events of the traced agents, and those without an agent, in the tick range are recorded
+     */
+    @Test
+    public void filters() throws IOException {
+        TraceRecorder recorder = new TraceRecorder(100);
+
+        recorder.setAgentFilter("Trader_2");
+        recorder.setTickFilter(5, 7);
+
+        int trader_1 = recorder.agent("Trader_1");
+        int trader_2 = recorder.agent("Trader_2");
+
+        for (int tick = 0; tick < 10; tick++) {
+            recorder.record(tick, LIMIT, trader_1, TraceRecorder.NONE, 1, 0, 0);
+            recorder.record(tick, LIMIT, trader_2, TraceRecorder.NONE, 2, 0, 0);
+            recorder.record(tick, LIMIT, TraceRecorder.NONE, TraceRecorder.NONE, 3, 0, 0);
+        }
+
+        TraceDecoder decoder = roundTrip(recorder);
+
+        assertEquals(6, decoder.getNumRecords());
+        assertFalse(recorder.isTraced(6, trader_1));
+        assertTrue(recorder.isTraced(6, trader_2));
+        assertNull(decoder.getAgent(1));
+        assertNull(decoder.getAsset(0));
+    }
+
+    @Test
+    public void install() {
+        assertNull(TraceRecorder.current());
+
+        TraceRecorder recorder = new TraceRecorder(10);
+
+        TraceRecorder.install(recorder);
+        assertSame(recorder, TraceRecorder.current());
+
+        TraceRecorder.uninstall();
+        assertNull(TraceRecorder.current());
+    }
+}
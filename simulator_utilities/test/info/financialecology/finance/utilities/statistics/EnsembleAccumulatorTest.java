@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.statistics;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class EnsembleAccumulatorTest {
+
+    private static final int NUM_RUNS = 5000;
+    private static final int NUM_TICKS = 3;
+    private static final double TOLERANCE = 1E-9;
+    private static final double RANK_TOLERANCE = 0.005;     // of the quantile estimates, as a fraction of the runs
+    private static final double [] PROBABILITIES = {0.001, 0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99, 0.999};
+
+    private double [][] runs;
+
+    @Before
+    public void setUp() throws Exception {
+        Random rand = new Random(364);
+
+        runs = new double[NUM_RUNS][NUM_TICKS];
+
+        for (double [] run : runs) {
+            run[0] = 100;
+            run[1] = 100 + 3 * rand.nextGaussian();
+            run[2] = 100 * Math.exp(rand.nextGaussian());     // skewed
+        }
+    }
+
+    /**
+     * The fraction of the values at the tick that are not greater than the estimate is close to q
+     */
+    private void assertQuantiles(EnsembleAccumulator ensemble, int tick) {
+        double [] values = new double[NUM_RUNS];
+
+        for (int run = 0; run < NUM_RUNS; run++)
+            values[run] = runs[run][tick];
+
+        Arrays.sort(values);
+
+        for (double q : PROBABILITIES) {
+            double estimate = ensemble.getQuantile(tick, q);
+            int rank = 0;
+
+            while ((rank < NUM_RUNS) && (values[rank] <= estimate)) rank++;
+
+            assertEquals("q = " + q, q, (double) rank / NUM_RUNS, RANK_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void addRun_momentsAndQuantilesAcrossRuns() {
+        EnsembleAccumulator ensemble = new EnsembleAccumulator(NUM_TICKS);
+        MomentAccumulator moments = new MomentAccumulator();
+
+        for (double [] run : runs) {
+            ensemble.addRun(run, NUM_TICKS);
+            moments.increment(run[2]);
+        }
+
+        assertEquals(NUM_RUNS, ensemble.getNumRuns());
+        assertEquals(100, ensemble.getQuantile(0, 0.3), 0);
+        assertEquals(moments.getMean(), ensemble.getMean(2), TOLERANCE);
+        assertEquals(moments.getVariance(), ensemble.getVariance(2), TOLERANCE);
+        assertQuantiles(ensemble, 1);
+        assertQuantiles(ensemble, 2);
+    }
+
+    @Test
+    public void merge_sameAsOneEnsemble() {
+        EnsembleAccumulator all = new EnsembleAccumulator(NUM_TICKS);
+        EnsembleAccumulator [] workers = {new EnsembleAccumulator(NUM_TICKS), new EnsembleAccumulator(NUM_TICKS), new EnsembleAccumulator(NUM_TICKS)};
+
+        for (int run = 0; run < NUM_RUNS; run++) {
+            all.addRun(runs[run], NUM_TICKS);
+            workers[run % 3].addRun(runs[run], (run % 10 == 0) ? 2 : NUM_TICKS);    // some runs stop early
+        }
+
+        workers[0].merge(workers[1]);
+        workers[0].merge(workers[2]);
+
+        assertEquals(NUM_RUNS, workers[0].getNumRuns());
+        assertEquals(NUM_RUNS, workers[0].getCount(1));
+        assertEquals(NUM_RUNS - NUM_RUNS / 10, workers[0].getCount(2));
+        assertEquals(all.getMean(1), workers[0].getMean(1), TOLERANCE);
+        assertEquals(all.getVariance(1), workers[0].getVariance(1), TOLERANCE);
+        assertQuantiles(workers[0], 1);
+        assertTrue(workers[0].getQuantiles(0.5).size() == NUM_TICKS);
+    }
+}
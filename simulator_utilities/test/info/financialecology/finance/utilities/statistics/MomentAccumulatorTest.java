@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2011-2014 Gilbert Peffer, Barbara Llacay
+ *
+ * The source code and software releases are available at http://code.google.com/p/systemic-risk/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.finance.utilities.statistics;
+
+import static org.junit.Assert.*;
+import info.financialecology.finance.utilities.datastruct.DoubleTimeSeries;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gilbert Peffer
+ *
+ */
+public class MomentAccumulatorTest {
+
+    private static final double TOLERANCE = 1E-9;
+
+    private double [] data;
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        Random rand = new Random(364);
+
+        data = new double[5000];
+
+        for (int i = 0; i < data.length; i++)
+            data[i] = 100 + 3 * rand.nextGaussian() + Math.pow(rand.nextDouble(), 4);   // shifted and skewed
+    }
+
+    @Test
+    public void moments_sameAsDescriptiveStatistics() {
+        DescriptiveStatistics stats = new DescriptiveStatistics();
+        MomentAccumulator moments = new MomentAccumulator();
+
+        for (double d : data) {
+            stats.addValue(d);
+            moments.increment(d);
+        }
+
+        assertEquals(stats.getN(), moments.getN());
+        assertEquals(stats.getMean(), moments.getMean(), TOLERANCE);
+        assertEquals(stats.getStandardDeviation(), moments.getStandardDeviation(), TOLERANCE);
+        assertEquals(stats.getSkewness(), moments.getSkewness(), TOLERANCE);
+        assertEquals(stats.getKurtosis(), moments.getKurtosis(), TOLERANCE);
+    }
+
+    @Test
+    public void merge_sameAsSinglePass() {
+        MomentAccumulator all = new MomentAccumulator();
+        MomentAccumulator first = new MomentAccumulator();
+        MomentAccumulator second = new MomentAccumulator();
+
+        all.incrementAll(data, 0, data.length);
+        first.incrementAll(data, 0, 1234);
+        second.incrementAll(data, 1234, data.length);
+        first.merge(second);
+
+        assertEquals(all.getN(), first.getN());
+        assertEquals(all.getMean(), first.getMean(), TOLERANCE);
+        assertEquals(all.getVariance(), first.getVariance(), TOLERANCE);
+        assertEquals(all.getSkewness(), first.getSkewness(), TOLERANCE);
+        assertEquals(all.getKurtosis(), first.getKurtosis(), TOLERANCE);
+    }
+
+    @Test
+    public void doubleTimeSeries_invalidatedOnMutation() {
+        DoubleTimeSeries dts = new DoubleTimeSeries();
+        DescriptiveStatistics stats = new DescriptiveStatistics();
+
+        for (int i = 0; i < 100; i++)
+            dts.add(data[i]);
+
+        assertEquals(100, dts.size());
+        assertFalse(Double.isNaN(dts.unbiasedExcessKurtosis()));     // cached moments are in use
+
+        dts.set(10, -50);           // replace values: the cached moments are stale
+        dts.add(20, 75);
+        dts.addToValue(30, 12);
+        dts.add(104, 1);            // gap filled with zeros
+
+        for (int i = 0; i < dts.size(); i++)
+            stats.addValue(dts.get(i));
+
+        assertEquals(stats.getMean(), dts.mean(), TOLERANCE);
+        assertEquals(stats.getStandardDeviation(), dts.stdev(), TOLERANCE);
+        assertEquals(stats.getSkewness(), dts.skewness(), TOLERANCE);
+        assertEquals(stats.getKurtosis(), dts.unbiasedExcessKurtosis(), TOLERANCE);
+
+        dts.fillWithConstants(10, 2.0);
+
+        assertEquals(2.0, dts.mean(), TOLERANCE);
+        assertEquals(0.0, dts.stdev(), TOLERANCE);
+    }
+}